@@ -0,0 +1,60 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Product of Paillier ciphertexts mod n² on one thread: BigInteger multiply + mod per ciphertext against the
+// Montgomery limb multiplier the product tree leaves use
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PaillierMultiplyBenchmark {
+
+    // bits of n, ciphertexts have twice as many
+    @Param({"1024", "2048"})
+    public int keyBits;
+
+    @Param({"1024"})
+    public int count;
+
+    private BigInteger nSquared;
+    private BigInteger[] ciphertexts;
+    private MontgomeryMultiplier montgomery;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        var n = BigInteger.probablePrime(keyBits / 2, random).multiply(BigInteger.probablePrime(keyBits / 2, random));
+        nSquared = n.multiply(n);
+        ciphertexts = new BigInteger[count];
+        for (int i = 0; i < count; i++)
+            ciphertexts[i] = new BigInteger(2 * keyBits, random).mod(nSquared);
+        montgomery = new MontgomeryMultiplier(nSquared);
+    }
+
+    @Benchmark
+    public BigInteger bigInteger() {
+        var product = ciphertexts[0];
+        for (int i = 1; i < ciphertexts.length; i++)
+            product = product.multiply(ciphertexts[i]).mod(nSquared);
+        return product;
+    }
+
+    @Benchmark
+    public BigInteger montgomery() {
+        var product = montgomery.accumulator();
+        for (var ciphertext : ciphertexts)
+            product.multiply(ciphertext);
+        return product.result();
+    }
+}
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
@@ -65,6 +66,41 @@ public class ConfigDefaults {
             public static final String TTP_ADDRESS = "ttp.medtechchain.nl:6000"; // "ttp.medtechchain.nl:6000" "192.168.45.84:6000"; 
 
             public static final int BIT_LENGTH = 2048;
+
+            // TTP requests pipelined at once, a round trip is a few ms so overlapping them is what keeps encrypted queries fast
+            public static final int TTP_MAX_IN_FLIGHT = 16;
+
+            // a TTP request that isn't answered within this fails
+            public static final Duration TTP_REQUEST_DEADLINE = Duration.ofSeconds(30);
+
+            // ciphertexts one task of the Paillier product tree multiplies sequentially
+            public static final int PAILLIER_PRODUCT_LEAF_SIZE = 64;
+
+            // bfv_calc processes kept running per BFV service, each holds its own crypto context and eval keys;
+            // one per core, so a reduction level keeps every core busy
+            public static final int BFV_WORKERS = Runtime.getRuntime().availableProcessors();
+
+            // ciphertexts one bfv_calc addMany call sums in a BFV reduction
+            public static final int BFV_ADD_FAN_IN = 10;
+
+            // ciphertexts one fused Σ(x - m)² bfv_calc call works on, chunks of a batch run on all workers at once
+            public static final int BFV_SQUARED_DIFFERENCES_CHUNK = 64;
+
+            // (x, y) pairs one fused regression moments bfv_calc call works on, three multiplications per pair
+            public static final int BFV_REGRESSION_MOMENTS_CHUNK = 32;
+
+            // a bfv_calc worker that doesn't answer a request within this is killed and replaced
+            public static final Duration BFV_CALL_DEADLINE = Duration.ofSeconds(60);
+
+            // a new worker has this long to load its keys and answer the first ping
+            public static final Duration BFV_WORKER_STARTUP_DEADLINE = Duration.ofSeconds(30);
+
+            // a worker that sat idle for longer than this is pinged before it gets a request
+            public static final Duration BFV_WORKER_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(30);
+
+            // operand characters from which a bfv_calc call passes them through the worker's mapped scratch file
+            // instead of the pipe, a single BFV ciphertext is well above this
+            public static final long BFV_MAPPED_TRANSPORT_THRESHOLD = 64 * 1024;
         }
 
         private static void checkBfvBinary() {
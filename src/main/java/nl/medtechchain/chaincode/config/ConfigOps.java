@@ -76,6 +76,13 @@ public class ConfigOps {
             return create(list);
         }
 
+        // the id of the config, computed from its entries if it has none (e.g. a config built without create)
+        public static String id(PlatformConfig platformConfig) {
+            if (!platformConfig.getId().isEmpty())
+                return platformConfig.getId();
+            return computePlatformConfigId(platformConfig.getMapList());
+        }
+
         private static String computePlatformConfigId(List<PlatformConfig.Entry> configs) {
             return UUID.nameUUIDFromBytes(UpdatePlatformConfig.newBuilder().addAllMap(configs).build().toByteArray()).toString();
         }
@@ -2,10 +2,11 @@ package nl.medtechchain.chaincode.contract;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Timestamp;
-import nl.medtechchain.chaincode.service.encryption.EncryptionService;
-import nl.medtechchain.chaincode.service.encryption.EncryptionServiceFactory;
+import nl.medtechchain.chaincode.service.encryption.EncryptionServiceRegistry;
 import nl.medtechchain.chaincode.service.query.FilterService;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
 import nl.medtechchain.chaincode.service.query.QueryService;
+import nl.medtechchain.proto.common.ChaincodeResponse;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.*;
@@ -16,19 +17,33 @@ import org.hyperledger.fabric.contract.annotation.Contract;
 import org.hyperledger.fabric.contract.annotation.Info;
 import org.hyperledger.fabric.contract.annotation.License;
 import org.hyperledger.fabric.contract.annotation.Transaction;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
 import org.hyperledger.fabric.shim.ledger.KeyValue;
 
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 import java.util.logging.Level;
 
 import static nl.medtechchain.chaincode.util.Base64EncodingOps.decode64;
 import static nl.medtechchain.chaincode.util.Base64EncodingOps.encode64;
 import static nl.medtechchain.chaincode.util.ChaincodeResponseUtil.*;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.decodeBatch;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.decodeIds;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.encodeIds;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.encodeStatuses;
 import static nl.medtechchain.chaincode.util.MeasureExecTimeUtil.monitorTime;
+import static nl.medtechchain.chaincode.util.StateEncodingOps.decodeState;
+import static nl.medtechchain.chaincode.util.StateEncodingOps.encodeState;
+import static nl.medtechchain.chaincode.util.StateEncodingOps.isRawFormat;
 import static nl.medtechchain.proto.query.Query.QueryType.*;
 
 @Contract(name = "devicedata", info = @Info(title = "Device Data Contract", license = @License(name = "Apache 2.0 License", url = "http://www.apache.org/licenses/LICENSE-2.0.html")))
@@ -36,12 +51,16 @@ public final class DeviceDataContract implements ContractInterface {
 
     private static final Logger logger = Logger.getLogger(DeviceDataContract.class);
 
+    // index entries counted per equality filter when picking the most selective one
+    private static final long INDEX_PROBE_LIMIT = 1000;
+
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public String StoreDeviceData(Context ctx, String id, String transaction) {
         try {
-            decode64(transaction, DeviceDataAsset::parseFrom);
-            var key = TXType.DEVICE_DATA_ASSET.compositeKey(id);
-            ctx.getStub().putStringState(key.toString(), transaction);
+            var asset = decode64(transaction, DeviceDataAsset::parseFrom);
+            var rollups = new DeviceDataRollups(ctx.getStub(), regressionPairs(ctx));
+            var key = putDeviceData(ctx.getStub(), rollups, id, asset, encodeState(asset));
+            rollups.flush();
             logger.debug("Stored device data asset: " + key);
             return encode64(successResponse(transaction));
         } catch (InvalidProtocolBufferException e) {
@@ -51,6 +70,256 @@ public final class DeviceDataContract implements ContractInterface {
         }
     }
 
+    // Stores many assets in one transaction, see DeviceDataBatchOps for the wire format
+    // malformed assets are reported in the per-item statuses and skipped, the others are all written
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String StoreDeviceDataBatch(Context ctx, String transaction) {
+        List<Map.Entry<String, byte[]>> items;
+        try {
+            items = decodeBatch(transaction);
+        } catch (InvalidProtocolBufferException e) {
+            logger.log(Level.WARNING, "Failed to parse device data batch", e);
+            return encode64(invalidTransaction("Failed to parse device data batch: " + e.getMessage()));
+        }
+
+        var stub = ctx.getStub();
+        var rollups = new DeviceDataRollups(stub, regressionPairs(ctx));
+        var statuses = new ArrayList<ChaincodeResponse>(items.size());
+        // a transaction doesn't read its own writes, a repeated id would be rolled up twice
+        var ids = new HashSet<String>();
+        int stored = 0;
+
+        for (Map.Entry<String, byte[]> item : items) {
+            if (item.getKey().isEmpty()) {
+                statuses.add(invalidTransaction("Missing device data asset id"));
+                continue;
+            }
+            if (!ids.add(item.getKey())) {
+                statuses.add(invalidTransaction("Duplicate device data asset id " + item.getKey()));
+                continue;
+            }
+            try {
+                var asset = DeviceDataAsset.parseFrom(item.getValue());
+                putDeviceData(stub, rollups, item.getKey(), asset, encodeState(item.getValue()));
+                statuses.add(successResponse(item.getKey()));
+                stored++;
+            } catch (InvalidProtocolBufferException e) {
+                logger.warning("Failed to parse DeviceDataAsset " + item.getKey() + ": " + e.getMessage());
+                statuses.add(invalidTransaction("Failed to parse DeviceDataAsset " + item.getKey(), e.getMessage()));
+            }
+        }
+
+        // one read and write per touched rollup for the whole batch
+        rollups.flush();
+
+        logger.info("Stored " + stored + " of " + items.size() + " device data assets");
+        return encode64(successResponse(encodeStatuses(statuses)));
+    }
+
+    // Migrating the legacy DEVICE_DATA_ASSET_~id keys into their day bucket goes in three steps:
+    //  1. ReadLegacyDeviceDataIds pages through the asset keys and lists the legacy ids of each page
+    //  2. MigrateDeviceDataKeys moves the listed ids, its read set is just their keys
+    //  3. CompleteDeviceDataKeyMigration checks that no legacy key is left and switches queries to the day buckets
+    // the legacy keys sort in between the day buckets and a submit transaction can neither start a composite key scan
+    // from a cursor nor paginate, so listing happens in evaluate transactions, each key range is read once overall
+
+    // Legacy ids among the next pageSize asset keys from bookmark (empty for the first page)
+    // the response holds the bookmark of the next page followed by the ids, see DeviceDataBatchOps.encodeIds,
+    // the bookmark after the last page is QueryPageBookmarks.LAST_PAGE
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String ReadLegacyDeviceDataIds(Context ctx, int pageSize, String bookmark) {
+        if (pageSize <= 0)
+            return encode64(invalidTransaction("Page size has to be bigger than 0"));
+        if (bookmark.equals(QueryPageBookmarks.LAST_PAGE))
+            return encode64(successResponse(encodeIds(List.of(QueryPageBookmarks.LAST_PAGE))));
+
+        var stub = ctx.getStub();
+        var ids = new ArrayList<String>();
+        String next;
+        try (var iterator = stub.getStateByPartialCompositeKeyWithPagination(TXType.DEVICE_DATA_ASSET.partialKey(), pageSize, bookmark)) {
+            for (KeyValue kv : iterator) {
+                var key = stub.splitCompositeKey(kv.getKey());
+                if (DeviceDataKeys.isLegacyKey(key))
+                    ids.add(key.getAttributes().get(0));
+            }
+            next = QueryPageBookmarks.next(iterator.getMetadata(), pageSize);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to read legacy device data ids", e);
+            return encode64(internalError("Failed to read legacy device data ids", e.toString()));
+        }
+
+        logger.info("Found " + ids.size() + " legacy device data ids in a page of " + pageSize + " keys");
+        var page = new ArrayList<String>(ids.size() + 1);
+        page.add(next);
+        page.addAll(ids);
+        return encode64(successResponse(encodeIds(page)));
+    }
+
+    // Moves the assets of the given ids (see DeviceDataBatchOps.encodeIds) from their legacy key into their day bucket
+    // and indexes them, ids that are no longer under a legacy key are skipped
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String MigrateDeviceDataKeys(Context ctx, String ids) {
+        List<String> legacyIds;
+        try {
+            legacyIds = decodeIds(ids);
+        } catch (InvalidProtocolBufferException e) {
+            logger.log(Level.WARNING, "Failed to parse legacy device data ids", e);
+            return encode64(invalidTransaction("Failed to parse legacy device data ids: " + e.getMessage()));
+        }
+
+        var stub = ctx.getStub();
+        var rollups = new DeviceDataRollups(stub, regressionPairs(ctx));
+        // a transaction doesn't read its own writes, a repeated id would be migrated twice
+        var seen = new HashSet<String>();
+        int migrated = 0;
+
+        for (String id : legacyIds) {
+            var legacyKey = DeviceDataKeys.legacyAssetKey(id).toString();
+            var value = stub.getState(legacyKey);
+            if (!seen.add(id) || value == null || value.length == 0)
+                continue;
+
+            try {
+                var asset = decodeState(value, DeviceDataAsset.parser());
+                // an id stored again since the upgrade already has a newer bucketed copy, the legacy one is dropped
+                if (storedAssets(stub, id, asset).keySet().stream().anyMatch(k -> !k.equals(legacyKey))) {
+                    logger.info("Dropping legacy device data asset superseded by a bucketed copy: " + legacyKey);
+                    stub.delState(legacyKey);
+                } else {
+                    putDeviceData(stub, rollups, id, asset, encodeState(asset));
+                }
+                migrated++;
+            } catch (InvalidProtocolBufferException e) {
+                // left in place, a full scan still reports it as unparsable
+                logger.warning("Skipping unparsable device data asset during migration: " + legacyKey + " " + e.getMessage());
+            }
+        }
+
+        rollups.flush();
+        logger.info("Migrated " + migrated + " of " + legacyIds.size() + " legacy device data assets to day buckets");
+        return encode64(successResponse("migrated=" + migrated));
+    }
+
+    // Switches queries to the day buckets once no legacy key is left, reads the asset keys up to the first legacy one
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String CompleteDeviceDataKeyMigration(Context ctx) {
+        var stub = ctx.getStub();
+        try (var iterator = stub.getStateByPartialCompositeKey(TXType.DEVICE_DATA_ASSET.partialKey())) {
+            for (KeyValue kv : iterator) {
+                if (DeviceDataKeys.isLegacyKey(stub.splitCompositeKey(kv.getKey())))
+                    return encode64(invalidTransaction("Legacy device data keys are left, run MigrateDeviceDataKeys first: " + kv.getKey()));
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to check device data keys", e);
+            return encode64(internalError("Failed to check device data keys", e.toString()));
+        }
+
+        stub.putStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY, "true");
+        logger.info("All device data assets are in day buckets");
+        return encode64(successResponse("remaining=false"));
+    }
+
+    // Rewrites up to batchSize base64 encoded assets as raw protobuf bytes, walking the day buckets from a cursor
+    // kept in the ledger, meant to be invoked repeatedly until it reports no remaining days
+    // assets are readable in both formats in the meantime
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String MigrateDeviceDataFormat(Context ctx, int batchSize) {
+        if (batchSize <= 0)
+            return encode64(invalidTransaction("Batch size has to be bigger than 0"));
+
+        var stub = ctx.getStub();
+        if (!"true".equals(stub.getStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY)))
+            return encode64(invalidTransaction("Device data keys have to be migrated to day buckets first, run MigrateDeviceDataKeys and CompleteDeviceDataKeyMigration"));
+
+        var cursor = stub.getStringState(DeviceDataKeys.FORMAT_MIGRATION_CURSOR_KEY);
+        var day = cursor == null || cursor.isEmpty() ? DeviceDataKeys.firstDay(stub) : Optional.of(Long.parseLong(cursor));
+        if (day.isEmpty())
+            return encode64(successResponse("migrated=0,remaining=false"));
+
+        // assets from the future (clock skew) are still readable, they just keep their base64 format
+        long lastDay = DeviceDataKeys.epochDay(stub.getTxTimestamp().getEpochSecond());
+        long currentDay = day.get();
+        int migrated = 0;
+
+        try {
+            for (; currentDay <= lastDay && migrated < batchSize; currentDay++) {
+                try (var iterator = stub.getStateByPartialCompositeKey(TXType.DEVICE_DATA_ASSET.partialKey(DeviceDataKeys.dayBucket(currentDay)))) {
+                    for (KeyValue kv : iterator) {
+                        if (isRawFormat(kv.getValue()))
+                            continue;
+
+                        try {
+                            var asset = decodeState(kv.getValue(), DeviceDataAsset.parser());
+                            stub.putState(kv.getKey(), encodeState(asset));
+                            migrated++;
+                        } catch (InvalidProtocolBufferException e) {
+                            logger.warning("Skipping unparsable device data asset during migration: " + kv.getKey() + " " + e.getMessage());
+                        }
+
+                        if (migrated == batchSize)
+                            break;
+                    }
+                }
+
+                // the bucket may still hold base64 assets, so the next call starts from it again
+                if (migrated == batchSize)
+                    break;
+            }
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to migrate device data format", e);
+            return encode64(internalError("Failed to migrate device data format", e.toString()));
+        }
+
+        boolean remaining = currentDay <= lastDay;
+        stub.putStringState(DeviceDataKeys.FORMAT_MIGRATION_CURSOR_KEY, String.valueOf(currentDay));
+
+        logger.info("Migrated " + migrated + " device data assets to raw protobuf, next day: " + currentDay);
+        return encode64(successResponse("migrated=" + migrated + ",remaining=" + remaining));
+    }
+
+    // Rebuilds the moment rollups of up to dayCount day buckets from their assets, walking the buckets from a cursor
+    // kept in the ledger, meant to be invoked repeatedly until it reports no remaining days
+    // queries only use the rollups once every bucket has been rebuilt, new writes keep them up to date from then on
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String MigrateDeviceDataRollups(Context ctx, int dayCount) {
+        if (dayCount <= 0)
+            return encode64(invalidTransaction("Day count has to be bigger than 0"));
+
+        var stub = ctx.getStub();
+        if (!"true".equals(stub.getStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY)))
+            return encode64(invalidTransaction("Device data keys have to be migrated to day buckets first, run MigrateDeviceDataKeys and CompleteDeviceDataKeyMigration"));
+
+        var cursor = stub.getStringState(DeviceDataKeys.ROLLUP_MIGRATION_CURSOR_KEY);
+        var day = cursor == null || cursor.isEmpty() ? DeviceDataKeys.firstDay(stub) : Optional.of(Long.parseLong(cursor));
+        if (day.isEmpty()) {
+            stub.putStringState(DeviceDataKeys.ROLLUPS_KEY, "true");
+            return encode64(successResponse("rebuilt=0,remaining=false"));
+        }
+
+        // assets from the future (clock skew) written before the rollups existed are not rebuilt
+        long lastDay = DeviceDataKeys.epochDay(stub.getTxTimestamp().getEpochSecond());
+        long currentDay = day.get();
+        var rollups = new DeviceDataRollups(stub, regressionPairs(ctx));
+        int rebuilt = 0;
+        int assets = 0;
+
+        try {
+            for (; currentDay <= lastDay && rebuilt < dayCount; currentDay++, rebuilt++)
+                assets += rollups.rebuild(currentDay);
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to rebuild device data rollups", e);
+            return encode64(internalError("Failed to rebuild device data rollups", e.toString()));
+        }
+
+        boolean remaining = currentDay <= lastDay;
+        stub.putStringState(DeviceDataKeys.ROLLUP_MIGRATION_CURSOR_KEY, String.valueOf(currentDay));
+        if (!remaining)
+            stub.putStringState(DeviceDataKeys.ROLLUPS_KEY, "true");
+
+        logger.info("Rebuilt rollups of " + rebuilt + " days (" + assets + " assets), next day: " + currentDay);
+        return encode64(successResponse("rebuilt=" + rebuilt + ",remaining=" + remaining));
+    }
+
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public String Query(Context ctx, String transaction) {
         try {
@@ -65,43 +334,50 @@ public final class DeviceDataContract implements ContractInterface {
 
             logger.info("Performing: " + query);
 
-            var result = monitorTime(() -> {
-                var data = getFilteredData(ctx, query, platformConfig);
-                var r = QueryResult.newBuilder().setError(invalidTransaction("Unknown query type").getError()).build();
-                try {
-                    switch (query.getQueryType()) {
-                        case COUNT:
-                            r = queryService.count(query, data);
-                            break;
-                        case GROUPED_COUNT:
-                            r = queryService.groupedCount(query, data);
-                            break;
-                        case AVERAGE:
-                            r = queryService.average(query, data);
-                            break;
-                        case SUM:
-                            r = queryService.sum(query, data);
-                            break;
-                        case UNIQUE_COUNT:
-                            r = queryService.uniqueCount(query, data);
-                            break;
-                        case HISTOGRAM:
-                            r = queryService.histogram(query, data);
-                            break;
-                        case STD:
-                            r = queryService.std(query, data);
-                            break;
-                        case LINEAR_REGRESSION:
-                            r = queryService.linearRegression(query, data);
-                            break;
+            // the encryption service stays open until the query is done, even if the platform config changes meanwhile
+            QueryResult result;
+            try (var lease = EncryptionServiceRegistry.lease(platformConfig)) {
+                result = monitorTime(() -> {
+                    var fromRollups = rollupResult(ctx, query, platformConfig, queryService);
+                    if (fromRollups.isPresent())
+                        return fromRollups.get();
+
+                    var r = QueryResult.newBuilder().setError(invalidTransaction("Unknown query type").getError()).build();
+                    try (var data = getFilteredData(ctx, query, platformConfig)) {
+                        switch (query.getQueryType()) {
+                            case COUNT:
+                                r = queryService.count(query, data);
+                                break;
+                            case GROUPED_COUNT:
+                                r = queryService.groupedCount(query, data);
+                                break;
+                            case AVERAGE:
+                                r = queryService.average(query, data);
+                                break;
+                            case SUM:
+                                r = queryService.sum(query, data);
+                                break;
+                            case UNIQUE_COUNT:
+                                r = queryService.uniqueCount(query, data);
+                                break;
+                            case HISTOGRAM:
+                                r = queryService.histogram(query, data);
+                                break;
+                            case STD:
+                                r = queryService.std(query, data);
+                                break;
+                            case LINEAR_REGRESSION:
+                                r = queryService.linearRegression(query, data);
+                                break;
+                        }
+                    } catch (Exception t) {
+                        logger.log(Level.WARNING, "Query error", t);
+                        return QueryResult.newBuilder().setError(internalError("Error running query", t.toString()).getError()).build();
                     }
-                } catch (Exception t) {
-                    logger.log(Level.WARNING, "Query error", t);
-                    return QueryResult.newBuilder().setError(internalError("Error running query", t.toString()).getError()).build();
-                }
 
-                return r;
-            });
+                    return r;
+                });
+            }
 
             var endTime = Instant.now().getEpochSecond();
 
@@ -125,63 +401,189 @@ public final class DeviceDataContract implements ContractInterface {
         try {
             var readPage = decode64(transaction, ReadQueryAssetPage::parseFrom);
 
-            var skip = (readPage.getPageNumber() - 1) * readPage.getPageSize();
-
-            var result = new ArrayList<QueryAsset>();
-            var iterator = ctx.getStub().getStateByPartialCompositeKey(TXType.QUERY.partialKey());
+            var pageSize = readPage.getPageSize();
+            if (pageSize <= 0)
+                return encode64(invalidTransaction("Page size has to be positive: " + pageSize));
 
+            // an explicit bookmark wins, otherwise the pages before the page number are skipped
+            var requested = QueryPageBookmarks.requested(readPage);
+            var pageNumber = Math.max(readPage.getPageNumber(), 1);
+            var bookmark = requested.orElseGet(() -> QueryPageBookmarks.seek(ctx.getStub(), pageSize, pageNumber));
 
-            for (KeyValue kv : iterator) {
-                if (skip > 0) {
-                    skip--;
-                    continue;
-                }
+            var page = QueryAssetPage.newBuilder().setPageSize(pageSize).setPageNumber(readPage.getPageNumber());
+            if (bookmark.equals(QueryPageBookmarks.LAST_PAGE))
+                return encode64(QueryPageBookmarks.withBookmark(page, QueryPageBookmarks.LAST_PAGE).build());
 
-                try {
-                    result.add(decode64(kv.getStringValue(), QueryAsset::parseFrom));
-                } catch (InvalidProtocolBufferException e) {
-                    logger.warning("Error parsing device data transaction from ledger: " + e.getMessage() + "\n" + kv.getKey() + "\n" + Arrays.toString(kv.getValue()));
-                    break;
+            var result = new ArrayList<QueryAsset>();
+            String next;
+            try (var iterator = ctx.getStub().getStateByPartialCompositeKeyWithPagination(TXType.QUERY.partialKey(), pageSize, bookmark)) {
+                for (KeyValue kv : iterator) {
+                    try {
+                        result.add(decode64(kv.getStringValue(), QueryAsset::parseFrom));
+                    } catch (InvalidProtocolBufferException e) {
+                        logger.warning("Error parsing device data transaction from ledger: " + e.getMessage() + "\n" + kv.getKey() + "\n" + Arrays.toString(kv.getValue()));
+                        break;
+                    }
                 }
-
-                if (result.size() == readPage.getPageSize())
-                    break;
+                next = QueryPageBookmarks.next(iterator.getMetadata(), pageSize);
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to read query page", e);
             }
 
-            return encode64(QueryAssetPage.newBuilder().setPageSize(readPage.getPageSize()).setPageNumber(readPage.getPageNumber()).addAllAssets(result).build());
+            // LAST_PAGE if there is no next page
+            return encode64(QueryPageBookmarks.withBookmark(page.addAllAssets(result), next).build());
         } catch (InvalidProtocolBufferException e) {
             logger.log(Level.WARNING, "Failed to parse ReadQueryAssetPage", e);
             return encode64(invalidTransaction("Failed to parse ReadQueryAssetPage: " + e.getMessage()));
         }
     }
 
-    private List<DeviceDataAsset> getFilteredData(Context ctx, Query tx, PlatformConfig platformConfig) {
-        var filteredDeviceData = new ArrayList<DeviceDataAsset>();
+    // asset under its day bucket plus one index entry per categorical field, the rollups get the asset
+    // (minus the one it replaces) as pending delta
+    // a stored id is replaced wherever it is, also when the new timestamp falls on another day
+    private CompositeKey putDeviceData(ChaincodeStub stub, DeviceDataRollups rollups, String id, DeviceDataAsset asset, byte[] value) {
+        var key = DeviceDataKeys.assetKey(asset.getTimestamp(), id);
+
+        for (Map.Entry<String, byte[]> replaced : storedAssets(stub, id, asset).entrySet())
+            removeDeviceData(stub, rollups, id, replaced.getKey(), replaced.getValue(), !replaced.getKey().equals(key.toString()));
+
+        stub.putState(key.toString(), value);
+        stub.putStringState(DeviceDataKeys.idKey(id).toString(), key.toString());
+        rollups.add(asset);
+        for (CompositeKey indexKey : DeviceDataKeys.indexKeys(asset, id))
+            stub.putStringState(indexKey.toString(), key.toString());
+        return key;
+    }
+
+    // keys (and values) the id is currently stored under: the one its pointer names, the legacy key, and the key in
+    // the day bucket of the given asset, which covers assets bucketed before the pointers were written
+    private Map<String, byte[]> storedAssets(ChaincodeStub stub, String id, DeviceDataAsset asset) {
+        var candidates = new LinkedHashSet<String>();
+        var pointer = stub.getStringState(DeviceDataKeys.idKey(id).toString());
+        if (pointer != null && !pointer.isEmpty())
+            candidates.add(pointer);
+        candidates.add(DeviceDataKeys.legacyAssetKey(id).toString());
+        candidates.add(DeviceDataKeys.assetKey(asset.getTimestamp(), id).toString());
+
+        var stored = new LinkedHashMap<String, byte[]>();
+        for (String candidate : candidates) {
+            var value = stub.getState(candidate);
+            if (value != null && value.length > 0)
+                stored.put(candidate, value);
+        }
+        return stored;
+    }
+
+    // takes a stored asset out of the rollups, deletes its index entries and its key unless it is about to be overwritten
+    // legacy assets were never rolled up or indexed, MigrateDeviceDataRollups only rebuilds the day buckets
+    // the index entries of an unparsable asset are unknown and stay, the scan skips entries that aren't the asset's value
+    private void removeDeviceData(ChaincodeStub stub, DeviceDataRollups rollups, String id, String key, byte[] value, boolean delete) {
+        if (!DeviceDataKeys.isLegacyKey(stub.splitCompositeKey(key))) {
+            try {
+                var replaced = decodeState(value, DeviceDataAsset.parser());
+                rollups.remove(replaced);
+                // entries the new asset has too are written again right after
+                for (CompositeKey indexKey : DeviceDataKeys.indexKeys(replaced, id))
+                    stub.delState(indexKey.toString());
+            } catch (InvalidProtocolBufferException e) {
+                logger.warning("Replacing unparsable device data asset: " + key + " " + e.getMessage());
+            }
+        }
+
+        if (delete)
+            stub.delState(key);
+    }
+
+    // regression pairs from the current platform config, without them the rollups just can't answer LINEAR_REGRESSION
+    private List<Map.Entry<String, String>> regressionPairs(Context ctx) {
+        try {
+            return MomentRollup.regressionPairs(ConfigContract.currentPlatformConfig(ctx));
+        } catch (Exception e) {
+            logger.warning("Failed to read regression pairs from platform config: " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    // COUNT, SUM, AVERAGE, STD and LINEAR_REGRESSION without filters or with one equality filter on an indexed field
+    // are answered from the rollups once they have been rebuilt, empty if the query needs the asset scan
+    private Optional<QueryResult> rollupResult(Context ctx, Query tx, PlatformConfig platformConfig, QueryService queryService) {
+        var type = tx.getQueryType();
+        if (type != COUNT && type != SUM && type != AVERAGE && type != STD && type != LINEAR_REGRESSION)
+            return Optional.empty();
+
+        var stub = ctx.getStub();
+        if (!"true".equals(stub.getStringState(DeviceDataKeys.ROLLUPS_KEY)))
+            return Optional.empty();
 
-        var iterator = ctx.getStub().getStateByPartialCompositeKey(TXType.DEVICE_DATA_ASSET.partialKey());
+        try {
+            var filterService = new FilterService(EncryptionServiceRegistry.get(platformConfig));
+            var rollup = new DeviceDataRollups(stub, MomentRollup.regressionPairs(platformConfig)).forQuery(tx, filterService);
+            var result = rollup.flatMap(r -> queryService.fromRollup(tx, r));
+            logger.debug("Query answered from rollups: " + result.isPresent());
+            return result;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Failed to answer query from rollups, scanning assets", e);
+            return Optional.empty();
+        }
+    }
 
-        var encryptionService = EncryptionServiceFactory.create(platformConfig);
+    // lazy: the ledger is scanned once per pass of the query processor instead of being loaded into a list
+    // once all keys are bucketed by day only the buckets inside the query time range are scanned,
+    // and with an equality filter on an indexed field only that field's index entries
+    private DeviceDataScan getFilteredData(Context ctx, Query tx, PlatformConfig platformConfig) {
+        var stub = ctx.getStub();
+        var encryptionService = EncryptionServiceRegistry.get(platformConfig);
         var filterService = new FilterService(encryptionService);
 
-        for (KeyValue kv : iterator) {
-            try {
-                DeviceDataAsset asset = decode64(kv.getStringValue(), DeviceDataAsset::parseFrom);
+        if (!"true".equals(stub.getStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY)))
+            return new DeviceDataScan(stub, List.of(TXType.DEVICE_DATA_ASSET.partialKey()), false, tx, filterService);
 
-                if (asset.getTimestamp().getSeconds() < tx.getStartTime().getSeconds() || asset.getTimestamp().getSeconds() > tx.getEndTime().getSeconds())
-                    continue;
-                // previously data with old config id was filtered out, but now we want to include it however there might be corner cases
-                // where we truly wouldn't want to include it, so we need to be careful with this
-                boolean valid = tx.getFiltersList().stream().allMatch(filter -> filterService.checkFilter(asset, filter));
+        var days = DeviceDataKeys.daysFor(tx);
+        var indexRanges = mostSelectiveIndex(stub, tx, days);
+        if (indexRanges.isPresent())
+            return new DeviceDataScan(stub, indexRanges.get(), true, tx, filterService);
 
-                if (valid)
-                    filteredDeviceData.add(asset);
+        var assetRanges = DeviceDataKeys.assetRanges(days);
+        logger.debug("Scanning " + assetRanges.size() + " device data key ranges");
+        return new DeviceDataScan(stub, assetRanges, false, tx, filterService);
+    }
 
-            } catch (InvalidProtocolBufferException e) {
-                logger.log(Level.WARNING, "Error parsing device data transaction from ledger", e);
-                logger.warning("Error parsing device data transaction from ledger: " + e.getMessage() + "\n" + kv.getKey() + "\n" + Arrays.toString(kv.getValue()));
+    // index ranges of the equality filter with the fewest entries, counting stops at INDEX_PROBE_LIMIT per filter
+    // a filter with INDEX_PROBE_LIMIT entries or more isn't selective, an indexed scan does one getState per entry and
+    // is slower than scanning the day buckets then, empty if no filter stays below the limit
+    private Optional<List<CompositeKey>> mostSelectiveIndex(ChaincodeStub stub, Query tx, Optional<List<String>> days) {
+        List<CompositeKey> best = null;
+        long bestCount = INDEX_PROBE_LIMIT;
+
+        for (Filter filter : tx.getFiltersList()) {
+            var value = DeviceDataKeys.indexValue(filter);
+            if (value.isEmpty())
+                continue;
+
+            var ranges = DeviceDataKeys.indexRanges(filter.getField(), value.get(), days);
+            long count = countEntries(stub, ranges, bestCount);
+            logger.debug("Index " + filter.getField() + "=" + value.get() + " has " + count + " entries (probed)");
+            if (count < bestCount) {
+                best = ranges;
+                bestCount = count;
             }
         }
 
-        return filteredDeviceData;
+        return Optional.ofNullable(best);
+    }
+
+    private long countEntries(ChaincodeStub stub, List<CompositeKey> ranges, long limit) {
+        long count = 0;
+        for (CompositeKey range : ranges) {
+            try (var iterator = stub.getStateByPartialCompositeKey(range)) {
+                for (KeyValue ignored : iterator) {
+                    if (++count >= limit)
+                        return count;
+                }
+            } catch (Exception e) {
+                logger.warning("Failed to close index iterator: " + e.getMessage());
+            }
+        }
+        return count;
     }
 }
\ No newline at end of file
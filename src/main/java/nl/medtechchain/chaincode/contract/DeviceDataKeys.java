@@ -0,0 +1,228 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+import nl.medtechchain.proto.query.Query;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// Key layout of device data assets: DEVICE_DATA_ASSET_~day~id, where day is the epoch day of the asset timestamp
+// getStateByRange does not work on composite keys, so a time range query does one partial key scan per day bucket
+//
+// DEVICE_DATA_ID_~id holds the asset key an id is currently stored under, storing the id again with a timestamp
+// of another day moves the asset instead of adding a second one
+//
+// Categorical fields are also indexed as DEVICE_DATA_INDEX_~field~value~day~id, the value of an index entry is the asset key
+//
+// Moment rollups (see DeviceDataRollups) are kept as DEVICE_DATA_ROLLUP_~dimension~value~day~shard,
+// DEVICE_DATA_ROLLUP_CELL_~day~dimension~value lists the (dimension, value) pairs a day has rollups for
+final class DeviceDataKeys {
+
+    // simple key that is set once every legacy DEVICE_DATA_ASSET_~id key has been moved into a day bucket (and indexed)
+    static final String BUCKETED_LAYOUT_KEY = "DEVICE_DATA_BUCKETED_LAYOUT";
+
+    // simple key holding the next day bucket MigrateDeviceDataFormat converts
+    static final String FORMAT_MIGRATION_CURSOR_KEY = "DEVICE_DATA_FORMAT_MIGRATION_CURSOR";
+
+    // simple key that is set once the rollups of every day bucket have been rebuilt from the assets
+    static final String ROLLUPS_KEY = "DEVICE_DATA_ROLLUPS";
+
+    // simple key holding the next day bucket MigrateDeviceDataRollups rebuilds
+    static final String ROLLUP_MIGRATION_CURSOR_KEY = "DEVICE_DATA_ROLLUP_MIGRATION_CURSOR";
+
+    // sub keys per rollup, a transaction only updates the one picked by its tx id
+    static final int ROLLUP_SHARDS = 16;
+
+    // dimension (and value) of the rollup over all assets of a day, the other dimensions are the indexed fields
+    static final String ROLLUP_TOTAL = "";
+
+    // above this many day buckets a single scan over all assets is cheaper than one scan per bucket
+    static final long MAX_BUCKET_SCANS = 1000;
+
+    // plaintext categorical fields that get an index entry
+    static final List<String> INDEXED_FIELDS = List.of("hospital", "manufacturer", "category", "speciality");
+
+    // encrypted values are indexed under an empty value, an equality lookup always scans them too
+    // and leaves the actual comparison to the filter service
+    static final String ENCRYPTED_INDEX_VALUE = "";
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private DeviceDataKeys() {
+    }
+
+    // offset of the days before 1970 in their bucket name
+    private static final long NEGATIVE_DAY_OFFSET = 100_000_000;
+
+    // zero padded, so buckets sort chronologically; days before 1970 are "-" followed by the day plus
+    // NEGATIVE_DAY_OFFSET, a plain "-%08d" would sort -2 after -1 (and "-" sorts before every digit)
+    static String dayBucket(Timestamp timestamp) {
+        return dayBucket(epochDay(timestamp.getSeconds()));
+    }
+
+    static String dayBucket(long epochDay) {
+        if (epochDay < 0)
+            return String.format("-%08d", epochDay + NEGATIVE_DAY_OFFSET);
+        return String.format("%08d", epochDay);
+    }
+
+    static long parseDayBucket(String bucket) {
+        if (bucket.startsWith("-"))
+            return Long.parseLong(bucket.substring(1)) - NEGATIVE_DAY_OFFSET;
+        return Long.parseLong(bucket);
+    }
+
+    static long epochDay(long seconds) {
+        return Math.floorDiv(seconds, SECONDS_PER_DAY);
+    }
+
+    // day of the oldest bucketed asset, only meaningful once no legacy keys are left
+    static Optional<Long> firstDay(ChaincodeStub stub) {
+        try (var iterator = stub.getStateByPartialCompositeKey(TXType.DEVICE_DATA_ASSET.partialKey())) {
+            for (KeyValue kv : iterator) {
+                var key = stub.splitCompositeKey(kv.getKey());
+                if (!isLegacyKey(key))
+                    return Optional.of(parseDayBucket(key.getAttributes().get(0)));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to find the first device data bucket", e);
+        }
+        return Optional.empty();
+    }
+
+    static CompositeKey assetKey(Timestamp timestamp, String id) {
+        return TXType.DEVICE_DATA_ASSET.compositeKey(dayBucket(timestamp), id);
+    }
+
+    static CompositeKey legacyAssetKey(String id) {
+        return TXType.DEVICE_DATA_ASSET.compositeKey(id);
+    }
+
+    static CompositeKey idKey(String id) {
+        return TXType.DEVICE_DATA_ID.compositeKey(id);
+    }
+
+    // keys written before the day buckets only have the asset id as attribute
+    static boolean isLegacyKey(CompositeKey key) {
+        return key.getAttributes().size() == 1;
+    }
+
+    // all day buckets the query time range touches, empty if a full scan is the better option
+    static Optional<List<String>> daysFor(Query query) {
+        long startDay = epochDay(query.getStartTime().getSeconds());
+        long endDay = epochDay(query.getEndTime().getSeconds());
+
+        if (endDay < startDay)
+            return Optional.of(List.of());
+
+        if (endDay - startDay + 1 > MAX_BUCKET_SCANS)
+            return Optional.empty();
+
+        var days = new ArrayList<String>();
+        for (long day = startDay; day <= endDay; day++)
+            days.add(dayBucket(day));
+        return Optional.of(days);
+    }
+
+    // partial keys of the asset buckets to scan, one over all assets without days
+    static List<CompositeKey> assetRanges(Optional<List<String>> days) {
+        if (days.isEmpty())
+            return List.of(TXType.DEVICE_DATA_ASSET.partialKey());
+
+        var ranges = new ArrayList<CompositeKey>();
+        for (String day : days.get())
+            ranges.add(TXType.DEVICE_DATA_ASSET.partialKey(day));
+        return ranges;
+    }
+
+    // index entries of an asset, fields without a value are not indexed
+    static List<CompositeKey> indexKeys(DeviceDataAsset asset, String id) {
+        var day = dayBucket(asset.getTimestamp());
+        var keys = new ArrayList<CompositeKey>();
+
+        for (String field : INDEXED_FIELDS)
+            indexValue(asset, field).ifPresent(v -> keys.add(TXType.DEVICE_DATA_INDEX.compositeKey(field, v, day, id)));
+        return keys;
+    }
+
+    // value an asset is indexed (and rolled up) under for a categorical field, empty if the field has no value
+    static Optional<String> indexValue(DeviceDataAsset asset, String field) {
+        return indexValue(asset.getDeviceData().getField(DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(field)));
+    }
+
+    static CompositeKey rollupKey(String dimension, String value, long day, int shard) {
+        return TXType.DEVICE_DATA_ROLLUP.compositeKey(dimension, value, dayBucket(day), String.format("%02d", shard));
+    }
+
+    static CompositeKey rollupCellKey(String dimension, String value, long day) {
+        return TXType.DEVICE_DATA_ROLLUP_CELL.compositeKey(dayBucket(day), dimension, value);
+    }
+
+    // the indexed value of an equality filter, empty if the filter can't be answered from the index
+    static Optional<String> indexValue(Filter filter) {
+        if (!INDEXED_FIELDS.contains(filter.getField()))
+            return Optional.empty();
+
+        switch (filter.getComparatorCase()) {
+            case STRING_FILTER:
+                if (filter.getStringFilter().getOperator() == Filter.StringFilter.StringOperator.EQUALS)
+                    return Optional.of(filter.getStringFilter().getValue());
+                return Optional.empty();
+            case ENUM_FILTER:
+                return Optional.of(filter.getEnumFilter().getValue());
+            default:
+                return Optional.empty();
+        }
+    }
+
+    // partial keys of the index entries that can match value, including the encrypted ones
+    static List<CompositeKey> indexRanges(String field, String value, Optional<List<String>> days) {
+        var values = value.equals(ENCRYPTED_INDEX_VALUE) ? List.of(value) : List.of(value, ENCRYPTED_INDEX_VALUE);
+        var ranges = new ArrayList<CompositeKey>();
+
+        for (String v : values) {
+            if (days.isEmpty()) {
+                ranges.add(TXType.DEVICE_DATA_INDEX.partialKey(field, v));
+                continue;
+            }
+            for (String day : days.get())
+                ranges.add(TXType.DEVICE_DATA_INDEX.partialKey(field, v, day));
+        }
+        return ranges;
+    }
+
+    private static Optional<String> indexValue(Object field) {
+        if (field instanceof DeviceDataAsset.StringField) {
+            var f = (DeviceDataAsset.StringField) field;
+            switch (f.getFieldCase()) {
+                case PLAIN:
+                    return Optional.of(f.getPlain());
+                case ENCRYPTED:
+                    return Optional.of(ENCRYPTED_INDEX_VALUE);
+            }
+        } else if (field instanceof DeviceDataAsset.DeviceCategoryField) {
+            var f = (DeviceDataAsset.DeviceCategoryField) field;
+            switch (f.getFieldCase()) {
+                case PLAIN:
+                    return Optional.of(f.getPlain().name());
+                case ENCRYPTED:
+                    return Optional.of(ENCRYPTED_INDEX_VALUE);
+            }
+        } else if (field instanceof DeviceDataAsset.MedicalSpecialityField) {
+            var f = (DeviceDataAsset.MedicalSpecialityField) field;
+            switch (f.getFieldCase()) {
+                case PLAIN:
+                    return Optional.of(f.getPlain().name());
+                case ENCRYPTED:
+                    return Optional.of(ENCRYPTED_INDEX_VALUE);
+            }
+        }
+        return Optional.empty();
+    }
+}
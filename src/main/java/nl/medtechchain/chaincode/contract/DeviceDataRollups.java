@@ -0,0 +1,249 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import nl.medtechchain.chaincode.service.query.FilterService;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+import nl.medtechchain.proto.query.Query;
+import org.hyperledger.fabric.Logger;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static nl.medtechchain.chaincode.util.StateEncodingOps.decodeState;
+
+// Moment rollups of the device data per (dimension, value, day bucket), maintained on every write
+// the dimension ROLLUP_TOTAL holds all assets of a day, the others are the indexed categorical fields,
+// assets with an encrypted dimension value are rolled up under ENCRYPTED_INDEX_VALUE
+//
+// A transaction collects its deltas in memory and adds them to one of ROLLUP_SHARDS sub keys picked from its tx id,
+// so concurrent writers of the same day only rarely read and write the same key
+//
+// Until MigrateDeviceDataRollups is done, the days it still has to rebuild (from its cursor up to today) get no deltas,
+// their rollups come from the rebuild alone, a delta (e.g. removing an asset that was never added) would make them wrong
+final class DeviceDataRollups {
+
+    private static final Logger logger = Logger.getLogger(DeviceDataRollups.class);
+
+    private static final long SECONDS_PER_DAY = 86400;
+
+    // value of a DEVICE_DATA_ROLLUP_CELL key, an empty value would delete it
+    private static final String CELL = "1";
+
+    private final ChaincodeStub stub;
+    private final List<Map.Entry<String, String>> regressionPairs;
+
+    // (dimension, value, day) -> delta of this transaction
+    private final Map<List<Object>, MomentRollup> pending = new HashMap<>();
+
+    // days MigrateDeviceDataRollups still rebuilds, an empty range once it is done, read on the first delta
+    private boolean migrationRead = false;
+    private long unbuiltFrom = 1;
+    private long unbuiltTo = 0;
+
+    DeviceDataRollups(ChaincodeStub stub, List<Map.Entry<String, String>> regressionPairs) {
+        this.stub = stub;
+        this.regressionPairs = regressionPairs;
+    }
+
+    void add(DeviceDataAsset asset) {
+        if (!tracked(asset))
+            return;
+        for (List<Object> cell : cells(asset))
+            pending.computeIfAbsent(cell, c -> new MomentRollup()).add(asset, regressionPairs);
+    }
+
+    void remove(DeviceDataAsset asset) {
+        if (!tracked(asset))
+            return;
+        for (List<Object> cell : cells(asset))
+            pending.computeIfAbsent(cell, c -> new MomentRollup()).remove(asset, regressionPairs);
+    }
+
+    // adds the pending deltas to this transaction's shard of every touched rollup
+    void flush() {
+        int shard = Math.floorMod(stub.getTxId().hashCode(), DeviceDataKeys.ROLLUP_SHARDS);
+
+        for (Map.Entry<List<Object>, MomentRollup> entry : pending.entrySet()) {
+            var cell = entry.getKey();
+            var key = DeviceDataKeys.rollupKey((String) cell.get(0), (String) cell.get(1), (Long) cell.get(2), shard).toString();
+
+            var rollup = entry.getValue();
+            var current = stub.getState(key);
+            if (current != null && current.length > 0) {
+                rollup = decode(key, current);
+                rollup.merge(entry.getValue());
+            } else {
+                // a blind write, concurrent writers of the same new cell don't conflict on it
+                stub.putStringState(DeviceDataKeys.rollupCellKey((String) cell.get(0), (String) cell.get(1), (Long) cell.get(2)).toString(), CELL);
+            }
+            stub.putState(key, rollup.encode());
+        }
+        pending.clear();
+    }
+
+    private boolean tracked(DeviceDataAsset asset) {
+        if (!migrationRead) {
+            migrationRead = true;
+            if (!"true".equals(stub.getStringState(DeviceDataKeys.ROLLUPS_KEY))) {
+                var cursor = stub.getStringState(DeviceDataKeys.ROLLUP_MIGRATION_CURSOR_KEY);
+                unbuiltFrom = cursor == null || cursor.isEmpty() ? Long.MIN_VALUE : Long.parseLong(cursor);
+                unbuiltTo = DeviceDataKeys.epochDay(stub.getTxTimestamp().getEpochSecond());
+            }
+        }
+        long day = DeviceDataKeys.epochDay(asset.getTimestamp().getSeconds());
+        return day < unbuiltFrom || day > unbuiltTo;
+    }
+
+    // recomputes the rollups of a day from its assets into shard 0 and drops every other rollup key of the day,
+    // also those of cells none of its assets has anymore, returns the number of assets
+    int rebuild(long day) {
+        var rebuilt = new HashMap<List<Object>, MomentRollup>();
+        int assets = 0;
+
+        try (var iterator = stub.getStateByPartialCompositeKey(TXType.DEVICE_DATA_ASSET.partialKey(DeviceDataKeys.dayBucket(day)))) {
+            for (KeyValue kv : iterator) {
+                try {
+                    var asset = decodeState(kv.getValue(), DeviceDataAsset.parser());
+                    for (List<Object> cell : cells(asset))
+                        rebuilt.computeIfAbsent(cell, c -> new MomentRollup()).add(asset, regressionPairs);
+                    assets++;
+                } catch (InvalidProtocolBufferException e) {
+                    logger.warning("Skipping unparsable device data asset during rollup rebuild: " + kv.getKey() + " " + e.getMessage());
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to rebuild rollups of day " + day, e);
+        }
+
+        var cells = new LinkedHashSet<>(rebuilt.keySet());
+        try (var iterator = stub.getStateByPartialCompositeKey(TXType.DEVICE_DATA_ROLLUP_CELL.partialKey(DeviceDataKeys.dayBucket(day)))) {
+            for (KeyValue kv : iterator) {
+                var attributes = stub.splitCompositeKey(kv.getKey()).getAttributes();
+                cells.add(List.of(attributes.get(1), attributes.get(2), day));
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to read rollup cells of day " + day, e);
+        }
+
+        for (List<Object> cell : cells) {
+            var dimension = (String) cell.get(0);
+            var value = (String) cell.get(1);
+            for (int shard = 1; shard < DeviceDataKeys.ROLLUP_SHARDS; shard++)
+                stub.delState(DeviceDataKeys.rollupKey(dimension, value, day, shard).toString());
+
+            var rollupKey = DeviceDataKeys.rollupKey(dimension, value, day, 0).toString();
+            var cellKey = DeviceDataKeys.rollupCellKey(dimension, value, day).toString();
+            var rollup = rebuilt.get(cell);
+            if (rollup == null) {
+                stub.delState(rollupKey);
+                stub.delState(cellKey);
+            } else {
+                stub.putState(rollupKey, rollup.encode());
+                stub.putStringState(cellKey, CELL);
+            }
+        }
+        return assets;
+    }
+
+    // Moments of the assets matching the query: whole days come from the rollups, the partial days at the edges of
+    // the time range are scanned; empty if the filters can't be answered from a single rollup dimension
+    Optional<MomentRollup> forQuery(Query query, FilterService filterService) {
+        String dimension = DeviceDataKeys.ROLLUP_TOTAL;
+        String value = DeviceDataKeys.ROLLUP_TOTAL;
+
+        if (query.getFiltersCount() > 1)
+            return Optional.empty();
+        if (query.getFiltersCount() == 1) {
+            Filter filter = query.getFilters(0);
+            var indexValue = DeviceDataKeys.indexValue(filter);
+            if (indexValue.isEmpty() || indexValue.get().equals(DeviceDataKeys.ENCRYPTED_INDEX_VALUE))
+                return Optional.empty();
+            dimension = filter.getField();
+            value = indexValue.get();
+        }
+
+        long start = query.getStartTime().getSeconds();
+        long end = query.getEndTime().getSeconds();
+        if (end < start)
+            return Optional.of(new MomentRollup());
+
+        long startDay = DeviceDataKeys.epochDay(start);
+        long endDay = DeviceDataKeys.epochDay(end);
+        long firstFullDay = start == startDay * SECONDS_PER_DAY ? startDay : startDay + 1;
+        long lastFullDay = end == (endDay + 1) * SECONDS_PER_DAY - 1 ? endDay : endDay - 1;
+
+        var rollup = new MomentRollup();
+        if (firstFullDay <= lastFullDay) {
+            // assets with an encrypted dimension value might match the filter too, only the scan can tell
+            if (!dimension.equals(DeviceDataKeys.ROLLUP_TOTAL)
+                    && read(dimension, DeviceDataKeys.ENCRYPTED_INDEX_VALUE, firstFullDay, lastFullDay).assetCount() != 0)
+                return Optional.empty();
+            rollup.merge(read(dimension, value, firstFullDay, lastFullDay));
+        }
+
+        var edgeDays = new ArrayList<CompositeKey>();
+        if (startDay < firstFullDay)
+            edgeDays.add(TXType.DEVICE_DATA_ASSET.partialKey(DeviceDataKeys.dayBucket(startDay)));
+        if (endDay > lastFullDay && endDay != startDay)
+            edgeDays.add(TXType.DEVICE_DATA_ASSET.partialKey(DeviceDataKeys.dayBucket(endDay)));
+
+        try (var scan = new DeviceDataScan(stub, edgeDays, false, query, filterService)) {
+            for (DeviceDataAsset asset : scan)
+                rollup.add(asset, regressionPairs);
+        }
+
+        return Optional.of(rollup);
+    }
+
+    // sum of all shards of the rollups of (dimension, value) from firstDay to lastDay
+    private MomentRollup read(String dimension, String value, long firstDay, long lastDay) {
+        var ranges = new ArrayList<CompositeKey>();
+        if (lastDay - firstDay + 1 > DeviceDataKeys.MAX_BUCKET_SCANS)
+            ranges.add(TXType.DEVICE_DATA_ROLLUP.partialKey(dimension, value));
+        else
+            for (long day = firstDay; day <= lastDay; day++)
+                ranges.add(TXType.DEVICE_DATA_ROLLUP.partialKey(dimension, value, DeviceDataKeys.dayBucket(day)));
+
+        var rollup = new MomentRollup();
+        for (CompositeKey range : ranges) {
+            try (var iterator = stub.getStateByPartialCompositeKey(range)) {
+                for (KeyValue kv : iterator) {
+                    long day = DeviceDataKeys.parseDayBucket(stub.splitCompositeKey(kv.getKey()).getAttributes().get(2));
+                    if (day >= firstDay && day <= lastDay)
+                        rollup.merge(decode(kv.getKey(), kv.getValue()));
+                }
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to read rollups " + range, e);
+            }
+        }
+        return rollup;
+    }
+
+    private List<List<Object>> cells(DeviceDataAsset asset) {
+        long day = DeviceDataKeys.epochDay(asset.getTimestamp().getSeconds());
+        var cells = new ArrayList<List<Object>>();
+        cells.add(List.of(DeviceDataKeys.ROLLUP_TOTAL, DeviceDataKeys.ROLLUP_TOTAL, day));
+        for (String field : DeviceDataKeys.INDEXED_FIELDS)
+            DeviceDataKeys.indexValue(asset, field).ifPresent(value -> cells.add(List.of(field, value, day)));
+        return cells;
+    }
+
+    private MomentRollup decode(String key, byte[] value) {
+        try {
+            return MomentRollup.decode(value);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Corrupt rollup " + key, e);
+        }
+    }
+}
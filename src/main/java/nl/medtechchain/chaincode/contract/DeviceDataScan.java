@@ -0,0 +1,147 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import nl.medtechchain.chaincode.service.query.BatchDecryption;
+import nl.medtechchain.chaincode.service.query.DeviceDataProjection;
+import nl.medtechchain.chaincode.service.query.FilterPlan;
+import nl.medtechchain.chaincode.service.query.FilterService;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Query;
+import org.hyperledger.fabric.Logger;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.logging.Level;
+
+// Lazy view of the device data assets matching a query
+// every iteration opens fresh ledger iterators over the given partial keys and decodes/filters one asset at a time,
+// so the filtered ledger is never held in memory as a whole
+// over index ranges the entries only point to the asset key, which is then read with getState,
+// an asset is only returned through the entry of its current value, a stale entry (e.g. under the encrypted value of
+// a field that has been stored in plaintext since) is skipped, so an asset is returned once without remembering keys
+// assets are decoded through a DeviceDataProjection, so only the fields the query looks at are materialized
+// and filtered a window at a time, encrypted filter values of a window are decrypted in batches
+// a pass that stops early (e.g. an accumulator throwing) leaves its ledger iterator open, close() releases it
+final class DeviceDataScan implements Iterable<DeviceDataAsset>, AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(DeviceDataScan.class);
+
+    // assets filtered together, as many as a decryption batch
+    private static final int WINDOW_SIZE = BatchDecryption.BATCH_SIZE;
+
+    private final ChaincodeStub stub;
+    private final List<CompositeKey> partialKeys;
+    private final boolean indexed;
+    private final DeviceDataProjection projection;
+    private final FilterPlan filter;
+
+    // ledger iterators of passes that haven't run to the end yet
+    private final Set<QueryResultsIterator<KeyValue>> open = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    DeviceDataScan(ChaincodeStub stub, List<CompositeKey> partialKeys, boolean indexed, Query query, FilterService filterService) {
+        this.stub = stub;
+        this.partialKeys = partialKeys;
+        this.indexed = indexed;
+        this.projection = new DeviceDataProjection(query);
+        // compiled once, every pass and every asset reuses it
+        this.filter = filterService.compile(query.getFiltersList());
+    }
+
+    @Override
+    public Iterator<DeviceDataAsset> iterator() {
+        var keys = partialKeys.iterator();
+
+        return new Iterator<>() {
+            private QueryResultsIterator<KeyValue> results;
+            private Iterator<KeyValue> ledger = Collections.emptyIterator();
+            private final List<DeviceDataAsset> window = new ArrayList<>(WINDOW_SIZE);
+            private Iterator<DeviceDataAsset> matches = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!matches.hasNext()) {
+                    window.clear();
+                    while (window.size() < WINDOW_SIZE && ledger.hasNext()) {
+                        var asset = decode(ledger.next());
+                        if (asset != null)
+                            window.add(asset);
+                    }
+
+                    // previously data with old config id was filtered out, but now we want to include it however there might be corner cases
+                    // where we truly wouldn't want to include it, so we need to be careful with this
+                    if (!window.isEmpty()) {
+                        matches = filter.filter(window).iterator();
+                        continue;
+                    }
+
+                    close(results);
+                    results = null;
+                    if (!keys.hasNext())
+                        break;
+
+                    results = stub.getStateByPartialCompositeKey(keys.next());
+                    open.add(results);
+                    ledger = results.iterator();
+                }
+                return matches.hasNext();
+            }
+
+            @Override
+            public DeviceDataAsset next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return matches.next();
+            }
+        };
+    }
+
+    // null if the asset can't be parsed, is outside the query time range or the index entry is stale
+    private DeviceDataAsset decode(KeyValue kv) {
+        try {
+            if (!indexed)
+                return projection.decode(kv.getValue());
+
+            byte[] value = stub.getState(kv.getStringValue());
+            if (value == null || value.length == 0)
+                return null;
+
+            // DEVICE_DATA_INDEX_~field~value~day~id, the filter on field makes the projection keep it
+            var entry = stub.splitCompositeKey(kv.getKey()).getAttributes();
+            var asset = projection.decode(value);
+            if (asset != null && !DeviceDataKeys.indexValue(asset, entry.get(0)).equals(Optional.of(entry.get(1))))
+                return null;
+            return asset;
+        } catch (InvalidProtocolBufferException e) {
+            logger.log(Level.WARNING, "Error parsing device data transaction from ledger", e);
+            logger.warning("Error parsing device data transaction from ledger: " + e.getMessage() + "\n" + kv.getKey() + "\n" + Arrays.toString(kv.getValue()));
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (QueryResultsIterator<KeyValue> results : List.copyOf(open))
+            close(results);
+    }
+
+    private void close(QueryResultsIterator<KeyValue> results) {
+        if (results == null || !open.remove(results))
+            return;
+        try {
+            results.close();
+        } catch (Exception e) {
+            logger.warning("Failed to close device data iterator: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import nl.medtechchain.proto.query.QueryAssetPage;
+import nl.medtechchain.proto.query.ReadQueryAssetPage;
+import org.hyperledger.fabric.protos.peer.QueryResponseMetadata;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+
+import java.util.Optional;
+
+// Bookmarks of the QUERY_ pages, so a client reading page after page does not make the chaincode walk all entries before it
+//
+// The bookmark is not part of the generated proto classes, it travels as an unknown length delimited field:
+// ReadQueryAssetPage field 3 (bookmark to start from) and QueryAssetPage field 4 (bookmark of the next page)
+//
+// After the last page the next bookmark is LAST_PAGE, passing it back returns an empty page instead of page 1 again
+// Page number access reads the entries before the page in one go and only uses its metadata. Query keys are random
+// UUIDs, every new query can shift the page boundaries, so the bookmark of a page number is never kept
+final class QueryPageBookmarks {
+
+    static final int READ_PAGE_BOOKMARK_FIELD = 3;
+    static final int PAGE_BOOKMARK_FIELD = 4;
+
+    // bookmark of page 1
+    static final String FIRST_PAGE = "";
+
+    // bookmark of the page after the last one, neither a ledger key nor a CouchDB bookmark
+    static final String LAST_PAGE = "~";
+
+    private QueryPageBookmarks() {
+    }
+
+    static Optional<String> requested(ReadQueryAssetPage readPage) {
+        var fields = readPage.getUnknownFields();
+        if (!fields.hasField(READ_PAGE_BOOKMARK_FIELD))
+            return Optional.empty();
+
+        var values = fields.getField(READ_PAGE_BOOKMARK_FIELD).getLengthDelimitedList();
+        if (values.isEmpty())
+            return Optional.empty();
+        return Optional.of(values.get(values.size() - 1).toStringUtf8());
+    }
+
+    static QueryAssetPage.Builder withBookmark(QueryAssetPage.Builder page, String bookmark) {
+        var field = UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFromUtf8(bookmark)).build();
+        return page.setUnknownFields(UnknownFieldSet.newBuilder().addField(PAGE_BOOKMARK_FIELD, field).build());
+    }
+
+    // bookmark of the given page, LAST_PAGE if the page lies past the last query
+    static String seek(ChaincodeStub stub, int pageSize, int pageNumber) {
+        if (pageNumber <= 1)
+            return FIRST_PAGE;
+
+        int skipped;
+        try {
+            skipped = Math.multiplyExact(pageNumber - 1, pageSize);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Query page " + pageNumber + " of size " + pageSize + " is out of range");
+        }
+
+        // one read over all entries before the page, only its metadata is used, the entries are never decoded
+        try (var iterator = stub.getStateByPartialCompositeKeyWithPagination(TXType.QUERY.partialKey(), skipped, FIRST_PAGE)) {
+            return next(iterator.getMetadata(), skipped);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to seek query page " + pageNumber, e);
+        }
+    }
+
+    // bookmark of the page after the one the metadata belongs to
+    static String next(QueryResponseMetadata metadata, int pageSize) {
+        if (metadata.getFetchedRecordsCount() < pageSize || metadata.getBookmark().isEmpty())
+            return LAST_PAGE;
+        return metadata.getBookmark();
+    }
+}
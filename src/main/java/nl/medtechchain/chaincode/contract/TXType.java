@@ -4,15 +4,19 @@ import org.hyperledger.fabric.shim.ledger.CompositeKey;
 
 public enum TXType {
     DEVICE_DATA_ASSET,
+    DEVICE_DATA_ID,
+    DEVICE_DATA_INDEX,
+    DEVICE_DATA_ROLLUP,
+    DEVICE_DATA_ROLLUP_CELL,
     QUERY,
     PLATFORM_CONFIG,
     NETWORK_CONFIG;
 
-    public CompositeKey partialKey() {
-        return new CompositeKey(this.name() + "_");
+    public CompositeKey partialKey(String... attributes) {
+        return new CompositeKey(this.name() + "_", attributes);
     }
 
-    public CompositeKey compositeKey(String id) {
-        return new CompositeKey(this.name() + "_", id);
+    public CompositeKey compositeKey(String... attributes) {
+        return new CompositeKey(this.name() + "_", attributes);
     }
 }
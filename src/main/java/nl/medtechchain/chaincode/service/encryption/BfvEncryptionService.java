@@ -3,7 +3,10 @@ package nl.medtechchain.chaincode.service.encryption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
 import nl.medtechchain.chaincode.service.encryption.bfv.BfvCliClient;
 import nl.medtechchain.chaincode.service.encryption.BfvTTPAPI;
 
@@ -15,10 +18,21 @@ public class BfvEncryptionService implements EncryptionService {
     
     private final BfvCliClient cli;
     private final BfvTTPAPI api;
+    // ciphertexts summed per addMany call in reduceAdd
+    private final int fanIn;
+    // an outdated bfv_calc is logged once
+    private volatile boolean sumSlotsWarned = false;
     
     public BfvEncryptionService(String cliBinaryPath, String ttpAddress) {
-        this.cli = new BfvCliClient(cliBinaryPath);
-        this.api = BfvTTPAPI.getInstance(ttpAddress);
+        this(new BfvCliClient(cliBinaryPath), BfvTTPAPI.getInstance(ttpAddress), EncryptionDefaults.BFV_ADD_FAN_IN);
+    }
+    
+    BfvEncryptionService(BfvCliClient cli, BfvTTPAPI api, int fanIn) {
+        if (fanIn < 2)
+            throw new IllegalArgumentException("fanIn must be at least 2");
+        this.cli = cli;
+        this.api = api;
+        this.fanIn = fanIn;
     }
     
     @Override
@@ -36,6 +50,7 @@ public class BfvEncryptionService implements EncryptionService {
     
     @Override
     public long decryptLong(String ciphertext, String version) {
+        requireUnpacked(ciphertext);
         try {
             return api.decrypt(ciphertext);
         } catch (Exception e) {
@@ -44,6 +59,40 @@ public class BfvEncryptionService implements EncryptionService {
         }
     }
     
+    @Override
+    public List<Long> decryptLongBatch(List<String> ciphertexts, String version) {
+        try {
+            return decryptLongBatchAsync(ciphertexts, version).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+    
+    @Override
+    public CompletableFuture<List<Long>> decryptLongBatchAsync(List<String> ciphertexts, String version) {
+        if (ciphertexts.isEmpty())
+            return CompletableFuture.completedFuture(List.of());
+        ciphertexts.forEach(BfvEncryptionService::requireUnpacked);
+        
+        return api.decryptAllAsync(ciphertexts).handle((plaintexts, t) -> {
+            if (t != null) {
+                logger.severe("BFV batch decryption failed: " + t.getMessage());
+                throw new RuntimeException("BFV batch decryption failed", t);
+            }
+            if (plaintexts.size() != ciphertexts.size())
+                throw new RuntimeException("BFV batch decryption returned " + plaintexts.size() + " plaintexts for " + ciphertexts.size() + " ciphertexts");
+            return plaintexts;
+        });
+    }
+    
+    // a packed ciphertext is many values, its slots have to be summed before it decrypts to one
+    private static void requireUnpacked(String ciphertext) {
+        if (ciphertext != null && BfvPackedCiphertext.isPacked(ciphertext))
+            throw new IllegalArgumentException("Packed BFV ciphertexts can only be aggregated by sum, average and std queries");
+    }
+    
     @Override
     public String decryptString(String ciphertext, String version) {
         throw new UnsupportedOperationException(
@@ -89,28 +138,153 @@ public class BfvEncryptionService implements EncryptionService {
         }
     }
     
+    // the bytes go from the handles straight into the scratch file of a bfv_calc worker, see BfvScratchFile
+    @Override
+    public String homomorphicAddHandles(List<? extends CiphertextHandle> ciphertexts, String version) {
+        if (ciphertexts == null || ciphertexts.isEmpty()) {
+            throw new IllegalArgumentException("Ciphertext list cannot be null or empty");
+        }
+        if (ciphertexts.size() == 1) {
+            return ciphertexts.get(0).toString();
+        }
+        try {
+            return reduceAdd(ciphertexts);
+        } catch (Exception e) {
+            logger.severe("BFV homomorphic addition failed: " + e.getMessage());
+            throw new RuntimeException("BFV homomorphic addition failed", e);
+        }
+    }
+    
     /**
-     * Recursively reduces a list of ciphertexts by adding in chunks of up to 10,
-     * returning a single aggregated ciphertext.
+     * Reduces a list of ciphertexts level by level: each level sums consecutive chunks of up to fanIn ciphertexts,
+     * the chunks of a level run concurrently on the bfv_calc workers. The chunking only depends on the list size,
+     * so the same input always gives the same tree of additions. Only the first level reads the given ciphertexts.
      */
-    private String reduceAdd(List<String> cts) throws Exception {
-        if (cts.size() == 1) {
-            return cts.get(0);
-        }
-        if (cts.size() <= 10) {
-            return cli.addMany(cts);
-        }
-        List<String> next = new ArrayList<>();
-        for (int i = 0; i < cts.size(); i += 10) {
-            int end = Math.min(i + 10, cts.size());
-            List<String> chunk = cts.subList(i, end);
-            if (chunk.size() == 1) {
-                next.add(chunk.get(0));
-            } else {
-                next.add(cli.addMany(chunk));
+    private String reduceAdd(List<? extends CharSequence> cts) throws Exception {
+        while (cts.size() > fanIn) {
+            List<CompletableFuture<String>> level = new ArrayList<>();
+            for (int i = 0; i < cts.size(); i += fanIn) {
+                List<? extends CharSequence> chunk = cts.subList(i, Math.min(i + fanIn, cts.size()));
+                level.add(chunk.size() == 1 ? CompletableFuture.completedFuture(chunk.get(0).toString()) : cli.addManyAsync(chunk));
+            }
+            
+            List<String> next = new ArrayList<>(level.size());
+            for (CompletableFuture<String> sum : level) {
+                try {
+                    next.add(sum.join());
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
             }
+            cts = next;
         }
-        return reduceAdd(next);
+        return cts.size() == 1 ? cts.get(0).toString() : cli.addMany(cts);
+    }
+    
+    /**
+     * Encrypted Σ(x - scalar)² over the ciphertexts. Chunks of BFV_SQUARED_DIFFERENCES_CHUNK ciphertexts each go
+     * through one fused bfv_calc call, all chunks at once, and the partial sums are added with reduceAdd.
+     * A chunk the binary can't run fused (a bfv_calc without sumSqDiff) falls back to one subtraction and one
+     * multiplication per ciphertext.
+     */
+    public String homomorphicSumSquaredDifferences(List<? extends CharSequence> ciphertexts, long scalar) {
+        if (ciphertexts == null || ciphertexts.isEmpty()) {
+            throw new IllegalArgumentException("Ciphertext list cannot be null or empty");
+        }
+        try {
+            List<List<? extends CharSequence>> chunks = new ArrayList<>();
+            List<CompletableFuture<String>> sums = new ArrayList<>();
+            for (int i = 0; i < ciphertexts.size(); i += EncryptionDefaults.BFV_SQUARED_DIFFERENCES_CHUNK) {
+                List<? extends CharSequence> chunk = ciphertexts.subList(i, Math.min(i + EncryptionDefaults.BFV_SQUARED_DIFFERENCES_CHUNK, ciphertexts.size()));
+                chunks.add(chunk);
+                sums.add(cli.sumSquaredDifferencesAsync(chunk, scalar));
+            }
+            
+            List<String> partials = new ArrayList<>(sums.size());
+            for (int i = 0; i < sums.size(); i++) {
+                try {
+                    partials.add(sums.get(i).join());
+                } catch (CompletionException e) {
+                    // on this thread, reduceAdd must not wait for the worker threads from one of them
+                    logger.warning("Fused BFV squared differences failed, computing them one by one: " + e.getCause().getMessage());
+                    partials.add(squaredDifferencesOneByOne(chunks.get(i), scalar));
+                }
+            }
+            return sum(partials);
+        } catch (Exception e) {
+            logger.severe("BFV sum of squared differences failed: " + e.getMessage());
+            throw new RuntimeException("BFV sum of squared differences failed", e);
+        }
+    }
+    
+    private String squaredDifferencesOneByOne(List<? extends CharSequence> ciphertexts, long scalar) throws Exception {
+        List<String> squares = new ArrayList<>(ciphertexts.size());
+        for (CharSequence ciphertext : ciphertexts) {
+            String difference = cli.subtractScalar(ciphertext.toString(), scalar);
+            squares.add(cli.multiply(difference, difference));
+        }
+        return sum(squares);
+    }
+    
+    /**
+     * Encrypted Σx, Σy, Σxy, Σx² and Σy² of the pairs (xs[i], ys[i]). Chunks of BFV_REGRESSION_MOMENTS_CHUNK pairs each
+     * go through one fused bfv_calc call, all chunks at once, then the partial sums of every moment are added with
+     * reduceAdd. A chunk the binary can't run fused falls back to three multiplications per pair.
+     */
+    public RegressionMoments homomorphicRegressionMoments(List<? extends CharSequence> xs, List<? extends CharSequence> ys) {
+        if (xs == null || ys == null || xs.isEmpty() || xs.size() != ys.size()) {
+            throw new IllegalArgumentException("x and y ciphertexts must be non-empty and of the same length");
+        }
+        try {
+            int chunkSize = EncryptionDefaults.BFV_REGRESSION_MOMENTS_CHUNK;
+            List<CompletableFuture<List<String>>> chunks = new ArrayList<>();
+            for (int i = 0; i < xs.size(); i += chunkSize) {
+                int end = Math.min(i + chunkSize, xs.size());
+                chunks.add(cli.regressionMomentsAsync(xs.subList(i, end), ys.subList(i, end)));
+            }
+            
+            // partial sums per moment, in RegressionMoments order
+            List<List<String>> partials = new ArrayList<>();
+            for (int k = 0; k < 5; k++)
+                partials.add(new ArrayList<>(chunks.size()));
+            for (int i = 0; i < chunks.size(); i++) {
+                List<String> moments;
+                try {
+                    moments = chunks.get(i).join();
+                } catch (CompletionException e) {
+                    // on this thread, reduceAdd must not wait for the worker threads from one of them
+                    logger.warning("Fused BFV regression moments failed, computing them one by one: " + e.getCause().getMessage());
+                    int from = i * chunkSize, to = Math.min(from + chunkSize, xs.size());
+                    moments = momentsOneByOne(xs.subList(from, to), ys.subList(from, to));
+                }
+                for (int k = 0; k < 5; k++)
+                    partials.get(k).add(moments.get(k));
+            }
+            
+            return new RegressionMoments(sum(partials.get(0)), sum(partials.get(1)), sum(partials.get(2)),
+                    sum(partials.get(3)), sum(partials.get(4)));
+        } catch (Exception e) {
+            logger.severe("BFV regression moments failed: " + e.getMessage());
+            throw new RuntimeException("BFV regression moments failed", e);
+        }
+    }
+    
+    private List<String> momentsOneByOne(List<? extends CharSequence> xs, List<? extends CharSequence> ys) throws Exception {
+        List<String> xy = new ArrayList<>(xs.size());
+        List<String> x2 = new ArrayList<>(xs.size());
+        List<String> y2 = new ArrayList<>(xs.size());
+        for (int i = 0; i < xs.size(); i++) {
+            String x = xs.get(i).toString();
+            String y = ys.get(i).toString();
+            xy.add(cli.multiply(x, y));
+            x2.add(cli.multiply(x, x));
+            y2.add(cli.multiply(y, y));
+        }
+        return List.of(sum(xs), sum(ys), sum(xy), sum(x2), sum(y2));
+    }
+    
+    private String sum(List<? extends CharSequence> cts) throws Exception {
+        return cts.size() == 1 ? cts.get(0).toString() : reduceAdd(cts);
     }
     
     @Override
@@ -149,4 +323,55 @@ public class BfvEncryptionService implements EncryptionService {
         }
     }
 
-}
\ No newline at end of file
+    // only with a bfv_calc that has sumSlots, the binary is asked on the first call and not when the service is built
+    @Override
+    public boolean supportsPacking() {
+        boolean hasSumSlots;
+        try {
+            hasSumSlots = cli.hasSumSlotsAsync().join();
+        } catch (CompletionException e) {
+            logger.severe("Checking bfv_calc for sumSlots failed: " + e.getCause().getMessage());
+            throw new RuntimeException("Checking bfv_calc for sumSlots failed", e.getCause());
+        }
+        if (!hasSumSlots && !sumSlotsWarned) {
+            sumSlotsWarned = true;
+            logger.warning("bfv_calc has no sumSlots command, queries over packed ciphertexts fail until it is updated");
+        }
+        return hasSumSlots;
+    }
+    
+    @Override
+    public String homomorphicSumSlots(String ciphertext, String version) {
+        if (ciphertext == null)
+            throw new IllegalArgumentException("Ciphertext cannot be null");
+        try {
+            return cli.sumSlots(ciphertext);
+        } catch (Exception e) {
+            logger.severe("BFV slot sum failed: " + e.getMessage());
+            throw new RuntimeException("BFV slot sum failed", e);
+        }
+    }
+
+    // stops the bfv_calc workers
+    @Override
+    public void close() {
+        cli.close();
+    }
+
+    /** Encrypted sums of linear regression over (x, y) pairs, x values raw (not scaled). */
+    public static final class RegressionMoments {
+        public final String sumX;
+        public final String sumY;
+        public final String sumXY;
+        public final String sumX2;
+        public final String sumY2;
+        
+        RegressionMoments(String sumX, String sumY, String sumXY, String sumX2, String sumY2) {
+            this.sumX = sumX;
+            this.sumY = sumY;
+            this.sumXY = sumXY;
+            this.sumX2 = sumX2;
+            this.sumY2 = sumY2;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+// Text form of a BFV ciphertext with many values packed into its slots, in the encrypted integer fields of an asset
+//
+//   PREFIX + <number of values> + ":" + <ciphertext>
+//
+// a gateway encrypts the values of many devices (up to the slot count of the BFV parameters) into the first slots of
+// one ciphertext, the other slots stay zero. Such an asset stands for that many values of the field.
+// packed ciphertexts add up slot by slot, so the slots of a sum only have to be summed (rotate-and-sum) once before
+// it is decrypted. A plain BFV ciphertext never starts with the prefix, so both forms can be mixed
+public class BfvPackedCiphertext {
+
+    public static final String PREFIX = "bfvp:";
+
+    public static String encode(long values, String ciphertext) {
+        if (values < 1)
+            throw new IllegalArgumentException("A packed ciphertext holds at least one value");
+        if (ciphertext == null || ciphertext.isEmpty())
+            throw new IllegalArgumentException("Ciphertext cannot be null or empty");
+        return PREFIX + values + ":" + ciphertext;
+    }
+
+    public static boolean isPacked(String ciphertext) {
+        return ciphertext.startsWith(PREFIX);
+    }
+
+    // number of values in the slots
+    public static long values(String packed) {
+        try {
+            long values = Long.parseLong(packed.substring(PREFIX.length(), separator(packed)));
+            if (values < 1)
+                throw new IllegalArgumentException("A packed ciphertext holds at least one value");
+            return values;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed packed BFV ciphertext", e);
+        }
+    }
+
+    // the ciphertext itself, as bfv_calc and the TTP read it
+    public static String ciphertext(String packed) {
+        String ciphertext = packed.substring(separator(packed) + 1);
+        if (ciphertext.isEmpty())
+            throw new IllegalArgumentException("Malformed packed BFV ciphertext");
+        return ciphertext;
+    }
+
+    private static int separator(String packed) {
+        if (!isPacked(packed))
+            throw new IllegalArgumentException("Not a packed BFV ciphertext");
+        int separator = packed.indexOf(':', PREFIX.length());
+        if (separator < 0)
+            throw new IllegalArgumentException("Malformed packed BFV ciphertext");
+        return separator;
+    }
+}
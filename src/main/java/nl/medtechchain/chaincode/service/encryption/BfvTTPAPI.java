@@ -1,16 +1,16 @@
 package nl.medtechchain.chaincode.service.encryption;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
 import nl.medtechchain.chaincode.service.encryption.dto.*;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 // BFV TTP API - encrypt, decrypt, add homomorphically
+// decrypts have async variants, those are pipelined so many can be in flight at once
 public interface BfvTTPAPI {
     
     String encrypt(long plaintext) throws IOException, InterruptedException;
@@ -20,52 +20,59 @@ public interface BfvTTPAPI {
     
     long decrypt(String ciphertext) throws IOException, InterruptedException;
     
+    // decrypt many ciphertexts in a single round trip, plaintexts come back in request order
+    List<Long> decryptAll(List<String> ciphertexts) throws IOException, InterruptedException;
+    
+    CompletableFuture<Long> decryptAsync(String ciphertext);
+    
+    CompletableFuture<List<Long>> decryptAllAsync(List<String> ciphertexts);
+    
     static BfvTTPAPI getInstance(String ttpAddress) {
+        return getInstance(ttpAddress, EncryptionDefaults.TTP_MAX_IN_FLIGHT, EncryptionDefaults.TTP_REQUEST_DEADLINE);
+    }
+    
+    static BfvTTPAPI getInstance(String ttpAddress, int maxInFlight, Duration deadline) {
         return new BfvTTPAPI() {
-            private final ObjectMapper om = new ObjectMapper();
-            private final HttpClient httpClient = HttpClient.newHttpClient();
+            private final TTPClient client = new TTPClient(ttpAddress, maxInFlight, deadline);
             
             @Override
             public String encrypt(long plaintext) throws IOException, InterruptedException {
-                var requestBody = om.writeValueAsString(new BfvEncryptRequest(plaintext));
-                var request = HttpRequest.newBuilder()
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                        .uri(URI.create("http://" + ttpAddress + "/api/bfv/encrypt"))
-                        .build();
-                
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                var encryptResponse = om.readValue(response.body(), BfvEncryptResponse.class);
-                return encryptResponse.getCiphertext();
+                var response = client.post("/api/bfv/encrypt", new BfvEncryptRequest(plaintext), BfvEncryptResponse.class);
+                return TTPClient.await(response).getCiphertext();
             }
             
             @Override
             public String addAll(List<String> ciphertexts) throws IOException, InterruptedException {
-                var requestBody = om.writeValueAsString(new BfvAddAllRequest(ciphertexts));
-                var request = HttpRequest.newBuilder()
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                        .uri(URI.create("http://" + ttpAddress + "/api/bfv/addAll"))
-                        .build();
-                
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                var addResponse = om.readValue(response.body(), BfvAddAllResponse.class);
-                return addResponse.getSumCiphertext();
+                var response = client.post("/api/bfv/addAll", new BfvAddAllRequest(ciphertexts), BfvAddAllResponse.class);
+                return TTPClient.await(response).getSumCiphertext();
             }
             
             @Override
             public long decrypt(String ciphertext) throws IOException, InterruptedException {
-                var requestBody = om.writeValueAsString(new BfvDecryptRequest(ciphertext));
-                var request = HttpRequest.newBuilder()
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(requestBody))
-                        .uri(URI.create("http://" + ttpAddress + "/api/bfv/decrypt"))
-                        .build();
-                
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                var decryptResponse = om.readValue(response.body(), BfvDecryptResponse.class);
-                return Long.parseLong(decryptResponse.getPlaintext());
+                return TTPClient.await(decryptAsync(ciphertext));
+            }
+            
+            @Override
+            public List<Long> decryptAll(List<String> ciphertexts) throws IOException, InterruptedException {
+                return TTPClient.await(decryptAllAsync(ciphertexts));
+            }
+            
+            @Override
+            public CompletableFuture<Long> decryptAsync(String ciphertext) {
+                return client.post("/api/bfv/decrypt", new BfvDecryptRequest(ciphertext), BfvDecryptResponse.class)
+                        .thenApply(response -> Long.parseLong(response.getPlaintext()));
+            }
+            
+            @Override
+            public CompletableFuture<List<Long>> decryptAllAsync(List<String> ciphertexts) {
+                return client.post("/api/bfv/decryptAll", new BfvDecryptAllRequest(ciphertexts), BfvDecryptAllResponse.class)
+                        .thenApply(response -> {
+                            var plaintexts = new ArrayList<Long>(response.getPlaintexts().size());
+                            for (String plaintext : response.getPlaintexts())
+                                plaintexts.add(Long.parseLong(plaintext));
+                            return plaintexts;
+                        });
             }
         };
     }
-} 
\ No newline at end of file
+} 
@@ -0,0 +1,11 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import java.nio.ByteBuffer;
+
+// A ciphertext kept outside the Java heap (see CiphertextArena), one byte per char like the base64 and decimal
+// ciphertext strings; toString() decodes it, copyTo hands the bytes on without a String in between
+public interface CiphertextHandle extends CharSequence {
+
+    // puts the ciphertext bytes at the position of target and advances it
+    void copyTo(ByteBuffer target);
+}
@@ -1,7 +1,10 @@
 package nl.medtechchain.chaincode.service.encryption;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 // Common interface for encryption schemes - handles Paillier, BFV, or plaintext
 public interface EncryptionService {
@@ -21,6 +24,53 @@ public interface EncryptionService {
     // decrypt boolean values
     boolean decryptBool(String ciphertext, String version);
     
+    // Batch decryption - many ciphertexts of one key version, results in the same order
+    // schemes whose TTP decrypts in bulk override these, by default it's one call per ciphertext
+    
+    default List<Long> decryptLongBatch(List<String> ciphertexts, String version) {
+        var plaintexts = new ArrayList<Long>(ciphertexts.size());
+        for (String ciphertext : ciphertexts)
+            plaintexts.add(decryptLong(ciphertext, version));
+        return plaintexts;
+    }
+    
+    default List<String> decryptStringBatch(List<String> ciphertexts, String version) {
+        var plaintexts = new ArrayList<String>(ciphertexts.size());
+        for (String ciphertext : ciphertexts)
+            plaintexts.add(decryptString(ciphertext, version));
+        return plaintexts;
+    }
+    
+    default List<Boolean> decryptBoolBatch(List<String> ciphertexts, String version) {
+        var plaintexts = new ArrayList<Boolean>(ciphertexts.size());
+        for (String ciphertext : ciphertexts)
+            plaintexts.add(decryptBool(ciphertext, version));
+        return plaintexts;
+    }
+    
+    // Asynchronous batch decryption - TTP backed schemes pipeline these, so a caller can keep several batches in flight
+    // and collect the results as they arrive; by default the batch is decrypted right away
+    
+    default CompletableFuture<List<Long>> decryptLongBatchAsync(List<String> ciphertexts, String version) {
+        return completed(() -> decryptLongBatch(ciphertexts, version));
+    }
+    
+    default CompletableFuture<List<String>> decryptStringBatchAsync(List<String> ciphertexts, String version) {
+        return completed(() -> decryptStringBatch(ciphertexts, version));
+    }
+    
+    default CompletableFuture<List<Boolean>> decryptBoolBatchAsync(List<String> ciphertexts, String version) {
+        return completed(() -> decryptBoolBatch(ciphertexts, version));
+    }
+    
+    private static <T> CompletableFuture<T> completed(Supplier<T> result) {
+        try {
+            return CompletableFuture.completedFuture(result.get());
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+    
     // Homomorphic capabilities
     
     // does this encryption support homomorphic ops?
@@ -30,6 +80,15 @@ public interface EncryptionService {
     
     // add encrypted values together without decrypting
     String homomorphicAdd(List<String> ciphertexts, String version);
+
+    // homomorphicAdd over ciphertexts kept off the heap, by default they are decoded to Strings first
+    // a scheme that can pass their bytes on as they are overrides it
+    default String homomorphicAddHandles(List<? extends CiphertextHandle> ciphertexts, String version) {
+        var decoded = new ArrayList<String>(ciphertexts.size());
+        for (CiphertextHandle ciphertext : ciphertexts)
+            decoded.add(ciphertext.toString());
+        return homomorphicAdd(decoded, version);
+    }
     
     // multiply two encrypted values (only works with some schemes)
     String homomorphicMultiply(String ciphertext1, String ciphertext2, String version);
@@ -37,4 +96,21 @@ public interface EncryptionService {
     String homomorphicSubWithScalar(String ciphertext, long scalar);
 
     String homomorphicMultiplyWithScalar(String ciphertext, long scalar, String version);
+
+    // Packed ciphertexts - many values in the slots of one ciphertext, see BfvPackedCiphertext
+    // adding and multiplying them works slot by slot, only summing the slots needs its own operation
+
+    default boolean supportsPacking() {
+        return false;
+    }
+
+    // a ciphertext whose slots all hold the sum of the slots of the given one (rotate-and-sum)
+    default String homomorphicSumSlots(String ciphertext, String version) {
+        throw new UnsupportedOperationException("This encryption scheme does not support packed ciphertexts");
+    }
+
+    // releases what the service holds on to (e.g. bfv_calc worker processes), it can't be used afterwards
+    // EncryptionServiceRegistry calls it once a replaced service has no running queries left
+    default void close() {
+    }
 } 
\ No newline at end of file
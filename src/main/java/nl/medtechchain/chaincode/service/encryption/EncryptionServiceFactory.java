@@ -26,7 +26,9 @@ public class EncryptionServiceFactory {
             case "paillier":
                 String ttpAddress = getUnsafe(config, CONFIG_FEATURE_QUERY_ENCRYPTION_PAILLIER_TTP_ADRRESS);
                 logger.info("Creating Paillier encryption service with TTP: " + ttpAddress);
-                return new PaillierEncryptionService(ttpAddress);
+                var paillier = new PaillierEncryptionService(ttpAddress);
+                preloadKey(paillier, config);
+                return paillier;
                 
             case "bfv":
                 String bfvTtpAddress = getUnsafe(config, CONFIG_FEATURE_QUERY_ENCRYPTION_PAILLIER_TTP_ADRRESS);
@@ -44,4 +46,22 @@ public class EncryptionServiceFactory {
                 return null;
         }
     }
+    
+    // the key version the config encrypts with is needed by the first aggregation anyway,
+    // take its public key from the config if it's there, otherwise start fetching it
+    private static void preloadKey(PaillierEncryptionService service, PlatformConfig config) {
+        var version = get(config, CONFIG_FEATURE_QUERY_ENCRYPTION_KEY_VERSION);
+        if (version.isEmpty())
+            return;
+        
+        var publicKey = get(config, CONFIG_FEATURE_QUERY_ENCRYPTION_PAILLIER_PUBLIC_KEY);
+        try {
+            if (publicKey.isPresent())
+                service.preloadKey(version.get(), publicKey.get());
+            else
+                service.prefetchKey(version.get());
+        } catch (Exception e) {
+            logger.warning("Failed to preload Paillier key " + version.get() + ": " + e.getMessage());
+        }
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,130 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import nl.medtechchain.chaincode.config.ConfigOps.PlatformConfigOps;
+import nl.medtechchain.proto.config.PlatformConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+// Process wide encryption service for the current platform config
+// the service (its HTTP client, key caches, CLI handle) is reused by every query for as long as the platform config id
+// stays the same, a config with a new id replaces it - queries still running keep the service they started with
+//
+// a query holds a Lease while it runs; a replaced service is closed (stopping e.g. its bfv_calc workers) once the last
+// lease on it is released, or right away if there is none
+//
+// the id is derived from the config entries, so equal ids mean equal encryption settings;
+// a config without id is registered under the id its entries would get, like any other config
+public final class EncryptionServiceRegistry {
+
+    private static final Logger logger = Logger.getLogger(EncryptionServiceRegistry.class.getName());
+
+    // creates the service of a config id the registry hasn't seen, tests replace it
+    static Function<PlatformConfig, EncryptionService> factory = EncryptionServiceFactory::create;
+
+    private static volatile Registered current;
+
+    // current plus the replaced services that still have leases, guarded by the class lock
+    private static final Map<String, Registered> open = new HashMap<>();
+
+    private EncryptionServiceRegistry() {
+    }
+
+    // null if the config doesn't use encryption, like EncryptionServiceFactory.create
+    // code running outside a lease must not keep the service, it may be closed once the config changes
+    public static EncryptionService get(PlatformConfig config) {
+        var id = PlatformConfigOps.id(config);
+        var registered = current;
+        if (registered != null && registered.configId.equals(id))
+            return registered.service;
+
+        return register(id, config, false).service;
+    }
+
+    // keeps the service of the config open until the lease is released, get() returns the same service meanwhile
+    public static Lease lease(PlatformConfig config) {
+        return new Lease(register(PlatformConfigOps.id(config), config, true));
+    }
+
+    // one service per config id, even if several queries see the new config at once
+    // a config that is still open (e.g. a query that read it before the config changed) keeps its service,
+    // only a config that isn't open yet becomes the current one
+    private static Registered register(String id, PlatformConfig config, boolean lease) {
+        Registered registered;
+        Registered replaced = null;
+        synchronized (EncryptionServiceRegistry.class) {
+            registered = open.get(id);
+            if (registered == null) {
+                registered = new Registered(id, factory.apply(config));
+                open.put(registered.configId, registered);
+                logger.info("Encryption service registered for platform config " + registered.configId);
+
+                replaced = current;
+                current = registered;
+                if (replaced != null)
+                    replaced = retire(replaced);
+            }
+            if (lease)
+                registered.leases++;
+        }
+        close(replaced);
+        return registered;
+    }
+
+    // the replaced service if nothing uses it anymore, it is closed outside the lock
+    private static Registered retire(Registered registered) {
+        if (registered == current || registered.leases > 0)
+            return null;
+        open.remove(registered.configId);
+        return registered;
+    }
+
+    private static void close(Registered registered) {
+        if (registered == null || registered.service == null)
+            return;
+        logger.info("Closing encryption service of replaced platform config " + registered.configId);
+        try {
+            registered.service.close();
+        } catch (RuntimeException e) {
+            logger.warning("Failed to close encryption service of platform config " + registered.configId + ": " + e.getMessage());
+        }
+    }
+
+    // a running query's hold on its encryption service
+    public static final class Lease implements AutoCloseable {
+        private final Registered registered;
+        private boolean released = false;
+
+        private Lease(Registered registered) {
+            this.registered = registered;
+        }
+
+        @Override
+        public void close() {
+            if (released)
+                return;
+            released = true;
+
+            Registered unused;
+            synchronized (EncryptionServiceRegistry.class) {
+                registered.leases--;
+                unused = retire(registered);
+            }
+            EncryptionServiceRegistry.close(unused);
+        }
+    }
+
+    private static class Registered {
+        private final String configId;
+        private final EncryptionService service;
+        // guarded by the class lock
+        private int leases = 0;
+
+        Registered(String configId, EncryptionService service) {
+            this.configId = configId;
+            this.service = service;
+        }
+    }
+}
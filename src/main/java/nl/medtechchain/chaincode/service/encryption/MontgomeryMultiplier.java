@@ -0,0 +1,212 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+// Multiplication modulo a fixed odd modulus (Paillier n²) in Montgomery form over fixed-width 64-bit limbs
+//
+// a running product is kept as k = ceil(bits / 64) little-endian limbs and every step is one CIOS Montgomery
+// multiplication into preallocated scratch, so a long product allocates nothing but the parsed inputs, where the
+// BigInteger path allocates a double-width product and a division remainder per ciphertext
+//
+// a Montgomery step computes a * b / R mod m (R = 2^(64k)); the inputs are not converted into Montgomery form,
+// instead the product picks up one 1/R per step, which result() multiplies back in with a single R^(steps) mod m
+final class MontgomeryMultiplier {
+
+    private final BigInteger modulus;
+    private final int k;
+    private final long[] m;
+    // -m^-1 mod 2^64
+    private final long mInv;
+    // R mod m
+    private final BigInteger r;
+
+    MontgomeryMultiplier(BigInteger modulus) {
+        if (!supports(modulus))
+            throw new IllegalArgumentException("Montgomery multiplication needs an odd modulus > 1");
+        this.modulus = modulus;
+        this.k = (modulus.bitLength() + 63) / 64;
+        this.m = toLimbs(modulus, new long[k]);
+        this.mInv = -inverse(m[0]);
+        this.r = BigInteger.ONE.shiftLeft(64 * k).mod(modulus);
+    }
+
+    static boolean supports(BigInteger modulus) {
+        return modulus.testBit(0) && modulus.compareTo(BigInteger.ONE) > 0;
+    }
+
+    BigInteger modulus() {
+        return modulus;
+    }
+
+    // not thread safe, one per running product
+    Accumulator accumulator() {
+        return new Accumulator();
+    }
+
+    final class Accumulator {
+        private final long[] product = new long[k];
+        private final long[] value = new long[k];
+        private final long[] scratch = new long[k + 2];
+        private long steps = 0;
+        private boolean empty = true;
+
+        void multiply(BigInteger factor) {
+            if (factor.signum() < 0 || factor.compareTo(modulus) >= 0)
+                factor = factor.mod(modulus);
+
+            if (empty) {
+                toLimbs(factor, product);
+                empty = false;
+                return;
+            }
+
+            toLimbs(factor, value);
+            montgomeryMultiply(product, value, scratch, product);
+            steps++;
+        }
+
+        // unsigned big-endian bytes (a binary ciphertext) go into the limbs without a BigInteger in between,
+        // only values that aren't reduced mod m take the BigInteger path
+        void multiply(byte[] magnitude) {
+            var limbs = empty ? product : value;
+            if (!toLimbs(magnitude, limbs) || compare(limbs, m) >= 0) {
+                multiply(new BigInteger(1, magnitude));
+                return;
+            }
+
+            if (empty) {
+                empty = false;
+                return;
+            }
+
+            montgomeryMultiply(product, value, scratch, product);
+            steps++;
+        }
+
+        // the product of all factors mod m, 1 if there were none
+        BigInteger result() {
+            if (empty)
+                return BigInteger.ONE;
+
+            var result = toBigInteger(product);
+            if (steps == 0)
+                return result;
+            return result.multiply(r.modPow(BigInteger.valueOf(steps), modulus)).mod(modulus);
+        }
+    }
+
+    // out = a * b / R mod m for a, b < m; t is scratch of k + 2 limbs, out may be a or b
+    private void montgomeryMultiply(long[] a, long[] b, long[] t, long[] out) {
+        Arrays.fill(t, 0);
+
+        for (int i = 0; i < k; i++) {
+            // t += a * b[i]
+            long bi = b[i];
+            long carry = 0;
+            for (int j = 0; j < k; j++) {
+                long lo = a[j] * bi;
+                long hi = multiplyHighUnsigned(a[j], bi);
+                long sum = lo + t[j];
+                if (Long.compareUnsigned(sum, lo) < 0)
+                    hi++;
+                long total = sum + carry;
+                if (Long.compareUnsigned(total, sum) < 0)
+                    hi++;
+                t[j] = total;
+                carry = hi;
+            }
+            long top = t[k] + carry;
+            t[k + 1] = Long.compareUnsigned(top, carry) < 0 ? 1 : 0;
+            t[k] = top;
+
+            // t = (t + q * m) / 2^64, q is chosen so the lowest limb becomes 0
+            long q = t[0] * mInv;
+            long lo = q * m[0];
+            long hi = multiplyHighUnsigned(q, m[0]);
+            if (Long.compareUnsigned(lo + t[0], lo) < 0)
+                hi++;
+            carry = hi;
+            for (int j = 1; j < k; j++) {
+                lo = q * m[j];
+                hi = multiplyHighUnsigned(q, m[j]);
+                long sum = lo + t[j];
+                if (Long.compareUnsigned(sum, lo) < 0)
+                    hi++;
+                long total = sum + carry;
+                if (Long.compareUnsigned(total, sum) < 0)
+                    hi++;
+                t[j - 1] = total;
+                carry = hi;
+            }
+            top = t[k] + carry;
+            t[k - 1] = top;
+            t[k] = t[k + 1] + (Long.compareUnsigned(top, carry) < 0 ? 1 : 0);
+        }
+
+        // t < 2m here
+        if (t[k] != 0 || compare(t, m) >= 0)
+            subtract(t, m);
+        System.arraycopy(t, 0, out, 0, k);
+    }
+
+    private int compare(long[] a, long[] b) {
+        for (int i = k - 1; i >= 0; i--) {
+            int c = Long.compareUnsigned(a[i], b[i]);
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    private void subtract(long[] a, long[] b) {
+        long borrow = 0;
+        for (int i = 0; i < k; i++) {
+            long diff = a[i] - b[i] - borrow;
+            borrow = (Long.compareUnsigned(a[i], b[i]) < 0 || (a[i] == b[i] && borrow == 1)) ? 1 : 0;
+            a[i] = diff;
+        }
+    }
+
+    private static long multiplyHighUnsigned(long a, long b) {
+        return Math.multiplyHigh(a, b) + ((a >> 63) & b) + ((b >> 63) & a);
+    }
+
+    // inverse of an odd number mod 2^64, each Newton step doubles the correct bits (3 to start with)
+    private static long inverse(long odd) {
+        long x = odd;
+        for (int i = 0; i < 5; i++)
+            x *= 2 - odd * x;
+        return x;
+    }
+
+    // 0 <= value < 2^(64 * out.length)
+    private static long[] toLimbs(BigInteger value, long[] out) {
+        toLimbs(value.toByteArray(), out);
+        return out;
+    }
+
+    // unsigned big-endian bytes into little-endian limbs, false if they don't fit
+    private static boolean toLimbs(byte[] bytes, long[] out) {
+        Arrays.fill(out, 0);
+        for (int i = 0; i < bytes.length; i++) {
+            byte b = bytes[bytes.length - 1 - i];
+            int limb = i / 8;
+            if (limb >= out.length) {
+                if (b != 0)
+                    return false;
+                continue;
+            }
+            out[limb] |= (b & 0xFFL) << (8 * (i % 8));
+        }
+        return true;
+    }
+
+    private static BigInteger toBigInteger(long[] limbs) {
+        byte[] bytes = new byte[limbs.length * 8 + 1];
+        for (int i = 0; i < limbs.length; i++)
+            for (int b = 0; b < 8; b++)
+                bytes[bytes.length - 1 - (i * 8 + b)] = (byte) (limbs[i] >>> (8 * b));
+        return new BigInteger(bytes);
+    }
+}
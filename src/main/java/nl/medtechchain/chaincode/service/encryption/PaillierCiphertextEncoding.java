@@ -0,0 +1,54 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import java.math.BigInteger;
+import java.util.Base64;
+
+// Text forms of a Paillier ciphertext in the encrypted fields of an asset
+//
+// decimal: the BigInteger as decimal string, what devices have always written and what the TTP reads
+// binary:  BINARY_PREFIX + base64 of the unsigned big-endian bytes, about 2.4x shorter than decimal and decoded in
+//          linear time instead of the quadratic decimal parse
+//
+// a decimal string never starts with the prefix, so values of both forms can be mixed and are all readable
+public class PaillierCiphertextEncoding {
+
+    public static final String BINARY_PREFIX = "b64:";
+
+    public static String encode(BigInteger ciphertext) {
+        if (ciphertext.signum() < 0)
+            throw new IllegalArgumentException("Paillier ciphertext cannot be negative");
+        return BINARY_PREFIX + Base64.getEncoder().encodeToString(magnitude(ciphertext));
+    }
+
+    public static boolean isBinary(String ciphertext) {
+        return ciphertext.startsWith(BINARY_PREFIX);
+    }
+
+    public static BigInteger decode(String ciphertext) {
+        if (isBinary(ciphertext))
+            return new BigInteger(1, decodeBytes(ciphertext));
+        return new BigInteger(ciphertext);
+    }
+
+    // unsigned big-endian bytes of a binary ciphertext
+    public static byte[] decodeBytes(String ciphertext) {
+        if (!isBinary(ciphertext))
+            throw new IllegalArgumentException("Not a binary Paillier ciphertext");
+        return Base64.getDecoder().decode(ciphertext.substring(BINARY_PREFIX.length()));
+    }
+
+    // the form the TTP understands
+    public static String toDecimal(String ciphertext) {
+        return isBinary(ciphertext) ? decode(ciphertext).toString() : ciphertext;
+    }
+
+    private static byte[] magnitude(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            byte[] stripped = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, stripped, 0, stripped.length);
+            return stripped;
+        }
+        return bytes;
+    }
+}
@@ -1,11 +1,16 @@
 package nl.medtechchain.chaincode.service.encryption;
 
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
+import nl.medtechchain.chaincode.service.encryption.dto.PaillierDecryptAllRequest;
 import nl.medtechchain.chaincode.service.encryption.dto.PaillierDecryptRequest;
 
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 
 // Paillier encryption implementation - talks to TTP for key management  
@@ -16,9 +21,28 @@ public class PaillierEncryptionService implements EncryptionService {
 
     
     private final PaillierTTPAPI api;
+    private final PaillierKeyCache keys;
+    private final PaillierProductTree productTree = new PaillierProductTree(EncryptionDefaults.PAILLIER_PRODUCT_LEAF_SIZE);
     
     public PaillierEncryptionService(String ttpAddress) {
-        this.api = PaillierTTPAPI.getInstance(ttpAddress);
+        this(PaillierTTPAPI.getInstance(ttpAddress));
+    }
+    
+    PaillierEncryptionService(PaillierTTPAPI api) {
+        this.api = api;
+        this.keys = new PaillierKeyCache(api);
+    }
+    
+    // Key cache - filled on first use of a version, or up front from the platform config
+    
+    // public key of this version is known already (e.g. from the platform config)
+    public void preloadKey(String version, String publicKey) {
+        keys.put(version, publicKey);
+    }
+    
+    // fetch the public key of this version in the background
+    public void prefetchKey(String version) {
+        keys.prefetch(version);
     }
     
     @Override
@@ -33,7 +57,7 @@ public class PaillierEncryptionService implements EncryptionService {
     
     @Override
     public Set<String> getAvailableVersions() {
-        // TTP manages versions, we don't track them locally
+        // TTP manages versions, we don't track them locally - the key cache only holds what aggregations used
         return Set.of(getCurrentVersion());
     }
     
@@ -57,6 +81,51 @@ public class PaillierEncryptionService implements EncryptionService {
         return result.equals(BigInteger.ONE);
     }
     
+    @Override
+    public List<Long> decryptLongBatch(List<String> ciphertexts, String version) {
+        return join(decryptLongBatchAsync(ciphertexts, version));
+    }
+    
+    @Override
+    public List<String> decryptStringBatch(List<String> ciphertexts, String version) {
+        return join(decryptStringBatchAsync(ciphertexts, version));
+    }
+    
+    @Override
+    public List<Boolean> decryptBoolBatch(List<String> ciphertexts, String version) {
+        return join(decryptBoolBatchAsync(ciphertexts, version));
+    }
+    
+    @Override
+    public CompletableFuture<List<Long>> decryptLongBatchAsync(List<String> ciphertexts, String version) {
+        return decryptAll(ciphertexts, version).thenApply(results -> {
+            var plaintexts = new ArrayList<Long>(results.size());
+            for (BigInteger result : results)
+                plaintexts.add(result.longValue());
+            return plaintexts;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<List<String>> decryptStringBatchAsync(List<String> ciphertexts, String version) {
+        return decryptAll(ciphertexts, version).thenApply(results -> {
+            var plaintexts = new ArrayList<String>(results.size());
+            for (BigInteger result : results)
+                plaintexts.add(bigIntegerToString(result));
+            return plaintexts;
+        });
+    }
+    
+    @Override
+    public CompletableFuture<List<Boolean>> decryptBoolBatchAsync(List<String> ciphertexts, String version) {
+        return decryptAll(ciphertexts, version).thenApply(results -> {
+            var plaintexts = new ArrayList<Boolean>(results.size());
+            for (BigInteger result : results)
+                plaintexts.add(result.equals(BigInteger.ONE));
+            return plaintexts;
+        });
+    }
+    
     // Homomorphic operations
     
     @Override
@@ -76,34 +145,18 @@ public class PaillierEncryptionService implements EncryptionService {
         }
         
         try {
-            // Get the public key for the specific version
-            var publicKey = api.getKeyByVersion(version).getEncryptionKey();
-            BigInteger n = new BigInteger(publicKey);
-            BigInteger nSquared = n.multiply(n);
+            // Get the public key for the specific version, cached after the first call
+            BigInteger nSquared = keys.get(version).nSquared;
             
             logger.info("Starting homomorphic addition with " + ciphertexts.size() + " values");
             
-            // In Paillier, homomorphic addition is done via multiplication of ciphertexts
-            BigInteger result = new BigInteger(ciphertexts.get(0));
-            
-            // Keep track of intermediate results to avoid overflow
-            for (int i = 1; i < ciphertexts.size(); i++) {
-                try {
-                    BigInteger nextValue = new BigInteger(ciphertexts.get(i));
-                    // Multiply and take modulo after each step to keep numbers manageable
-                    result = result.multiply(nextValue).mod(nSquared);
-                    logger.fine("Successfully added value " + i + " of " + ciphertexts.size());
-                } catch (NumberFormatException e) {
-                    logger.severe("Invalid ciphertext format at index " + i + ": " + ciphertexts.get(i));
-                    throw new IllegalArgumentException("Invalid ciphertext format: " + e.getMessage());
-                } catch (ArithmeticException e) {
-                    logger.severe("Arithmetic error during homomorphic addition: " + e.getMessage());
-                    throw new RuntimeException("Arithmetic error during homomorphic addition", e);
-                }
-            }
+            // In Paillier, homomorphic addition is done via multiplication of ciphertexts,
+            // the product is built as a tree over all cores
+            BigInteger result = productTree.product(ciphertexts, nSquared);
             
             logger.info("Homomorphic addition completed successfully");
-            return result.toString();
+            // binary form, partial sums are parsed again by the next fold
+            return PaillierCiphertextEncoding.encode(result);
         } catch (Exception e) {
             logger.severe("Failed to perform homomorphic addition: " + e.getMessage());
             logger.severe("Stack trace: " + e.toString());
@@ -143,7 +196,8 @@ public class PaillierEncryptionService implements EncryptionService {
     private BigInteger decrypt(String ciphertext, String version) {
         try {
             // Let TTP handle key lookup by version - we don't manage keys locally
-            PaillierDecryptRequest request = new PaillierDecryptRequest(null, ciphertext, version);
+            // the TTP only reads decimal ciphertexts
+            PaillierDecryptRequest request = new PaillierDecryptRequest(null, PaillierCiphertextEncoding.toDecimal(ciphertext), version);
             String plaintext = api.decrypt(request).getPlaintext();
             
             // Handle large numbers that might exceed Long.MAX_VALUE
@@ -157,6 +211,44 @@ public class PaillierEncryptionService implements EncryptionService {
         }
     }
     
+    // one TTP round trip for the whole list
+    private CompletableFuture<List<BigInteger>> decryptAll(List<String> ciphertexts, String version) {
+        if (ciphertexts.isEmpty())
+            return CompletableFuture.completedFuture(List.of());
+        
+        var decimal = new ArrayList<String>(ciphertexts.size());
+        for (String ciphertext : ciphertexts)
+            decimal.add(PaillierCiphertextEncoding.toDecimal(ciphertext));
+        
+        return api.decryptAllAsync(new PaillierDecryptAllRequest(decimal, version)).handle((response, t) -> {
+            if (t != null) {
+                logger.severe("TTP batch decryption failed for version " + version + ": " + t.getMessage());
+                throw new RuntimeException("TTP batch decryption failed", t);
+            }
+            
+            var plaintexts = response.getPlaintexts();
+            if (plaintexts == null || plaintexts.size() != ciphertexts.size())
+                throw new RuntimeException("TTP batch decryption returned " + (plaintexts == null ? 0 : plaintexts.size())
+                        + " plaintexts for " + ciphertexts.size() + " ciphertexts");
+            
+            var results = new ArrayList<BigInteger>(plaintexts.size());
+            for (String plaintext : plaintexts)
+                results.add(new BigInteger(plaintext));
+            return results;
+        });
+    }
+    
+    // waits for an async decryption, its failure is rethrown unwrapped
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+    
     private String bigIntegerToString(BigInteger bigInt) {
         byte[] bytes = bigInt.toByteArray();
         
@@ -0,0 +1,112 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+// Public keys of the Paillier key versions in use, n² is computed once per version
+//
+// versions get in when an aggregation first needs them (so only versions that are on the ledger) or when a platform
+// config names its key version; at most MAX_VERSIONS are kept, the oldest loaded is dropped first
+// lookups read an immutable map that is replaced on every change, a version missing from it is fetched from the TTP once,
+// concurrent lookups of that version wait for the same request
+final class PaillierKeyCache {
+
+    static final int MAX_VERSIONS = 16;
+
+    private final PaillierTTPAPI api;
+
+    private volatile Map<String, PublicKey> keys = Map.of();
+    // guarded by this
+    private final Map<String, CompletableFuture<PublicKey>> loading = new HashMap<>();
+
+    PaillierKeyCache(PaillierTTPAPI api) {
+        this.api = api;
+    }
+
+    PublicKey get(String version) {
+        var key = keys.get(version);
+        if (key != null)
+            return key;
+
+        try {
+            return load(version).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Failed to get Paillier key " + version + " from TTP", e.getCause());
+        }
+    }
+
+    // starts fetching the key in the background, if it isn't there yet
+    void prefetch(String version) {
+        load(version);
+    }
+
+    // key known from the platform config, no TTP call needed
+    void put(String version, String n) {
+        store(version, n);
+    }
+
+    Set<String> versions() {
+        return keys.keySet();
+    }
+
+    private CompletableFuture<PublicKey> load(String version) {
+        CompletableFuture<PublicKey> pending;
+        synchronized (this) {
+            var key = keys.get(version);
+            if (key != null)
+                return CompletableFuture.completedFuture(key);
+            pending = loading.get(version);
+            if (pending != null)
+                return pending;
+            pending = new CompletableFuture<>();
+            loading.put(version, pending);
+        }
+
+        var result = pending;
+        api.getKeyByVersionAsync(version).whenComplete((response, t) -> {
+            try {
+                if (t != null)
+                    result.completeExceptionally(t);
+                else
+                    result.complete(store(version, response.getEncryptionKey()));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            } finally {
+                synchronized (this) {
+                    loading.remove(version);
+                }
+            }
+        });
+        return result;
+    }
+
+    private synchronized PublicKey store(String version, String n) {
+        var key = new PublicKey(new BigInteger(n));
+
+        var updated = new LinkedHashMap<>(keys);
+        updated.put(version, key);
+        var eldest = updated.keySet().iterator();
+        while (updated.size() > MAX_VERSIONS) {
+            eldest.next();
+            eldest.remove();
+        }
+        keys = Collections.unmodifiableMap(updated);
+        return key;
+    }
+
+    static final class PublicKey {
+        final BigInteger n;
+        final BigInteger nSquared;
+
+        PublicKey(BigInteger n) {
+            this.n = n;
+            this.nSquared = n.multiply(n);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Product of Paillier ciphertexts modulo n² (= the encrypted sum of their plaintexts) as a fork-join product tree:
+// the list is split in halves until a half has at most leafSize ciphertexts, leaves are multiplied sequentially and the
+// partial products are combined pairwise on the way up, so every core works on its own part of the list
+// leaves multiply in Montgomery form over fixed-width limbs (MontgomeryMultiplier), the multiplier for the last n² is
+// kept, so a query only pays its setup once
+//
+// multiplication modulo n² is associative and commutative, so the result is exactly what the sequential loop computes;
+// runs on its own pool, queries don't compete with anything else for the common pool
+final class PaillierProductTree {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final ForkJoinPool pool;
+    private final int leafSize;
+
+    private volatile MontgomeryMultiplier montgomery;
+
+    PaillierProductTree(int leafSize) {
+        this(POOL, leafSize);
+    }
+
+    PaillierProductTree(ForkJoinPool pool, int leafSize) {
+        if (leafSize < 2)
+            throw new IllegalArgumentException("leafSize must be at least 2");
+        this.pool = pool;
+        this.leafSize = leafSize;
+    }
+
+    // a single ciphertext is returned as is, like the sequential loop does
+    BigInteger product(List<String> ciphertexts, BigInteger nSquared) {
+        if (ciphertexts.isEmpty())
+            throw new IllegalArgumentException("Ciphertext list cannot be empty");
+        if (ciphertexts.size() == 1)
+            return parse(ciphertexts, 0);
+
+        var task = new Product(ciphertexts, nSquared, montgomery(nSquared), 0, ciphertexts.size());
+        // small lists aren't worth the hand-off to the pool
+        if (ciphertexts.size() <= leafSize)
+            return task.compute();
+        return pool.invoke(task);
+    }
+
+    // null if n² is even, which no real Paillier key has; those fall back to BigInteger multiplication
+    private MontgomeryMultiplier montgomery(BigInteger nSquared) {
+        var multiplier = montgomery;
+        if (multiplier != null && multiplier.modulus().equals(nSquared))
+            return multiplier;
+        if (!MontgomeryMultiplier.supports(nSquared))
+            return null;
+
+        multiplier = new MontgomeryMultiplier(nSquared);
+        montgomery = multiplier;
+        return multiplier;
+    }
+
+    // ciphertexts may be decimal or binary, see PaillierCiphertextEncoding
+    private static BigInteger parse(List<String> ciphertexts, int i) {
+        try {
+            return PaillierCiphertextEncoding.decode(ciphertexts.get(i));
+        } catch (IllegalArgumentException e) {
+            throw invalid(i, e);
+        }
+    }
+
+    // binary ciphertexts go from their bytes straight into the limbs
+    private static void multiply(MontgomeryMultiplier.Accumulator product, List<String> ciphertexts, int i) {
+        var ciphertext = ciphertexts.get(i);
+        if (!PaillierCiphertextEncoding.isBinary(ciphertext)) {
+            product.multiply(parse(ciphertexts, i));
+            return;
+        }
+
+        try {
+            product.multiply(PaillierCiphertextEncoding.decodeBytes(ciphertext));
+        } catch (IllegalArgumentException e) {
+            throw invalid(i, e);
+        }
+    }
+
+    private static IllegalArgumentException invalid(int i, IllegalArgumentException e) {
+        return new IllegalArgumentException("Invalid ciphertext format at index " + i + ": " + e.getMessage());
+    }
+
+    private class Product extends RecursiveTask<BigInteger> {
+        private final List<String> ciphertexts;
+        private final BigInteger nSquared;
+        private final MontgomeryMultiplier montgomery;
+        private final int from;
+        private final int to;
+
+        Product(List<String> ciphertexts, BigInteger nSquared, MontgomeryMultiplier montgomery, int from, int to) {
+            this.ciphertexts = ciphertexts;
+            this.nSquared = nSquared;
+            this.montgomery = montgomery;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            if (to - from <= leafSize)
+                return leaf();
+
+            int mid = (from + to) >>> 1;
+            var left = new Product(ciphertexts, nSquared, montgomery, from, mid);
+            left.fork();
+            BigInteger right = new Product(ciphertexts, nSquared, montgomery, mid, to).compute();
+            return left.join().multiply(right).mod(nSquared);
+        }
+
+        private BigInteger leaf() {
+            if (montgomery == null) {
+                BigInteger product = parse(ciphertexts, from);
+                for (int i = from + 1; i < to; i++)
+                    product = product.multiply(parse(ciphertexts, i)).mod(nSquared);
+                return product;
+            }
+
+            var product = montgomery.accumulator();
+            for (int i = from; i < to; i++)
+                multiply(product, ciphertexts, i);
+            return product.result();
+        }
+    }
+}
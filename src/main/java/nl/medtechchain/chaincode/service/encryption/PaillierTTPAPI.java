@@ -1,15 +1,14 @@
 package nl.medtechchain.chaincode.service.encryption;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
 import nl.medtechchain.chaincode.service.encryption.dto.*;
 
 import java.io.IOException;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 
 // Talks to Paillier TTP for keys and decryption
+// every call has an async variant, those are pipelined so many decrypts can be in flight at once
 public interface PaillierTTPAPI {
 
     PaillierEncryptionKeyResponse encryptionKey(int bitLength) throws IOException, InterruptedException;
@@ -23,55 +22,62 @@ public interface PaillierTTPAPI {
     // decrypt using version info
     PaillierDecryptResponse decrypt(PaillierDecryptRequest decryptRequest) throws IOException, InterruptedException;
 
+    // decrypt many ciphertexts of one key version in a single round trip, plaintexts come back in request order
+    PaillierDecryptAllResponse decryptAll(PaillierDecryptAllRequest decryptRequest) throws IOException, InterruptedException;
+
+    CompletableFuture<PaillierEncryptionKeyResponse> getKeyByVersionAsync(String version);
+
+    CompletableFuture<PaillierDecryptResponse> decryptAsync(PaillierDecryptRequest decryptRequest);
+
+    CompletableFuture<PaillierDecryptAllResponse> decryptAllAsync(PaillierDecryptAllRequest decryptRequest);
+
     static PaillierTTPAPI getInstance(String ttpAddress) {
+        return getInstance(ttpAddress, EncryptionDefaults.TTP_MAX_IN_FLIGHT, EncryptionDefaults.TTP_REQUEST_DEADLINE);
+    }
+
+    static PaillierTTPAPI getInstance(String ttpAddress, int maxInFlight, Duration deadline) {
         return new PaillierTTPAPI() {
-            private final ObjectMapper om = new ObjectMapper();
-            private final HttpClient httpClient = HttpClient.newHttpClient();
+            private final TTPClient client = new TTPClient(ttpAddress, maxInFlight, deadline);
 
             @Override
             public PaillierEncryptionKeyResponse encryptionKey(int bitLength) throws IOException, InterruptedException {
-                var request = HttpRequest.newBuilder()
-                        .GET()
-                        .uri(URI.create("http://" + ttpAddress + "/api/paillier/key?bitLength=" + bitLength))
-                        .build();
-
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                return om.readValue(response.body(), PaillierEncryptionKeyResponse.class);
+                return TTPClient.await(client.get("/api/paillier/key?bitLength=" + bitLength, PaillierEncryptionKeyResponse.class));
             }
 
             @Override
             public PaillierEncryptionKeyResponse getCurrentVersion() throws IOException, InterruptedException {
-                var request = HttpRequest.newBuilder()
-                        .GET()
-                        .uri(URI.create("http://" + ttpAddress + "/api/paillier/current-key"))
-                        .build();
-
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                return om.readValue(response.body(), PaillierEncryptionKeyResponse.class);
+                return TTPClient.await(client.get("/api/paillier/current-key", PaillierEncryptionKeyResponse.class));
             }
 
             @Override
             public PaillierEncryptionKeyResponse getKeyByVersion(String version) throws IOException, InterruptedException {
-                var request = HttpRequest.newBuilder()
-                        .GET()
-                        .uri(URI.create("http://" + ttpAddress + "/api/paillier/key/" + version))
-                        .build();
-
-                var response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
-                return om.readValue(response.body(), PaillierEncryptionKeyResponse.class);
+                return TTPClient.await(getKeyByVersionAsync(version));
             }
 
             @Override
             public PaillierDecryptResponse decrypt(PaillierDecryptRequest decryptRequest) throws IOException, InterruptedException {
-                var httpRequest = HttpRequest.newBuilder()
-                        .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofString(om.writeValueAsString(decryptRequest)))
-                        .uri(URI.create("http://" + ttpAddress + "/api/paillier/decrypt"))
-                        .build();
-
-                var response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
-                return om.readValue(response.body(), PaillierDecryptResponse.class);
+                return TTPClient.await(decryptAsync(decryptRequest));
+            }
+
+            @Override
+            public PaillierDecryptAllResponse decryptAll(PaillierDecryptAllRequest decryptRequest) throws IOException, InterruptedException {
+                return TTPClient.await(decryptAllAsync(decryptRequest));
+            }
+
+            @Override
+            public CompletableFuture<PaillierEncryptionKeyResponse> getKeyByVersionAsync(String version) {
+                return client.get("/api/paillier/key/" + version, PaillierEncryptionKeyResponse.class);
+            }
+
+            @Override
+            public CompletableFuture<PaillierDecryptResponse> decryptAsync(PaillierDecryptRequest decryptRequest) {
+                return client.post("/api/paillier/decrypt", decryptRequest, PaillierDecryptResponse.class);
+            }
+
+            @Override
+            public CompletableFuture<PaillierDecryptAllResponse> decryptAllAsync(PaillierDecryptAllRequest decryptRequest) {
+                return client.post("/api/paillier/decryptAll", decryptRequest, PaillierDecryptAllResponse.class);
             }
         };
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,133 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+// Asynchronous JSON client for the TTP - requests are pipelined over sendAsync instead of waiting for each round trip
+//
+// at most maxInFlight requests are outstanding, one more is queued and sent once a response comes in, the caller
+// never blocks; every request fails with an HttpTimeoutException if it isn't answered within the deadline after sending
+class TTPClient {
+
+    private final String ttpAddress;
+    private final Duration deadline;
+    private final int maxInFlight;
+    // guarded by this
+    private int inFlight = 0;
+    private final Queue<Runnable> queued = new ArrayDeque<>();
+    private final ObjectMapper om = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    TTPClient(String ttpAddress, int maxInFlight, Duration deadline) {
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        this.ttpAddress = ttpAddress;
+        this.deadline = deadline;
+        this.maxInFlight = maxInFlight;
+    }
+
+    <T> CompletableFuture<T> get(String path, Class<T> responseType) {
+        return send(request(path).GET().build(), responseType);
+    }
+
+    <T> CompletableFuture<T> post(String path, Object body, Class<T> responseType) {
+        String json;
+        try {
+            json = om.writeValueAsString(body);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        var request = request(path)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(json))
+                .build();
+        return send(request, responseType);
+    }
+
+    // waits for the response for the blocking API, failures are rethrown as they came
+    static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof InterruptedException)
+                throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create("http://" + ttpAddress + path))
+                .timeout(deadline);
+    }
+
+    private <T> CompletableFuture<T> send(HttpRequest request, Class<T> responseType) {
+        var response = new CompletableFuture<HttpResponse<String>>();
+        Runnable start = () -> {
+            try {
+                httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((r, t) -> {
+                    finished();
+                    if (t != null)
+                        response.completeExceptionally(t);
+                    else
+                        response.complete(r);
+                });
+            } catch (RuntimeException e) {
+                finished();
+                response.completeExceptionally(e);
+            }
+        };
+
+        boolean startNow;
+        synchronized (this) {
+            startNow = inFlight < maxInFlight;
+            if (startNow)
+                inFlight++;
+            else
+                queued.add(start);
+        }
+        if (startNow)
+            start.run();
+
+        return response.thenApply(r -> parse(request, r, responseType));
+    }
+
+    // a request is done, its slot goes to the oldest queued request
+    private void finished() {
+        Runnable next;
+        synchronized (this) {
+            next = queued.poll();
+            if (next == null)
+                inFlight--;
+        }
+        if (next != null)
+            next.run();
+    }
+
+    private <T> T parse(HttpRequest request, HttpResponse<String> response, Class<T> responseType) {
+        try {
+            if (response.statusCode() / 100 != 2)
+                throw new IOException("TTP answered " + response.statusCode() + " to " + request.uri() + ": " + response.body());
+            return om.readValue(response.body(), responseType);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -1,60 +1,123 @@
 package nl.medtechchain.chaincode.service.encryption.bfv;
 
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
+import nl.medtechchain.chaincode.service.encryption.CiphertextHandle;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-/** Minimal wrapper around the bfv_calc binary. */
+/**
+ * Minimal wrapper around the bfv_calc binary, operations run on a pool of long-lived bfv_calc workers.
+ * Ciphertext operands are any CharSequence, a {@link CiphertextHandle} is written to the worker without being decoded.
+ */
 public class BfvCliClient {
 
-    private final String binaryPath;
+    private final BfvWorkerPool workers;
+    // whether the binary has sumSlots, asked once
+    private volatile CompletableFuture<Boolean> sumSlots;
 
     public BfvCliClient(String binaryPath) {
         if (binaryPath == null || binaryPath.isBlank())
             throw new IllegalArgumentException("cli path missing");
-        this.binaryPath = binaryPath;
+        this.workers = new BfvWorkerPool(binaryPath, EncryptionDefaults.BFV_WORKERS, EncryptionDefaults.BFV_CALL_DEADLINE,
+                EncryptionDefaults.BFV_WORKER_STARTUP_DEADLINE, EncryptionDefaults.BFV_WORKER_HEALTH_CHECK_INTERVAL,
+                EncryptionDefaults.BFV_MAPPED_TRANSPORT_THRESHOLD);
+    }
+
+    BfvCliClient(BfvWorkerPool workers) {
+        this.workers = workers;
+    }
+
+    /** Stops the bfv_calc workers. */
+    public void close() {
+        workers.close();
+    }
+
+    public String addMany(List<? extends CharSequence> ciphertexts) throws IOException {
+        if (ciphertexts == null || ciphertexts.isEmpty())
+            throw new IllegalArgumentException("ciphertexts must not be empty");
+        return workers.call("addMany", ciphertexts);
     }
 
-    public String addMany(List<String> ciphertexts) throws IOException {
+    /** addMany on the next free worker, so several sums can run at once. */
+    public CompletableFuture<String> addManyAsync(List<? extends CharSequence> ciphertexts) {
         if (ciphertexts == null || ciphertexts.isEmpty())
             throw new IllegalArgumentException("ciphertexts must not be empty");
-        List<String> args = new ArrayList<>(ciphertexts.size() + 1);
-        args.add("addMany");
-        args.addAll(ciphertexts);
-        return SubprocessCall.executeBfv(binaryPath, args.toArray(String[]::new)).trim();
+        return workers.callAsync("addMany", ciphertexts);
     }
 
+    /** Σ(x - scalar)² over the ciphertexts, subtraction, squaring and sum in one bfv_calc call. */
+    public String sumSquaredDifferences(List<? extends CharSequence> ciphertexts, long scalar) throws IOException {
+        return workers.call("sumSqDiff", squaredDifferencesOperands(ciphertexts, scalar));
+    }
+
+    public CompletableFuture<String> sumSquaredDifferencesAsync(List<? extends CharSequence> ciphertexts, long scalar) {
+        return workers.callAsync("sumSqDiff", squaredDifferencesOperands(ciphertexts, scalar));
+    }
+
+    /** Σx, Σy, Σxy, Σx² and Σy² (in that order) of the pairs (xs[i], ys[i]) in one bfv_calc call. */
+    public CompletableFuture<List<String>> regressionMomentsAsync(List<? extends CharSequence> xs, List<? extends CharSequence> ys) {
+        if (xs == null || ys == null || xs.isEmpty() || xs.size() != ys.size())
+            throw new IllegalArgumentException("x and y ciphertexts must be non-empty and of the same length");
+        List<CharSequence> operands = new ArrayList<>(xs.size() * 2);
+        operands.addAll(xs);
+        operands.addAll(ys);
+        return workers.callAsync("moments", operands).thenApply(result -> {
+            List<String> moments = List.of(result.split("\\s+"));
+            if (moments.size() != 5)
+                throw new CompletionException(new IOException("bfv_calc moments returned " + moments.size() + " ciphertexts instead of 5"));
+            return moments;
+        });
+    }
+
+    /**
+     * Whether this bfv_calc has {@link #sumSlots}, older builds don't. The binary is asked once, a check that failed
+     * (e.g. bfv_calc didn't start) is repeated the next time.
+     */
+    public CompletableFuture<Boolean> hasSumSlotsAsync() {
+        var check = sumSlots;
+        if (check == null || check.isCompletedExceptionally())
+            sumSlots = check = workers.supportsAsync("sumSlots");
+        return check;
+    }
+
+    /** Rotate-and-sum: a ciphertext whose slots all hold the sum of the slots of the given one. */
+    public String sumSlots(String ciphertext) throws IOException {
+        if (ciphertext == null)
+            throw new IllegalArgumentException("Ciphertext cannot be null");
+        return workers.call("sumSlots", List.of(ciphertext));
+    }
+
+    private static List<CharSequence> squaredDifferencesOperands(List<? extends CharSequence> ciphertexts, long scalar) {
+        if (ciphertexts == null || ciphertexts.isEmpty())
+            throw new IllegalArgumentException("ciphertexts must not be empty");
+        List<CharSequence> operands = new ArrayList<>(ciphertexts.size() + 1);
+        operands.add(Long.toString(scalar));
+        operands.addAll(ciphertexts);
+        return operands;
+    }
     
     public String multiply(String ciphertext1, String ciphertext2) throws IOException {
         if (ciphertext1 == null || ciphertext2 == null) {
             throw new IllegalArgumentException("Ciphertexts cannot be null");
         }   
-        List<String> args = new ArrayList<>(3);
-        args.add("mul");
-        args.add(ciphertext1);
-        args.add(ciphertext2);
-        return SubprocessCall.executeBfv(binaryPath, args.toArray(String[]::new)).trim();
+        return workers.call("mul", List.of(ciphertext1, ciphertext2));
     }
 
     public String subtractScalar(String ciphertext, long scalar) throws IOException {
         if (ciphertext == null) {
             throw new IllegalArgumentException("Ciphertext cannot be null");
         }   
-        List<String> args = new ArrayList<>(3);
-        args.add("subtractScalar");
-        args.add(ciphertext);
-        args.add(Long.toString(scalar));
-        return SubprocessCall.executeBfv(binaryPath, args.toArray(String[]::new)).trim();
+        return workers.call("subtractScalar", List.of(ciphertext, Long.toString(scalar)));
     }    
 
     public String multiplyScalar(String ciphertext, long scalar) throws IOException {
         if (ciphertext == null) {
             throw new IllegalArgumentException("Ciphertext cannot be null");
         }   
-        List<String> args = new ArrayList<>(3);
-        args.add("mulScalar");
-        args.add(ciphertext);
-        args.add(Long.toString(scalar));
-        return SubprocessCall.executeBfv(binaryPath, args.toArray(String[]::new)).trim();
+        return workers.call("mulScalar", List.of(ciphertext, Long.toString(scalar)));
     }
-} 
\ No newline at end of file
+} 
@@ -0,0 +1,120 @@
+package nl.medtechchain.chaincode.service.encryption.bfv;
+
+import nl.medtechchain.chaincode.service.encryption.CiphertextHandle;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scratch file one bfv_calc worker shares with the chaincode, memory-mapped on both sides. Operands are written into it
+ * once, byte by byte from strings or in bulk from the off-heap buffer of a {@link CiphertextHandle}, and handed to the
+ * worker as (offset, length); the worker writes its result right behind them. Large ciphertexts so skip the writer and
+ * reader char conversions and the copies through the pipe.
+ *
+ * <p>Ciphertexts are base64 or decimal text, so every char is one byte. Not thread-safe, a worker serves one call at a
+ * time.
+ */
+class BfvScratchFile implements Closeable {
+
+    // enough for a few ciphertexts, grows to fit larger calls
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    private final Path path;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    // first byte behind the operands of the last write, where the worker puts the result
+    private int end = 0;
+
+    private BfvScratchFile(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+    }
+
+    static BfvScratchFile create() throws IOException {
+        Path path = Files.createTempFile("bfv-worker-", ".buf");
+        try {
+            return new BfvScratchFile(path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int end() {
+        return end;
+    }
+
+    /** Writes the operands one after the other from the start of the file, returns "&lt;offset&gt; &lt;length&gt;" per operand. */
+    List<String> write(List<? extends CharSequence> operands) throws IOException {
+        long total = 0;
+        for (CharSequence operand : operands)
+            total += operand.length();
+        // twice the operands, so a result as large as all of them still fits in the mapping
+        ensureCapacity(2 * total);
+
+        List<String> locations = new ArrayList<>(operands.size());
+        int offset = 0;
+        for (CharSequence operand : operands) {
+            if (operand instanceof CiphertextHandle) {
+                ((CiphertextHandle) operand).copyTo(buffer.duplicate().position(offset));
+                locations.add(offset + " " + operand.length());
+                offset += operand.length();
+                continue;
+            }
+            for (int i = 0; i < operand.length(); i++) {
+                char c = operand.charAt(i);
+                if (c > 0x7f)
+                    throw new IllegalArgumentException("Operands must be ASCII");
+                buffer.put(offset + i, (byte) c);
+            }
+            locations.add(offset + " " + operand.length());
+            offset += operand.length();
+        }
+        end = offset;
+        return locations;
+    }
+
+    /** Reads what the worker wrote, remapping if it had to grow the file. */
+    String read(int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || (long) offset + length > channel.size())
+            throw new IOException("bfv_calc worker pointed outside the scratch file");
+        if ((long) offset + length > buffer.capacity())
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+
+        byte[] bytes = new byte[length];
+        buffer.duplicate().position(offset).get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private void ensureCapacity(long size) throws IOException {
+        if (size <= buffer.capacity())
+            return;
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Operands too large for the scratch file");
+        // mapping past the end grows the file
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(Integer.highestOneBit((int) size - 1) * 2L, Integer.MAX_VALUE));
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            // only a stale temp file left behind
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package nl.medtechchain.chaincode.service.encryption.bfv;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One long-lived bfv_calc process in worker mode ({@code bfv_calc serve}).
+ * The crypto context and eval keys are loaded once at startup instead of once per operation.
+ *
+ * <p>Protocol, one request at a time over stdin/stdout:
+ * <pre>
+ *   request:  &lt;command&gt; &lt;n&gt;      followed by n operand lines (ciphertexts, scalars)
+ *   response: ok &lt;result&gt;         or  err &lt;message&gt;
+ * </pre>
+ * Commands are those of one-shot bfv_calc (addMany, mul, mulScalar, subtractScalar), sumSlots (rotate-and-sum of a
+ * packed ciphertext, every slot of the result holds the sum of all slots) and the fused ones:
+ * sumSqDiff takes the scalar m followed by the ciphertexts and returns Σ(x - m)²,
+ * moments takes n x ciphertexts followed by n y ciphertexts and returns Σx Σy Σxy Σx² Σy² separated by spaces.
+ * {@code ping 0} is the health check, the worker exits when stdin is closed. stderr goes to the chaincode log.
+ * {@code commands 0} answers the commands the binary knows separated by spaces; it came with sumSlots, a binary that
+ * answers {@code err} to it has none of the commands added since.
+ *
+ * <p>Large operands go through a {@link BfvScratchFile} instead of the pipe. Right after startup the worker gets
+ * {@code map 1} with the path of the file; a binary that answers {@code err} keeps the line transport. Then:
+ * <pre>
+ *   request:  &lt;command&gt; &lt;n&gt; @&lt;end&gt;  followed by n lines "&lt;offset&gt; &lt;length&gt;" of the operands in the file
+ *   response: ok @&lt;length&gt;          the result is in the file at [end, end + length), the worker may grow the file
+ * </pre>
+ */
+class BfvWorker implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(BfvWorker.class.getName());
+
+    // kills workers that don't answer in time, the blocked read then fails
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "bfv-worker-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Process process;
+    private final BufferedWriter stdin;
+    private final BufferedReader stdout;
+    private long lastUsed = System.nanoTime();
+    // null if the binary has no mapped transport
+    private BfvScratchFile scratch;
+    // operand characters from which a call goes through the scratch file
+    private final long mappedThreshold;
+
+    private BfvWorker(Process process, long mappedThreshold) {
+        this.process = process;
+        this.mappedThreshold = mappedThreshold;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Starts a worker and waits until it answers a ping, then sets up the mapped transport if the binary has it. */
+    static BfvWorker start(String cliBinary, Duration startupDeadline, long mappedThreshold) throws IOException {
+        Path binPath = Path.of(cliBinary).toAbsolutePath();
+        Process process = new ProcessBuilder(binPath.toString(), "serve")
+                .directory(binPath.getParent().toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        var worker = new BfvWorker(process, mappedThreshold);
+        try {
+            worker.call("ping", List.of(), startupDeadline);
+            worker.map(startupDeadline);
+        } catch (IOException e) {
+            worker.close();
+            throw new IOException("bfv_calc worker did not start: " + e.getMessage(), e);
+        }
+        return worker;
+    }
+
+    private void map(Duration deadline) throws IOException {
+        BfvScratchFile file;
+        try {
+            file = BfvScratchFile.create();
+        } catch (IOException e) {
+            logger.warning("No scratch file for the bfv_calc worker, using the pipe: " + e.getMessage());
+            return;
+        }
+        try {
+            request("map 1", List.of(file.path().toString()), "map", deadline);
+            scratch = file;
+        } catch (CallFailedException e) {
+            // a bfv_calc without the mapped transport
+            file.close();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs one operation. A {@link CallFailedException} means bfv_calc rejected the request and the worker is still
+     * usable, any other IOException means the worker is broken.
+     */
+    String call(String command, List<? extends CharSequence> operands, Duration deadline) throws IOException {
+        if (scratch == null || operands.isEmpty() || length(operands) < mappedThreshold)
+            return request(command + " " + operands.size(), operands, command, deadline);
+
+        var locations = scratch.write(operands);
+        int end = scratch.end();
+        String result = request(command + " " + operands.size() + " @" + end, locations, command, deadline);
+        if (!result.startsWith("@"))
+            return result;
+        try {
+            return scratch.read(end, Integer.parseInt(result.substring(1)));
+        } catch (NumberFormatException e) {
+            throw new IOException("bfv_calc worker sent an unexpected response to " + command);
+        }
+    }
+
+    private static long length(List<? extends CharSequence> operands) {
+        long length = 0;
+        for (CharSequence operand : operands)
+            length += operand.length();
+        return length;
+    }
+
+    // one request line and its operand lines, the result of an ok response
+    private String request(String header, List<? extends CharSequence> lines, String command, Duration deadline) throws IOException {
+        var watchdog = WATCHDOG.schedule(process::destroyForcibly, deadline.toMillis(), TimeUnit.MILLISECONDS);
+        String response;
+        try {
+            stdin.write(header);
+            stdin.newLine();
+            for (CharSequence line : lines) {
+                stdin.append(line);
+                stdin.newLine();
+            }
+            stdin.flush();
+            response = stdout.readLine();
+        } finally {
+            watchdog.cancel(false);
+            lastUsed = System.nanoTime();
+        }
+
+        if (response == null)
+            throw new IOException("bfv_calc worker exited or missed the " + deadline.toSeconds() + "s deadline during " + command);
+        if (response.startsWith("ok "))
+            return response.substring(3).trim();
+        if (response.startsWith("err "))
+            throw new CallFailedException("bfv_calc " + command + " failed: " + response.substring(4).trim());
+        throw new IOException("bfv_calc worker sent an unexpected response to " + command);
+    }
+
+    /** Alive, and if it sat idle longer than the interval, answers a ping. */
+    boolean isHealthy(Duration checkInterval, Duration deadline) {
+        if (!process.isAlive())
+            return false;
+        if (System.nanoTime() - lastUsed < checkInterval.toNanos())
+            return true;
+
+        try {
+            call("ping", List.of(), deadline);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        process.destroyForcibly();
+        if (scratch != null)
+            scratch.close();
+    }
+
+    /** bfv_calc answered with an error, the worker itself is fine. */
+    static class CallFailedException extends IOException {
+        CallFailedException(String message) {
+            super(message);
+        }
+    }
+}
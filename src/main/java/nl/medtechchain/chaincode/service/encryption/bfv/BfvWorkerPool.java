@@ -0,0 +1,196 @@
+package nl.medtechchain.chaincode.service.encryption.bfv;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Up to {@code size} bfv_calc workers, started on demand and reused for every operation.
+ * A worker that crashes or hangs is thrown away and the operation is retried once on a fresh one (operations have no
+ * side effects). Idle workers are pinged before reuse if they have been idle for a while.
+ *
+ * <p>If the binary has no worker mode (the first worker never answers its ping), every operation falls back to its
+ * own bfv_calc process through {@link SubprocessCall}.
+ *
+ * <p>{@link #close()} stops the workers and the caller threads, the pool can't be used afterwards.
+ */
+class BfvWorkerPool {
+
+    private static final Logger logger = Logger.getLogger(BfvWorkerPool.class.getName());
+
+    private final String cliBinary;
+    private final Duration callDeadline;
+    private final Duration startupDeadline;
+    private final Duration healthCheckInterval;
+    private final long mappedThreshold;
+
+    // one permit per worker, so at most size workers exist
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<BfvWorker> idle = new LinkedBlockingQueue<>();
+    // runs callAsync operations, one thread per worker so none of them waits for a permit
+    private final ThreadPoolExecutor executor;
+
+    private volatile boolean started = false;
+    private volatile boolean workerMode = true;
+    private volatile boolean closed = false;
+
+    BfvWorkerPool(String cliBinary, int size, Duration callDeadline, Duration startupDeadline, Duration healthCheckInterval,
+                  long mappedThreshold) {
+        if (size < 1)
+            throw new IllegalArgumentException("size must be at least 1");
+        this.cliBinary = cliBinary;
+        this.permits = new Semaphore(size);
+        this.callDeadline = callDeadline;
+        this.startupDeadline = startupDeadline;
+        this.healthCheckInterval = healthCheckInterval;
+        this.mappedThreshold = mappedThreshold;
+        this.executor = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            var thread = new Thread(r, "bfv-worker-caller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Like {@link #call}, without blocking the caller; failures complete the future with the IOException. */
+    CompletableFuture<String> callAsync(String command, List<? extends CharSequence> operands) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return call(command, operands);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /** Runs command with the operands on a worker and returns its result. */
+    String call(String command, List<? extends CharSequence> operands) throws IOException {
+        var result = onWorker(command, operands);
+        return result != null ? result : oneShot(command, operands);
+    }
+
+    /**
+     * Whether the workers know command, from the list {@code commands} answers (see {@link BfvWorker}).
+     * A binary that answers err to {@code commands}, or has no worker mode, predates every command that came after it.
+     */
+    boolean supports(String command) throws IOException {
+        String commands;
+        try {
+            commands = onWorker("commands", List.of());
+        } catch (BfvWorker.CallFailedException e) {
+            logger.info("bfv_calc doesn't list its commands, so it has no " + command + ": " + e.getMessage());
+            return false;
+        }
+        return commands != null && Arrays.asList(commands.trim().split("\\s+")).contains(command);
+    }
+
+    /** Like {@link #supports}, without blocking the caller. */
+    CompletableFuture<Boolean> supportsAsync(String command) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return supports(command);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    // the result of command on a worker, null if the binary has no worker mode
+    private String onWorker(String command, List<? extends CharSequence> operands) throws IOException {
+        if (closed)
+            throw new IOException("bfv_calc worker pool is closed");
+        if (!workerMode)
+            return null;
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a bfv_calc worker", e);
+        }
+
+        try {
+            for (int attempt = 0; ; attempt++) {
+                var worker = acquire();
+                if (worker == null)
+                    return null;
+
+                try {
+                    var result = worker.call(command, operands, callDeadline);
+                    release(worker);
+                    return result;
+                } catch (BfvWorker.CallFailedException e) {
+                    release(worker);
+                    throw e;
+                } catch (IOException e) {
+                    worker.close();
+                    if (attempt > 0)
+                        throw e;
+                    logger.warning("bfv_calc worker failed, retrying on a new one: " + e.getMessage());
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /** Stops the idle workers and the caller threads, workers busy with a call are stopped once it returns. */
+    void close() {
+        closed = true;
+        closeIdle();
+        executor.shutdown();
+    }
+
+    // a worker that comes back after close() is stopped right away
+    private void release(BfvWorker worker) {
+        idle.add(worker);
+        if (closed)
+            closeIdle();
+    }
+
+    private void closeIdle() {
+        BfvWorker worker;
+        while ((worker = idle.poll()) != null)
+            worker.close();
+    }
+
+    // a healthy idle worker or a new one, null if the binary turned out to have no worker mode
+    private BfvWorker acquire() throws IOException {
+        BfvWorker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.isHealthy(healthCheckInterval, startupDeadline))
+                return worker;
+            logger.warning("Replacing unhealthy bfv_calc worker");
+            worker.close();
+        }
+
+        try {
+            worker = BfvWorker.start(cliBinary, startupDeadline, mappedThreshold);
+            started = true;
+            return worker;
+        } catch (IOException e) {
+            if (started)
+                throw e;
+            logger.warning("bfv_calc has no worker mode, running one process per operation: " + e.getMessage());
+            workerMode = false;
+            return null;
+        }
+    }
+
+    private String oneShot(String command, List<? extends CharSequence> operands) throws IOException {
+        List<String> args = new ArrayList<>(operands.size() + 1);
+        args.add(command);
+        for (CharSequence operand : operands)
+            args.add(operand.toString());
+        return SubprocessCall.executeBfv(cliBinary, args.toArray(String[]::new)).trim();
+    }
+}
@@ -0,0 +1,17 @@
+package nl.medtechchain.chaincode.service.encryption.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request DTO for BFV batch decryption
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BfvDecryptAllRequest {
+    private List<String> ciphertexts;
+}
@@ -0,0 +1,17 @@
+package nl.medtechchain.chaincode.service.encryption.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Response DTO for BFV batch decryption, plaintexts in request order
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BfvDecryptAllResponse {
+    private List<String> plaintexts;
+}
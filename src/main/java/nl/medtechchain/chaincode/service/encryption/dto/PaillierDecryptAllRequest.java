@@ -0,0 +1,18 @@
+package nl.medtechchain.chaincode.service.encryption.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Request DTO for Paillier batch decryption, all ciphertexts share one key version
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PaillierDecryptAllRequest {
+    private List<String> ciphertexts;
+    private String version;
+}
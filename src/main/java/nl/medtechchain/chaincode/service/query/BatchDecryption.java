@@ -0,0 +1,135 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.chaincode.service.encryption.EncryptionService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+// Collects ciphertexts that are decrypted one value at a time by the queries (histogram bins, unique values, ...)
+// and decrypts them BATCH_SIZE at a time per key version, each value is handed to its callback once its batch is decrypted
+//
+// full batches are sent off asynchronously and scanning continues while the TTP works on them, up to MAX_IN_FLIGHT
+// batches are outstanding; results are collected as they arrive but callbacks always run on the calling thread,
+// in the order the batches were sent
+//
+// callbacks run out of order with respect to the plaintext values, so this only fits aggregations that don't care
+// about order; call flush() before reading the aggregate
+public class BatchDecryption {
+
+    public static final int BATCH_SIZE = 256;
+
+    static final int MAX_IN_FLIGHT = 8;
+
+    private final Map<String, Pending<Long>> longs = new HashMap<>();
+    private final Map<String, Pending<String>> strings = new HashMap<>();
+    private final Map<String, Pending<Boolean>> bools = new HashMap<>();
+    private final Deque<InFlight<?>> inFlight = new ArrayDeque<>();
+
+    private final EncryptionService encryptionService;
+
+    public BatchDecryption(EncryptionService encryptionService) {
+        this.encryptionService = encryptionService;
+    }
+
+    public void decryptLong(String ciphertext, String version, Consumer<Long> then) {
+        longs.computeIfAbsent(version, v -> new Pending<>(v, encryptionService()::decryptLongBatchAsync)).add(ciphertext, then);
+    }
+
+    public void decryptString(String ciphertext, String version, Consumer<String> then) {
+        strings.computeIfAbsent(version, v -> new Pending<>(v, encryptionService()::decryptStringBatchAsync)).add(ciphertext, then);
+    }
+
+    public void decryptBool(String ciphertext, String version, Consumer<Boolean> then) {
+        bools.computeIfAbsent(version, v -> new Pending<>(v, encryptionService()::decryptBoolBatchAsync)).add(ciphertext, then);
+    }
+
+    // decrypts whatever is still pending and waits for every batch in flight
+    public void flush() {
+        longs.values().forEach(Pending::send);
+        strings.values().forEach(Pending::send);
+        bools.values().forEach(Pending::send);
+        while (!inFlight.isEmpty())
+            inFlight.poll().complete();
+    }
+
+    private void sent(InFlight<?> batch) {
+        inFlight.add(batch);
+        while (!inFlight.isEmpty() && (inFlight.size() > MAX_IN_FLIGHT || inFlight.peek().isDone()))
+            inFlight.poll().complete();
+    }
+
+    private EncryptionService encryptionService() {
+        if (encryptionService == null) {
+            throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
+                    "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
+        }
+        return encryptionService;
+    }
+
+    private class Pending<T> {
+        private final String version;
+        private final BiFunction<List<String>, String, CompletableFuture<List<T>>> decrypt;
+        private final List<String> ciphertexts = new ArrayList<>();
+        private final List<Consumer<T>> callbacks = new ArrayList<>();
+
+        Pending(String version, BiFunction<List<String>, String, CompletableFuture<List<T>>> decrypt) {
+            this.version = version;
+            this.decrypt = decrypt;
+        }
+
+        void add(String ciphertext, Consumer<T> then) {
+            ciphertexts.add(ciphertext);
+            callbacks.add(then);
+            if (ciphertexts.size() >= BATCH_SIZE)
+                send();
+        }
+
+        void send() {
+            if (ciphertexts.isEmpty())
+                return;
+
+            var plaintexts = decrypt.apply(new ArrayList<>(ciphertexts), version);
+            var batch = new InFlight<>(plaintexts, new ArrayList<>(callbacks));
+            ciphertexts.clear();
+            callbacks.clear();
+            sent(batch);
+        }
+    }
+
+    private static class InFlight<T> {
+        private final CompletableFuture<List<T>> plaintexts;
+        private final List<Consumer<T>> callbacks;
+
+        InFlight(CompletableFuture<List<T>> plaintexts, List<Consumer<T>> callbacks) {
+            this.plaintexts = plaintexts;
+            this.callbacks = callbacks;
+        }
+
+        boolean isDone() {
+            return plaintexts.isDone();
+        }
+
+        // waits for the batch if needed and hands out its values
+        void complete() {
+            List<T> values;
+            try {
+                values = plaintexts.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+
+            for (int i = 0; i < callbacks.size(); i++)
+                callbacks.get(i).accept(values.get(i));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.ByteString;
+import nl.medtechchain.chaincode.service.encryption.CiphertextHandle;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Off-heap storage for the ciphertexts a query run buffers before adding them up
+// a BFV ciphertext is hundreds of KB, thousands of them as Strings fill the heap and cause full GCs. Their bytes are
+// copied from the protobuf field into direct ByteBuffer slabs instead, a CiphertextList hands them to the encryption
+// service as CiphertextHandles: BFV writes them from the slabs into the bfv_calc scratch file, other schemes decode them
+// slabs come from a pool shared by all runs and go back to it when a list is cleared or the run closes its arena,
+// so a run's ciphertexts are released the moment it ends and the next run reuses the memory
+public class CiphertextArena implements AutoCloseable {
+
+    static final int SLAB_SIZE = 4 << 20;
+    // slabs kept for later runs, direct memory above this is left to the GC
+    private static final int POOLED_SLABS = 64;
+
+    private static final ConcurrentLinkedDeque<ByteBuffer> POOL = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private final List<CiphertextList> lists = new ArrayList<>();
+    private boolean closed = false;
+
+    public CiphertextList newList() {
+        if (closed)
+            throw new IllegalStateException("Ciphertext arena is closed");
+        var list = new CiphertextList();
+        lists.add(list);
+        return list;
+    }
+
+    // gives every slab of the run back to the pool, lists can't be used afterwards
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        lists.forEach(CiphertextList::clear);
+        lists.clear();
+        closed = true;
+    }
+
+    static int pooledSlabs() {
+        return pooled.get();
+    }
+
+    private static ByteBuffer allocate(int size) {
+        // larger ciphertexts get a buffer of their own that isn't pooled
+        if (size > SLAB_SIZE)
+            return ByteBuffer.allocateDirect(size);
+        var slab = POOL.poll();
+        if (slab == null)
+            return ByteBuffer.allocateDirect(SLAB_SIZE);
+        pooled.decrementAndGet();
+        return slab;
+    }
+
+    private static void release(ByteBuffer slab) {
+        if (slab.capacity() != SLAB_SIZE)
+            return;
+        if (pooled.incrementAndGet() > POOLED_SLABS) {
+            pooled.decrementAndGet();
+            return;
+        }
+        slab.clear();
+        POOL.push(slab);
+    }
+
+    // Ciphertexts in slabs of the arena, appended one after the other
+    // reads may come from other threads (e.g. the bfv_calc callers) while nothing is added
+    public class CiphertextList extends AbstractList<CiphertextHandle> implements RandomAccess {
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        // slab index, offset and length of every entry
+        private int[] entries = new int[3 * 64];
+        private int size = 0;
+
+        private CiphertextList() {
+        }
+
+        public void add(ByteString ciphertext) {
+            var slab = slabFor(ciphertext.size());
+            int offset = slab.position();
+            ciphertext.copyTo(slab);
+            append(slabs.size() - 1, offset, ciphertext.size());
+        }
+
+        public void add(String ciphertext) {
+            byte[] bytes = ciphertext.getBytes(StandardCharsets.UTF_8);
+            var slab = slabFor(bytes.length);
+            int offset = slab.position();
+            slab.put(bytes);
+            append(slabs.size() - 1, offset, bytes.length);
+        }
+
+        // valid until the list is cleared
+        @Override
+        public CiphertextHandle get(int index) {
+            Objects.checkIndex(index, size);
+            return new Handle(slabs.get(entries[3 * index]), entries[3 * index + 1], entries[3 * index + 2]);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        // the slabs go back to the pool right away
+        @Override
+        public void clear() {
+            slabs.forEach(CiphertextArena::release);
+            slabs.clear();
+            size = 0;
+            modCount++;
+        }
+
+        private ByteBuffer slabFor(int length) {
+            if (closed)
+                throw new IllegalStateException("Ciphertext arena is closed");
+            if (slabs.isEmpty() || slabs.get(slabs.size() - 1).remaining() < length)
+                slabs.add(allocate(length));
+            return slabs.get(slabs.size() - 1);
+        }
+
+        private void append(int slab, int offset, int length) {
+            if (3 * size == entries.length)
+                entries = Arrays.copyOf(entries, 2 * entries.length);
+            entries[3 * size] = slab;
+            entries[3 * size + 1] = offset;
+            entries[3 * size + 2] = length;
+            size++;
+            modCount++;
+        }
+    }
+
+    // (slab, offset, length) of one entry, reads go through absolute gets and duplicates so threads can share the slab
+    private static final class Handle implements CiphertextHandle {
+        private final ByteBuffer slab;
+        private final int offset;
+        private final int length;
+
+        private Handle(ByteBuffer slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void copyTo(ByteBuffer target) {
+            target.put(slab.duplicate().limit(offset + length).position(offset));
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            Objects.checkIndex(index, length);
+            return (char) (slab.get(offset + index) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            slab.duplicate().position(offset).get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
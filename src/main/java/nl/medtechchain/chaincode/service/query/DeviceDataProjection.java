@@ -0,0 +1,128 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.WireFormat;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+import nl.medtechchain.proto.query.Query;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static nl.medtechchain.chaincode.util.StateEncodingOps.stateInput;
+
+// Decodes only the parts of a stored DeviceDataAsset a query looks at: timestamp, key_version and the device data
+// fields that are a target or a filter of the query, everything else (config_id, ciphertexts of other fields) is skipped by tag
+//
+// The timestamp is field 1 and comes first in every serialized asset, so assets outside the query time range are
+// rejected before anything else is read
+public class DeviceDataProjection {
+
+    private static final int TIMESTAMP_TAG = WireFormat.makeTag(DeviceDataAsset.TIMESTAMP_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int DEVICE_DATA_TAG = WireFormat.makeTag(DeviceDataAsset.DEVICE_DATA_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+    private static final int KEY_VERSION_TAG = WireFormat.makeTag(DeviceDataAsset.KEY_VERSION_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+
+    private static final int SECONDS_TAG = WireFormat.makeTag(Timestamp.SECONDS_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+    private static final int NANOS_TAG = WireFormat.makeTag(Timestamp.NANOS_FIELD_NUMBER, WireFormat.WIRETYPE_VARINT);
+
+    private final long startSeconds;
+    private final long endSeconds;
+    // projected device data fields by tag
+    private final Map<Integer, Descriptors.FieldDescriptor> fields = new HashMap<>();
+
+    public DeviceDataProjection(Query query) {
+        this.startSeconds = query.getStartTime().getSeconds();
+        this.endSeconds = query.getEndTime().getSeconds();
+
+        project(query.getTargetField());
+        project(query.getXTargetField());
+        project(query.getYTargetField());
+        for (Filter filter : query.getFiltersList())
+            project(filter.getField());
+    }
+
+    // null if the asset lies outside the query time range
+    public DeviceDataAsset decode(byte[] value) throws InvalidProtocolBufferException {
+        try {
+            return decode(stateInput(value));
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+    }
+
+    private DeviceDataAsset decode(CodedInputStream in) throws IOException {
+        var asset = DeviceDataAsset.newBuilder();
+        boolean timestampSeen = false;
+
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag == TIMESTAMP_TAG) {
+                var timestamp = readTimestamp(in);
+                if (!inRange(timestamp.getSeconds()))
+                    return null;
+                asset.setTimestamp(timestamp);
+                timestampSeen = true;
+            } else if (tag == KEY_VERSION_TAG) {
+                asset.setKeyVersion(in.readStringRequireUtf8());
+            } else if (tag == DEVICE_DATA_TAG && !fields.isEmpty()) {
+                int limit = in.pushLimit(in.readRawVarint32());
+                readDeviceData(in, asset.getDeviceDataBuilder());
+                in.popLimit(limit);
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+
+        // an asset without timestamp is at epoch 0, like the default instance
+        if (!timestampSeen && !inRange(0))
+            return null;
+        return asset.build();
+    }
+
+    private void readDeviceData(CodedInputStream in, DeviceDataAsset.DeviceData.Builder data) throws IOException {
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            var field = fields.get(tag);
+            if (field != null)
+                in.readMessage(data.getFieldBuilder(field), ExtensionRegistryLite.getEmptyRegistry());
+            else if (!in.skipField(tag))
+                break;
+        }
+    }
+
+    // read by hand, a projection usually rejects the asset right after it
+    private Timestamp readTimestamp(CodedInputStream in) throws IOException {
+        long seconds = 0;
+        int nanos = 0;
+
+        int limit = in.pushLimit(in.readRawVarint32());
+        for (int tag = in.readTag(); tag != 0; tag = in.readTag()) {
+            if (tag == SECONDS_TAG)
+                seconds = in.readInt64();
+            else if (tag == NANOS_TAG)
+                nanos = in.readInt32();
+            else if (!in.skipField(tag))
+                break;
+        }
+        in.popLimit(limit);
+
+        return Timestamp.newBuilder().setSeconds(seconds).setNanos(nanos).build();
+    }
+
+    private boolean inRange(long seconds) {
+        return seconds >= startSeconds && seconds <= endSeconds;
+    }
+
+    private void project(String fieldName) {
+        if (fieldName.isEmpty())
+            return;
+        var field = DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(fieldName);
+        if (field != null)
+            fields.put(WireFormat.makeTag(field.getNumber(), WireFormat.WIRETYPE_LENGTH_DELIMITED), field);
+    }
+}
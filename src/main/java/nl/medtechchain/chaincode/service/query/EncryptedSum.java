@@ -0,0 +1,102 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.ByteString;
+import nl.medtechchain.chaincode.service.encryption.EncryptionService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Running homomorphic sum of ciphertexts that share a key version
+// values are buffered and folded into one partial sum every FOLD_THRESHOLD ciphertexts,
+// so memory stays bounded however many assets get streamed through
+// with an arena the buffered ciphertexts are kept off the heap and folded as handles, see CiphertextArena
+public class EncryptedSum {
+
+    private static final int FOLD_THRESHOLD = 1000;
+
+    private final EncryptionService encryptionService;
+    private final String version;
+    // exactly one of them buffers the ciphertexts
+    private final List<String> pending;
+    private final CiphertextArena.CiphertextList offHeap;
+    private long count = 0;
+
+    public EncryptedSum(EncryptionService encryptionService, String version) {
+        this.encryptionService = encryptionService;
+        this.version = version;
+        this.pending = new ArrayList<>();
+        this.offHeap = null;
+    }
+
+    public EncryptedSum(EncryptionService encryptionService, String version, CiphertextArena arena) {
+        this.encryptionService = encryptionService;
+        this.version = version;
+        this.pending = null;
+        this.offHeap = arena.newList();
+    }
+
+    public void add(String ciphertext) {
+        if (offHeap != null)
+            offHeap.add(ciphertext);
+        else
+            pending.add(ciphertext);
+        added();
+    }
+
+    // straight from the protobuf field, without a String in between if the sum has an arena
+    public void add(ByteString ciphertext) {
+        if (offHeap != null)
+            offHeap.add(ciphertext);
+        else
+            pending.add(ciphertext.toStringUtf8());
+        added();
+    }
+
+    private void added() {
+        count++;
+        if (buffered() >= FOLD_THRESHOLD)
+            fold();
+    }
+
+    // number of ciphertexts added so far
+    public long count() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // the summed ciphertext, null if nothing was added
+    public String ciphertext() {
+        fold();
+        if (buffered() == 0)
+            return null;
+        return offHeap != null ? offHeap.get(0).toString() : pending.get(0);
+    }
+
+    public long decrypt() {
+        if (isEmpty())
+            return 0;
+        return encryptionService.decryptLong(ciphertext(), version);
+    }
+
+    private int buffered() {
+        return offHeap != null ? offHeap.size() : pending.size();
+    }
+
+    private void fold() {
+        if (buffered() < 2)
+            return;
+        if (offHeap != null) {
+            // the encryption service reads the handles while the buffer stays untouched
+            String partial = encryptionService.homomorphicAddHandles(offHeap, version);
+            offHeap.clear();
+            offHeap.add(partial);
+        } else {
+            String partial = encryptionService.homomorphicAdd(new ArrayList<>(pending), version);
+            pending.clear();
+            pending.add(partial);
+        }
+    }
+}
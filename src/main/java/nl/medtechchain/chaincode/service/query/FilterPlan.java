@@ -0,0 +1,207 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+// Evaluates the filters of a query cheapest and most selective first, in two phases per asset:
+// first every filter on a plaintext value, then - only if none of those rejected the asset - the encrypted ones,
+// so a decryption round trip is never spent on an asset a plaintext filter throws out anyway
+//
+// Filters are ranked by cost / rejection rate, the rejection rate is observed during the scan and the order is
+// refreshed every REPLAN_INTERVAL assets; not thread safe, a plan belongs to a single scan
+//
+// filter() runs the encrypted phase over a whole window of assets: per filter the ciphertexts of every asset still
+// in the running are decrypted in one batch per key version instead of one TTP round trip each, the batches of
+// different key versions are in flight at the same time
+public class FilterPlan implements Predicate<DeviceDataAsset> {
+
+    private static final Logger logger = Logger.getLogger(FilterPlan.class.getName());
+
+    static final int REPLAN_INTERVAL = 64;
+
+    // a decryption costs about a TTP round trip, far more than any plaintext comparison
+    static final int DECRYPTION_COST = 1000;
+
+    private final List<PlannedFilter> filters;
+    private long assets = 0;
+
+    FilterPlan(List<PlannedFilter> filters) {
+        this.filters = new ArrayList<>(filters);
+        replan();
+    }
+
+    @Override
+    public boolean test(DeviceDataAsset asset) {
+        return !filter(List.of(asset)).isEmpty();
+    }
+
+    // the matching assets of the window, in window order
+    public List<DeviceDataAsset> filter(List<DeviceDataAsset> window) {
+        long before = assets;
+        assets += window.size();
+        if (assets / REPLAN_INTERVAL != before / REPLAN_INTERVAL)
+            replan();
+
+        // plaintext phase, per asset the filters that still need a decryption
+        var survivors = new ArrayList<DeviceDataAsset>(window.size());
+        var deferred = new ArrayList<boolean[]>(window.size());
+        for (DeviceDataAsset asset : window) {
+            var encrypted = plain(asset);
+            if (encrypted != null) {
+                survivors.add(asset);
+                deferred.add(encrypted);
+            }
+        }
+
+        // encrypted phase, filter by filter so an asset rejected by one is not decrypted for the next
+        var alive = new boolean[survivors.size()];
+        Arrays.fill(alive, true);
+        for (int f = 0; f < filters.size(); f++) {
+            var byVersion = new LinkedHashMap<String, List<Integer>>();
+            for (int i = 0; i < survivors.size(); i++)
+                if (alive[i] && deferred.get(i)[f])
+                    byVersion.computeIfAbsent(survivors.get(i).getKeyVersion(), v -> new ArrayList<>()).add(i);
+
+            var filter = filters.get(f);
+            var batches = new ArrayList<DecryptionBatch>(byVersion.size());
+            for (Map.Entry<String, List<Integer>> entry : byVersion.entrySet()) {
+                var ciphertexts = new ArrayList<String>(entry.getValue().size());
+                for (int i : entry.getValue())
+                    ciphertexts.add(filter.check.ciphertext(survivors.get(i)));
+                batches.add(new DecryptionBatch(entry.getKey(), entry.getValue(), ciphertexts, filter.send(ciphertexts, entry.getKey())));
+            }
+
+            for (DecryptionBatch batch : batches) {
+                var matches = filter.decrypted(batch);
+                for (int j = 0; j < batch.indices.size(); j++)
+                    alive[batch.indices.get(j)] = filter.record(matches[j]);
+            }
+        }
+
+        var matching = new ArrayList<DeviceDataAsset>(survivors.size());
+        for (int i = 0; i < survivors.size(); i++)
+            if (alive[i])
+                matching.add(survivors.get(i));
+        return matching;
+    }
+
+    // null if a plaintext filter rejects the asset, otherwise which filters (by position) are left to decrypt
+    private boolean[] plain(DeviceDataAsset asset) {
+        var encrypted = new boolean[filters.size()];
+        for (int f = 0; f < filters.size(); f++) {
+            var filter = filters.get(f);
+            int result = filter.plain(asset);
+            if (result == FilterService.FieldCheck.ENCRYPTED)
+                encrypted[f] = true;
+            else if (!filter.record(result == FilterService.FieldCheck.MATCH))
+                return null;
+        }
+        return encrypted;
+    }
+
+    List<Filter> order() {
+        var order = new ArrayList<Filter>(filters.size());
+        for (PlannedFilter filter : filters)
+            order.add(filter.filter);
+        return order;
+    }
+
+    private void replan() {
+        filters.sort(Comparator.comparingDouble(PlannedFilter::rank));
+    }
+
+    // ciphertexts of one key version sent for one filter, indices point into the window survivors
+    private static class DecryptionBatch {
+        private final String version;
+        private final List<Integer> indices;
+        private final List<String> ciphertexts;
+        private final CompletableFuture<boolean[]> matches;
+
+        DecryptionBatch(String version, List<Integer> indices, List<String> ciphertexts, CompletableFuture<boolean[]> matches) {
+            this.version = version;
+            this.indices = indices;
+            this.ciphertexts = ciphertexts;
+            this.matches = matches;
+        }
+    }
+
+    static class PlannedFilter {
+        private final Filter filter;
+        private final FilterService.FieldCheck check;
+        private final int cost;
+
+        private long evaluated = 0;
+        private long rejected = 0;
+        private long decrypted = 0;
+
+        PlannedFilter(Filter filter, FilterService.FieldCheck check, int cost) {
+            this.filter = filter;
+            this.check = check;
+            this.cost = cost;
+        }
+
+        // expected cost per rejected asset, the rejection rate is smoothed so unseen filters start at 1/2
+        double rank() {
+            double rejectionRate = (rejected + 1.0) / (evaluated + 2.0);
+            double encryptedRate = evaluated == 0 ? 0 : (double) decrypted / evaluated;
+            return (cost + encryptedRate * DECRYPTION_COST) / rejectionRate;
+        }
+
+        private int plain(DeviceDataAsset asset) {
+            try {
+                return check.plain(asset);
+            } catch (Throwable t) {
+                logger.warning("Error checking filter: " + filter + ". " + t);
+                return FilterService.FieldCheck.NO_MATCH;
+            }
+        }
+
+        private CompletableFuture<boolean[]> send(List<String> ciphertexts, String version) {
+            decrypted += ciphertexts.size();
+            try {
+                return check.decrypted(ciphertexts, version);
+            } catch (Throwable t) {
+                return CompletableFuture.failedFuture(t);
+            }
+        }
+
+        // if the batch fails the values are decrypted one by one, so a single bad ciphertext only rejects its own asset
+        private boolean[] decrypted(DecryptionBatch batch) {
+            try {
+                return batch.matches.join();
+            } catch (Throwable t) {
+                if (batch.ciphertexts.size() == 1) {
+                    logger.warning("Error checking filter: " + filter + ". " + t);
+                    return new boolean[1];
+                }
+            }
+
+            var matches = new boolean[batch.ciphertexts.size()];
+            for (int i = 0; i < matches.length; i++) {
+                try {
+                    matches[i] = check.decrypted(List.of(batch.ciphertexts.get(i)), batch.version).join()[0];
+                } catch (Throwable t) {
+                    logger.warning("Error checking filter: " + filter + ". " + t);
+                }
+            }
+            return matches;
+        }
+
+        private boolean record(boolean match) {
+            evaluated++;
+            if (!match)
+                rejected++;
+            return match;
+        }
+    }
+}
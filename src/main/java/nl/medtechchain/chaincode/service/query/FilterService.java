@@ -1,16 +1,23 @@
 package nl.medtechchain.chaincode.service.query;
 
-import com.google.protobuf.Timestamp;
+import com.google.protobuf.Descriptors;
 import nl.medtechchain.chaincode.service.encryption.EncryptionService;
 import nl.medtechchain.proto.devicedata.DeviceCategory;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.devicedata.MedicalSpeciality;
 import nl.medtechchain.proto.query.Filter;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 // Handles filtering device data - works with both encrypted and plain fields
+//
+// Filters are compiled once per query into predicates: the field descriptor, the parsed enum constant and the operator
+// are resolved up front, per asset only the field value is read (and decrypted if needed) and compared
 public class FilterService {
 
     private static final Logger logger = Logger.getLogger(FilterService.class.getName());
@@ -26,191 +33,336 @@ public class FilterService {
     }
 
     public boolean checkFilter(DeviceDataAsset asset, Filter filter) {
-        try {
-            var descriptor = Optional.ofNullable(DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(filter.getField()));
-            if (descriptor.isEmpty())
-                throw new IllegalStateException("Field " + filter.getField() + " is not present in asset " + asset);
-
-            var value = asset.getDeviceData().getField(descriptor.get());
-            var keyVersion = asset.getKeyVersion();
-
-
-            switch (DeviceDataFieldTypeMapper.fromFieldName(filter.getField())) {
-                case STRING:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.STRING_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.StringField) value, filter.getStringFilter(), keyVersion);
-                case INTEGER:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.INTEGER_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.IntegerField) value, filter.getIntegerFilter(), keyVersion);
-                case TIMESTAMP:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.TIMESTAMP_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.TimestampField) value, filter.getTimestampFilter(), keyVersion);
-                case BOOL:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.BOOL_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.BoolField) value, filter.getBoolFilter(), keyVersion);
-                case DEVICE_CATEGORY:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.ENUM_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.DeviceCategoryField) value, filter.getEnumFilter(), keyVersion);
-                case MEDICAL_SPECIALITY:
-                    assert filter.getComparatorCase() == Filter.ComparatorCase.ENUM_FILTER;
-                    return check(filter.getField(), (DeviceDataAsset.MedicalSpecialityField) value, filter.getEnumFilter(), keyVersion);
+        return compile(filter).test(asset);
+    }
+
+    // all filters in one short-circuiting predicate, ordered by a FilterPlan: plaintext values are checked before
+    // anything is decrypted and the cheapest, most selective filters go first
+    // FilterPlan.filter checks many assets at once and decrypts their encrypted values in batches
+    public FilterPlan compile(List<Filter> filters) {
+        var planned = new ArrayList<FilterPlan.PlannedFilter>(filters.size());
+        for (Filter filter : filters)
+            planned.add(new FilterPlan.PlannedFilter(filter, check(filter), cost(filter)));
+        return new FilterPlan(planned);
+    }
+
+    // an asset that can't be checked (wrong field type, failed decryption, ...) doesn't match
+    public Predicate<DeviceDataAsset> compile(Filter filter) {
+        var check = check(filter);
+        return asset -> {
+            try {
+                int result = check.plain(asset);
+                if (result != FieldCheck.ENCRYPTED)
+                    return result == FieldCheck.MATCH;
+                return check.decrypted(List.of(check.ciphertext(asset)), asset.getKeyVersion()).join()[0];
+            } catch (Throwable t) {
+                logger.warning("Error checking filter: " + filter + ". " + t);
+                return false;
             }
+        };
+    }
+
+    // relative cost of comparing a plaintext value, decryption is accounted for by the plan
+    static int cost(Filter filter) {
+        if (filter.getComparatorCase() != Filter.ComparatorCase.STRING_FILTER)
+            return 1;
+        switch (filter.getStringFilter().getOperator()) {
+            case EQUALS:
+                return 1;
+            case STARTS_WITH:
+            case ENDS_WITH:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    // Per asset a filter first looks at the plaintext value, only if the value is encrypted it is decrypted in a second step,
+    // together with the encrypted values of other assets
+    interface FieldCheck {
+        int NO_MATCH = 0;
+        int MATCH = 1;
+        int ENCRYPTED = 2;
+
+        int plain(DeviceDataAsset asset);
+
+        // the ciphertext of a value plain() found ENCRYPTED
+        String ciphertext(DeviceDataAsset asset);
+
+        // match per ciphertext, all of them share the key version and are decrypted in one asynchronous batch
+        CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version);
+    }
 
-            return false;
+    private FieldCheck check(Filter filter) {
+        var descriptor = DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(filter.getField());
+        if (descriptor == null)
+            return never(filter, "Field " + filter.getField() + " is not present in device data");
+
+        try {
+            return check(filter, descriptor);
         } catch (Throwable t) {
-            logger.warning("Error checking filter: " + filter + ". " + t);
-            return false;
+            return never(filter, t.toString());
         }
     }
 
-    private boolean check(String name, DeviceDataAsset.StringField field, Filter.StringFilter filter, String keyVersion) {
-        String value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = encryptionService.decryptString(field.getEncrypted(), keyVersion);
-                break;
-            default:
-                return false;
+    private FieldCheck check(Filter filter, Descriptors.FieldDescriptor descriptor) {
+        var name = filter.getField();
+
+        switch (DeviceDataFieldTypeMapper.fromFieldName(name)) {
+            case STRING: {
+                var op = stringOperator(filter.getStringFilter());
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.StringField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(op.test(field.getPlain()));
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.StringField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptStringBatchAsync(ciphertexts, version).thenApply(values -> matches(values, op));
+                    }
+                };
+            }
+            case INTEGER: {
+                var op = integerOperator(filter.getIntegerFilter());
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.IntegerField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(op.test(field.getPlain()));
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.IntegerField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptLongBatchAsync(ciphertexts, version).thenApply(values -> matches(values, op::test));
+                    }
+                };
+            }
+            case TIMESTAMP: {
+                var op = timestampOperator(filter.getTimestampFilter());
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.TimestampField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(op.test(field.getPlain().getSeconds()));
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.TimestampField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptLongBatchAsync(ciphertexts, version).thenApply(values -> matches(values, op::test));
+                    }
+                };
+            }
+            case BOOL: {
+                var boolFilter = filter.getBoolFilter();
+                if (boolFilter.getOperator() != Filter.BoolFilter.BoolOperator.EQUALS)
+                    return never();
+                boolean expected = boolFilter.getValue();
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.BoolField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(field.getPlain() == expected);
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.BoolField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptBoolBatchAsync(ciphertexts, version).thenApply(values -> matches(values, value -> value == expected));
+                    }
+                };
+            }
+            case DEVICE_CATEGORY: {
+                var expected = DeviceCategory.valueOf(filter.getEnumFilter().getValue());
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.DeviceCategoryField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(field.getPlain() == expected);
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.DeviceCategoryField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptLongBatchAsync(ciphertexts, version).thenApply(values -> matches(values, value -> DeviceCategory.forNumber(value.intValue()) == expected));
+                    }
+                };
+            }
+            case MEDICAL_SPECIALITY: {
+                var expected = MedicalSpeciality.valueOf(filter.getEnumFilter().getValue());
+                return new FieldCheck() {
+                    @Override
+                    public int plain(DeviceDataAsset asset) {
+                        var field = (DeviceDataAsset.MedicalSpecialityField) asset.getDeviceData().getField(descriptor);
+                        switch (field.getFieldCase()) {
+                            case PLAIN:
+                                return result(field.getPlain() == expected);
+                            case ENCRYPTED:
+                                return ENCRYPTED;
+                            default:
+                                return NO_MATCH;
+                        }
+                    }
+
+                    @Override
+                    public String ciphertext(DeviceDataAsset asset) {
+                        return ((DeviceDataAsset.MedicalSpecialityField) asset.getDeviceData().getField(descriptor)).getEncrypted();
+                    }
+
+                    @Override
+                    public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                        return encryptionService(name).decryptLongBatchAsync(ciphertexts, version).thenApply(values -> matches(values, value -> MedicalSpeciality.forNumber(value.intValue()) == expected));
+                    }
+                };
+            }
         }
 
+        return never();
+    }
+
+    private static <T> boolean[] matches(List<T> values, Predicate<T> op) {
+        var matches = new boolean[values.size()];
+        for (int i = 0; i < matches.length; i++)
+            matches[i] = op.test(values.get(i));
+        return matches;
+    }
+
+    private static int result(boolean match) {
+        return match ? FieldCheck.MATCH : FieldCheck.NO_MATCH;
+    }
+
+    private Predicate<String> stringOperator(Filter.StringFilter filter) {
+        var expected = filter.getValue();
         switch (filter.getOperator()) {
             case CONTAINS:
-                return value.contains(filter.getValue());
+                return value -> value.contains(expected);
             case ENDS_WITH:
-                return value.endsWith(filter.getValue());
+                return value -> value.endsWith(expected);
             case EQUALS:
-                return value.equals(filter.getValue());
+                return expected::equals;
             case STARTS_WITH:
-                return value.startsWith(filter.getValue());
-        }
-
-        return false;
-    }
-
-    private boolean check(String name, DeviceDataAsset.IntegerField field, Filter.IntegerFilter filter, String keyVersion) {
-        long value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = encryptionService.decryptLong(field.getEncrypted(), keyVersion);
-                break;
-            default:
-                return false;
+                return value -> value.startsWith(expected);
         }
+        return value -> false;
+    }
 
+    private LongPredicate integerOperator(Filter.IntegerFilter filter) {
+        long expected = filter.getValue();
         switch (filter.getOperator()) {
             case GREATER_THAN_OR_EQUAL:
-                return value >= filter.getValue();
+                return value -> value >= expected;
             case EQUALS:
-                return value == filter.getValue();
+                return value -> value == expected;
             case LESS_THAN:
-                return value < filter.getValue();
+                return value -> value < expected;
             case GREATER_THAN:
-                return value > filter.getValue();
+                return value -> value > expected;
             case LESS_THAN_OR_EQUAL:
-                return value <= filter.getValue();
-        }
-
-        return false;
-    }
-
-    private boolean check(String name, DeviceDataAsset.TimestampField field, Filter.TimestampFilter filter, String keyVersion) {
-        Timestamp value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = Timestamp.newBuilder().setSeconds(encryptionService.decryptLong(field.getEncrypted(), keyVersion)).build();
-                break;
-            default:
-                return false;
+                return value -> value <= expected;
         }
+        return value -> false;
+    }
 
+    // on seconds
+    private LongPredicate timestampOperator(Filter.TimestampFilter filter) {
+        long expected = filter.getValue().getSeconds();
         switch (filter.getOperator()) {
             case AFTER:
-                return value.getSeconds() > filter.getValue().getSeconds();
+                return value -> value > expected;
             case BEFORE:
-                return value.getSeconds() < filter.getValue().getSeconds();
+                return value -> value < expected;
             case EQUALS:
-                return value.getSeconds() == filter.getValue().getSeconds();
+                return value -> value == expected;
         }
+        return value -> false;
+    }
 
-        return false;
-    }
-
-    private boolean check(String name, DeviceDataAsset.BoolField field, Filter.BoolFilter filter, String keyVersion) {
-        boolean value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = encryptionService.decryptBool(field.getEncrypted(), keyVersion);
-                break;
-            default:
-                return false;
-        }
+    private EncryptionService encryptionService(String name) {
+        if (encryptionService == null)
+            throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
+        return encryptionService;
+    }
 
-        if (filter.getOperator() == Filter.BoolFilter.BoolOperator.EQUALS) {
-            return value == filter.getValue();
-        }
+    private FieldCheck never(Filter filter, String reason) {
+        logger.warning("Error checking filter: " + filter + ". " + reason);
+        return never();
+    }
 
-        return false;
-    }
-
-    private boolean check(String name, DeviceDataAsset.MedicalSpecialityField field, Filter.EnumFilter filter, String keyVersion) {
-        MedicalSpeciality value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = MedicalSpeciality.forNumber((int) encryptionService.decryptLong(field.getEncrypted(), keyVersion));
-                break;
-            default:
-                return false;
-        }
+    private static FieldCheck never() {
+        return new FieldCheck() {
+            @Override
+            public int plain(DeviceDataAsset asset) {
+                return NO_MATCH;
+            }
 
-        return value == MedicalSpeciality.valueOf(filter.getValue());
-    }
-
-    private boolean check(String name, DeviceDataAsset.DeviceCategoryField field, Filter.EnumFilter filter, String keyVersion) {
-        DeviceCategory value;
-        switch (field.getFieldCase()) {
-            case PLAIN:
-                value = field.getPlain();
-                break;
-            case ENCRYPTED:
-                if (encryptionService == null)
-                    throw new IllegalStateException("Field " + name + " is encrypted, but the platform is not properly configured to use encryption.");
-                // uses the key version from the asset
-                value = DeviceCategory.forNumber((int) encryptionService.decryptLong(field.getEncrypted(), keyVersion));
-                break;
-            default:
-                return false;
-        }
+            @Override
+            public String ciphertext(DeviceDataAsset asset) {
+                return "";
+            }
 
-        return value == DeviceCategory.valueOf(filter.getValue());
+            @Override
+            public CompletableFuture<boolean[]> decrypted(List<String> ciphertexts, String version) {
+                return CompletableFuture.completedFuture(new boolean[ciphertexts.size()]);
+            }
+        };
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,353 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import nl.medtechchain.proto.config.PlatformConfig;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.devicedata.DeviceDataFieldType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import static nl.medtechchain.chaincode.config.ConfigOps.PlatformConfigOps.get;
+import static nl.medtechchain.proto.config.PlatformConfig.Config.CONFIG_FEATURE_QUERY_INTERFACE_LINEAR_REGRESSION_FIELDS_X;
+import static nl.medtechchain.proto.config.PlatformConfig.Config.CONFIG_FEATURE_QUERY_INTERFACE_LINEAR_REGRESSION_FIELDS_Y;
+
+// Plaintext moments of a set of assets, so COUNT, SUM, AVERAGE, STD and LINEAR_REGRESSION can be answered without the assets:
+// - the number of assets per key version
+// - n, Σx and Σx² of every integer and timestamp field (timestamps in seconds)
+// - n, Σx, Σy, Σxy, Σx² and Σy² of every configured linear regression pair, per key version
+//
+// Rollups add up, the moments of a set of days are the sum of the rollups of those days, removing an asset subtracts it again
+// Encrypted values are only counted, a rollup holding any of them can't answer queries over that field
+public class MomentRollup {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final List<Descriptors.FieldDescriptor> ROLLED_FIELDS = rolledFields();
+
+    private final Map<String, Long> assetCounts = new TreeMap<>();
+    private final Map<String, FieldMoments> fields = new TreeMap<>();
+    // keyed by x, y and key version
+    private final Map<List<String>, PairMoments> pairs = new TreeMap<>(MomentRollup::compareKeys);
+
+    // (x, y) of every configured linear regression pair, x has to be a timestamp and y an integer field
+    public static List<Map.Entry<String, String>> regressionPairs(PlatformConfig platformConfig) {
+        var pairs = new ArrayList<Map.Entry<String, String>>();
+        for (String x : fieldList(get(platformConfig, CONFIG_FEATURE_QUERY_INTERFACE_LINEAR_REGRESSION_FIELDS_X).orElse("")))
+            for (String y : fieldList(get(platformConfig, CONFIG_FEATURE_QUERY_INTERFACE_LINEAR_REGRESSION_FIELDS_Y).orElse("")))
+                if (DeviceDataFieldTypeMapper.fromFieldName(x) == DeviceDataFieldType.TIMESTAMP && DeviceDataFieldTypeMapper.fromFieldName(y) == DeviceDataFieldType.INTEGER)
+                    pairs.add(Map.entry(x, y));
+        return pairs;
+    }
+
+    public void add(DeviceDataAsset asset, List<Map.Entry<String, String>> regressionPairs) {
+        update(asset, regressionPairs, 1);
+    }
+
+    public void remove(DeviceDataAsset asset, List<Map.Entry<String, String>> regressionPairs) {
+        update(asset, regressionPairs, -1);
+    }
+
+    public void merge(MomentRollup other) {
+        other.assetCounts.forEach((version, count) -> assetCounts.merge(version, count, Long::sum));
+        other.fields.forEach((name, moments) -> fields.computeIfAbsent(name, n -> new FieldMoments()).merge(moments));
+        other.pairs.forEach((key, moments) -> pairs.computeIfAbsent(key, k -> new PairMoments()).merge(moments));
+    }
+
+    public long assetCount() {
+        return assetCounts.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public Map<String, Long> assetCounts() {
+        return Collections.unmodifiableMap(assetCounts);
+    }
+
+    // empty if the field is not rolled up or some of its values are encrypted
+    public Optional<FieldMoments> plainField(String name) {
+        if (ROLLED_FIELDS.stream().noneMatch(f -> f.getName().equals(name)))
+            return Optional.empty();
+
+        var moments = fields.getOrDefault(name, new FieldMoments());
+        return moments.encrypted == 0 ? Optional.of(moments) : Optional.empty();
+    }
+
+    // empty unless every asset of the version was rolled up with the pair configured and none of its values are encrypted
+    public Optional<PairMoments> plainPair(String x, String y, String version) {
+        var moments = pairs.getOrDefault(List.of(x, y, version), new PairMoments());
+        if (moments.covered != assetCounts.getOrDefault(version, 0L) || moments.encrypted != 0)
+            return Optional.empty();
+        return Optional.of(moments);
+    }
+
+    public byte[] encode() {
+        try {
+            var bytes = new ByteArrayOutputStream();
+            var out = CodedOutputStream.newInstance(bytes);
+
+            out.writeUInt32NoTag(FORMAT_VERSION);
+
+            out.writeUInt32NoTag(assetCounts.size());
+            for (Map.Entry<String, Long> entry : assetCounts.entrySet()) {
+                out.writeStringNoTag(entry.getKey());
+                out.writeSInt64NoTag(entry.getValue());
+            }
+
+            out.writeUInt32NoTag(fields.size());
+            for (Map.Entry<String, FieldMoments> entry : fields.entrySet()) {
+                var m = entry.getValue();
+                out.writeStringNoTag(entry.getKey());
+                out.writeSInt64NoTag(m.count);
+                out.writeSInt64NoTag(m.encrypted);
+                out.writeByteArrayNoTag(m.sum.toByteArray());
+                out.writeByteArrayNoTag(m.sumSquares.toByteArray());
+            }
+
+            out.writeUInt32NoTag(pairs.size());
+            for (Map.Entry<List<String>, PairMoments> entry : pairs.entrySet()) {
+                var m = entry.getValue();
+                for (String part : entry.getKey())
+                    out.writeStringNoTag(part);
+                out.writeSInt64NoTag(m.covered);
+                out.writeSInt64NoTag(m.count);
+                out.writeSInt64NoTag(m.encrypted);
+                for (BigInteger sum : List.of(m.sumX, m.sumY, m.sumXY, m.sumX2, m.sumY2))
+                    out.writeByteArrayNoTag(sum.toByteArray());
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode moment rollup", e);
+        }
+    }
+
+    public static MomentRollup decode(byte[] value) throws InvalidProtocolBufferException {
+        var rollup = new MomentRollup();
+        try {
+            var in = CodedInputStream.newInstance(value);
+
+            int format = in.readUInt32();
+            if (format != FORMAT_VERSION)
+                throw new InvalidProtocolBufferException("Unknown moment rollup format: " + format);
+
+            int versions = in.readUInt32();
+            for (int i = 0; i < versions; i++)
+                rollup.assetCounts.put(in.readString(), in.readSInt64());
+
+            int fields = in.readUInt32();
+            for (int i = 0; i < fields; i++) {
+                var name = in.readString();
+                var m = new FieldMoments();
+                m.count = in.readSInt64();
+                m.encrypted = in.readSInt64();
+                m.sum = new BigInteger(in.readByteArray());
+                m.sumSquares = new BigInteger(in.readByteArray());
+                rollup.fields.put(name, m);
+            }
+
+            int pairs = in.readUInt32();
+            for (int i = 0; i < pairs; i++) {
+                var key = List.of(in.readString(), in.readString(), in.readString());
+                var m = new PairMoments();
+                m.covered = in.readSInt64();
+                m.count = in.readSInt64();
+                m.encrypted = in.readSInt64();
+                m.sumX = new BigInteger(in.readByteArray());
+                m.sumY = new BigInteger(in.readByteArray());
+                m.sumXY = new BigInteger(in.readByteArray());
+                m.sumX2 = new BigInteger(in.readByteArray());
+                m.sumY2 = new BigInteger(in.readByteArray());
+                rollup.pairs.put(key, m);
+            }
+
+            if (!in.isAtEnd())
+                throw new InvalidProtocolBufferException("Trailing bytes after moment rollup");
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException | NumberFormatException e) {
+            throw new InvalidProtocolBufferException("Failed to decode moment rollup: " + e.getMessage());
+        }
+        return rollup;
+    }
+
+    private void update(DeviceDataAsset asset, List<Map.Entry<String, String>> regressionPairs, int sign) {
+        var version = asset.getKeyVersion();
+        var data = asset.getDeviceData();
+        assetCounts.merge(version, (long) sign, Long::sum);
+
+        for (Descriptors.FieldDescriptor descriptor : ROLLED_FIELDS) {
+            var field = data.getField(descriptor);
+            var moments = fields.computeIfAbsent(descriptor.getName(), n -> new FieldMoments());
+            if (isEncrypted(field)) {
+                moments.encrypted += sign;
+                continue;
+            }
+            plainValue(field).ifPresent(x -> moments.add(BigInteger.valueOf(x), sign));
+        }
+
+        for (Map.Entry<String, String> pair : regressionPairs) {
+            var x = data.getField(DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(pair.getKey()));
+            var y = data.getField(DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(pair.getValue()));
+            var moments = pairs.computeIfAbsent(List.of(pair.getKey(), pair.getValue(), version), k -> new PairMoments());
+
+            moments.covered += sign;
+            if (isEncrypted(x) || isEncrypted(y)) {
+                moments.encrypted += sign;
+                continue;
+            }
+
+            var xValue = plainValue(x);
+            var yValue = plainValue(y);
+            if (xValue.isPresent() && yValue.isPresent())
+                moments.add(BigInteger.valueOf(xValue.get()), BigInteger.valueOf(yValue.get()), sign);
+        }
+    }
+
+    private static boolean isEncrypted(Object field) {
+        if (field instanceof DeviceDataAsset.IntegerField)
+            return ((DeviceDataAsset.IntegerField) field).getFieldCase() == DeviceDataAsset.IntegerField.FieldCase.ENCRYPTED;
+        if (field instanceof DeviceDataAsset.TimestampField)
+            return ((DeviceDataAsset.TimestampField) field).getFieldCase() == DeviceDataAsset.TimestampField.FieldCase.ENCRYPTED;
+        return false;
+    }
+
+    private static Optional<Long> plainValue(Object field) {
+        if (field instanceof DeviceDataAsset.IntegerField) {
+            var f = (DeviceDataAsset.IntegerField) field;
+            if (f.getFieldCase() == DeviceDataAsset.IntegerField.FieldCase.PLAIN)
+                return Optional.of(f.getPlain());
+        } else if (field instanceof DeviceDataAsset.TimestampField) {
+            var f = (DeviceDataAsset.TimestampField) field;
+            if (f.getFieldCase() == DeviceDataAsset.TimestampField.FieldCase.PLAIN)
+                return Optional.of(f.getPlain().getSeconds());
+        }
+        return Optional.empty();
+    }
+
+    private static List<Descriptors.FieldDescriptor> rolledFields() {
+        var rolled = new ArrayList<Descriptors.FieldDescriptor>();
+        for (Descriptors.FieldDescriptor descriptor : DeviceDataAsset.DeviceData.getDescriptor().getFields()) {
+            var type = DeviceDataFieldTypeMapper.fromFieldName(descriptor.getName());
+            if (type == DeviceDataFieldType.INTEGER || type == DeviceDataFieldType.TIMESTAMP)
+                rolled.add(descriptor);
+        }
+        return rolled;
+    }
+
+    private static List<String> fieldList(String fields) {
+        var list = new ArrayList<String>();
+        for (String field : fields.split(","))
+            if (!field.isBlank())
+                list.add(field.trim());
+        return list;
+    }
+
+    private static int compareKeys(List<String> a, List<String> b) {
+        for (int i = 0; i < a.size(); i++) {
+            int c = a.get(i).compareTo(b.get(i));
+            if (c != 0)
+                return c;
+        }
+        return 0;
+    }
+
+    // n, Σx and Σx² of the plaintext values of one field, encrypted values are only counted
+    public static class FieldMoments {
+        private long count = 0;
+        private long encrypted = 0;
+        private BigInteger sum = BigInteger.ZERO;
+        private BigInteger sumSquares = BigInteger.ZERO;
+
+        public long getCount() {
+            return count;
+        }
+
+        public BigInteger getSum() {
+            return sum;
+        }
+
+        public BigInteger getSumSquares() {
+            return sumSquares;
+        }
+
+        private void add(BigInteger x, int sign) {
+            count += sign;
+            sum = sum.add(x.multiply(BigInteger.valueOf(sign)));
+            sumSquares = sumSquares.add(x.multiply(x).multiply(BigInteger.valueOf(sign)));
+        }
+
+        private void merge(FieldMoments other) {
+            count += other.count;
+            encrypted += other.encrypted;
+            sum = sum.add(other.sum);
+            sumSquares = sumSquares.add(other.sumSquares);
+        }
+    }
+
+    // moments of the assets with both a plaintext x and y, covered counts every asset rolled up with the pair configured
+    public static class PairMoments {
+        private long covered = 0;
+        private long count = 0;
+        private long encrypted = 0;
+        private BigInteger sumX = BigInteger.ZERO;
+        private BigInteger sumY = BigInteger.ZERO;
+        private BigInteger sumXY = BigInteger.ZERO;
+        private BigInteger sumX2 = BigInteger.ZERO;
+        private BigInteger sumY2 = BigInteger.ZERO;
+
+        public long getCount() {
+            return count;
+        }
+
+        public BigInteger getSumX() {
+            return sumX;
+        }
+
+        public BigInteger getSumY() {
+            return sumY;
+        }
+
+        public BigInteger getSumXY() {
+            return sumXY;
+        }
+
+        public BigInteger getSumX2() {
+            return sumX2;
+        }
+
+        public BigInteger getSumY2() {
+            return sumY2;
+        }
+
+        private void add(BigInteger x, BigInteger y, int sign) {
+            var s = BigInteger.valueOf(sign);
+            count += sign;
+            sumX = sumX.add(x.multiply(s));
+            sumY = sumY.add(y.multiply(s));
+            sumXY = sumXY.add(x.multiply(y).multiply(s));
+            sumX2 = sumX2.add(x.multiply(x).multiply(s));
+            sumY2 = sumY2.add(y.multiply(y).multiply(s));
+        }
+
+        private void merge(PairMoments other) {
+            covered += other.covered;
+            count += other.count;
+            encrypted += other.encrypted;
+            sumX = sumX.add(other.sumX);
+            sumY = sumY.add(other.sumY);
+            sumXY = sumXY.add(other.sumXY);
+            sumX2 = sumX2.add(other.sumX2);
+            sumY2 = sumY2.add(other.sumY2);
+        }
+    }
+}
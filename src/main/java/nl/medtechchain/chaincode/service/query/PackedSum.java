@@ -0,0 +1,46 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.chaincode.service.encryption.BfvPackedCiphertext;
+import nl.medtechchain.chaincode.service.encryption.EncryptionService;
+
+// Running homomorphic sum of packed ciphertexts (see BfvPackedCiphertext) that share a key version
+// the ciphertexts are added slot by slot like any others, the slots of the total are only summed when decrypting,
+// so it's one rotate-and-sum and one decryption per version however many values were packed
+public class PackedSum {
+
+    private final EncryptionService encryptionService;
+    private final String version;
+    private final EncryptedSum slots;
+    private long count = 0;
+
+    public PackedSum(EncryptionService encryptionService, String version) {
+        this.encryptionService = encryptionService;
+        this.version = version;
+        this.slots = new EncryptedSum(encryptionService, version);
+    }
+
+    public void add(String packed) {
+        add(BfvPackedCiphertext.ciphertext(packed), BfvPackedCiphertext.values(packed));
+    }
+
+    // a ciphertext with values in its slots and zeros in the rest, e.g. the slotwise square of a packed one
+    public void add(String ciphertext, long values) {
+        slots.add(ciphertext);
+        count += values;
+    }
+
+    // number of values added so far, not ciphertexts
+    public long count() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public long decrypt() {
+        if (isEmpty())
+            return 0;
+        return encryptionService.decryptLong(encryptionService.homomorphicSumSlots(slots.ciphertext(), version), version);
+    }
+}
@@ -0,0 +1,23 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.QueryResult;
+
+// State of a single query run - assets are fed one at a time, so nothing has to hold the whole ledger in memory
+public interface QueryAccumulator extends AutoCloseable {
+
+    void accept(DeviceDataAsset asset);
+
+    // called after every pass over the assets, return true to get the same assets fed again
+    // (e.g. std needs the mean before it can sum up the squared deviations)
+    default boolean nextPass() {
+        return false;
+    }
+
+    QueryResult finish();
+
+    // called once the run is over, also when it failed - releases what it holds outside the heap (e.g. its CiphertextArena)
+    @Override
+    default void close() {
+    }
+}
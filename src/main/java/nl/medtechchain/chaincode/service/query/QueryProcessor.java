@@ -1,43 +1,72 @@
 package nl.medtechchain.chaincode.service.query;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors;
+import nl.medtechchain.chaincode.service.encryption.BfvPackedCiphertext;
 import nl.medtechchain.chaincode.service.encryption.EncryptionService;
-import nl.medtechchain.chaincode.service.encryption.EncryptionServiceFactory;
+import nl.medtechchain.chaincode.service.encryption.EncryptionServiceRegistry;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Optional;
 import java.util.logging.Logger;
 
-// Base class for query processors 
+// Base class for query processors
 public abstract class QueryProcessor {
+    private static final ByteString PACKED_PREFIX = ByteString.copyFromUtf8(BfvPackedCiphertext.PREFIX);
+
     protected final EncryptionService encryptionService; // can be null if no encryption configured
     protected final Logger logger;
-    
+
     public QueryProcessor(PlatformConfig platformConfig) {
-        this.encryptionService = EncryptionServiceFactory.create(platformConfig);
+        this.encryptionService = EncryptionServiceRegistry.get(platformConfig);
         this.logger = Logger.getLogger(getClass().getName());
     }
-    
-    // Each query type implements this however they want
-    public abstract QueryResult process(Query query, List<DeviceDataAsset> assets);
-    
-    protected Map<String, List<DeviceDataAsset>> groupByVersion(List<DeviceDataAsset> assets) {
-        Map<String, List<DeviceDataAsset>> groups = new HashMap<>();
-        for (DeviceDataAsset asset : assets) {
-            String version = asset.getKeyVersion();
-            groups.computeIfAbsent(version, k -> new ArrayList<>()).add(asset);
+
+    // Each query type implements this however they want, a new accumulator is created per run
+    public abstract QueryAccumulator accumulator(Query query);
+
+    // assets can be a plain list or a lazy ledger scan, it is iterated once per pass the accumulator asks for
+    public QueryResult process(Query query, Iterable<DeviceDataAsset> assets) {
+        try (var accumulator = accumulator(query)) {
+            do {
+                for (DeviceDataAsset asset : assets)
+                    accumulator.accept(asset);
+            } while (accumulator.nextPass());
+            return accumulator.finish();
         }
-        return groups;
     }
-    
+
+    // answers the query from the moments of the matching assets instead of iterating them,
+    // empty if the rollup can't answer it exactly (e.g. the target field has encrypted values)
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        return Optional.empty();
+    }
+
+    protected EncryptedSum encryptedSum(String version) {
+        return new EncryptedSum(encryptionService, version);
+    }
+
+    protected EncryptedSum encryptedSum(String version, CiphertextArena arena) {
+        return new EncryptedSum(encryptionService, version, arena);
+    }
+
+    // packed ciphertexts are checked on the protobuf bytes, so plain ones never become Strings
+    protected static boolean isPacked(ByteString ciphertext) {
+        return ciphertext.startsWith(PACKED_PREFIX);
+    }
+
+    protected PackedSum packedSum(String version) {
+        if (!encryptionService.supportsPacking())
+            throw new IllegalStateException("Found packed ciphertexts but the encryption service can't sum slots. " +
+                "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'bfv' and use a bfv_calc with the sumSlots command.");
+        return new PackedSum(encryptionService, version);
+    }
+
     // just a helper to get protobuf field descriptors
     protected Descriptors.FieldDescriptor getFieldDescriptor(String fieldName) {
         return DeviceDataAsset.DeviceData.getDescriptor().findFieldByName(fieldName);
     }
-} 
\ No newline at end of file
+}
@@ -26,7 +26,6 @@ import nl.medtechchain.proto.query.QueryResult;
 import nl.medtechchain.proto.query.QueryResult.MeanAndStd;
 
 
-import java.util.List;
 import java.util.Optional;
 import java.util.logging.Logger;
 
@@ -145,38 +144,22 @@ public class QueryService {
     }
     
     
-    public QueryResult sum(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult sum(Query query, Iterable<DeviceDataAsset> assets) {
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
 
         if (fieldType != DeviceDataFieldType.INTEGER)
             throw new IllegalStateException("cannot run SUM over " + fieldType);
 
-        QueryResult result = new SumQuery(platformConfig).process(query, assets);
-
-        if (mechanismType == MechanismType.LAPLACE) {
-            var noise = new LaplaceNoise();
-            long noisySum = noise.addNoise(result.getSumResult(), 1, getEpsilon(), 0);
-            result = QueryResult.newBuilder().setSumResult(noisySum).build();
-        }
-
-        return result;
+        return noisySum(new SumQuery(platformConfig).process(query, assets));
     }
     
     // TODO: Implement these using the new architecture
     
-    public QueryResult count(Query query, List<DeviceDataAsset> assets) {
-        QueryResult result = new CountQuery(platformConfig).process(query, assets);
-        
-        if (mechanismType == MechanismType.LAPLACE) {
-            var noise = new LaplaceNoise();
-            int noisyCount = Math.abs((int) noise.addNoise(result.getCountResult(), 1, getEpsilon(), 0));
-            result = QueryResult.newBuilder().setCountResult(noisyCount).build();
-        }
-        
-        return result;
+    public QueryResult count(Query query, Iterable<DeviceDataAsset> assets) {
+        return noisyCount(new CountQuery(platformConfig).process(query, assets));
     }
     
-    public QueryResult groupedCount(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult groupedCount(Query query, Iterable<DeviceDataAsset> assets) {
         QueryResult result = new GroupedCountQuery(platformConfig).process(query, assets);
         
         if (mechanismType == MechanismType.LAPLACE) {
@@ -192,7 +175,7 @@ public class QueryService {
         return result;
     }
 
-    public QueryResult average(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult average(Query query, Iterable<DeviceDataAsset> assets) {
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
 
         if (fieldType != DeviceDataFieldType.INTEGER && fieldType != DeviceDataFieldType.TIMESTAMP) {
@@ -202,19 +185,11 @@ public class QueryService {
             );
         }
 
-        QueryResult result = new AverageQuery(platformConfig).process(query, assets);
-
-        if (mechanismType == MechanismType.LAPLACE) {
-            var noise = new LaplaceNoise();
-            double noisyAverage = noise.addNoise(result.getAverageResult(), 1, getEpsilon(), 0);
-            result = QueryResult.newBuilder().setAverageResult(noisyAverage).build();
-        }
-
-        return result; 
+        return noisyAverage(new AverageQuery(platformConfig).process(query, assets));
     }
 
     
-    public QueryResult uniqueCount(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult uniqueCount(Query query, Iterable<DeviceDataAsset> assets) {
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
         
         QueryResult result = new UniqueCountQuery(platformConfig).process(query, assets);
@@ -228,7 +203,7 @@ public class QueryService {
         return result;
     }
     
-    public QueryResult histogram(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult histogram(Query query, Iterable<DeviceDataAsset> assets) {
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
 
         // Only allow histogram for INTEGER and TIMESTAMP fields
@@ -252,26 +227,16 @@ public class QueryService {
         return result;
     }
     
-    public QueryResult std(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult std(Query query, Iterable<DeviceDataAsset> assets) {
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
 
         if (fieldType != DeviceDataFieldType.INTEGER && fieldType != DeviceDataFieldType.TIMESTAMP)
             throw new IllegalStateException("cannot run STD over " + fieldType);
 
-        QueryResult result = new STDQuery(platformConfig).process(query, assets);
-
-        if (mechanismType == MechanismType.LAPLACE) {
-            var noise = new LaplaceNoise();
-            double noisyMean = noise.addNoise(result.getMeanStd().getMean(), 1, getEpsilon(), 0);
-            double noisyStd = noise.addNoise(result.getMeanStd().getStd(), 1, getEpsilon(), 0);
-            MeanAndStd meanAndStd = MeanAndStd.newBuilder().setMean(noisyMean).setStd(noisyStd).build();
-            result = QueryResult.newBuilder().setMeanStd(meanAndStd).build();
-        }
-
-        return result;
+        return noisyStd(new STDQuery(platformConfig).process(query, assets));
     }
     
-    public QueryResult linearRegression(Query query, List<DeviceDataAsset> assets) {
+    public QueryResult linearRegression(Query query, Iterable<DeviceDataAsset> assets) {
 
         var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
 
@@ -283,7 +248,75 @@ public class QueryService {
         return result;
     }
     
+    // Answers COUNT, SUM, AVERAGE, STD and LINEAR_REGRESSION from the moments of the matching assets,
+    // with the same noise as the scan; empty if the query has to fall back to iterating the assets
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        var fieldType = DeviceDataFieldTypeMapper.fromFieldName(query.getTargetField());
+        boolean numeric = fieldType == DeviceDataFieldType.INTEGER || fieldType == DeviceDataFieldType.TIMESTAMP;
+
+        switch (query.getQueryType()) {
+            case COUNT:
+                return new CountQuery(platformConfig).fromRollup(query, rollup).map(this::noisyCount);
+            case SUM:
+                if (fieldType != DeviceDataFieldType.INTEGER)
+                    return Optional.empty();
+                return new SumQuery(platformConfig).fromRollup(query, rollup).map(this::noisySum);
+            case AVERAGE:
+                if (!numeric)
+                    return Optional.empty();
+                return new AverageQuery(platformConfig).fromRollup(query, rollup).map(this::noisyAverage);
+            case STD:
+                if (!numeric)
+                    return Optional.empty();
+                return new STDQuery(platformConfig).fromRollup(query, rollup).map(this::noisyStd);
+            case LINEAR_REGRESSION:
+                if (!numeric)
+                    return Optional.empty();
+                return new LinearRegressionQuery(platformConfig).fromRollup(query, rollup);
+            default:
+                return Optional.empty();
+        }
+    }
+
     // helpers
+
+    private QueryResult noisyCount(QueryResult result) {
+        if (mechanismType != MechanismType.LAPLACE)
+            return result;
+
+        var noise = new LaplaceNoise();
+        int noisyCount = Math.abs((int) noise.addNoise(result.getCountResult(), 1, getEpsilon(), 0));
+        return QueryResult.newBuilder().setCountResult(noisyCount).build();
+    }
+
+    private QueryResult noisySum(QueryResult result) {
+        if (mechanismType != MechanismType.LAPLACE)
+            return result;
+
+        var noise = new LaplaceNoise();
+        long noisySum = noise.addNoise(result.getSumResult(), 1, getEpsilon(), 0);
+        return QueryResult.newBuilder().setSumResult(noisySum).build();
+    }
+
+    private QueryResult noisyAverage(QueryResult result) {
+        if (mechanismType != MechanismType.LAPLACE)
+            return result;
+
+        var noise = new LaplaceNoise();
+        double noisyAverage = noise.addNoise(result.getAverageResult(), 1, getEpsilon(), 0);
+        return QueryResult.newBuilder().setAverageResult(noisyAverage).build();
+    }
+
+    private QueryResult noisyStd(QueryResult result) {
+        if (mechanismType != MechanismType.LAPLACE)
+            return result;
+
+        var noise = new LaplaceNoise();
+        double noisyMean = noise.addNoise(result.getMeanStd().getMean(), 1, getEpsilon(), 0);
+        double noisyStd = noise.addNoise(result.getMeanStd().getStd(), 1, getEpsilon(), 0);
+        MeanAndStd meanAndStd = MeanAndStd.newBuilder().setMean(noisyMean).setStd(noisyStd).build();
+        return QueryResult.newBuilder().setMeanStd(meanAndStd).build();
+    }
     
     private double getEpsilon() {
         return Double.parseDouble(getUnsafe(platformConfig, CONFIG_FEATURE_QUERY_DIFFERENTIAL_PRIVACY_LAPLACE_EPSILON));
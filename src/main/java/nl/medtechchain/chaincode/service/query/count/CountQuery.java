@@ -1,25 +1,42 @@
 package nl.medtechchain.chaincode.service.query.count;
 
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
 
-import java.util.List;
+import java.util.Optional;
 
 // Counts total number of assets
 public class CountQuery extends QueryProcessor {
-    
+
     public CountQuery(PlatformConfig platformConfig) {
         super(platformConfig);
     }
-    
+
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
-        int count = assets.size();
-        logger.info("Total asset count: " + count);
-        
-        return QueryResult.newBuilder().setCountResult(count).build();
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        return Optional.of(QueryResult.newBuilder().setCountResult((int) rollup.assetCount()).build());
+    }
+
+    @Override
+    public QueryAccumulator accumulator(Query query) {
+        return new QueryAccumulator() {
+            private int count = 0;
+
+            @Override
+            public void accept(DeviceDataAsset asset) {
+                count++;
+            }
+
+            @Override
+            public QueryResult finish() {
+                logger.info("Total asset count: " + count);
+                return QueryResult.newBuilder().setCountResult(count).build();
+            }
+        };
     }
-} 
\ No newline at end of file
+}
@@ -1,8 +1,11 @@
 package nl.medtechchain.chaincode.service.query.groupedcount;
 
 import com.google.protobuf.Descriptors;
+import nl.medtechchain.chaincode.service.query.BatchDecryption;
+import nl.medtechchain.chaincode.service.query.EncryptedSum;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
-import nl.medtechchain.chaincode.service.solver.ILPSolver;
+import nl.medtechchain.chaincode.service.solver.CategoryCountSolver;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceCategory;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
@@ -11,92 +14,75 @@ import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
 
 import java.util.*;
+import java.util.function.Consumer;
 
-// Count occurrences per distinct value - uses ILP solver for encrypted categorical data
+// Count occurrences per distinct value - decodes the homomorphic sum of encrypted categorical data into counts
 public class GroupedCountQuery extends QueryProcessor {
-    
-    private final ILPSolver ilpSolver = new ILPSolver();
-    
+
+    // shared by all queries, its cache outlives a single run
+    private static final CategoryCountSolver solver = new CategoryCountSolver();
+
     public GroupedCountQuery(PlatformConfig platformConfig) {
         super(platformConfig);
     }
-    
+
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
+    public QueryAccumulator accumulator(Query query) {
         var fieldDescriptor = getFieldDescriptor(query.getTargetField());
         if (fieldDescriptor == null) {
             throw new IllegalArgumentException("Unknown target field: " + query.getTargetField());
         }
-        
-        Map<String, Long> groupedCounts = new HashMap<>();
-        
-        // Group by version for optimal processing
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
-        
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
-            
-            logger.fine("Processing grouped count for " + versionAssets.size() + " assets with version: " + version);
-            
-            processVersionGroup(versionAssets, fieldDescriptor, version, groupedCounts);
-        }
-        
-        // Remove zero counts
-        groupedCounts.entrySet().removeIf(e -> e.getValue() == 0);
-        
-        logger.info("Grouped count complete. Found " + groupedCounts.size() + " distinct values");
-        
-        return QueryResult.newBuilder()
-            .setGroupedCountResult(QueryResult.GroupedCount.newBuilder()
-                .putAllMap(groupedCounts)
-                .build())
-            .build();
+        return new GroupedCountAccumulator(fieldDescriptor);
     }
-    
-    private void processVersionGroup(List<DeviceDataAsset> versionAssets,
-                                   Descriptors.FieldDescriptor fieldDescriptor,
-                                   String version,
-                                   Map<String, Long> groupedCounts) {
-        
-        // Determine field type
-        Object sampleField = versionAssets.isEmpty() ? null : 
-            versionAssets.get(0).getDeviceData().getField(fieldDescriptor);
-            
-        if (sampleField instanceof DeviceDataAsset.BoolField) {
-            processBooleanGroup(versionAssets, fieldDescriptor, version, groupedCounts);
-        } else if (sampleField instanceof DeviceDataAsset.DeviceCategoryField) {
-            processDeviceCategoryGroup(versionAssets, fieldDescriptor, version, groupedCounts);
-        } else if (sampleField instanceof DeviceDataAsset.MedicalSpecialityField) {
-            processMedicalSpecialityGroup(versionAssets, fieldDescriptor, version, groupedCounts);
-        } else {
-            // For non-categorical fields, process each individually
-            for (DeviceDataAsset asset : versionAssets) {
-                Object fieldValue = asset.getDeviceData().getField(fieldDescriptor);
-                String value = extractFieldValueAsString(fieldValue, version);
-                if (value != null) {
-                    groupedCounts.merge(value, 1L, Long::sum);
-                }
+
+    private class GroupedCountAccumulator implements QueryAccumulator {
+        private final Descriptors.FieldDescriptor fieldDescriptor;
+        private final Map<String, Long> groupedCounts = new HashMap<>();
+
+        // homomorphic sums of encrypted categorical values per key version, resolved with the category count solver
+        private final Map<String, EncryptedSum> encryptedSums = new HashMap<>();
+
+        // versions the solver could not resolve, their ciphertexts are decrypted one by one in a second pass
+        private final Set<String> fallbackVersions = new HashSet<>();
+        private boolean fallbackPass = false;
+
+        // values that have to be decrypted one by one (fallback, non-homomorphic schemes) go through in batches
+        private final BatchDecryption decryption = new BatchDecryption(encryptionService);
+
+        GroupedCountAccumulator(Descriptors.FieldDescriptor fieldDescriptor) {
+            this.fieldDescriptor = fieldDescriptor;
+        }
+
+        @Override
+        public void accept(DeviceDataAsset asset) {
+            Object fieldValue = asset.getDeviceData().getField(fieldDescriptor);
+            String version = asset.getKeyVersion();
+
+            if (fallbackPass) {
+                if (fallbackVersions.contains(version))
+                    decryptIndividually(fieldValue, version);
+                return;
+            }
+
+            if (fieldValue instanceof DeviceDataAsset.BoolField) {
+                acceptBoolean((DeviceDataAsset.BoolField) fieldValue, version);
+            } else if (fieldValue instanceof DeviceDataAsset.DeviceCategoryField) {
+                acceptDeviceCategory((DeviceDataAsset.DeviceCategoryField) fieldValue, version);
+            } else if (fieldValue instanceof DeviceDataAsset.MedicalSpecialityField) {
+                acceptMedicalSpeciality((DeviceDataAsset.MedicalSpecialityField) fieldValue, version);
+            } else {
+                // For non-categorical fields, process each individually
+                extractFieldValueAsString(fieldValue, version, decryption, this::count);
             }
         }
-    }
-    
-    private void processBooleanGroup(List<DeviceDataAsset> assets,
-                                   Descriptors.FieldDescriptor fieldDescriptor,
-                                   String version,
-                                   Map<String, Long> groupedCounts) {
-        List<String> encryptedValues = new ArrayList<>();
-        
-        // Process all assets, collecting encrypted values for homomorphic processing
-        for (DeviceDataAsset asset : assets) {
-            DeviceDataAsset.BoolField field = (DeviceDataAsset.BoolField) asset.getDeviceData().getField(fieldDescriptor);
-            
+
+        private void acceptBoolean(DeviceDataAsset.BoolField field, String version) {
             switch (field.getFieldCase()) {
                 case PLAIN:
                     String key = String.valueOf(field.getPlain());
                     groupedCounts.merge(key, 1L, Long::sum);
                     break;
-                    
+
                 case ENCRYPTED:
                     if (encryptionService == null) {
                         throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
@@ -104,227 +90,179 @@ public class GroupedCountQuery extends QueryProcessor {
                     }
                     if (encryptionService.isHomomorphic()) {
                         // Collect for batch homomorphic processing
-                        encryptedValues.add(field.getEncrypted());
+                        encryptedSums.computeIfAbsent(version, v -> encryptedSum(v)).add(field.getEncrypted());
                     } else {
-                        // Non-homomorphic: decrypt immediately
-                        boolean value = encryptionService.decryptBool(field.getEncrypted(), version);
-                        groupedCounts.merge(String.valueOf(value), 1L, Long::sum);
+                        // Non-homomorphic: decrypt each value
+                        decryption.decryptBool(field.getEncrypted(), version, value -> count(String.valueOf(value)));
                     }
                     break;
             }
         }
-        
-        // Process all collected encrypted values homomorphically
-        if (!encryptedValues.isEmpty()) {
-            processHomomorphicBooleans(encryptedValues, version, groupedCounts);
-        }
-    }
-    
-    private void processDeviceCategoryGroup(List<DeviceDataAsset> assets,
-                                          Descriptors.FieldDescriptor fieldDescriptor,
-                                          String version,
-                                          Map<String, Long> groupedCounts) {
-        List<String> encryptedValues = new ArrayList<>();
-        
-        for (DeviceDataAsset asset : assets) {
-            DeviceDataAsset.DeviceCategoryField field = 
-                (DeviceDataAsset.DeviceCategoryField) asset.getDeviceData().getField(fieldDescriptor);
-            
+
+        private void acceptDeviceCategory(DeviceDataAsset.DeviceCategoryField field, String version) {
             switch (field.getFieldCase()) {
                 case PLAIN:
                     String key = field.getPlain().name();
                     groupedCounts.merge(key, 1L, Long::sum);
                     break;
-                    
+
                 case ENCRYPTED:
                     if (encryptionService == null) {
                         throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
                             "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
                     }
                     if (encryptionService.isHomomorphic()) {
-                        encryptedValues.add(field.getEncrypted());
+                        encryptedSums.computeIfAbsent(version, v -> encryptedSum(v)).add(field.getEncrypted());
                     } else {
-                        long decrypted = encryptionService.decryptLong(field.getEncrypted(), version);
-                        DeviceCategory category = DeviceCategory.forNumber((int) decrypted);
-                        groupedCounts.merge(category.name(), 1L, Long::sum);
+                        decryption.decryptLong(field.getEncrypted(), version,
+                                decrypted -> count(DeviceCategory.forNumber(decrypted.intValue()).name()));
                     }
                     break;
             }
         }
-        
-        if (!encryptedValues.isEmpty()) {
-            processHomomorphicDeviceCategories(encryptedValues, version, groupedCounts);
-        }
-    }
-    
-    private void processMedicalSpecialityGroup(List<DeviceDataAsset> assets,
-                                             Descriptors.FieldDescriptor fieldDescriptor,
-                                             String version,
-                                             Map<String, Long> groupedCounts) {
-        List<String> encryptedValues = new ArrayList<>();
-        
-        for (DeviceDataAsset asset : assets) {
-            DeviceDataAsset.MedicalSpecialityField field = 
-                (DeviceDataAsset.MedicalSpecialityField) asset.getDeviceData().getField(fieldDescriptor);
-            
+
+        private void acceptMedicalSpeciality(DeviceDataAsset.MedicalSpecialityField field, String version) {
             switch (field.getFieldCase()) {
                 case PLAIN:
                     String key = field.getPlain().name();
                     groupedCounts.merge(key, 1L, Long::sum);
                     break;
-                    
+
                 case ENCRYPTED:
                     if (encryptionService == null) {
                         throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
                             "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
                     }
                     if (encryptionService.isHomomorphic()) {
-                        encryptedValues.add(field.getEncrypted());
+                        encryptedSums.computeIfAbsent(version, v -> encryptedSum(v)).add(field.getEncrypted());
                     } else {
-                        long decrypted = encryptionService.decryptLong(field.getEncrypted(), version);
-                        MedicalSpeciality speciality = MedicalSpeciality.forNumber((int) decrypted);
-                        groupedCounts.merge(speciality.name(), 1L, Long::sum);
+                        decryption.decryptLong(field.getEncrypted(), version,
+                                decrypted -> count(MedicalSpeciality.forNumber(decrypted.intValue()).name()));
                     }
                     break;
             }
         }
-        
-        if (!encryptedValues.isEmpty()) {
-            processHomomorphicMedicalSpecialities(encryptedValues, version, groupedCounts);
-        }
-    }
-    
-    private void processHomomorphicBooleans(List<String> encryptedValues, String version,
-                                          Map<String, Long> groupedCounts) {
-        if (encryptedValues.isEmpty()) return;
-        
-        // Homomorphically add all boolean values
-        String homomorphicSum = encryptionService.homomorphicAdd(encryptedValues, version);
-        long decryptedSum = encryptionService.decryptLong(homomorphicSum, version);
-        
-        // Use ILP solver to reconstruct counts
-        var solution = ilpSolver.solveSystem(
-            List.of("false", "true"),
-            List.of(0, 1),
-            decryptedSum,
-            encryptedValues.size()
-        );
-        
-        if (solution.isPresent()) {
-            for (Map.Entry<String, Integer> entry : solution.get().entrySet()) {
-                groupedCounts.merge(entry.getKey(), entry.getValue().longValue(), Long::sum);
-            }
-        } else {
-            logger.warning("ILP solver failed for boolean field. Falling back to individual decryption.");
-            // Fallback: decrypt each value
-            for (String encrypted : encryptedValues) {
-                boolean value = encryptionService.decryptBool(encrypted, version);
-                groupedCounts.merge(String.valueOf(value), 1L, Long::sum);
-            }
+
+        private void count(String key) {
+            groupedCounts.merge(key, 1L, Long::sum);
         }
-    }
-    
-    private void processHomomorphicDeviceCategories(List<String> encryptedValues, String version,
-                                                  Map<String, Long> groupedCounts) {
-        if (encryptedValues.isEmpty()) return;
-        
-        String homomorphicSum = encryptionService.homomorphicAdd(encryptedValues, version);
-        long decryptedSum = encryptionService.decryptLong(homomorphicSum, version);
-        
-        // Get valid enum values
-        List<String> names = new ArrayList<>();
-        List<Integer> numbers = new ArrayList<>();
-        for (DeviceCategory cat : DeviceCategory.values()) {
-            if (cat != DeviceCategory.UNRECOGNIZED && cat != DeviceCategory.DEVICE_CATEGORY_UNSPECIFIED) {
-                names.add(cat.name());
-                numbers.add(cat.getNumber());
+
+        @Override
+        public boolean nextPass() {
+            decryption.flush();
+            if (fallbackPass)
+                return false;
+
+            for (Map.Entry<String, EncryptedSum> entry : encryptedSums.entrySet()) {
+                if (!resolveHomomorphic(entry.getValue())) {
+                    logger.warning("No counts found for " + fieldDescriptor.getName() + ". Falling back to individual decryption.");
+                    fallbackVersions.add(entry.getKey());
+                }
             }
+
+            fallbackPass = true;
+            return !fallbackVersions.isEmpty();
         }
-        
-        var solution = ilpSolver.solveSystem(names, numbers, decryptedSum, encryptedValues.size());
-        
-        if (solution.isPresent()) {
-            for (Map.Entry<String, Integer> entry : solution.get().entrySet()) {
-                groupedCounts.merge(entry.getKey(), entry.getValue().longValue(), Long::sum);
+
+        // Reconstruct counts from the homomorphic sum
+        private boolean resolveHomomorphic(EncryptedSum encryptedSum) {
+            long decryptedSum = encryptedSum.decrypt();
+
+            List<String> names = new ArrayList<>();
+            List<Integer> numbers = new ArrayList<>();
+            var fieldType = fieldDescriptor.getMessageType();
+            if (fieldType == DeviceDataAsset.BoolField.getDescriptor()) {
+                names.addAll(List.of("false", "true"));
+                numbers.addAll(List.of(0, 1));
+            } else if (fieldType == DeviceDataAsset.DeviceCategoryField.getDescriptor()) {
+                // Get valid enum values
+                for (DeviceCategory cat : DeviceCategory.values()) {
+                    if (cat != DeviceCategory.UNRECOGNIZED && cat != DeviceCategory.DEVICE_CATEGORY_UNSPECIFIED) {
+                        names.add(cat.name());
+                        numbers.add(cat.getNumber());
+                    }
+                }
+            } else {
+                for (MedicalSpeciality spec : MedicalSpeciality.values()) {
+                    if (spec != MedicalSpeciality.UNRECOGNIZED && spec != MedicalSpeciality.MEDICAL_SPECIALITY_UNSPECIFIED) {
+                        names.add(spec.name());
+                        numbers.add(spec.getNumber());
+                    }
+                }
             }
-        } else {
-            logger.warning("ILP solver failed for device category. Falling back to individual decryption.");
-            for (String encrypted : encryptedValues) {
-                long decrypted = encryptionService.decryptLong(encrypted, version);
-                DeviceCategory category = DeviceCategory.forNumber((int) decrypted);
-                groupedCounts.merge(category.name(), 1L, Long::sum);
+
+            var solution = solver.solve(names, numbers, decryptedSum, encryptedSum.count());
+            if (solution.isEmpty())
+                return false;
+
+            for (Map.Entry<String, Long> entry : solution.get().entrySet()) {
+                groupedCounts.merge(entry.getKey(), entry.getValue(), Long::sum);
             }
+            return true;
         }
-    }
-    
-    private void processHomomorphicMedicalSpecialities(List<String> encryptedValues, String version,
-                                                     Map<String, Long> groupedCounts) {
-        if (encryptedValues.isEmpty()) return;
-        
-        String homomorphicSum = encryptionService.homomorphicAdd(encryptedValues, version);
-        long decryptedSum = encryptionService.decryptLong(homomorphicSum, version);
-        
-        List<String> names = new ArrayList<>();
-        List<Integer> numbers = new ArrayList<>();
-        for (MedicalSpeciality spec : MedicalSpeciality.values()) {
-            if (spec != MedicalSpeciality.UNRECOGNIZED && spec != MedicalSpeciality.MEDICAL_SPECIALITY_UNSPECIFIED) {
-                names.add(spec.name());
-                numbers.add(spec.getNumber());
+
+        // Fallback: decrypt each encrypted categorical value (batched per key version)
+        private void decryptIndividually(Object fieldValue, String version) {
+            if (fieldValue instanceof DeviceDataAsset.BoolField) {
+                var field = (DeviceDataAsset.BoolField) fieldValue;
+                if (field.getFieldCase() == DeviceDataAsset.BoolField.FieldCase.ENCRYPTED) {
+                    decryption.decryptBool(field.getEncrypted(), version, value -> count(String.valueOf(value)));
+                }
+            } else if (fieldValue instanceof DeviceDataAsset.DeviceCategoryField) {
+                var field = (DeviceDataAsset.DeviceCategoryField) fieldValue;
+                if (field.getFieldCase() == DeviceDataAsset.DeviceCategoryField.FieldCase.ENCRYPTED) {
+                    decryption.decryptLong(field.getEncrypted(), version, decrypted -> count(DeviceCategory.forNumber(decrypted.intValue()).name()));
+                }
+            } else if (fieldValue instanceof DeviceDataAsset.MedicalSpecialityField) {
+                var field = (DeviceDataAsset.MedicalSpecialityField) fieldValue;
+                if (field.getFieldCase() == DeviceDataAsset.MedicalSpecialityField.FieldCase.ENCRYPTED) {
+                    decryption.decryptLong(field.getEncrypted(), version, decrypted -> count(MedicalSpeciality.forNumber(decrypted.intValue()).name()));
+                }
             }
         }
-        
-        var solution = ilpSolver.solveSystem(names, numbers, decryptedSum, encryptedValues.size());
-        
-        if (solution.isPresent()) {
-            for (Map.Entry<String, Integer> entry : solution.get().entrySet()) {
-                groupedCounts.merge(entry.getKey(), entry.getValue().longValue(), Long::sum);
-            }
-        } else {
-            logger.warning("ILP solver failed for medical speciality. Falling back to individual decryption.");
-            for (String encrypted : encryptedValues) {
-                long decrypted = encryptionService.decryptLong(encrypted, version);
-                MedicalSpeciality speciality = MedicalSpeciality.forNumber((int) decrypted);
-                groupedCounts.merge(speciality.name(), 1L, Long::sum);
-            }
+
+        @Override
+        public QueryResult finish() {
+            decryption.flush();
+            // Remove zero counts
+            groupedCounts.entrySet().removeIf(e -> e.getValue() == 0);
+
+            logger.info("Grouped count complete. Found " + groupedCounts.size() + " distinct values");
+
+            return QueryResult.newBuilder()
+                .setGroupedCountResult(QueryResult.GroupedCount.newBuilder()
+                    .putAllMap(groupedCounts)
+                    .build())
+                .build();
         }
     }
-    
-    private String extractFieldValueAsString(Object fieldValue, String version) {
-        // For non-categorical fields that need immediate decryption
+
+    private void extractFieldValueAsString(Object fieldValue, String version, BatchDecryption decryption, Consumer<String> into) {
+        // For non-categorical fields, encrypted values are decrypted one by one
         if (fieldValue instanceof DeviceDataAsset.StringField) {
             DeviceDataAsset.StringField field = (DeviceDataAsset.StringField) fieldValue;
             switch (field.getFieldCase()) {
-                case PLAIN: return field.getPlain();
-                case ENCRYPTED: 
-                    if (encryptionService == null) {
-                        throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                            "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                    }
-                    return encryptionService.decryptString(field.getEncrypted(), version);
+                case PLAIN: into.accept(field.getPlain()); break;
+                case ENCRYPTED:
+                    decryption.decryptString(field.getEncrypted(), version, into);
+                    break;
             }
         } else if (fieldValue instanceof DeviceDataAsset.IntegerField) {
             DeviceDataAsset.IntegerField field = (DeviceDataAsset.IntegerField) fieldValue;
             switch (field.getFieldCase()) {
-                case PLAIN: return String.valueOf(field.getPlain());
-                case ENCRYPTED: 
-                    if (encryptionService == null) {
-                        throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                            "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                    }
-                    return String.valueOf(encryptionService.decryptLong(field.getEncrypted(), version));
+                case PLAIN: into.accept(String.valueOf(field.getPlain())); break;
+                case ENCRYPTED:
+                    decryption.decryptLong(field.getEncrypted(), version, value -> into.accept(String.valueOf(value)));
+                    break;
             }
         } else if (fieldValue instanceof DeviceDataAsset.TimestampField) {
             DeviceDataAsset.TimestampField field = (DeviceDataAsset.TimestampField) fieldValue;
             switch (field.getFieldCase()) {
-                case PLAIN: return String.valueOf(field.getPlain().getSeconds());
-                case ENCRYPTED: 
-                    if (encryptionService == null) {
-                        throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                            "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                    }
-                    return String.valueOf(encryptionService.decryptLong(field.getEncrypted(), version));
+                case PLAIN: into.accept(String.valueOf(field.getPlain().getSeconds())); break;
+                case ENCRYPTED:
+                    decryption.decryptLong(field.getEncrypted(), version, value -> into.accept(String.valueOf(value)));
+                    break;
             }
         }
-        return null;
     }
-} 
\ No newline at end of file
+}
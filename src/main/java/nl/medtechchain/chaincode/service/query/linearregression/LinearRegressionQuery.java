@@ -1,10 +1,18 @@
 package nl.medtechchain.chaincode.service.query.linearregression;
 
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
+import nl.medtechchain.chaincode.service.encryption.BfvEncryptionService;
+import nl.medtechchain.chaincode.service.query.CiphertextArena;
+import nl.medtechchain.chaincode.service.query.CiphertextArena.CiphertextList;
+import nl.medtechchain.chaincode.service.query.EncryptedSum;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors;
 import java.util.*;
 import java.util.logging.Logger;
@@ -13,17 +21,15 @@ public class LinearRegressionQuery extends QueryProcessor {
     private static final Logger logger = Logger.getLogger(LinearRegressionQuery.class.getName());
     private static final double SECONDS_PER_DAY = 86400;
     private static final double SCALE_FACTOR = 100000; //to scale big timestamp values with BFV 
+    // encrypted BFV pairs per batched moments evaluation, enough for a chunk on every bfv_calc worker
+    private static final int MOMENTS_BATCH = EncryptionDefaults.BFV_WORKERS * EncryptionDefaults.BFV_REGRESSION_MOMENTS_CHUNK;
 
     public LinearRegressionQuery(PlatformConfig platformConfig) {
         super(platformConfig);
     }
 
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
-        if (assets == null || assets.isEmpty()) {
-            return createEmptyResult();
-        }
-
+    public QueryAccumulator accumulator(Query query) {
         var xFieldDescriptor = getFieldDescriptor(query.getXTargetField());
         var yFieldDescriptor = getFieldDescriptor(query.getYTargetField());
 
@@ -31,24 +37,69 @@ public class LinearRegressionQuery extends QueryProcessor {
             throw new IllegalArgumentException("Field descriptor is null");
         }
 
-        // Group assets by version
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
-        AccumulatedValues accumulatedValues = new AccumulatedValues();
+        // moments are kept per key version, so ciphertexts of one version are only ever added together
+        Map<String, VersionMoments> versionMoments = new HashMap<>();
+        // buffered ciphertexts live off the heap until the run ends
+        CiphertextArena arena = new CiphertextArena();
+
+        return new QueryAccumulator() {
+            @Override
+            public void accept(DeviceDataAsset asset) {
+                versionMoments.computeIfAbsent(asset.getKeyVersion(), v -> new VersionMoments(v, arena))
+                        .accept(asset, xFieldDescriptor, yFieldDescriptor);
+            }
 
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
+            @Override
+            public QueryResult finish() {
+                AccumulatedValues accumulatedValues = new AccumulatedValues();
 
-            if (versionAssets.size() < 2) {
-                logger.fine("Skipping version " + version + " with insufficient points: " + versionAssets.size());
-                continue;
+                for (VersionMoments moments : versionMoments.values()) {
+                    if (moments.assetCount < 2) {
+                        logger.fine("Skipping version " + moments.version + " with insufficient points: " + moments.assetCount);
+                        continue;
+                    }
+
+                    logger.fine("Processing regression for " + moments.assetCount + " assets with version: " + moments.version);
+                    accumulatedValues.add(moments.decrypt());
+                }
+
+                return regression(accumulatedValues);
+            }
+
+            @Override
+            public void close() {
+                arena.close();
             }
+        };
+    }
+
+    // only versions with at least two assets count, as in the scan; the rollup sums are in raw seconds
+    @Override
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        AccumulatedValues accumulatedValues = new AccumulatedValues();
 
-            logger.fine("Processing regression for " + versionAssets.size() + " assets with version: " + version);
-            AccumulatedValues vals = processVersionGroup(versionAssets, xFieldDescriptor, yFieldDescriptor, version);
-            accumulatedValues.add(vals);
+        for (Map.Entry<String, Long> version : rollup.assetCounts().entrySet()) {
+            if (version.getValue() < 2)
+                continue;
+
+            var pair = rollup.plainPair(query.getXTargetField(), query.getYTargetField(), version.getKey());
+            if (pair.isEmpty())
+                return Optional.empty();
+
+            var moments = pair.get();
+            accumulatedValues.add(
+                    moments.getSumX().doubleValue() / SCALE_FACTOR,
+                    moments.getSumY().doubleValue(),
+                    moments.getSumXY().doubleValue() / SCALE_FACTOR,
+                    moments.getSumX2().doubleValue() / (SCALE_FACTOR * SCALE_FACTOR),
+                    moments.getSumY2().doubleValue(),
+                    (int) moments.getCount());
         }
 
+        return Optional.of(regression(accumulatedValues));
+    }
+
+    private QueryResult regression(AccumulatedValues accumulatedValues) {
         if (accumulatedValues.count < 2) {
             return createEmptyResult();
         }
@@ -102,34 +153,53 @@ public class LinearRegressionQuery extends QueryProcessor {
                 .build();
     }
 
-    private AccumulatedValues processVersionGroup(
-            List<DeviceDataAsset> assets,
-            // x field assumed by design to always be a timestamp
-            Descriptors.FieldDescriptor xDesc,
-            // y field assumed by design to always be an integer
-            Descriptors.FieldDescriptor yDesc,
-            String version) {
+    // running sums of a single key version
+    private class VersionMoments {
+        final String version;
+        int assetCount = 0;
 
         double sumX = 0, sumY = 0, sumXY = 0, sumX2 = 0, sumY2 = 0;
         int count = 0;
-        boolean homomorphic = encryptionService != null && encryptionService.isHomomorphic();
-        boolean canMultiply = homomorphic && encryptionService.supportsMultiplication();
-
-        // ciphertext buckets – only used when the scheme is homomorphic
-        List<String> encXList = new ArrayList<>();
-        List<String> encYList = new ArrayList<>();
-        List<String> encXYScaled = new ArrayList<>();
-        List<String> encXYUnscaled = new ArrayList<>();
-        List<String> encX2List = new ArrayList<>();
-        List<String> encY2List = new ArrayList<>();
-
-        for (DeviceDataAsset asset : assets) {
+
+        // ciphertext sums – only used when the scheme is homomorphic
+        final EncryptedSum encX;
+        final EncryptedSum encY;
+        final EncryptedSum encXYScaled;
+        final EncryptedSum encXYUnscaled;
+        final EncryptedSum encX2;
+        final EncryptedSum encY2;
+
+        // BFV only: encrypted (x, y) pairs waiting for a batched moments evaluation
+        final CiphertextList pendingX;
+        final CiphertextList pendingY;
+
+        VersionMoments(String version, CiphertextArena arena) {
+            this.version = version;
+            this.encX = encryptedSum(version, arena);
+            this.encY = encryptedSum(version, arena);
+            this.encXYScaled = encryptedSum(version, arena);
+            this.encXYUnscaled = encryptedSum(version, arena);
+            this.encX2 = encryptedSum(version, arena);
+            this.encY2 = encryptedSum(version, arena);
+            this.pendingX = arena.newList();
+            this.pendingY = arena.newList();
+        }
+
+        void accept(DeviceDataAsset asset,
+                // x field assumed by design to always be a timestamp
+                Descriptors.FieldDescriptor xDesc,
+                // y field assumed by design to always be an integer
+                Descriptors.FieldDescriptor yDesc) {
+            assetCount++;
+            boolean homomorphic = encryptionService != null && encryptionService.isHomomorphic();
+            boolean canMultiply = homomorphic && encryptionService.supportsMultiplication();
+
             // reminder: always a timestamp!
             DeviceDataAsset.TimestampField xField = (DeviceDataAsset.TimestampField) asset.getDeviceData()
                     .getField(xDesc);
 
             Double xPlain = null;
-            String xEnc = null;
+            ByteString xEnc = null;
             if (xField != null) {
                 switch (xField.getFieldCase()) {
                     case PLAIN:
@@ -137,7 +207,7 @@ public class LinearRegressionQuery extends QueryProcessor {
                         break;
                     case ENCRYPTED:
                         if (homomorphic)
-                            xEnc = xField.getEncrypted();
+                            xEnc = xField.getEncryptedBytes();
                         else
                             xPlain = (double) encryptionService.decryptLong(
                                     xField.getEncrypted(), version) / SCALE_FACTOR;
@@ -150,7 +220,7 @@ public class LinearRegressionQuery extends QueryProcessor {
             DeviceDataAsset.IntegerField yField = (DeviceDataAsset.IntegerField) asset.getDeviceData().getField(yDesc);
 
             Double yPlain = null;
-            String yEnc = null;
+            ByteString yEnc = null;
             if (yField != null) {
                 switch (yField.getFieldCase()) {
                     case PLAIN:
@@ -158,7 +228,7 @@ public class LinearRegressionQuery extends QueryProcessor {
                         break;
                     case ENCRYPTED:
                         if (homomorphic)
-                            yEnc = yField.getEncrypted();
+                            yEnc = yField.getEncryptedBytes();
                         else
                             yPlain = (double) encryptionService.decryptLong(yField.getEncrypted(), version);
                         break;
@@ -169,7 +239,7 @@ public class LinearRegressionQuery extends QueryProcessor {
             }
             // something weird happened
             if ((xPlain == null && xEnc == null) || (yPlain == null && yEnc == null)) {
-                continue;
+                return;
             }
 
             // both plaintext
@@ -185,16 +255,23 @@ public class LinearRegressionQuery extends QueryProcessor {
             // both encrypted
             else if (homomorphic && xEnc != null && yEnc != null) {
 
-                if (canMultiply) {
-                    encXList.add(xEnc);
-                    encYList.add(yEnc);
+                if (canMultiply && encryptionService instanceof BfvEncryptionService) {
+                    // all five moments of a whole batch in one parallel evaluation instead of three multiplications per row
+                    pendingX.add(xEnc);
+                    pendingY.add(yEnc);
+                    if (pendingX.size() >= MOMENTS_BATCH)
+                        flushMoments();
+                } else if (canMultiply) {
+                    String x = xEnc.toStringUtf8(), y = yEnc.toStringUtf8();
+                    encX.add(x);
+                    encY.add(y);
                     encXYUnscaled.add(
-                            encryptionService.homomorphicMultiply(xEnc, yEnc, version));
-                    encX2List.add(encryptionService.homomorphicMultiply(xEnc, xEnc, version));
-                    encY2List.add(encryptionService.homomorphicMultiply(yEnc, yEnc, version));
+                            encryptionService.homomorphicMultiply(x, y, version));
+                    encX2.add(encryptionService.homomorphicMultiply(x, x, version));
+                    encY2.add(encryptionService.homomorphicMultiply(y, y, version));
                 } else {
-                    double x = (double) encryptionService.decryptLong(xEnc, version) / SCALE_FACTOR;
-                    double y = (double) encryptionService.decryptLong(yEnc, version);
+                    double x = (double) encryptionService.decryptLong(xEnc.toStringUtf8(), version) / SCALE_FACTOR;
+                    double y = (double) encryptionService.decryptLong(yEnc.toStringUtf8(), version);
                     sumX += x;
                     sumY += y;
                     sumXY += x * y;
@@ -211,31 +288,33 @@ public class LinearRegressionQuery extends QueryProcessor {
                 if (homomorphic && canMultiply) {
                     // x enc, y plain (x raw seconds)
                     if (xEnc != null) {
-                        encXList.add(xEnc);
+                        String x = xEnc.toStringUtf8();
+                        encX.add(x);
                         encXYUnscaled.add(
                                 encryptionService.homomorphicMultiplyWithScalar(
-                                        xEnc, Math.round(yPlain), version));
-                        encX2List.add(encryptionService.homomorphicMultiply(xEnc, xEnc, version));
+                                        x, Math.round(yPlain), version));
+                        encX2.add(encryptionService.homomorphicMultiply(x, x, version));
 
                         sumY += yPlain;
                         sumY2 += yPlain * yPlain;
                     }
                     // y enc, x plain (x already scaled)
                     if (yEnc != null) {
-                        encYList.add(yEnc);
+                        String y = yEnc.toStringUtf8();
+                        encY.add(y);
                         encXYScaled.add(
                                 encryptionService.homomorphicMultiplyWithScalar(
-                                        yEnc, Math.round(xPlain), version)); // x plain is scaled down
-                        encY2List.add(encryptionService.homomorphicMultiply(yEnc, yEnc, version));
+                                        y, Math.round(xPlain), version)); // x plain is scaled down
+                        encY2.add(encryptionService.homomorphicMultiply(y, y, version));
 
                         sumX += xPlain;
                         sumX2 += xPlain * xPlain;
                     }
                 } else {
                     if (xPlain == null)
-                        xPlain = (double) encryptionService.decryptLong(xEnc, version) / SCALE_FACTOR;
+                        xPlain = (double) encryptionService.decryptLong(xEnc.toStringUtf8(), version) / SCALE_FACTOR;
                     if (yPlain == null)
-                        yPlain = (double) encryptionService.decryptLong(yEnc, version);
+                        yPlain = (double) encryptionService.decryptLong(yEnc.toStringUtf8(), version);
 
                     sumX += xPlain;
                     sumY += yPlain;
@@ -246,54 +325,52 @@ public class LinearRegressionQuery extends QueryProcessor {
                 count++;
 
             }
-        } // end for-each asset
+        }
+
+        void flushMoments() {
+            if (pendingX.isEmpty())
+                return;
+            var moments = ((BfvEncryptionService) encryptionService).homomorphicRegressionMoments(pendingX, pendingY);
+            encX.add(moments.sumX);
+            encY.add(moments.sumY);
+            encXYUnscaled.add(moments.sumXY);
+            encX2.add(moments.sumX2);
+            encY2.add(moments.sumY2);
+            pendingX.clear();
+            pendingY.clear();
+        }
+
+        AccumulatedValues decrypt() {
+            flushMoments();
+
+            double sumX = this.sumX, sumY = this.sumY, sumXY = this.sumXY, sumX2 = this.sumX2, sumY2 = this.sumY2;
 
-        if (homomorphic) {
             // X values
-            if (!encXList.isEmpty()) {
-                String s = encXList.size() == 1 ? encXList.get(0)
-                        : encryptionService.homomorphicAdd(encXList, version);
-                sumX += (double) encryptionService.decryptLong(s, version) / SCALE_FACTOR;
-            }
+            if (!encX.isEmpty())
+                sumX += (double) encX.decrypt() / SCALE_FACTOR;
 
             // Y values, never scaled
-            if (!encYList.isEmpty()) {
-                String s = encYList.size() == 1 ? encYList.get(0)
-                        : encryptionService.homomorphicAdd(encYList, version);
-                sumY += (double) encryptionService.decryptLong(s, version);
-            }
+            if (!encY.isEmpty())
+                sumY += (double) encY.decrypt();
 
             // x * y already scaled (yEnc ⋅ xPlain)
-            if (!encXYScaled.isEmpty()) {
-                String s = encXYScaled.size() == 1 ? encXYScaled.get(0)
-                        : encryptionService.homomorphicAdd(encXYScaled, version);
-                sumXY += (double) encryptionService.decryptLong(s, version);
-            }
+            if (!encXYScaled.isEmpty())
+                sumXY += (double) encXYScaled.decrypt();
 
             // x * y un-scaled (xEnc ⋅ yEnc OR xEnc ⋅ yPlain)
-            if (!encXYUnscaled.isEmpty()) {
-                String s = encXYUnscaled.size() == 1 ? encXYUnscaled.get(0)
-                        : encryptionService.homomorphicAdd(encXYUnscaled, version);
-                sumXY += (double) encryptionService.decryptLong(s, version) / SCALE_FACTOR;
-            }
+            if (!encXYUnscaled.isEmpty())
+                sumXY += (double) encXYUnscaled.decrypt() / SCALE_FACTOR;
 
             // x2 values (raw seconds2)
-            if (!encX2List.isEmpty()) {
-                String s = encX2List.size() == 1 ? encX2List.get(0)
-                        : encryptionService.homomorphicAdd(encX2List, version);
-                sumX2 += (double) encryptionService.decryptLong(s, version)
-                        / (SCALE_FACTOR * SCALE_FACTOR);
-            }
+            if (!encX2.isEmpty())
+                sumX2 += (double) encX2.decrypt() / (SCALE_FACTOR * SCALE_FACTOR);
 
             // y2 values (never scaled)
-            if (!encY2List.isEmpty()) {
-                String s = encY2List.size() == 1 ? encY2List.get(0)
-                        : encryptionService.homomorphicAdd(encY2List, version);
-                sumY2 += (double) encryptionService.decryptLong(s, version);
-            }
-        }
+            if (!encY2.isEmpty())
+                sumY2 += (double) encY2.decrypt();
 
-        return new AccumulatedValues(sumX, sumY, sumXY, sumX2, sumY2, count);
+            return new AccumulatedValues(sumX, sumY, sumXY, sumX2, sumY2, count);
+        }
     }
 
     private static class AccumulatedValues {
@@ -1,5 +1,11 @@
 package nl.medtechchain.chaincode.service.query.standarddeviation;
 
+import nl.medtechchain.chaincode.service.query.CiphertextArena;
+import nl.medtechchain.chaincode.service.query.CiphertextArena.CiphertextList;
+import nl.medtechchain.chaincode.service.query.EncryptedSum;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.chaincode.service.query.PackedSum;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.query.QueryResult;
@@ -7,189 +13,198 @@ import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.QueryResult.MeanAndStd;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
 import nl.medtechchain.chaincode.service.encryption.BfvEncryptionService;
-import nl.medtechchain.chaincode.service.encryption.PaillierEncryptionService;
-import nl.medtechchain.proto.devicedata.DeviceCategory;
- 
+import nl.medtechchain.chaincode.service.encryption.BfvPackedCiphertext;
+
 
 public class STDQuery extends QueryProcessor {
 
+    // BFV ciphertexts per fused Σ(x - m)² call, enough for a chunk on every bfv_calc worker
+    private static final int SQUARED_DIFFERENCES_BATCH = EncryptionDefaults.BFV_WORKERS * EncryptionDefaults.BFV_SQUARED_DIFFERENCES_CHUNK;
+
     public STDQuery(PlatformConfig platformConfig) {
         super(platformConfig);
     }
 
+    // same population definition as the scan: the mean is taken over all assets, the squared differences over the set values
+    // Σ(x - m)² = Σx² - 2mΣx + nm² with m = S/N, kept exact as (N²Σx² - 2NS² + nS²) / N³
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
-        var fieldDescriptor = getFieldDescriptor(query.getTargetField());
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        return rollup.plainField(query.getTargetField()).map(moments -> {
+            long assetCount = rollup.assetCount();
+            double mean = 0;
+            double std = 0;
+            if (assetCount > 0) {
+                var n = BigInteger.valueOf(moments.getCount());
+                var total = BigInteger.valueOf(assetCount);
+                var sum = moments.getSum();
+                var sumSquared = sum.multiply(sum);
+
+                var numerator = total.multiply(total).multiply(moments.getSumSquares())
+                        .subtract(BigInteger.TWO.multiply(total).multiply(sumSquared))
+                        .add(n.multiply(sumSquared));
+                var variance = new BigDecimal(numerator).divide(new BigDecimal(total.pow(3)), MathContext.DECIMAL64);
+
+                mean = (double) sum.longValue() / assetCount;
+                std = Math.sqrt(Math.max(variance.doubleValue(), 0));
+            }
 
-        double mean = calculatePopulationMean(query, assets, fieldDescriptor);
-        double std = calculateSTD(query, assets, fieldDescriptor, mean);
+            MeanAndStd meanAndStd = MeanAndStd.newBuilder().setMean(mean).setStd(std).build();
+            return QueryResult.newBuilder().setMeanStd(meanAndStd).build();
+        });
+    }
 
-        MeanAndStd meanAndStd = MeanAndStd.newBuilder().setMean(mean).setStd(std).build();
-        return QueryResult.newBuilder().setMeanStd(meanAndStd).build();
+    @Override
+    public QueryAccumulator accumulator(Query query) {
+        return new STDAccumulator(getFieldDescriptor(query.getTargetField()));
     }
 
+    // First pass sums up the values for the population mean, second pass sums the squared differences from it
+    private class STDAccumulator implements QueryAccumulator {
+        private final Descriptors.FieldDescriptor fieldDescriptor;
 
+        private long assetCount = 0;
+        private boolean meanKnown = false;
+        private double mean = 0;
 
-    // a helper method to calculate mean homomorphically
-    private double calculatePopulationMean(Query query, List<DeviceDataAsset> assets, 
-    Descriptors.FieldDescriptor fieldDescriptor) {
-        if (assets.size() == 0)
-            return 0;
+        private long plainSum = 0;
+        private final Map<String, EncryptedSum> encryptedSums = new HashMap<>();
 
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
+        private double plainStd = 0;
+        // BFV only: squared differences are summed under encryption, ciphertexts wait per version for a full batch
+        private final Map<String, EncryptedSum> encryptedSquares = new HashMap<>();
+        private final Map<String, CiphertextList> pendingSquares = new HashMap<>();
+        // buffered ciphertexts live off the heap until the run ends
+        private final CiphertextArena arena = new CiphertextArena();
 
-        long sum = 0;
+        // packed ciphertexts: Σx and Σx² slotwise in the first pass, Σ(x - m)² = Σx² - 2mΣx + nm² in the end
+        private final Map<String, PackedSum> packedSums = new HashMap<>();
+        private final Map<String, PackedSum> packedSquares = new HashMap<>();
+        private long packedSum = 0;
 
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
-            
-            logger.fine("Processing mean for " + versionAssets.size() + " assets with version: " + version);
-            sum += processSumVersionGroup(versionAssets, fieldDescriptor, version);
+        STDAccumulator(Descriptors.FieldDescriptor fieldDescriptor) {
+            this.fieldDescriptor = fieldDescriptor;
         }
-        
-        logger.info("Total sum across all versions: " + sum);
-
 
-        return (double) sum / assets.size();
-    }
-
-    
-    // a helper method to calculate std homomorphically
-    private double calculateSTD(Query query, List<DeviceDataAsset> assets, 
-    Descriptors.FieldDescriptor fieldDescriptor, double mean) {
-        if (assets.size() == 0)
-            return 0;
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
-
-        double std = 0;
-
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
-            
-            logger.fine("Processing std for " + versionAssets.size() + " assets with version: " + version);
-            std += processSTDVersionGroup(versionAssets, fieldDescriptor, version, mean);
+        @Override
+        public void accept(DeviceDataAsset asset) {
+            if (meanKnown)
+                acceptSquaredDifference(asset);
+            else
+                acceptSum(asset);
         }
-        
-        logger.info("Total std across all versions: " + std);
 
-        double variance = std / assets.size();
-        return Math.sqrt(variance);
-    }
+        @Override
+        public boolean nextPass() {
+            if (meanKnown || assetCount == 0)
+                return false;
+
+            long sum = plainSum;
+            for (Map.Entry<String, EncryptedSum> entry : encryptedSums.entrySet()) {
+                long versionSum = entry.getValue().decrypt();
+                logger.fine("Sum for version " + entry.getKey() + ": " + versionSum);
+                sum += versionSum;
+            }
+            for (Map.Entry<String, PackedSum> entry : packedSums.entrySet()) {
+                long versionSum = entry.getValue().decrypt();
+                logger.fine("Packed sum for version " + entry.getKey() + ": " + versionSum);
+                packedSum += versionSum;
+            }
+            sum += packedSum;
+            logger.info("Total sum across all versions: " + sum);
 
+            mean = (double) sum / assetCount;
+            meanKnown = true;
+            return true;
+        }
 
-    // sums the fields of the assets with the same key version
-    private long processSumVersionGroup(List<DeviceDataAsset> assets, 
-                                    Descriptors.FieldDescriptor fieldDescriptor, 
-                                    String version) {
-        if (assets.size() == 0)
-            return 0;
-        long plainSum = 0;
-        List<String> encryptedValues = new ArrayList<>();
-        
-        for (DeviceDataAsset asset : assets) {
+        // sums the fields of the assets, encrypted ones per key version
+        private void acceptSum(DeviceDataAsset asset) {
+            assetCount++;
+            String version = asset.getKeyVersion();
             // Get the field value using protobuf reflection
             var fieldType = asset.getDeviceData().getField(fieldDescriptor);
-            
-            if (fieldType instanceof  DeviceDataAsset.IntegerField) {
+
+            if (fieldType instanceof DeviceDataAsset.IntegerField) {
                 var fieldValue = (DeviceDataAsset.IntegerField) fieldType;
-                            
+
                 switch (fieldValue.getFieldCase()) {
                     case PLAIN:
                         plainSum += fieldValue.getPlain();
                         break;
-                        
+
                     case ENCRYPTED:
-                        if (encryptionService == null) {
-                            throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                                "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                        }
-                        if (encryptionService.isHomomorphic()) {
-                            // Collect encrypted values for homomorphic addition
-                            encryptedValues.add(fieldValue.getEncrypted());
-                        } else {
-                            // Non-homomorphic: decrypt and add to plain sum
-                            plainSum += encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                        }
+                        acceptEncryptedSum(fieldValue.getEncryptedBytes(), version);
                         break;
-                        
+
                     case FIELD_NOT_SET:
                         // Skip assets with no value for this field
                         logger.fine("Skipping asset with no value for field: " + fieldDescriptor.getName());
                         break;
                 }
-            }
-            else if (fieldType instanceof DeviceDataAsset.TimestampField) {
+            } else if (fieldType instanceof DeviceDataAsset.TimestampField) {
                 var fieldValue = (DeviceDataAsset.TimestampField) fieldType;
 
                 switch (fieldValue.getFieldCase()) {
                     case PLAIN:
                         plainSum += fieldValue.getPlain().getSeconds();
                         break;
-                        
+
                     case ENCRYPTED:
-                        if (encryptionService == null) {
-                            throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                                "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                        }
-                        if (encryptionService.isHomomorphic()) {
-                            // Collect encrypted values for homomorphic addition
-                            encryptedValues.add(fieldValue.getEncrypted());
-                        } else {
-                            // Non-homomorphic: decrypt and add to plain sum
-                            plainSum += encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                        }
+                        acceptEncryptedSum(fieldValue.getEncryptedBytes(), version);
                         break;
-                        
+
                     case FIELD_NOT_SET:
                         // Skip assets with no value for this field
                         logger.fine("Skipping asset with no value for field: " + fieldDescriptor.getName());
                         break;
                 }
-                
             }
-
         }
-        
-        // Handle encrypted values if any
-        if (!encryptedValues.isEmpty()) {
-            String encryptedSum;
-            
-            if (encryptedValues.size() == 1) {
-                encryptedSum = encryptedValues.get(0);
+
+        private void acceptEncryptedSum(ByteString ciphertext, String version) {
+            if (encryptionService == null) {
+                throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
+                    "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
+            }
+            if (isPacked(ciphertext)) {
+                acceptPacked(ciphertext.toStringUtf8(), version);
+            } else if (encryptionService.isHomomorphic()) {
+                // Collect encrypted values for homomorphic addition
+                encryptedSums.computeIfAbsent(version, v -> encryptedSum(v, arena)).add(ciphertext);
             } else {
-                // Use homomorphic addition to sum all encrypted values
-                encryptedSum = encryptionService.homomorphicAdd(encryptedValues, version);
+                // Non-homomorphic: decrypt and add to plain sum
+                plainSum += encryptionService.decryptLong(ciphertext.toStringUtf8(), version);
             }
-            
-            // Decrypt the final sum and add to plain sum
-            plainSum += encryptionService.decryptLong(encryptedSum, version);
         }
-        
-        logger.fine("Sum for version " + version + ": " + plainSum);
-        return plainSum;
-    }
-
-    private double processSTDVersionGroup(List<DeviceDataAsset> assets, 
-                                    Descriptors.FieldDescriptor fieldDescriptor, 
-                                    String version, double mean) {
-        if (assets.size() == 0)
-            return 0;
-        double plainStd = 0;
-        List<String> encryptedValues = new ArrayList<>();
 
+        private void acceptPacked(String packed, String version) {
+            if (!encryptionService.supportsMultiplication())
+                throw new IllegalStateException("Packed ciphertexts need an encryption service with multiplication for the std");
+            long values = BfvPackedCiphertext.values(packed);
+            String ciphertext = BfvPackedCiphertext.ciphertext(packed);
+            // the asset stands for all of its values, acceptSum counted it once already
+            assetCount += values - 1;
+            packedSums.computeIfAbsent(version, v -> packedSum(v)).add(ciphertext, values);
+            packedSquares.computeIfAbsent(version, v -> packedSum(v))
+                    .add(encryptionService.homomorphicMultiply(ciphertext, ciphertext, version), values);
+        }
 
-        for (DeviceDataAsset asset : assets) {
+        private void acceptSquaredDifference(DeviceDataAsset asset) {
+            String version = asset.getKeyVersion();
             var fieldType = asset.getDeviceData().getField(fieldDescriptor);
-            
+
             if (fieldType instanceof DeviceDataAsset.IntegerField) {
                 var fieldValue = (DeviceDataAsset.IntegerField) fieldType;
 
@@ -197,32 +212,11 @@ public class STDQuery extends QueryProcessor {
                     case PLAIN:
                         plainStd += (fieldValue.getPlain() - mean) * (fieldValue.getPlain() - mean);
                         break;
-                        
+
                     case ENCRYPTED:
-                        if (encryptionService == null) {
-                            throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                                "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                        }
-                        if (encryptionService.isHomomorphic()) {
-                           if (encryptionService instanceof PaillierEncryptionService) {
-                                long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                                plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                            } 
-                            else if (encryptionService instanceof BfvEncryptionService) {
-                                encryptedValues.add(fieldValue.getEncrypted());
-                            }
-                            else {
-                                long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                                plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                                // throw new IllegalStateException("the homomorphic encryption scheme of the data field is not recognized in chaincode");
-                            }
-                        } else {
-                            // Non-homomorphic: decrypt and add to plain sum
-                            long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                            plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                        }
+                        acceptEncryptedSquaredDifference(fieldValue.getEncryptedBytes(), version);
                         break;
-                        
+
                     case FIELD_NOT_SET:
                         // Skip assets with no value for this field
                         logger.fine("Skipping asset with no value for field: " + fieldDescriptor.getName());
@@ -235,69 +229,83 @@ public class STDQuery extends QueryProcessor {
                     case PLAIN:
                         plainStd += (fieldValue.getPlain().getSeconds() - mean) * (fieldValue.getPlain().getSeconds() - mean);
                         break;
-                        
+
                     case ENCRYPTED:
-                        if (encryptionService == null) {
-                            throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                                "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                        }
-                        if (encryptionService.isHomomorphic()) {
-                            if (encryptionService instanceof PaillierEncryptionService) {
-                                long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                                plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                            } 
-                            else if (encryptionService instanceof BfvEncryptionService) {
-                                encryptedValues.add(fieldValue.getEncrypted());
-                            }
-                            else {
-                                long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                                plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                                // throw new IllegalStateException("the homomorphic encryption scheme of the data field is not recognized in chaincode");
-                            }
-                            
-                        } else {
-                            // Non-homomorphic: decrypt and add to plain sum
-                            long decrypted = encryptionService.decryptLong(fieldValue.getEncrypted(), version);
-                            plainStd += ((double) decrypted - mean) * (decrypted - mean);
-                        }
+                        acceptEncryptedSquaredDifference(fieldValue.getEncryptedBytes(), version);
                         break;
-                        
+
                     case FIELD_NOT_SET:
                         // Skip assets with no value for this field
                         logger.fine("Skipping asset with no value for field: " + fieldDescriptor.getName());
                         break;
                 }
+            }
+        }
 
+        private void acceptEncryptedSquaredDifference(ByteString ciphertext, String version) {
+            if (encryptionService == null) {
+                throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
+                    "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
+            }
+            if (isPacked(ciphertext)) {
+                // already squared in the first pass
+                return;
+            }
+            if (encryptionService.isHomomorphic() && encryptionService instanceof BfvEncryptionService) {
+                // BFV: Σ(x - mean)^2 is computed under encryption per version, a batch at a time
+                var pending = pendingSquares.computeIfAbsent(version, v -> arena.newList());
+                pending.add(ciphertext);
+                if (pending.size() >= SQUARED_DIFFERENCES_BATCH)
+                    flushSquaredDifferences(version, pending);
+            } else {
+                // Paillier, unknown or non-homomorphic schemes: decrypt and add to plain std
+                long decrypted = encryptionService.decryptLong(ciphertext.toStringUtf8(), version);
+                plainStd += ((double) decrypted - mean) * (decrypted - mean);
             }
-            // Get the field value using protobuf reflection
-            
         }
-        
-        // TODO: If BFV implemented
-        // mean should be encrypted with BFV
-        // homomorphic subtraction and multiplication methods should be implemented
-        // no key versioning is used
-        if (!encryptedValues.isEmpty() && encryptionService instanceof BfvEncryptionService) {
+
+        private void flushSquaredDifferences(String version, CiphertextList pending) {
+            if (pending.isEmpty())
+                return;
             BfvEncryptionService bfvService = (BfvEncryptionService) encryptionService;
-            String encryptedSTD;
-            
-            // calculates the first square of difference to be able to add
-            encryptedSTD = encryptedValues.get(0);
-            encryptedSTD = bfvService.homomorphicSubWithScalar(encryptedSTD, (long) mean);
-            encryptedSTD = bfvService.homomorphicMultiply(encryptedSTD, encryptedSTD, version);
-            // Use homomorphic addition to sum all encrypted values
-            for (int i = 1; i < encryptedValues.size(); i++) {
-                String ciphertext = encryptedValues.get(i);
-                String subtraction = bfvService.homomorphicSubWithScalar(ciphertext, (long) mean);
-                String squared = bfvService.homomorphicMultiply(subtraction, subtraction, version);
-                encryptedSTD = bfvService.homomorphicAdd(List.of(squared, encryptedSTD), version);
-            }            
-            // Decrypt the final sum and add to plain sum
-            plainStd += encryptionService.decryptLong(encryptedSTD, version);
+            String squares = bfvService.homomorphicSumSquaredDifferences(pending, (long) mean);
+            encryptedSquares.computeIfAbsent(version, v -> encryptedSum(v)).add(squares);
+            pending.clear();
         }
 
-        logger.fine("Std for version " + version + ": " + plainStd);
+        @Override
+        public QueryResult finish() {
+            pendingSquares.forEach(this::flushSquaredDifferences);
+
+            double std = 0;
+            if (assetCount > 0) {
+                double squaredDifferences = plainStd;
+                for (Map.Entry<String, EncryptedSum> entry : encryptedSquares.entrySet()) {
+                    long versionStd = entry.getValue().decrypt();
+                    logger.fine("Std for version " + entry.getKey() + ": " + versionStd);
+                    squaredDifferences += versionStd;
+                }
+                long packedCount = 0;
+                for (Map.Entry<String, PackedSum> entry : packedSquares.entrySet()) {
+                    long versionSquares = entry.getValue().decrypt();
+                    logger.fine("Packed sum of squares for version " + entry.getKey() + ": " + versionSquares);
+                    squaredDifferences += versionSquares;
+                    packedCount += entry.getValue().count();
+                }
+                squaredDifferences += packedCount * mean * mean - 2 * mean * packedSum;
+                logger.info("Total std across all versions: " + squaredDifferences);
 
-        return plainStd;
+                double variance = squaredDifferences / assetCount;
+                std = Math.sqrt(variance);
+            }
+
+            MeanAndStd meanAndStd = MeanAndStd.newBuilder().setMean(mean).setStd(std).build();
+            return QueryResult.newBuilder().setMeanStd(meanAndStd).build();
+        }
+
+        @Override
+        public void close() {
+            arena.close();
+        }
     }
-}
\ No newline at end of file
+}
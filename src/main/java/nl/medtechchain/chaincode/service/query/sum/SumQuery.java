@@ -1,97 +1,110 @@
 package nl.medtechchain.chaincode.service.query.sum;
 
 import com.google.protobuf.Descriptors;
+import nl.medtechchain.chaincode.service.query.CiphertextArena;
+import nl.medtechchain.chaincode.service.query.EncryptedSum;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.chaincode.service.query.PackedSum;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
 import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 // Sums up integer fields - handles mixed plain/encrypted data
 public class SumQuery extends QueryProcessor {
-    
+
     public SumQuery(PlatformConfig platformConfig) {
         super(platformConfig);
     }
-    
+
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
-        var fieldDescriptor = getFieldDescriptor(query.getTargetField());
-        
-        // Group by version for optimal homomorphic operations
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
-        
-        long totalSum = 0;
-        
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
-            
-            logger.fine("Processing sum for " + versionAssets.size() + " assets with version: " + version);
-            
-            totalSum += processVersionGroup(versionAssets, fieldDescriptor, version);
-        }
-        
-        logger.info("Total sum across all versions: " + totalSum);
-        return QueryResult.newBuilder().setSumResult(totalSum).build();
+    public Optional<QueryResult> fromRollup(Query query, MomentRollup rollup) {
+        return rollup.plainField(query.getTargetField())
+                .map(moments -> QueryResult.newBuilder().setSumResult(moments.getSum().longValue()).build());
+    }
+
+    @Override
+    public QueryAccumulator accumulator(Query query) {
+        return new SumAccumulator(getFieldDescriptor(query.getTargetField()));
     }
-    
-    private long processVersionGroup(List<DeviceDataAsset> assets, 
-                                    Descriptors.FieldDescriptor fieldDescriptor, 
-                                    String version) {
-        long plainSum = 0;
-        List<String> encryptedValues = new ArrayList<>();
-        
-        for (DeviceDataAsset asset : assets) {
+
+    private class SumAccumulator implements QueryAccumulator {
+        private final Descriptors.FieldDescriptor fieldDescriptor;
+
+        // encrypted values are summed per key version for optimal homomorphic operations
+        private final Map<String, EncryptedSum> encryptedSums = new HashMap<>();
+        // packed ciphertexts are summed slotwise per key version, their slots only once at the end
+        private final Map<String, PackedSum> packedSums = new HashMap<>();
+        private long plainSum = 0;
+        // buffered ciphertexts live off the heap until the run ends
+        private final CiphertextArena arena = new CiphertextArena();
+
+        SumAccumulator(Descriptors.FieldDescriptor fieldDescriptor) {
+            this.fieldDescriptor = fieldDescriptor;
+        }
+
+        @Override
+        public void accept(DeviceDataAsset asset) {
             // Get the field value using protobuf reflection
             var fieldValue = (DeviceDataAsset.IntegerField) asset.getDeviceData().getField(fieldDescriptor);
-            
+
             switch (fieldValue.getFieldCase()) {
                 case PLAIN:
                     plainSum += fieldValue.getPlain();
                     break;
-                    
+
                 case ENCRYPTED:
                     if (encryptionService == null) {
                         throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
                             "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
                     }
-                    if (encryptionService.isHomomorphic()) {
+                    if (isPacked(fieldValue.getEncryptedBytes())) {
+                        packedSums.computeIfAbsent(asset.getKeyVersion(), v -> packedSum(v)).add(fieldValue.getEncrypted());
+                    } else if (encryptionService.isHomomorphic()) {
                         // Collect encrypted values for homomorphic addition
-                        encryptedValues.add(fieldValue.getEncrypted());
+                        encryptedSums.computeIfAbsent(asset.getKeyVersion(), v -> encryptedSum(v, arena)).add(fieldValue.getEncryptedBytes());
                     } else {
                         // Non-homomorphic: decrypt and add to plain sum
-                        plainSum += encryptionService.decryptLong(fieldValue.getEncrypted(), version);
+                        plainSum += encryptionService.decryptLong(fieldValue.getEncrypted(), asset.getKeyVersion());
                     }
                     break;
-                    
+
                 case FIELD_NOT_SET:
                     // Skip assets with no value for this field
                     logger.fine("Skipping asset with no value for field: " + fieldDescriptor.getName());
                     break;
             }
         }
-        
-        // Handle encrypted values if any
-        if (!encryptedValues.isEmpty()) {
-            String encryptedSum;
-            
-            if (encryptedValues.size() == 1) {
-                encryptedSum = encryptedValues.get(0);
-            } else {
-                // Use homomorphic addition to sum all encrypted values
-                encryptedSum = encryptionService.homomorphicAdd(encryptedValues, version);
+
+        @Override
+        public QueryResult finish() {
+            long totalSum = plainSum;
+
+            // Decrypt the homomorphic sum of every version and add to plain sum
+            for (Map.Entry<String, EncryptedSum> entry : encryptedSums.entrySet()) {
+                long versionSum = entry.getValue().decrypt();
+                logger.fine("Encrypted sum for version " + entry.getKey() + ": " + versionSum);
+                totalSum += versionSum;
+            }
+            for (Map.Entry<String, PackedSum> entry : packedSums.entrySet()) {
+                long versionSum = entry.getValue().decrypt();
+                logger.fine("Packed sum of " + entry.getValue().count() + " values for version " + entry.getKey() + ": " + versionSum);
+                totalSum += versionSum;
             }
-            
-            // Decrypt the final sum and add to plain sum
-            plainSum += encryptionService.decryptLong(encryptedSum, version);
+
+            logger.info("Total sum across all versions: " + totalSum);
+            return QueryResult.newBuilder().setSumResult(totalSum).build();
+        }
+
+        @Override
+        public void close() {
+            arena.close();
         }
-        
-        logger.fine("Sum for version " + version + ": " + plainSum);
-        return plainSum;
     }
-} 
\ No newline at end of file
+}
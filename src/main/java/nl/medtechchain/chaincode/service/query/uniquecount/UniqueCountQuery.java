@@ -1,6 +1,8 @@
 package nl.medtechchain.chaincode.service.query.uniquecount;
 
 import com.google.protobuf.Descriptors;
+import nl.medtechchain.chaincode.service.query.BatchDecryption;
+import nl.medtechchain.chaincode.service.query.QueryAccumulator;
 import nl.medtechchain.chaincode.service.query.QueryProcessor;
 import nl.medtechchain.proto.config.PlatformConfig;
 import nl.medtechchain.proto.devicedata.DeviceDataAsset;
@@ -8,9 +10,8 @@ import nl.medtechchain.proto.query.Query;
 import nl.medtechchain.proto.query.QueryResult;
 
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 // Counts unique values in a field
 public class UniqueCountQuery extends QueryProcessor {
@@ -20,164 +21,135 @@ public class UniqueCountQuery extends QueryProcessor {
     }
     
     @Override
-    public QueryResult process(Query query, List<DeviceDataAsset> assets) {
+    public QueryAccumulator accumulator(Query query) {
         var fieldDescriptor = getFieldDescriptor(query.getTargetField());
         if (fieldDescriptor == null) {
             throw new IllegalArgumentException("Unknown target field: " + query.getTargetField());
         }
-        
-        // Group by version for optimal processing
-        Map<String, List<DeviceDataAsset>> versionGroups = groupByVersion(assets);
-        
+
         // Collect all unique values across all versions
         Set<String> uniqueValues = new HashSet<>();
-        
-        for (Map.Entry<String, List<DeviceDataAsset>> entry : versionGroups.entrySet()) {
-            String version = entry.getKey();
-            List<DeviceDataAsset> versionAssets = entry.getValue();
-            
-            logger.fine("Processing " + versionAssets.size() + " assets with version: " + version);
-            
-            processVersionGroup(versionAssets, fieldDescriptor, version, uniqueValues);
-        }
-        
-        int uniqueCount = uniqueValues.size();
-        logger.info("Unique count for field " + query.getTargetField() + ": " + uniqueCount);
-        
-        return QueryResult.newBuilder().setCountResult(uniqueCount).build();
-    }
-    
-    private void processVersionGroup(List<DeviceDataAsset> assets, 
-                                   Descriptors.FieldDescriptor fieldDescriptor,
-                                   String version,
-                                   Set<String> uniqueValues) {
-        
-        for (DeviceDataAsset asset : assets) {
-            String value = extractFieldValue(asset, fieldDescriptor, version);
-            if (value != null) {
-                uniqueValues.add(value);
+        // encrypted values are decrypted in batches, they reach the set once their batch is done
+        BatchDecryption decryption = new BatchDecryption(encryptionService);
+
+        return new QueryAccumulator() {
+            @Override
+            public void accept(DeviceDataAsset asset) {
+                extractFieldValue(asset, fieldDescriptor, asset.getKeyVersion(), decryption, uniqueValues::add);
             }
-        }
+
+            @Override
+            public QueryResult finish() {
+                decryption.flush();
+                int uniqueCount = uniqueValues.size();
+                logger.info("Unique count for field " + query.getTargetField() + ": " + uniqueCount);
+
+                return QueryResult.newBuilder().setCountResult(uniqueCount).build();
+            }
+        };
     }
     
-    private String extractFieldValue(DeviceDataAsset asset, 
+    // hands the value to into, right away if it's plaintext and once decrypted otherwise
+    private void extractFieldValue(DeviceDataAsset asset,
                                    Descriptors.FieldDescriptor fieldDescriptor,
-                                   String version) {
+                                   String version,
+                                   BatchDecryption decryption,
+                                   Consumer<String> into) {
         Object fieldValue = asset.getDeviceData().getField(fieldDescriptor);
         
         // Handle different field types
         if (fieldValue instanceof DeviceDataAsset.StringField) {
-            return extractStringValue((DeviceDataAsset.StringField) fieldValue, version);
+            extractStringValue((DeviceDataAsset.StringField) fieldValue, version, decryption, into);
         } else if (fieldValue instanceof DeviceDataAsset.IntegerField) {
-            return extractIntegerValue((DeviceDataAsset.IntegerField) fieldValue, version);
+            extractIntegerValue((DeviceDataAsset.IntegerField) fieldValue, version, decryption, into);
         } else if (fieldValue instanceof DeviceDataAsset.BoolField) {
-            return extractBoolValue((DeviceDataAsset.BoolField) fieldValue, version);
+            extractBoolValue((DeviceDataAsset.BoolField) fieldValue, version, decryption, into);
         } else if (fieldValue instanceof DeviceDataAsset.TimestampField) {
-            return extractTimestampValue((DeviceDataAsset.TimestampField) fieldValue, version);
+            extractTimestampValue((DeviceDataAsset.TimestampField) fieldValue, version, decryption, into);
         } else if (fieldValue instanceof DeviceDataAsset.DeviceCategoryField) {
-            return extractDeviceCategoryValue((DeviceDataAsset.DeviceCategoryField) fieldValue, version);
+            extractDeviceCategoryValue((DeviceDataAsset.DeviceCategoryField) fieldValue, version, decryption, into);
         } else if (fieldValue instanceof DeviceDataAsset.MedicalSpecialityField) {
-            return extractMedicalSpecialityValue((DeviceDataAsset.MedicalSpecialityField) fieldValue, version);
+            extractMedicalSpecialityValue((DeviceDataAsset.MedicalSpecialityField) fieldValue, version, decryption, into);
         }
-        
-        return null;
     }
     
-    private String extractStringValue(DeviceDataAsset.StringField field, String version) {
+    private void extractStringValue(DeviceDataAsset.StringField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return field.getPlain();
+                into.accept(field.getPlain());
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                return encryptionService.decryptString(field.getEncrypted(), version);
+                decryption.decryptString(field.getEncrypted(), version, into);
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
     
-    private String extractIntegerValue(DeviceDataAsset.IntegerField field, String version) {
+    private void extractIntegerValue(DeviceDataAsset.IntegerField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return String.valueOf(field.getPlain());
+                into.accept(String.valueOf(field.getPlain()));
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                return String.valueOf(encryptionService.decryptLong(field.getEncrypted(), version));
+                decryption.decryptLong(field.getEncrypted(), version, value -> into.accept(String.valueOf(value)));
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
     
-    private String extractBoolValue(DeviceDataAsset.BoolField field, String version) {
+    private void extractBoolValue(DeviceDataAsset.BoolField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return String.valueOf(field.getPlain());
+                into.accept(String.valueOf(field.getPlain()));
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                return String.valueOf(encryptionService.decryptBool(field.getEncrypted(), version));
+                decryption.decryptBool(field.getEncrypted(), version, value -> into.accept(String.valueOf(value)));
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
     
-    private String extractTimestampValue(DeviceDataAsset.TimestampField field, String version) {
+    private void extractTimestampValue(DeviceDataAsset.TimestampField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return String.valueOf(field.getPlain().getSeconds());
+                into.accept(String.valueOf(field.getPlain().getSeconds()));
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                return String.valueOf(encryptionService.decryptLong(field.getEncrypted(), version));
+                decryption.decryptLong(field.getEncrypted(), version, value -> into.accept(String.valueOf(value)));
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
     
-    private String extractDeviceCategoryValue(DeviceDataAsset.DeviceCategoryField field, String version) {
+    private void extractDeviceCategoryValue(DeviceDataAsset.DeviceCategoryField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return field.getPlain().name();
+                into.accept(field.getPlain().name());
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                long decrypted = encryptionService.decryptLong(field.getEncrypted(), version);
-                return nl.medtechchain.proto.devicedata.DeviceCategory.forNumber((int) decrypted).name();
+                decryption.decryptLong(field.getEncrypted(), version,
+                        decrypted -> into.accept(nl.medtechchain.proto.devicedata.DeviceCategory.forNumber(decrypted.intValue()).name()));
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
     
-    private String extractMedicalSpecialityValue(DeviceDataAsset.MedicalSpecialityField field, String version) {
+    private void extractMedicalSpecialityValue(DeviceDataAsset.MedicalSpecialityField field, String version, BatchDecryption decryption, Consumer<String> into) {
         switch (field.getFieldCase()) {
             case PLAIN:
-                return field.getPlain().name();
+                into.accept(field.getPlain().name());
+                break;
             case ENCRYPTED:
-                if (encryptionService == null) {
-                    throw new IllegalStateException("Found encrypted data but no encryption service configured. " +
-                        "Set CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME to 'paillier' or 'bfv'.");
-                }
-                long decrypted = encryptionService.decryptLong(field.getEncrypted(), version);
-                return nl.medtechchain.proto.devicedata.MedicalSpeciality.forNumber((int) decrypted).name();
+                decryption.decryptLong(field.getEncrypted(), version,
+                        decrypted -> into.accept(nl.medtechchain.proto.devicedata.MedicalSpeciality.forNumber(decrypted.intValue()).name()));
+                break;
             case FIELD_NOT_SET:
-                return null;
+                break;
         }
-        return null;
     }
 } 
\ No newline at end of file
@@ -0,0 +1,204 @@
+package nl.medtechchain.chaincode.service.solver;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+// Counts per value of a categorical domain from the homomorphic sum of the encrypted values and their count:
+// x_i >= 0 with Σx_i = count and Σ(number_i * x_i) = sum, the same system ILPSolver solves, without a MIP per call
+//
+// two values:        closed form, the solution is unique
+// consecutive range: greedy, every sum between count * min and count * max is reachable
+// anything else:     DP over (values taken, sum) as long as the table stays small, OR-Tools beyond that
+//
+// with more than two values there can be several solutions, like the ILP any one of them is returned.
+// solutions are cached per (domain, sum, count), the OR-Tools natives are only loaded if the fallback is ever needed
+public class CategoryCountSolver {
+
+    private static final int CACHE_SIZE = 1024;
+    // (values taken, sum) states the DP may visit
+    private static final long DP_STATE_LIMIT = 1 << 22;
+
+    private final long dpStateLimit;
+    private final Fallback fallback;
+    private final Map<Key, Optional<Map<String, Long>>> cache;
+
+    public CategoryCountSolver() {
+        this(CACHE_SIZE, DP_STATE_LIMIT, CategoryCountSolver::solveWithOrTools);
+    }
+
+    CategoryCountSolver(int cacheSize, long dpStateLimit, Fallback fallback) {
+        this.dpStateLimit = dpStateLimit;
+        this.fallback = fallback;
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Optional<Map<String, Long>>> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    public Optional<Map<String, Long>> solve(List<String> names, List<Integer> numbers, long sum, long count) {
+        if (names.size() != numbers.size())
+            throw new IllegalArgumentException("Every value needs a number");
+
+        var key = new Key(List.copyOf(names), List.copyOf(numbers), sum, count);
+        var cached = cache.get(key);
+        if (cached != null)
+            return cached;
+
+        var solution = compute(key.names, key.numbers, sum, count).map(Collections::unmodifiableMap);
+        cache.put(key, solution);
+        return solution;
+    }
+
+    private Optional<Map<String, Long>> compute(List<String> names, List<Integer> numbers, long sum, long count) {
+        if (count < 0 || names.isEmpty())
+            return Optional.empty();
+
+        int min = Collections.min(numbers);
+        int max = Collections.max(numbers);
+        // the sum has to be reachable at all
+        if (sum < count * min || sum > count * max)
+            return Optional.empty();
+
+        if (min == max) {
+            // any split is a solution, all on the first value
+            var counts = zeros(names);
+            counts.put(names.get(0), count);
+            return Optional.of(counts);
+        }
+        if (numbers.size() == 2)
+            return twoValues(names, numbers, sum, count);
+        if (isConsecutive(numbers))
+            return consecutive(names, numbers, sum, count, min, max);
+
+        long range = max - min;
+        // Σ_k (k * range + 1) for k = 0..count
+        if (count <= 1 << 20 && (count + 1) * (count * range + 2) / 2 <= dpStateLimit)
+            return dp(names, numbers, sum, (int) count, min, (int) range);
+        return fallback.solve(names, numbers, sum, count);
+    }
+
+    // x_b = (sum - a * count) / (b - a), x_a = count - x_b
+    private static Optional<Map<String, Long>> twoValues(List<String> names, List<Integer> numbers, long sum, long count) {
+        long a = numbers.get(0), b = numbers.get(1);
+        long excess = sum - a * count;
+        if (excess % (b - a) != 0)
+            return Optional.empty();
+        long xb = excess / (b - a);
+
+        var counts = zeros(names);
+        counts.put(names.get(0), count - xb);
+        counts.put(names.get(1), xb);
+        return Optional.of(counts);
+    }
+
+    // distinct numbers without gaps, e.g. the enum values 1..55
+    private static boolean isConsecutive(List<Integer> numbers) {
+        long distinct = numbers.stream().distinct().count();
+        return distinct == numbers.size() && Collections.max(numbers) - Collections.min(numbers) == distinct - 1;
+    }
+
+    // everything on min, then as many as possible on max, the rest of the excess on one value in between
+    private static Optional<Map<String, Long>> consecutive(List<String> names, List<Integer> numbers, long sum, long count, int min, int max) {
+        long range = max - min;
+        long excess = sum - count * min;
+        long onMax = excess / range;
+        int between = (int) (excess % range);
+
+        var counts = zeros(names);
+        long onMin = count - onMax - (between > 0 ? 1 : 0);
+        counts.put(names.get(numbers.indexOf(min)), onMin);
+        counts.merge(names.get(numbers.indexOf(max)), onMax, Long::sum);
+        if (between > 0)
+            counts.merge(names.get(numbers.indexOf(min + between)), 1L, Long::sum);
+        return Optional.of(counts);
+    }
+
+    // choice[k][s] is 1 + the index of the value taken last to reach sum s - k * min with k values, 0 if unreachable
+    private static Optional<Map<String, Long>> dp(List<String> names, List<Integer> numbers, long sum, int count, int min, int range) {
+        var choice = new int[count + 1][];
+        choice[0] = new int[]{-1};
+        for (int k = 1; k <= count; k++) {
+            choice[k] = new int[k * range + 1];
+            var previous = choice[k - 1];
+            for (int s = 0; s < previous.length; s++) {
+                if (previous[s] == 0)
+                    continue;
+                for (int i = 0; i < numbers.size(); i++) {
+                    int next = s + numbers.get(i) - min;
+                    if (choice[k][next] == 0)
+                        choice[k][next] = i + 1;
+                }
+            }
+        }
+
+        int s = (int) (sum - (long) count * min);
+        if (choice[count][s] == 0)
+            return Optional.empty();
+
+        var counts = zeros(names);
+        for (int k = count; k > 0; k--) {
+            int i = choice[k][s] - 1;
+            counts.merge(names.get(i), 1L, Long::sum);
+            s -= numbers.get(i) - min;
+        }
+        return Optional.of(counts);
+    }
+
+    private static Map<String, Long> zeros(List<String> names) {
+        var counts = new HashMap<String, Long>();
+        for (String name : names)
+            counts.put(name, 0L);
+        return counts;
+    }
+
+    private static Optional<Map<String, Long>> solveWithOrTools(List<String> names, List<Integer> numbers, long sum, long count) {
+        return OrTools.SOLVER.solveSystem(names, numbers, sum, count).map(solution -> {
+            var counts = new HashMap<String, Long>();
+            solution.forEach((name, x) -> counts.put(name, x.longValue()));
+            return counts;
+        });
+    }
+
+    // loads the native libraries on first use
+    private static class OrTools {
+        static final ILPSolver SOLVER = new ILPSolver();
+    }
+
+    interface Fallback {
+        Optional<Map<String, Long>> solve(List<String> names, List<Integer> numbers, long sum, long count);
+    }
+
+    private static final class Key {
+        final List<String> names;
+        final List<Integer> numbers;
+        final long sum;
+        final long count;
+
+        Key(List<String> names, List<Integer> numbers, long sum, long count) {
+            this.names = names;
+            this.numbers = numbers;
+            this.sum = sum;
+            this.count = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            var other = (Key) o;
+            return sum == other.sum && count == other.count && names.equals(other.names) && numbers.equals(other.numbers);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(names, numbers, sum, count);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package nl.medtechchain.chaincode.util;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import nl.medtechchain.proto.common.ChaincodeResponse;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+// Wire format of StoreDeviceDataBatch: per asset its id as length-delimited string followed by the
+// length-delimited DeviceDataAsset bytes, the whole stream base64 encoded like any other transaction
+// the per-item statuses are returned as a stream of length-delimited ChaincodeResponse messages
+// lists of ids (e.g. the legacy ids MigrateDeviceDataKeys gets) are a stream of length-delimited strings, base64 encoded
+public class DeviceDataBatchOps {
+
+    public static String encodeBatch(List<Map.Entry<String, DeviceDataAsset>> items) {
+        var bytes = new ByteArrayOutputStream();
+        var out = CodedOutputStream.newInstance(bytes);
+        try {
+            for (Map.Entry<String, DeviceDataAsset> item : items) {
+                out.writeStringNoTag(item.getKey());
+                out.writeMessageNoTag(item.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode device data batch", e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    // assets are left as raw bytes, so a single malformed asset does not fail the whole batch
+    public static List<Map.Entry<String, byte[]>> decodeBatch(String encoded) throws InvalidProtocolBufferException {
+        var items = new ArrayList<Map.Entry<String, byte[]>>();
+        try {
+            var in = CodedInputStream.newInstance(Base64.getDecoder().decode(encoded));
+            while (!in.isAtEnd()) {
+                var id = in.readStringRequireUtf8();
+                items.add(new AbstractMap.SimpleImmutableEntry<>(id, in.readByteArray()));
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidProtocolBufferException("Malformed device data batch: " + e.getMessage());
+        }
+        return items;
+    }
+
+    public static String encodeStatuses(List<ChaincodeResponse> statuses) {
+        var bytes = new ByteArrayOutputStream();
+        try {
+            for (ChaincodeResponse status : statuses)
+                status.writeDelimitedTo(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode batch statuses", e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    public static List<ChaincodeResponse> decodeStatuses(String encoded) throws InvalidProtocolBufferException {
+        var statuses = new ArrayList<ChaincodeResponse>();
+        try {
+            var in = new ByteArrayInputStream(Base64.getDecoder().decode(encoded));
+            ChaincodeResponse status;
+            while ((status = ChaincodeResponse.parseDelimitedFrom(in)) != null)
+                statuses.add(status);
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidProtocolBufferException("Malformed batch statuses: " + e.getMessage());
+        }
+        return statuses;
+    }
+
+    public static String encodeIds(List<String> ids) {
+        var bytes = new ByteArrayOutputStream();
+        var out = CodedOutputStream.newInstance(bytes);
+        try {
+            for (String id : ids)
+                out.writeStringNoTag(id);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to encode ids", e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    public static List<String> decodeIds(String encoded) throws InvalidProtocolBufferException {
+        var ids = new ArrayList<String>();
+        try {
+            var in = CodedInputStream.newInstance(Base64.getDecoder().decode(encoded));
+            while (!in.isAtEnd())
+                ids.add(in.readStringRequireUtf8());
+        } catch (IllegalArgumentException | IOException e) {
+            throw new InvalidProtocolBufferException("Malformed id list: " + e.getMessage());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,52 @@
+package nl.medtechchain.chaincode.util;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.GeneratedMessageV3;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Parser;
+
+import java.util.Base64;
+
+// Ledger values as raw protobuf bytes behind a one byte format marker
+// older values are base64 text, which never starts with the marker byte, so both formats can be read
+public class StateEncodingOps {
+
+    public static final byte RAW_PROTOBUF_FORMAT = 0x00;
+
+    public static <T extends GeneratedMessageV3> byte[] encodeState(T m) {
+        return encodeState(m.toByteArray());
+    }
+
+    // prefixes already serialized protobuf bytes with the format marker
+    public static byte[] encodeState(byte[] protobuf) {
+        var value = new byte[protobuf.length + 1];
+        value[0] = RAW_PROTOBUF_FORMAT;
+        System.arraycopy(protobuf, 0, value, 1, protobuf.length);
+        return value;
+    }
+
+    public static boolean isRawFormat(byte[] value) {
+        return value != null && value.length > 0 && value[0] == RAW_PROTOBUF_FORMAT;
+    }
+
+    public static <T extends GeneratedMessageV3> T decodeState(byte[] value, Parser<T> parser) throws InvalidProtocolBufferException {
+        if (isRawFormat(value))
+            return parser.parseFrom(value, 1, value.length - 1);
+        return parser.parseFrom(base64Payload(value));
+    }
+
+    // stream over the protobuf bytes of a ledger value, for decoders that only read part of the message
+    public static CodedInputStream stateInput(byte[] value) throws InvalidProtocolBufferException {
+        if (isRawFormat(value))
+            return CodedInputStream.newInstance(value, 1, value.length - 1);
+        return CodedInputStream.newInstance(base64Payload(value));
+    }
+
+    private static byte[] base64Payload(byte[] value) throws InvalidProtocolBufferException {
+        try {
+            return Base64.getDecoder().decode(value);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidProtocolBufferException("Ledger value is neither raw protobuf nor base64: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnknownFieldSet;
+import nl.medtechchain.chaincode.service.query.MomentRollup;
+import nl.medtechchain.proto.common.ChaincodeResponse;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Query;
+import nl.medtechchain.proto.query.QueryAsset;
+import nl.medtechchain.proto.query.QueryAssetPage;
+import nl.medtechchain.proto.query.ReadQueryAssetPage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static nl.medtechchain.chaincode.util.Base64EncodingOps.decode64;
+import static nl.medtechchain.chaincode.util.Base64EncodingOps.encode64;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.decodeIds;
+import static nl.medtechchain.chaincode.util.DeviceDataBatchOps.encodeIds;
+import static nl.medtechchain.chaincode.util.StateEncodingOps.decodeState;
+import static nl.medtechchain.chaincode.util.StateEncodingOps.encodeState;
+
+// Tests for storing and migrating device data assets against an in-memory ledger
+public class DeviceDataContractTest {
+
+    private static final long DAY = 86400;
+
+    private InMemoryLedger ledger;
+    private DeviceDataContract contract;
+
+    @BeforeEach
+    public void setUp() {
+        ledger = new InMemoryLedger();
+        contract = new DeviceDataContract();
+        // a ledger whose rollups are up to date, the rollup migration tests start without
+        ledger.stub().putStringState(DeviceDataKeys.ROLLUPS_KEY, "true");
+    }
+
+    private static DeviceDataAsset asset(long seconds, String hospital) {
+        return DeviceDataAsset.newBuilder()
+                .setTimestamp(Timestamp.newBuilder().setSeconds(seconds))
+                .setDeviceData(DeviceDataAsset.DeviceData.newBuilder()
+                        .setHospital(DeviceDataAsset.StringField.newBuilder().setPlain(hospital)))
+                .build();
+    }
+
+    private void store(String id, DeviceDataAsset asset) throws InvalidProtocolBufferException {
+        var response = decode64(contract.StoreDeviceData(ledger.context(), id, encode64(asset)), ChaincodeResponse::parseFrom);
+        Assertions.assertFalse(response.hasError(), response.toString());
+    }
+
+    private List<String> assetKeys() {
+        return ledger.keys(TXType.DEVICE_DATA_ASSET.partialKey());
+    }
+
+    // assets rolled up under the total of a day, over all shards
+    private long rolledUp(long day) throws InvalidProtocolBufferException {
+        return rolledUpUnder(DeviceDataKeys.ROLLUP_TOTAL, DeviceDataKeys.ROLLUP_TOTAL, day);
+    }
+
+    private long rolledUpUnder(String dimension, String value, long day) throws InvalidProtocolBufferException {
+        var partialKey = TXType.DEVICE_DATA_ROLLUP.partialKey(dimension, value, DeviceDataKeys.dayBucket(day));
+        long count = 0;
+        for (String key : ledger.keys(partialKey))
+            count += MomentRollup.decode(ledger.state().get(key)).assetCount();
+        return count;
+    }
+
+    @Test
+    public void testStoreWritesAssetPointerAndRollup() throws InvalidProtocolBufferException {
+        store("a", asset(10 * DAY + 5, "X"));
+
+        var key = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(10 * DAY).build(), "a").toString();
+        Assertions.assertEquals(List.of(key), assetKeys());
+        Assertions.assertEquals(key, ledger.stub().getStringState(DeviceDataKeys.idKey("a").toString()));
+        Assertions.assertEquals(1, rolledUp(10));
+    }
+
+    @Test
+    public void testRestoreSameIdWithDifferentTimestamp() throws InvalidProtocolBufferException {
+        store("a", asset(10 * DAY + 5, "X"));
+        store("b", asset(10 * DAY + 6, "X"));
+        store("a", asset(12 * DAY + 5, "X"));
+
+        var moved = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(12 * DAY).build(), "a").toString();
+        var other = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(10 * DAY).build(), "b").toString();
+        Assertions.assertEquals(List.of(other, moved), assetKeys());
+        Assertions.assertEquals(moved, ledger.stub().getStringState(DeviceDataKeys.idKey("a").toString()));
+        Assertions.assertEquals(1, rolledUp(10));
+        Assertions.assertEquals(1, rolledUp(12));
+    }
+
+    @Test
+    public void testRestoreSameIdOnTheSameDay() throws InvalidProtocolBufferException {
+        store("a", asset(10 * DAY + 5, "X"));
+        store("a", asset(10 * DAY + 50, "X"));
+
+        Assertions.assertEquals(1, assetKeys().size());
+        Assertions.assertEquals(1, rolledUp(10));
+    }
+
+    @Test
+    public void testRestoreReplacesIndexEntries() throws InvalidProtocolBufferException {
+        var hospitalIndex = TXType.DEVICE_DATA_INDEX.partialKey("hospital");
+        var encrypted = DeviceDataAsset.newBuilder(asset(10 * DAY, "X"))
+                .setDeviceData(DeviceDataAsset.DeviceData.newBuilder()
+                        .setHospital(DeviceDataAsset.StringField.newBuilder().setEncrypted("ciphertext")))
+                .build();
+
+        // encrypted -> plaintext, the entry under the encrypted value goes
+        store("a", encrypted);
+        store("a", asset(10 * DAY, "X"));
+        Assertions.assertEquals(List.of(TXType.DEVICE_DATA_INDEX.compositeKey("hospital", "X", "00000010", "a").toString()), ledger.keys(hospitalIndex));
+
+        // another value on another day
+        store("a", asset(11 * DAY, "Y"));
+        Assertions.assertEquals(List.of(TXType.DEVICE_DATA_INDEX.compositeKey("hospital", "Y", "00000011", "a").toString()), ledger.keys(hospitalIndex));
+        Assertions.assertEquals(0, rolledUpUnder("hospital", "X", 10));
+        Assertions.assertEquals(1, rolledUpUnder("hospital", "Y", 11));
+    }
+
+    @Test
+    public void testRestoreReplacesLegacyKey() throws InvalidProtocolBufferException {
+        ledger.stub().putState(DeviceDataKeys.legacyAssetKey("a").toString(), encodeState(asset(10 * DAY, "X")));
+
+        store("a", asset(11 * DAY, "X"));
+
+        Assertions.assertEquals(List.of(DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(11 * DAY).build(), "a").toString()), assetKeys());
+        // the legacy asset was never rolled up, so nothing is subtracted from its day
+        Assertions.assertEquals(0, rolledUp(10));
+        Assertions.assertEquals(1, rolledUp(11));
+    }
+
+    private ChaincodeResponse response(String encoded) throws InvalidProtocolBufferException {
+        return decode64(encoded, ChaincodeResponse::parseFrom);
+    }
+
+    // walks the legacy ids page by page and migrates them, then completes the migration
+    private void migrate(int pageSize) throws InvalidProtocolBufferException {
+        var bookmark = QueryPageBookmarks.FIRST_PAGE;
+        while (!bookmark.equals(QueryPageBookmarks.LAST_PAGE)) {
+            var page = response(contract.ReadLegacyDeviceDataIds(ledger.context(), pageSize, bookmark));
+            Assertions.assertFalse(page.hasError(), page.toString());
+            var ids = decodeIds(page.getSuccess().getMessage());
+            bookmark = ids.get(0);
+
+            var migrated = response(contract.MigrateDeviceDataKeys(ledger.context(), encodeIds(ids.subList(1, ids.size()))));
+            Assertions.assertFalse(migrated.hasError(), migrated.toString());
+        }
+
+        var completed = response(contract.CompleteDeviceDataKeyMigration(ledger.context()));
+        Assertions.assertFalse(completed.hasError(), completed.toString());
+        Assertions.assertEquals("true", ledger.stub().getStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY));
+    }
+
+    @Test
+    public void testMigrationMovesLegacyKeys() throws InvalidProtocolBufferException {
+        store("c", asset(11 * DAY, "Z"));
+        for (String id : List.of("a", "b", "d"))
+            ledger.stub().putState(DeviceDataKeys.legacyAssetKey(id).toString(), encodeState(asset(10 * DAY, "X")));
+
+        // not done while legacy keys are left
+        Assertions.assertTrue(response(contract.CompleteDeviceDataKeyMigration(ledger.context())).hasError());
+
+        migrate(2);
+
+        var day10 = Timestamp.newBuilder().setSeconds(10 * DAY).build();
+        Assertions.assertEquals(List.of(DeviceDataKeys.assetKey(day10, "a").toString(), DeviceDataKeys.assetKey(day10, "b").toString(),
+                DeviceDataKeys.assetKey(day10, "d").toString(), DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(11 * DAY).build(), "c").toString()),
+                assetKeys());
+        Assertions.assertEquals(3, rolledUp(10));
+
+        // listing ids again after the migration finds none, migrating them again changes nothing
+        var page = decodeIds(response(contract.ReadLegacyDeviceDataIds(ledger.context(), 10, QueryPageBookmarks.FIRST_PAGE)).getSuccess().getMessage());
+        Assertions.assertEquals(List.of(QueryPageBookmarks.LAST_PAGE), page);
+        Assertions.assertEquals("migrated=0", response(contract.MigrateDeviceDataKeys(ledger.context(), encodeIds(List.of("a", "b"))))
+                .getSuccess().getMessage());
+        Assertions.assertEquals(3, rolledUp(10));
+    }
+
+    @Test
+    public void testMigrationKeepsNewerBucketedCopy() throws InvalidProtocolBufferException {
+        // written before the upgrade and stored again afterwards, both copies exist if the second store happened
+        // before stores looked for the legacy key
+        var legacyKey = DeviceDataKeys.legacyAssetKey("a").toString();
+        ledger.stub().putState(legacyKey, encodeState(asset(10 * DAY, "X")));
+        ledger.stub().putState(DeviceDataKeys.legacyAssetKey("b").toString(), encodeState(asset(10 * DAY, "Y")));
+        store("a", asset(12 * DAY, "Z"));
+        ledger.stub().putState(legacyKey, encodeState(asset(10 * DAY, "X")));
+
+        migrate(1);
+
+        var newer = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(12 * DAY).build(), "a").toString();
+        var migrated = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(10 * DAY).build(), "b").toString();
+        Assertions.assertEquals(List.of(migrated, newer), assetKeys());
+        Assertions.assertEquals(asset(12 * DAY, "Z"), decodeState(ledger.state().get(newer), DeviceDataAsset.parser()));
+        Assertions.assertEquals(newer, ledger.stub().getStringState(DeviceDataKeys.idKey("a").toString()));
+        Assertions.assertEquals(1, rolledUp(12));
+    }
+
+    private void migrateRollups() throws InvalidProtocolBufferException {
+        ledger.stub().putStringState(DeviceDataKeys.BUCKETED_LAYOUT_KEY, "true");
+        var migrated = response(contract.MigrateDeviceDataRollups(ledger.context(), Integer.MAX_VALUE));
+        Assertions.assertFalse(migrated.hasError(), migrated.toString());
+        Assertions.assertEquals("true", ledger.stub().getStringState(DeviceDataKeys.ROLLUPS_KEY));
+    }
+
+    @Test
+    public void testRollupsWaitForTheirMigration() throws InvalidProtocolBufferException {
+        ledger.stub().delState(DeviceDataKeys.ROLLUPS_KEY);
+        store("a", asset(10 * DAY, "X"));
+        // moving a to another day doesn't subtract it from a day that has no rollups yet
+        store("a", asset(11 * DAY, "X"));
+        Assertions.assertTrue(ledger.keys(TXType.DEVICE_DATA_ROLLUP.partialKey()).isEmpty());
+
+        migrateRollups();
+        Assertions.assertEquals(0, rolledUp(10));
+        Assertions.assertEquals(1, rolledUp(11));
+
+        // from then on every write updates them
+        store("b", asset(10 * DAY, "X"));
+        Assertions.assertEquals(1, rolledUp(10));
+    }
+
+    @Test
+    public void testRollupRebuildDropsCellsWithoutAssets() throws InvalidProtocolBufferException {
+        store("a", asset(10 * DAY, "X"));
+        store("b", asset(10 * DAY, "X"));
+        // the asset changes without going through the contract, no asset of the day is under X anymore
+        var key = DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(10 * DAY).build(), "a").toString();
+        ledger.stub().putState(key, encodeState(asset(10 * DAY, "Y")));
+        ledger.stub().delState(DeviceDataKeys.assetKey(Timestamp.newBuilder().setSeconds(10 * DAY).build(), "b").toString());
+
+        ledger.stub().delState(DeviceDataKeys.ROLLUPS_KEY);
+        migrateRollups();
+
+        Assertions.assertTrue(ledger.keys(TXType.DEVICE_DATA_ROLLUP.partialKey("hospital", "X")).isEmpty());
+        Assertions.assertEquals(1, rolledUpUnder("hospital", "Y", 10));
+        Assertions.assertEquals(1, rolledUp(10));
+        Assertions.assertEquals(List.of(DeviceDataKeys.rollupCellKey(DeviceDataKeys.ROLLUP_TOTAL, DeviceDataKeys.ROLLUP_TOTAL, 10).toString(),
+                        DeviceDataKeys.rollupCellKey("hospital", "Y", 10).toString()),
+                ledger.keys(TXType.DEVICE_DATA_ROLLUP_CELL.partialKey()));
+    }
+
+    private QueryAssetPage readQueries(int pageSize, int pageNumber, String bookmark) throws InvalidProtocolBufferException {
+        var readPage = ReadQueryAssetPage.newBuilder().setPageSize(pageSize).setPageNumber(pageNumber);
+        if (bookmark != null)
+            readPage.setUnknownFields(UnknownFieldSet.newBuilder().addField(QueryPageBookmarks.READ_PAGE_BOOKMARK_FIELD,
+                    UnknownFieldSet.Field.newBuilder().addLengthDelimited(ByteString.copyFromUtf8(bookmark)).build()).build());
+        return decode64(contract.ReadQueries(ledger.context(), encode64(readPage.build())), QueryAssetPage::parseFrom);
+    }
+
+    private static String bookmark(QueryAssetPage page) {
+        return page.getUnknownFields().getField(QueryPageBookmarks.PAGE_BOOKMARK_FIELD).getLengthDelimitedList().get(0).toStringUtf8();
+    }
+
+    private void addQuery(String id, String targetField) {
+        var asset = QueryAsset.newBuilder().setQuery(Query.newBuilder().setTargetField(targetField)).build();
+        ledger.stub().putStringState(TXType.QUERY.compositeKey(id).toString(), encode64(asset));
+    }
+
+    @Test
+    public void testReadQueriesStopsAfterTheLastPage() throws InvalidProtocolBufferException {
+        addQuery("q1", "a");
+        addQuery("q2", "b");
+        addQuery("q3", "c");
+
+        var first = readQueries(2, 1, null);
+        Assertions.assertEquals(2, first.getAssetsCount());
+        var last = readQueries(2, 0, bookmark(first));
+        Assertions.assertEquals(1, last.getAssetsCount());
+        Assertions.assertEquals(QueryPageBookmarks.LAST_PAGE, bookmark(last));
+
+        // sending the bookmark of the last page back doesn't start over
+        var past = readQueries(2, 0, bookmark(last));
+        Assertions.assertEquals(0, past.getAssetsCount());
+        Assertions.assertEquals(QueryPageBookmarks.LAST_PAGE, bookmark(past));
+        Assertions.assertEquals(0, readQueries(2, 3, null).getAssetsCount());
+    }
+
+    @Test
+    public void testReadQueriesPageNumbersFollowNewQueries() throws InvalidProtocolBufferException {
+        addQuery("q2", "b");
+        addQuery("q3", "c");
+        addQuery("q4", "d");
+        Assertions.assertEquals("d", readQueries(2, 2, null).getAssets(0).getQuery().getTargetField());
+
+        addQuery("q1", "a");
+        Assertions.assertEquals("c", readQueries(2, 2, null).getAssets(0).getQuery().getTargetField());
+    }
+}
@@ -0,0 +1,71 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.proto.query.Query;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+// Tests for the key layout of device data assets
+public class DeviceDataKeysTest {
+
+    private static final long DAY = 86400;
+
+    private static Query range(long start, long end) {
+        return Query.newBuilder()
+                .setStartTime(Timestamp.newBuilder().setSeconds(start))
+                .setEndTime(Timestamp.newBuilder().setSeconds(end))
+                .build();
+    }
+
+    @Test
+    public void testDayBuckets() {
+        Assertions.assertEquals("00000000", DeviceDataKeys.dayBucket(Timestamp.newBuilder().setSeconds(DAY - 1).build()));
+        Assertions.assertEquals("00020000", DeviceDataKeys.dayBucket(Timestamp.newBuilder().setSeconds(20000 * DAY).build()));
+        Assertions.assertEquals(-1, DeviceDataKeys.epochDay(-1));
+    }
+
+    @Test
+    public void testDayBucketsBefore1970SortChronologically() {
+        var days = List.of(-100_000L, -20L, -2L, -1L, 0L, 1L, 20000L);
+        var buckets = new ArrayList<String>();
+        for (long day : days) {
+            buckets.add(DeviceDataKeys.dayBucket(day));
+            Assertions.assertEquals(day, DeviceDataKeys.parseDayBucket(DeviceDataKeys.dayBucket(day)));
+        }
+
+        var sorted = new ArrayList<>(buckets);
+        Collections.sort(sorted);
+        Assertions.assertEquals(buckets, sorted);
+        Assertions.assertEquals(Optional.of(List.of(DeviceDataKeys.dayBucket(-1), "00000000")), DeviceDataKeys.daysFor(range(-1, 1)));
+    }
+
+    @Test
+    public void testDaysFor() {
+        Assertions.assertEquals(Optional.of(List.of("00000010", "00000011", "00000012")), DeviceDataKeys.daysFor(range(10 * DAY + 1, 12 * DAY)));
+        Assertions.assertEquals(Optional.of(List.of()), DeviceDataKeys.daysFor(range(12 * DAY, 10 * DAY)));
+        // too many buckets, one scan over all assets instead
+        Assertions.assertEquals(Optional.empty(), DeviceDataKeys.daysFor(range(0, DeviceDataKeys.MAX_BUCKET_SCANS * DAY)));
+        Assertions.assertEquals(List.of(TXType.DEVICE_DATA_ASSET.partialKey()).toString(), DeviceDataKeys.assetRanges(Optional.empty()).toString());
+    }
+
+    @Test
+    public void testLegacyKeys() {
+        var timestamp = Timestamp.newBuilder().setSeconds(10 * DAY).build();
+
+        Assertions.assertTrue(DeviceDataKeys.isLegacyKey(DeviceDataKeys.legacyAssetKey("a")));
+        Assertions.assertFalse(DeviceDataKeys.isLegacyKey(DeviceDataKeys.assetKey(timestamp, "a")));
+    }
+
+    @Test
+    public void testIdPointersAreOutsideTheAssetRange() {
+        var assets = TXType.DEVICE_DATA_ASSET.partialKey().toString();
+
+        Assertions.assertFalse(DeviceDataKeys.idKey("a").toString().startsWith(assets));
+        Assertions.assertTrue(DeviceDataKeys.legacyAssetKey("a").toString().startsWith(assets));
+    }
+}
@@ -0,0 +1,98 @@
+package nl.medtechchain.chaincode.contract;
+
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.chaincode.service.query.FilterService;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+import nl.medtechchain.proto.query.Query;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static nl.medtechchain.chaincode.util.StateEncodingOps.encodeState;
+
+// Tests for the lazy device data scan over the ledger
+public class DeviceDataScanTest {
+
+    private static final long DAY = 86400;
+
+    private static DeviceDataAsset asset(long seconds, String hospital) {
+        return DeviceDataAsset.newBuilder()
+                .setTimestamp(Timestamp.newBuilder().setSeconds(seconds))
+                .setDeviceData(DeviceDataAsset.DeviceData.newBuilder()
+                        .setHospital(DeviceDataAsset.StringField.newBuilder().setPlain(hospital)))
+                .build();
+    }
+
+    private static void store(InMemoryLedger ledger, String id, DeviceDataAsset asset) {
+        ledger.stub().putState(DeviceDataKeys.assetKey(asset.getTimestamp(), id).toString(), encodeState(asset));
+    }
+
+    private static int count(Iterable<DeviceDataAsset> assets) {
+        int count = 0;
+        for (DeviceDataAsset ignored : assets)
+            count++;
+        return count;
+    }
+
+    @Test
+    public void testScansEveryRange() {
+        var ledger = new InMemoryLedger();
+        store(ledger, "a", asset(10 * DAY, "X"));
+        store(ledger, "b", asset(11 * DAY, "X"));
+        store(ledger, "c", asset(12 * DAY, "Y"));
+
+        var ranges = DeviceDataKeys.assetRanges(DeviceDataKeys.daysFor(Query.newBuilder()
+                .setStartTime(Timestamp.newBuilder().setSeconds(10 * DAY))
+                .setEndTime(Timestamp.newBuilder().setSeconds(11 * DAY + 1)).build()));
+        try (var scan = new DeviceDataScan(ledger.stub(), ranges, false, Query.getDefaultInstance(), new FilterService())) {
+            Assertions.assertEquals(2, count(scan));
+            // a second pass reads the ledger again
+            Assertions.assertEquals(2, count(scan));
+        }
+        Assertions.assertEquals(0, ledger.openIterators());
+    }
+
+    @Test
+    public void testIndexRangesReadAnAssetOnce() {
+        var ledger = new InMemoryLedger();
+        var asset = asset(10 * DAY, "X");
+        store(ledger, "a", asset);
+        store(ledger, "b", asset(10 * DAY, "X"));
+        var key = DeviceDataKeys.assetKey(asset.getTimestamp(), "a").toString();
+        // a stale entry under the encrypted value next to the current one
+        ledger.stub().putStringState(TXType.DEVICE_DATA_INDEX.compositeKey("hospital", "X", "00000010", "a").toString(), key);
+        ledger.stub().putStringState(TXType.DEVICE_DATA_INDEX.compositeKey("hospital", DeviceDataKeys.ENCRYPTED_INDEX_VALUE, "00000010", "a").toString(), key);
+        ledger.stub().putStringState(TXType.DEVICE_DATA_INDEX.compositeKey("hospital", "X", "00000010", "b").toString(),
+                DeviceDataKeys.assetKey(asset.getTimestamp(), "b").toString());
+
+        var query = Query.newBuilder()
+                .addFilters(Filter.newBuilder()
+                        .setField("hospital")
+                        .setStringFilter(Filter.StringFilter.newBuilder().setValue("X").setOperator(Filter.StringFilter.StringOperator.EQUALS)))
+                .build();
+        var ranges = DeviceDataKeys.indexRanges("hospital", "X", Optional.of(List.of("00000010")));
+        try (var scan = new DeviceDataScan(ledger.stub(), ranges, true, query, new FilterService())) {
+            // a is only returned through the entry of its current value
+            Assertions.assertEquals(2, count(scan));
+        }
+    }
+
+    @Test
+    public void testCloseReleasesAnUnfinishedPass() {
+        var ledger = new InMemoryLedger();
+        store(ledger, "a", asset(10 * DAY, "X"));
+        store(ledger, "b", asset(10 * DAY, "Y"));
+
+        var scan = new DeviceDataScan(ledger.stub(), List.of(TXType.DEVICE_DATA_ASSET.partialKey()), false, Query.getDefaultInstance(), new FilterService());
+        var iterator = scan.iterator();
+        Assertions.assertTrue(iterator.hasNext());
+        iterator.next();
+        Assertions.assertEquals(1, ledger.openIterators());
+
+        scan.close();
+        Assertions.assertEquals(0, ledger.openIterators());
+    }
+}
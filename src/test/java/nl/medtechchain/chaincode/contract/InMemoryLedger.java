@@ -0,0 +1,175 @@
+package nl.medtechchain.chaincode.contract;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.protos.peer.QueryResponseMetadata;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+// ChaincodeStub over a sorted in-memory map, covers the state and composite key calls the device data contract makes
+// unlike Fabric a transaction reads its own writes, tests only rely on what earlier transactions wrote
+final class InMemoryLedger {
+
+    private final NavigableMap<String, byte[]> state = new TreeMap<>();
+    private final Set<LedgerIterator> open = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final ChaincodeStub stub = Mockito.mock(ChaincodeStub.class, this::answer);
+    private int transactions = 0;
+
+    ChaincodeStub stub() {
+        return stub;
+    }
+
+    // every call is a new transaction, with its own tx id
+    Context context() {
+        transactions++;
+        return new Context(stub);
+    }
+
+    Map<String, byte[]> state() {
+        return Collections.unmodifiableMap(state);
+    }
+
+    List<String> keys(CompositeKey partialKey) {
+        var keys = new ArrayList<String>();
+        for (KeyValue kv : range(partialKey.toString(), partialKey.toString()))
+            keys.add(kv.getKey());
+        return keys;
+    }
+
+    // ledger iterators that were opened and not closed yet
+    int openIterators() {
+        return open.size();
+    }
+
+    private Object answer(InvocationOnMock invocation) {
+        var args = invocation.getArguments();
+        switch (invocation.getMethod().getName()) {
+            case "getState":
+                return state.getOrDefault((String) args[0], new byte[0]);
+            case "getStringState":
+                return new String(state.getOrDefault((String) args[0], new byte[0]), StandardCharsets.UTF_8);
+            case "putState":
+                state.put((String) args[0], (byte[]) args[1]);
+                return null;
+            case "putStringState":
+                state.put((String) args[0], ((String) args[1]).getBytes(StandardCharsets.UTF_8));
+                return null;
+            case "delState":
+                state.remove((String) args[0]);
+                return null;
+            case "getStateByPartialCompositeKey":
+                var prefix = partialKey(args).toString();
+                return iterator(range(prefix, prefix), "");
+            case "getStateByPartialCompositeKeyWithPagination":
+                return page(args[0].toString(), (Integer) args[1], (String) args[2]);
+            case "createCompositeKey":
+                return new CompositeKey((String) args[0], (String[]) args[1]);
+            case "splitCompositeKey":
+                return CompositeKey.parseCompositeKey((String) args[0]);
+            case "getTxId":
+                return "tx" + transactions;
+            case "getTxTimestamp":
+                return Instant.ofEpochSecond(1748189319L + transactions);
+            default:
+                throw new UnsupportedOperationException("InMemoryLedger does not support " + invocation.getMethod().getName());
+        }
+    }
+
+    private static CompositeKey partialKey(Object[] args) {
+        if (args[0] instanceof CompositeKey)
+            return (CompositeKey) args[0];
+        if (args.length == 2)
+            return new CompositeKey((String) args[0], (String[]) args[1]);
+        return CompositeKey.parseCompositeKey((String) args[0]);
+    }
+
+    // entries from start on that have the prefix, copied so writes during the iteration don't interfere
+    private List<KeyValue> range(String start, String prefix) {
+        var entries = new ArrayList<KeyValue>();
+        for (Map.Entry<String, byte[]> entry : state.tailMap(start, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix))
+                break;
+            entries.add(new Entry(entry.getKey(), entry.getValue()));
+        }
+        return entries;
+    }
+
+    // like Fabric the bookmark is the key the next page starts at, empty after the last entry
+    private LedgerIterator page(String prefix, int pageSize, String bookmark) {
+        var entries = range(bookmark.isEmpty() ? prefix : bookmark, prefix);
+        var page = entries.subList(0, Math.min(pageSize, entries.size()));
+        var next = entries.size() > pageSize ? entries.get(pageSize).getKey() : "";
+        return iterator(new ArrayList<>(page), next);
+    }
+
+    private LedgerIterator iterator(List<KeyValue> entries, String bookmark) {
+        var iterator = new LedgerIterator(entries, bookmark);
+        open.add(iterator);
+        return iterator;
+    }
+
+    private final class LedgerIterator implements QueryResultsIteratorWithMetadata<KeyValue> {
+        private final List<KeyValue> entries;
+        private final String bookmark;
+
+        private LedgerIterator(List<KeyValue> entries, String bookmark) {
+            this.entries = entries;
+            this.bookmark = bookmark;
+        }
+
+        @Override
+        public Iterator<KeyValue> iterator() {
+            return entries.iterator();
+        }
+
+        @Override
+        public QueryResponseMetadata getMetadata() {
+            return QueryResponseMetadata.newBuilder().setFetchedRecordsCount(entries.size()).setBookmark(bookmark).build();
+        }
+
+        @Override
+        public void close() {
+            open.remove(this);
+        }
+    }
+
+    private static final class Entry implements KeyValue {
+        private final String key;
+        private final byte[] value;
+
+        private Entry(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String getKey() {
+            return key;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return value;
+        }
+
+        @Override
+        public String getStringValue() {
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package nl.medtechchain.chaincode.contract;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Tests for walking the QUERY_ pages by bookmark and page number
+public class QueryPageBookmarksTest {
+
+    private static InMemoryLedger ledger(String... ids) {
+        var ledger = new InMemoryLedger();
+        for (String id : ids)
+            add(ledger, id);
+        return ledger;
+    }
+
+    private static void add(InMemoryLedger ledger, String id) {
+        ledger.stub().putStringState(key(id), id);
+    }
+
+    private static String key(String id) {
+        return TXType.QUERY.compositeKey(id).toString();
+    }
+
+    // ids of every page when following the next bookmarks from the first page
+    private static List<List<String>> pages(InMemoryLedger ledger, int pageSize) throws Exception {
+        var pages = new ArrayList<List<String>>();
+        var bookmark = QueryPageBookmarks.FIRST_PAGE;
+        while (!bookmark.equals(QueryPageBookmarks.LAST_PAGE)) {
+            try (var iterator = ledger.stub().getStateByPartialCompositeKeyWithPagination(TXType.QUERY.partialKey(), pageSize, bookmark)) {
+                var page = new ArrayList<String>();
+                iterator.forEach(kv -> page.add(kv.getStringValue()));
+                pages.add(page);
+                bookmark = QueryPageBookmarks.next(iterator.getMetadata(), pageSize);
+            }
+        }
+        return pages;
+    }
+
+    @Test
+    public void testNextBookmarkEndsAfterTheLastPage() throws Exception {
+        Assertions.assertEquals(List.of(List.of("q1", "q2"), List.of("q3", "q4"), List.of("q5")), pages(ledger("q1", "q2", "q3", "q4", "q5"), 2));
+        Assertions.assertEquals(List.of(List.of("q1", "q2"), List.of("q3", "q4")), pages(ledger("q1", "q2", "q3", "q4"), 2));
+        Assertions.assertEquals(List.of(List.of()), pages(ledger(), 2));
+    }
+
+    @Test
+    public void testSeekPageNumbers() {
+        var ledger = ledger("q1", "q2", "q3", "q4", "q5");
+
+        Assertions.assertEquals(QueryPageBookmarks.FIRST_PAGE, QueryPageBookmarks.seek(ledger.stub(), 2, 1));
+        Assertions.assertEquals(key("q3"), QueryPageBookmarks.seek(ledger.stub(), 2, 2));
+        Assertions.assertEquals(key("q5"), QueryPageBookmarks.seek(ledger.stub(), 2, 3));
+        Assertions.assertEquals(QueryPageBookmarks.LAST_PAGE, QueryPageBookmarks.seek(ledger.stub(), 2, 4));
+        Assertions.assertEquals(QueryPageBookmarks.LAST_PAGE, QueryPageBookmarks.seek(ledger.stub(), 2, 100));
+        Assertions.assertEquals(0, ledger.openIterators());
+    }
+
+    @Test
+    public void testSeekFollowsQueriesAddedInBetween() {
+        var ledger = ledger("q2", "q3", "q4", "q5");
+        Assertions.assertEquals(key("q4"), QueryPageBookmarks.seek(ledger.stub(), 2, 2));
+
+        // sorts before page 2, which now starts one entry earlier like the skip-based pages did
+        add(ledger, "q1");
+        Assertions.assertEquals(key("q3"), QueryPageBookmarks.seek(ledger.stub(), 2, 2));
+    }
+}
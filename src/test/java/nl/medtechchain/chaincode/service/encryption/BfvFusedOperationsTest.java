@@ -0,0 +1,210 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import nl.medtechchain.chaincode.config.ConfigDefaults.PlatformConfigDefaults.EncryptionDefaults;
+import nl.medtechchain.chaincode.service.encryption.bfv.BfvCliClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tests for the fused BFV operations (Σ(x - m)², regression moments) - "ciphertexts" are plain numbers
+public class BfvFusedOperationsTest {
+
+    private static class NumberCli extends BfvCliClient {
+        final boolean fused;
+        final AtomicInteger fusedCalls = new AtomicInteger();
+        final AtomicInteger rowCalls = new AtomicInteger();
+
+        NumberCli(boolean fused) {
+            super("/unused/bfv_calc");
+            this.fused = fused;
+        }
+
+        @Override
+        public String addMany(List<? extends CharSequence> ciphertexts) {
+            return String.valueOf(ciphertexts.stream().mapToLong(c -> Long.parseLong(c.toString())).sum());
+        }
+
+        @Override
+        public CompletableFuture<String> addManyAsync(List<? extends CharSequence> ciphertexts) {
+            return CompletableFuture.completedFuture(addMany(ciphertexts));
+        }
+
+        @Override
+        public String multiply(String ciphertext1, String ciphertext2) {
+            rowCalls.incrementAndGet();
+            return String.valueOf(Long.parseLong(ciphertext1) * Long.parseLong(ciphertext2));
+        }
+
+        @Override
+        public String subtractScalar(String ciphertext, long scalar) {
+            rowCalls.incrementAndGet();
+            return String.valueOf(Long.parseLong(ciphertext) - scalar);
+        }
+
+        @Override
+        public CompletableFuture<String> sumSquaredDifferencesAsync(List<? extends CharSequence> ciphertexts, long scalar) {
+            // like a bfv_calc worker without the command
+            if (!fused)
+                return CompletableFuture.failedFuture(new IOException("bfv_calc sumSqDiff failed: unknown command sumSqDiff"));
+
+            var chunk = strings(ciphertexts);
+            return CompletableFuture.supplyAsync(() -> {
+                fusedCalls.incrementAndGet();
+                long sum = 0;
+                for (String ciphertext : chunk)
+                    sum += (Long.parseLong(ciphertext) - scalar) * (Long.parseLong(ciphertext) - scalar);
+                return String.valueOf(sum);
+            });
+        }
+
+        @Override
+        public CompletableFuture<List<String>> regressionMomentsAsync(List<? extends CharSequence> xs, List<? extends CharSequence> ys) {
+            if (!fused)
+                return CompletableFuture.failedFuture(new IOException("bfv_calc moments failed: unknown command moments"));
+
+            var x = strings(xs);
+            var y = strings(ys);
+            return CompletableFuture.supplyAsync(() -> {
+                fusedCalls.incrementAndGet();
+                return moments(x, y);
+            });
+        }
+    }
+
+    private static List<String> strings(List<? extends CharSequence> ciphertexts) {
+        var strings = new ArrayList<String>(ciphertexts.size());
+        for (CharSequence ciphertext : ciphertexts)
+            strings.add(ciphertext.toString());
+        return strings;
+    }
+
+    private static List<String> moments(List<String> xs, List<String> ys) {
+        long sumX = 0, sumY = 0, sumXY = 0, sumX2 = 0, sumY2 = 0;
+        for (int i = 0; i < xs.size(); i++) {
+            long x = Long.parseLong(xs.get(i));
+            long y = Long.parseLong(ys.get(i));
+            sumX += x;
+            sumY += y;
+            sumXY += x * y;
+            sumX2 += x * x;
+            sumY2 += y * y;
+        }
+        return List.of(String.valueOf(sumX), String.valueOf(sumY), String.valueOf(sumXY), String.valueOf(sumX2), String.valueOf(sumY2));
+    }
+
+    private static List<String> asList(BfvEncryptionService.RegressionMoments moments) {
+        return List.of(moments.sumX, moments.sumY, moments.sumXY, moments.sumX2, moments.sumY2);
+    }
+
+    private static List<String> values(int count) {
+        var values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            values.add(String.valueOf(i % 17));
+        return values;
+    }
+
+    private static long expected(List<String> values, long mean) {
+        long sum = 0;
+        for (String value : values)
+            sum += (Long.parseLong(value) - mean) * (Long.parseLong(value) - mean);
+        return sum;
+    }
+
+    @Test
+    public void testOneFusedCallPerChunk() {
+        var cli = new NumberCli(true);
+        var values = values(1000);
+
+        var result = new BfvEncryptionService(cli, null, 10).homomorphicSumSquaredDifferences(values, 7);
+
+        Assertions.assertEquals(String.valueOf(expected(values, 7)), result);
+        Assertions.assertEquals((1000 + EncryptionDefaults.BFV_SQUARED_DIFFERENCES_CHUNK - 1) / EncryptionDefaults.BFV_SQUARED_DIFFERENCES_CHUNK, cli.fusedCalls.get());
+        Assertions.assertEquals(0, cli.rowCalls.get());
+    }
+
+    @Test
+    public void testSingleValue() {
+        var result = new BfvEncryptionService(new NumberCli(true), null, 10).homomorphicSumSquaredDifferences(List.of("3"), 5);
+
+        Assertions.assertEquals("4", result);
+    }
+
+    @Test
+    public void testFallbackWithoutFusedCommand() {
+        var cli = new NumberCli(false);
+        var values = values(300);
+
+        var result = new BfvEncryptionService(cli, null, 10).homomorphicSumSquaredDifferences(values, 4);
+
+        Assertions.assertEquals(String.valueOf(expected(values, 4)), result);
+        // a subtraction and a multiplication per value
+        Assertions.assertEquals(600, cli.rowCalls.get());
+    }
+
+    @Test
+    public void testMomentsOneFusedCallPerChunk() {
+        var cli = new NumberCli(true);
+        var xs = values(500);
+        var ys = new ArrayList<String>();
+        for (int i = 0; i < xs.size(); i++)
+            ys.add(String.valueOf(3 * i - 40));
+
+        var moments = new BfvEncryptionService(cli, null, 10).homomorphicRegressionMoments(xs, ys);
+
+        Assertions.assertEquals(moments(xs, ys), asList(moments));
+        Assertions.assertEquals((500 + EncryptionDefaults.BFV_REGRESSION_MOMENTS_CHUNK - 1) / EncryptionDefaults.BFV_REGRESSION_MOMENTS_CHUNK, cli.fusedCalls.get());
+        Assertions.assertEquals(0, cli.rowCalls.get());
+    }
+
+    @Test
+    public void testMomentsFallbackWithoutFusedCommand() {
+        var cli = new NumberCli(false);
+        var xs = values(100);
+        var ys = values(100);
+
+        var moments = new BfvEncryptionService(cli, null, 10).homomorphicRegressionMoments(xs, ys);
+
+        Assertions.assertEquals(moments(xs, ys), asList(moments));
+        // xy, x² and y² per pair
+        Assertions.assertEquals(300, cli.rowCalls.get());
+    }
+
+    @Test
+    public void testMomentsNeedPairs() {
+        var service = new BfvEncryptionService(new NumberCli(true), null, 10);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> service.homomorphicRegressionMoments(List.of("1", "2"), List.of("1")));
+    }
+
+    @Test
+    public void testEmptyList() {
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> new BfvEncryptionService(new NumberCli(true), null, 10).homomorphicSumSquaredDifferences(List.of(), 0));
+    }
+
+    @Test
+    public void testPackedCiphertextIsNotDecryptedAsOneValue() {
+        var service = new BfvEncryptionService(new NumberCli(true), null, 10);
+        var packed = BfvPackedCiphertext.encode(3, "6");
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> service.decryptLong(packed, "bfv-default"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> service.decryptLongBatch(List.of("1", packed), "bfv-default"));
+    }
+
+    @Test
+    public void testPackingNeedsSumSlots() {
+        var cli = new NumberCli(true) {
+            @Override
+            public CompletableFuture<Boolean> hasSumSlotsAsync() {
+                return CompletableFuture.completedFuture(false);
+            }
+        };
+
+        Assertions.assertFalse(new BfvEncryptionService(cli, null, 10).supportsPacking());
+    }
+}
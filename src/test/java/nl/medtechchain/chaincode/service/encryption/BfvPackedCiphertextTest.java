@@ -0,0 +1,35 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+// Tests for the text form of packed BFV ciphertexts
+public class BfvPackedCiphertextTest {
+
+    @Test
+    public void testRoundTrip() {
+        var packed = BfvPackedCiphertext.encode(4096, "AAEC:x+/=");
+
+        Assertions.assertTrue(BfvPackedCiphertext.isPacked(packed));
+        Assertions.assertEquals(4096L, BfvPackedCiphertext.values(packed));
+        // only the first separator counts
+        Assertions.assertEquals("AAEC:x+/=", BfvPackedCiphertext.ciphertext(packed));
+    }
+
+    @Test
+    public void testPlainCiphertextIsNotPacked() {
+        Assertions.assertFalse(BfvPackedCiphertext.isPacked("AAECAwQ="));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.values("AAECAwQ="));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.ciphertext("AAECAwQ="));
+    }
+
+    @Test
+    public void testGarbageIsRejected() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.values("bfvp:12"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.values("bfvp:x:AAEC"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.values("bfvp:0:AAEC"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.ciphertext("bfvp:3:"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.encode(0, "AAEC"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> BfvPackedCiphertext.encode(3, ""));
+    }
+}
@@ -0,0 +1,109 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import nl.medtechchain.chaincode.service.encryption.bfv.BfvCliClient;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tests for the parallel BFV reduction - same tree of additions as the old sequential one, chunks of a level overlap
+public class BfvReduceAddTest {
+
+    // "adds" by writing down the addition, so the result shows the whole tree
+    private static class TreeCli extends BfvCliClient {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch twoAtOnce = new CountDownLatch(2);
+        final AtomicBoolean overlapped = new AtomicBoolean(true);
+
+        TreeCli() {
+            super("/unused/bfv_calc");
+        }
+
+        @Override
+        public String addMany(List<? extends CharSequence> ciphertexts) {
+            calls.incrementAndGet();
+            return "(" + String.join("+", ciphertexts) + ")";
+        }
+
+        @Override
+        public CompletableFuture<String> addManyAsync(List<? extends CharSequence> ciphertexts) {
+            var chunk = List.copyOf(ciphertexts);
+            return CompletableFuture.supplyAsync(() -> {
+                // the first two chunks only get past this if they run at the same time
+                twoAtOnce.countDown();
+                try {
+                    if (!twoAtOnce.await(5, TimeUnit.SECONDS))
+                        overlapped.set(false);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return addMany(chunk);
+            }, executor);
+        }
+    }
+
+    // the reduction before it ran in parallel
+    private static String sequential(List<String> cts, int fanIn) {
+        if (cts.size() == 1)
+            return cts.get(0);
+        if (cts.size() <= fanIn)
+            return "(" + String.join("+", cts) + ")";
+        List<String> next = new ArrayList<>();
+        for (int i = 0; i < cts.size(); i += fanIn) {
+            List<String> chunk = cts.subList(i, Math.min(i + fanIn, cts.size()));
+            next.add(chunk.size() == 1 ? chunk.get(0) : "(" + String.join("+", chunk) + ")");
+        }
+        return sequential(next, fanIn);
+    }
+
+    private static List<String> ciphertexts(int count) {
+        var cts = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            cts.add("c" + i);
+        return cts;
+    }
+
+    @Test
+    public void testSameTreeAsSequential() {
+        for (int fanIn : new int[]{2, 3, 10}) {
+            for (int count : new int[]{2, 10, 11, 21, 100, 1001}) {
+                var cli = new TreeCli();
+                try {
+                    var service = new BfvEncryptionService(cli, null, fanIn);
+                    var cts = ciphertexts(count);
+                    Assertions.assertEquals(sequential(cts, fanIn), service.homomorphicAdd(cts, "bfv-default"), "fanIn " + fanIn + ", count " + count);
+                } finally {
+                    cli.executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChunksOfALevelRunConcurrently() {
+        var cli = new TreeCli();
+        try {
+            new BfvEncryptionService(cli, null, 10).homomorphicAdd(ciphertexts(1000), "bfv-default");
+
+            Assertions.assertTrue(cli.overlapped.get());
+            // 100 + 10 + 1
+            Assertions.assertEquals(111, cli.calls.get());
+        } finally {
+            cli.executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFanInTooSmall() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new BfvEncryptionService(new TreeCli(), null, 1));
+    }
+}
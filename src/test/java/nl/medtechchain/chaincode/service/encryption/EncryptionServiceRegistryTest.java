@@ -0,0 +1,127 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import nl.medtechchain.chaincode.config.ConfigOps;
+import nl.medtechchain.proto.config.PlatformConfig;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static nl.medtechchain.proto.config.PlatformConfig.Config.*;
+
+// Tests for sharing one encryption service per platform config
+// (creating a Paillier service doesn't contact the TTP, so no TTP is needed)
+public class EncryptionServiceRegistryTest {
+
+    // remembers whether the registry closed it
+    private static class ClosingService extends PaillierEncryptionService {
+        boolean closed = false;
+
+        ClosingService(String ttpAddress) {
+            super(ttpAddress);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @AfterEach
+    public void restoreFactory() {
+        EncryptionServiceRegistry.factory = EncryptionServiceFactory::create;
+    }
+
+    private static void useClosingServices() {
+        EncryptionServiceRegistry.factory = config -> new ClosingService(config.getId());
+    }
+
+    private static PlatformConfig.Entry entry(PlatformConfig.Config key, String value) {
+        return PlatformConfig.Entry.newBuilder().setKey(key).setValue(value).build();
+    }
+
+    private static PlatformConfig paillier(String ttpAddress) {
+        return ConfigOps.PlatformConfigOps.create(List.of(
+                entry(CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME, "paillier"),
+                entry(CONFIG_FEATURE_QUERY_ENCRYPTION_PAILLIER_TTP_ADRRESS, ttpAddress)));
+    }
+
+    @Test
+    public void testServiceIsReusedForSameConfig() {
+        var config = paillier("ttp.one:6000");
+
+        var first = EncryptionServiceRegistry.get(config);
+        var second = EncryptionServiceRegistry.get(PlatformConfig.newBuilder(config).build());
+
+        Assertions.assertTrue(first instanceof PaillierEncryptionService);
+        Assertions.assertSame(first, second);
+    }
+
+    @Test
+    public void testServiceIsReplacedWhenConfigChanges() {
+        var first = EncryptionServiceRegistry.get(paillier("ttp.one:6000"));
+        var second = EncryptionServiceRegistry.get(paillier("ttp.two:6000"));
+
+        Assertions.assertNotSame(first, second);
+        Assertions.assertSame(second, EncryptionServiceRegistry.get(paillier("ttp.two:6000")));
+    }
+
+    @Test
+    public void testConfigWithoutIdIsRegisteredByItsEntries() {
+        var entries = List.of(entry(CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME, "paillier"), entry(CONFIG_FEATURE_QUERY_ENCRYPTION_PAILLIER_TTP_ADRRESS, "ttp.one:6000"));
+        var config = PlatformConfig.newBuilder().addAllMap(entries).build();
+
+        var service = EncryptionServiceRegistry.get(config);
+        Assertions.assertSame(service, EncryptionServiceRegistry.get(config));
+        Assertions.assertSame(service, EncryptionServiceRegistry.get(ConfigOps.PlatformConfigOps.create(entries)));
+    }
+
+    @Test
+    public void testNoEncryption() {
+        var config = ConfigOps.PlatformConfigOps.create(List.of(entry(CONFIG_FEATURE_QUERY_ENCRYPTION_SCHEME, "none")));
+
+        Assertions.assertNull(EncryptionServiceRegistry.get(config));
+    }
+
+    @Test
+    public void testReplacedServiceIsClosed() {
+        useClosingServices();
+        var first = (ClosingService) EncryptionServiceRegistry.get(paillier("ttp.three:6000"));
+        var second = (ClosingService) EncryptionServiceRegistry.get(paillier("ttp.four:6000"));
+
+        Assertions.assertTrue(first.closed);
+        Assertions.assertFalse(second.closed);
+    }
+
+    @Test
+    public void testReplacedServiceIsClosedOnceItsQueriesFinish() {
+        useClosingServices();
+        var config = paillier("ttp.five:6000");
+        var lease = EncryptionServiceRegistry.lease(config);
+        var first = (ClosingService) EncryptionServiceRegistry.get(config);
+
+        var second = (ClosingService) EncryptionServiceRegistry.get(paillier("ttp.six:6000"));
+        Assertions.assertFalse(first.closed);
+        // the running query still gets the service it started with
+        Assertions.assertSame(first, EncryptionServiceRegistry.get(config));
+
+        lease.close();
+        Assertions.assertTrue(first.closed);
+        Assertions.assertFalse(second.closed);
+        lease.close();
+        Assertions.assertSame(second, EncryptionServiceRegistry.get(paillier("ttp.six:6000")));
+    }
+
+    @Test
+    public void testLeaseOfCurrentServiceDoesNotCloseIt() {
+        useClosingServices();
+        var config = paillier("ttp.seven:6000");
+        try (var lease = EncryptionServiceRegistry.lease(config)) {
+            Assertions.assertNotNull(lease);
+        }
+
+        Assertions.assertFalse(((ClosingService) EncryptionServiceRegistry.get(config)).closed);
+    }
+}
@@ -0,0 +1,66 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+// Tests for the Montgomery multiplier - products have to match BigInteger multiply + mod exactly
+public class MontgomeryMultiplierTest {
+
+    private final Random random = new Random(42);
+
+    private void assertSameAsBigInteger(BigInteger modulus, BigInteger... factors) {
+        var accumulator = new MontgomeryMultiplier(modulus).accumulator();
+        var expected = BigInteger.ONE;
+        for (var factor : factors) {
+            accumulator.multiply(factor);
+            expected = expected.multiply(factor).mod(modulus);
+        }
+        Assertions.assertEquals(expected, accumulator.result(), "modulus " + modulus);
+    }
+
+    @Test
+    public void testSameAsBigInteger() {
+        // single limb, limb boundaries and a Paillier sized n²
+        for (int bits : new int[]{5, 63, 64, 65, 128, 129, 1000, 2048}) {
+            for (int round = 0; round < 10; round++) {
+                var modulus = new BigInteger(bits, random).setBit(bits - 1).setBit(0);
+                var factors = new BigInteger[1 + random.nextInt(50)];
+                for (int i = 0; i < factors.length; i++)
+                    factors[i] = new BigInteger(bits, random).mod(modulus);
+                assertSameAsBigInteger(modulus, factors);
+            }
+        }
+    }
+
+    @Test
+    public void testLargeFactorsAreReduced() {
+        var modulus = BigInteger.probablePrime(256, random).pow(2);
+
+        assertSameAsBigInteger(modulus, modulus.add(BigInteger.TWO), modulus.multiply(BigInteger.TEN).add(BigInteger.ONE), modulus);
+    }
+
+    @Test
+    public void testAllOnesModulus() {
+        // every limb is 2^64 - 1, carries run through all of them
+        var modulus = BigInteger.ONE.shiftLeft(256).subtract(BigInteger.ONE);
+        var factors = new BigInteger[20];
+        for (int i = 0; i < factors.length; i++)
+            factors[i] = modulus.subtract(BigInteger.valueOf(i + 1));
+
+        assertSameAsBigInteger(modulus, factors);
+    }
+
+    @Test
+    public void testEmptyProduct() {
+        Assertions.assertEquals(BigInteger.ONE, new MontgomeryMultiplier(BigInteger.valueOf(77)).accumulator().result());
+    }
+
+    @Test
+    public void testEvenModulus() {
+        Assertions.assertFalse(MontgomeryMultiplier.supports(BigInteger.valueOf(1000)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new MontgomeryMultiplier(BigInteger.valueOf(1000)));
+    }
+}
@@ -0,0 +1,50 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+// Tests for the binary Paillier ciphertext form next to the old decimal one
+public class PaillierCiphertextEncodingTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testBinaryRoundTrip() {
+        for (int bits : new int[]{1, 7, 8, 9, 64, 4096}) {
+            var ciphertext = new BigInteger(bits, random);
+            var encoded = PaillierCiphertextEncoding.encode(ciphertext);
+
+            Assertions.assertTrue(PaillierCiphertextEncoding.isBinary(encoded));
+            Assertions.assertEquals(ciphertext, PaillierCiphertextEncoding.decode(encoded));
+            Assertions.assertEquals(ciphertext.toString(), PaillierCiphertextEncoding.toDecimal(encoded));
+        }
+    }
+
+    @Test
+    public void testDecimalStillReadable() {
+        var ciphertext = new BigInteger(4096, random);
+        var decimal = ciphertext.toString();
+
+        Assertions.assertFalse(PaillierCiphertextEncoding.isBinary(decimal));
+        Assertions.assertEquals(ciphertext, PaillierCiphertextEncoding.decode(decimal));
+        Assertions.assertSame(decimal, PaillierCiphertextEncoding.toDecimal(decimal));
+    }
+
+    @Test
+    public void testBinaryIsShorter() {
+        var ciphertext = new BigInteger(4096, random).setBit(4095);
+
+        // 688 against 1233 characters
+        Assertions.assertTrue(PaillierCiphertextEncoding.encode(ciphertext).length() < ciphertext.toString().length() * 0.6);
+    }
+
+    @Test
+    public void testGarbageIsRejected() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PaillierCiphertextEncoding.decode("b64:not base64!"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PaillierCiphertextEncoding.decode("12ab"));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> PaillierCiphertextEncoding.encode(BigInteger.valueOf(-1)));
+    }
+}
@@ -0,0 +1,126 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import nl.medtechchain.chaincode.service.encryption.dto.*;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// Tests for caching Paillier public keys per version instead of asking the TTP on every aggregation
+public class PaillierKeyCacheTest {
+
+    // TTP that only hands out keys, n is 1000 + the version number
+    private static class KeyTTP implements PaillierTTPAPI {
+        int keyRequests = 0;
+
+        @Override
+        public CompletableFuture<PaillierEncryptionKeyResponse> getKeyByVersionAsync(String version) {
+            keyRequests++;
+            if (version.startsWith("missing"))
+                return CompletableFuture.failedFuture(new IllegalStateException("unknown version " + version));
+            var n = String.valueOf(1000 + Integer.parseInt(version.substring(1)));
+            return CompletableFuture.completedFuture(new PaillierEncryptionKeyResponse(n, version));
+        }
+
+        @Override
+        public PaillierEncryptionKeyResponse getKeyByVersion(String version) {
+            return getKeyByVersionAsync(version).join();
+        }
+
+        @Override
+        public PaillierEncryptionKeyResponse encryptionKey(int bitLength) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PaillierEncryptionKeyResponse getCurrentVersion() {
+            return new PaillierEncryptionKeyResponse("1001", "v1");
+        }
+
+        @Override
+        public PaillierDecryptResponse decrypt(PaillierDecryptRequest decryptRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PaillierDecryptAllResponse decryptAll(PaillierDecryptAllRequest decryptRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<PaillierDecryptResponse> decryptAsync(PaillierDecryptRequest decryptRequest) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<PaillierDecryptAllResponse> decryptAllAsync(PaillierDecryptAllRequest decryptRequest) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Test
+    public void testKeyIsFetchedOnce() {
+        var ttp = new KeyTTP();
+        var cache = new PaillierKeyCache(ttp);
+
+        var first = cache.get("v7");
+        var second = cache.get("v7");
+
+        Assertions.assertEquals(1, ttp.keyRequests);
+        Assertions.assertSame(first, second);
+        Assertions.assertEquals(BigInteger.valueOf(1007), first.n);
+        Assertions.assertEquals(BigInteger.valueOf(1007 * 1007), first.nSquared);
+    }
+
+    @Test
+    public void testPreloadedKeyNeedsNoTTP() {
+        var ttp = new KeyTTP();
+        var cache = new PaillierKeyCache(ttp);
+
+        cache.put("v3", "77");
+
+        Assertions.assertEquals(BigInteger.valueOf(77 * 77), cache.get("v3").nSquared);
+        Assertions.assertEquals(0, ttp.keyRequests);
+    }
+
+    @Test
+    public void testFailedFetchIsRetried() {
+        var ttp = new KeyTTP();
+        var cache = new PaillierKeyCache(ttp);
+
+        Assertions.assertThrows(RuntimeException.class, () -> cache.get("missing1"));
+        Assertions.assertThrows(RuntimeException.class, () -> cache.get("missing1"));
+        Assertions.assertEquals(2, ttp.keyRequests);
+        Assertions.assertTrue(cache.versions().isEmpty());
+    }
+
+    @Test
+    public void testCacheIsBounded() {
+        var cache = new PaillierKeyCache(new KeyTTP());
+
+        for (int i = 0; i < PaillierKeyCache.MAX_VERSIONS + 3; i++)
+            cache.get("v" + i);
+
+        Assertions.assertEquals(PaillierKeyCache.MAX_VERSIONS, cache.versions().size());
+        Assertions.assertFalse(cache.versions().contains("v0"));
+        Assertions.assertTrue(cache.versions().contains("v" + (PaillierKeyCache.MAX_VERSIONS + 2)));
+    }
+
+    @Test
+    public void testHomomorphicAddUsesCachedKey() {
+        var ttp = new KeyTTP();
+        var service = new PaillierEncryptionService(ttp);
+
+        // n = 1005, n² = 1010025
+        Assertions.assertEquals(BigInteger.valueOf(6), PaillierCiphertextEncoding.decode(service.homomorphicAdd(List.of("2", "3"), "v5")));
+        Assertions.assertEquals(BigInteger.valueOf(1000L * 2000 % 1010025), PaillierCiphertextEncoding.decode(service.homomorphicAdd(List.of("1000", "2000"), "v5")));
+
+        Assertions.assertEquals(1, ttp.keyRequests);
+        // the versions still come from the TTP, not from the cache
+        Assertions.assertEquals(Set.of("v1"), service.getAvailableVersions());
+    }
+}
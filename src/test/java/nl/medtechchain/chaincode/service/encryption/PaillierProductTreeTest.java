@@ -0,0 +1,77 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Tests for the parallel product tree - it has to give exactly what the sequential loop gives
+public class PaillierProductTreeTest {
+
+    private final Random random = new Random(42);
+    private final BigInteger nSquared = BigInteger.probablePrime(512, random).multiply(BigInteger.probablePrime(512, random)).pow(2);
+
+    private List<String> ciphertexts(int count) {
+        var ciphertexts = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++)
+            ciphertexts.add(new BigInteger(2048, random).mod(nSquared).toString());
+        return ciphertexts;
+    }
+
+    // what homomorphicAdd did before the tree
+    private BigInteger sequential(List<String> ciphertexts) {
+        BigInteger result = new BigInteger(ciphertexts.get(0));
+        for (int i = 1; i < ciphertexts.size(); i++)
+            result = result.multiply(new BigInteger(ciphertexts.get(i))).mod(nSquared);
+        return result;
+    }
+
+    @Test
+    public void testSameAsSequential() {
+        for (int leafSize : new int[]{2, 3, 64}) {
+            var tree = new PaillierProductTree(leafSize);
+            for (int count : new int[]{1, 2, 3, 63, 64, 65, 1000}) {
+                var ciphertexts = ciphertexts(count);
+                Assertions.assertEquals(sequential(ciphertexts), tree.product(ciphertexts, nSquared), "leafSize " + leafSize + ", count " + count);
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryAndDecimalMixed() {
+        var ciphertexts = ciphertexts(300);
+        var mixed = new ArrayList<String>();
+        for (int i = 0; i < ciphertexts.size(); i++)
+            mixed.add(i % 2 == 0 ? ciphertexts.get(i) : PaillierCiphertextEncoding.encode(new BigInteger(ciphertexts.get(i))));
+        // not reduced mod n², has to take the BigInteger path
+        mixed.set(7, PaillierCiphertextEncoding.encode(nSquared.add(BigInteger.TWO)));
+        ciphertexts.set(7, nSquared.add(BigInteger.TWO).toString());
+
+        Assertions.assertEquals(sequential(ciphertexts), new PaillierProductTree(16).product(mixed, nSquared));
+    }
+
+    @Test
+    public void testSingleCiphertextIsReturnedAsIs() {
+        var ciphertext = nSquared.add(BigInteger.TEN).toString();
+
+        Assertions.assertEquals(new BigInteger(ciphertext), new PaillierProductTree(64).product(List.of(ciphertext), nSquared));
+    }
+
+    @Test
+    public void testInvalidCiphertext() {
+        var ciphertexts = ciphertexts(500);
+        ciphertexts.set(321, "not a number");
+        ciphertexts.set(123, PaillierCiphertextEncoding.BINARY_PREFIX + "not base64!");
+
+        var e = Assertions.assertThrows(IllegalArgumentException.class, () -> new PaillierProductTree(8).product(ciphertexts, nSquared));
+        Assertions.assertTrue(e.getMessage().contains("321") || e.getMessage().contains("123"));
+    }
+
+    @Test
+    public void testLeafSizeTooSmall() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PaillierProductTree(1));
+    }
+}
@@ -0,0 +1,67 @@
+package nl.medtechchain.chaincode.service.encryption;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tests for limiting the requests the TTP client has outstanding without blocking its callers
+public class TTPClientTest {
+
+    private HttpServer server;
+    private final CountDownLatch answer = new CountDownLatch(1);
+    private final AtomicInteger handling = new AtomicInteger();
+    private final AtomicInteger mostHandling = new AtomicInteger();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        // answers {"path": ...} once the test lets it
+        server.createContext("/", exchange -> {
+            mostHandling.accumulateAndGet(handling.incrementAndGet(), Math::max);
+            try {
+                answer.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            var body = ("{\"path\":\"" + exchange.getRequestURI().getPath() + "\"}").getBytes(StandardCharsets.UTF_8);
+            handling.decrementAndGet();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testRequestsOverTheLimitAreQueuedWithoutBlocking() throws Exception {
+        var client = new TTPClient("127.0.0.1:" + server.getAddress().getPort(), 1, Duration.ofSeconds(10));
+
+        var first = client.get("/first", Map.class);
+        // returns while the first request is still unanswered
+        var second = client.get("/second", Map.class);
+        Assertions.assertFalse(second.isDone());
+
+        answer.countDown();
+        Assertions.assertEquals("/first", TTPClient.await(first).get("path"));
+        Assertions.assertEquals("/second", TTPClient.await(second).get("path"));
+        Assertions.assertEquals(1, mostHandling.get());
+    }
+}
@@ -0,0 +1,128 @@
+package nl.medtechchain.chaincode.service.encryption.bfv;
+
+import nl.medtechchain.chaincode.service.encryption.CiphertextHandle;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+// Tests for the memory-mapped scratch file between the chaincode and a bfv_calc worker
+public class BfvScratchFileTest {
+
+    private static String ciphertext(char c, int length) {
+        return String.valueOf(c).repeat(length);
+    }
+
+    @Test
+    public void testOperandsAreWrittenBackToBack() throws IOException {
+        try (var scratch = BfvScratchFile.create()) {
+            var locations = scratch.write(List.of("abc", "de", "f"));
+
+            Assertions.assertEquals(List.of("0 3", "3 2", "5 1"), locations);
+            Assertions.assertEquals(6, scratch.end());
+            Assertions.assertEquals("de", scratch.read(3, 2));
+        }
+    }
+
+    @Test
+    public void testHandlesAreCopiedFromTheirBuffer() throws IOException {
+        try (var scratch = BfvScratchFile.create()) {
+            var bytes = ByteBuffer.allocateDirect(16);
+            bytes.put("xxhandle".getBytes(StandardCharsets.US_ASCII));
+            var locations = scratch.write(List.of("ab", new BufferHandle(bytes, 2, 6)));
+
+            Assertions.assertEquals(List.of("0 2", "2 6"), locations);
+            Assertions.assertEquals("abhandle", scratch.read(0, 8));
+        }
+    }
+
+    @Test
+    public void testGrowsForLargeOperands() throws IOException {
+        try (var scratch = BfvScratchFile.create()) {
+            // three ciphertexts larger than the initial mapping together
+            var operands = List.of(ciphertext('a', 600_000), ciphertext('b', 600_000), ciphertext('c', 600_000));
+            var locations = scratch.write(operands);
+
+            Assertions.assertEquals("1200000 600000", locations.get(2));
+            Assertions.assertEquals(operands.get(1), scratch.read(600_000, 600_000));
+        }
+    }
+
+    @Test
+    public void testReadsWhatTheWorkerAppended() throws IOException {
+        try (var scratch = BfvScratchFile.create()) {
+            scratch.write(List.of("12"));
+
+            // the worker writes the result past the end of the mapping, growing the file
+            int offset = 3 << 20;
+            try (var channel = FileChannel.open(scratch.path(), StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap("result".getBytes(StandardCharsets.US_ASCII)), offset);
+            }
+
+            Assertions.assertEquals("result", scratch.read(offset, 6));
+            Assertions.assertThrows(IOException.class, () -> scratch.read(offset, 7));
+        }
+    }
+
+    @Test
+    public void testNonAsciiIsRejected() throws IOException {
+        try (var scratch = BfvScratchFile.create()) {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> scratch.write(List.of("ciphertext²")));
+        }
+    }
+
+    @Test
+    public void testCloseDeletesTheFile() throws IOException {
+        var scratch = BfvScratchFile.create();
+        var path = scratch.path();
+        Assertions.assertTrue(Files.exists(path));
+
+        scratch.close();
+
+        Assertions.assertFalse(Files.exists(path));
+    }
+
+    // a handle whose toString must not be needed to write it
+    private static final class BufferHandle implements CiphertextHandle {
+        private final ByteBuffer bytes;
+        private final int offset;
+        private final int length;
+
+        BufferHandle(ByteBuffer bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public void copyTo(ByteBuffer target) {
+            target.put(bytes.duplicate().limit(offset + length).position(offset));
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String toString() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package nl.medtechchain.chaincode.service.encryption.bfv;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Tests for the bfv_calc worker pool against stub binaries, "ciphertexts" are plain numbers
+public class BfvWorkerPoolTest {
+
+    // worker mode; every process start is logged to ./spawns, a ./crash file makes the next request kill the worker,
+    // commands that came through the scratch file are logged to ./mapped, a ./nomap file turns the mapped transport off,
+    // a ./nosumslots file makes it a build without sumSlots
+    private static final String WORKER_STUB = String.join("\n",
+            "#!/bin/sh",
+            "dir=$(dirname \"$0\")",
+            "echo $$ >> \"$dir/spawns\"",
+            "[ \"$1\" = \"serve\" ] || exit 2",
+            "while read -r cmd n at; do",
+            "  if [ -f \"$dir/crash\" ]; then rm -f \"$dir/crash\"; exit 1; fi",
+            "  if [ \"$cmd\" = map ]; then",
+            "    read -r map",
+            "    if [ -f \"$dir/nomap\" ]; then echo 'err unknown command map'; else echo 'ok mapped'; fi",
+            "    continue",
+            "  fi",
+            "  [ -n \"$at\" ] && echo \"$cmd\" >> \"$dir/mapped\"",
+            "  sum=0; prod=1; first=''; last=''; i=0",
+            "  while [ \"$i\" -lt \"$n\" ]; do",
+            "    read -r v len",
+            "    [ -n \"$at\" ] && v=$(dd if=\"$map\" bs=1 skip=\"$v\" count=\"$len\" 2>/dev/null)",
+            "    [ -z \"$first\" ] && first=$v",
+            "    last=$v; sum=$((sum + v)); prod=$((prod * v)); i=$((i + 1))",
+            "  done",
+            "  case \"$cmd\" in",
+            "    ping) r=pong ;;",
+            "    commands) if [ -f \"$dir/nosumslots\" ]; then echo 'err unknown command commands'; continue; fi",
+            "      r='ping commands map addMany mul mulScalar subtractScalar sumSqDiff moments sumSlots' ;;",
+            "    addMany) r=$sum ;;",
+            "    sumSlots) if [ -f \"$dir/nosumslots\" ]; then echo 'err unknown command sumSlots'; continue; fi; r=$sum ;;",
+            "    mul|mulScalar) r=$prod ;;",
+            "    subtractScalar) r=$((first - last)) ;;",
+            "    moments) r=\"$sum $n $first $last 0\" ;;",
+            "    hang) exec sleep 30 ;;",
+            "    *) echo \"err unknown command $cmd\"; continue ;;",
+            "  esac",
+            "  if [ -n \"$at\" ]; then",
+            "    printf '%s' \"$r\" | dd of=\"$map\" bs=1 seek=\"${at#@}\" conv=notrunc 2>/dev/null",
+            "    echo \"ok @${#r}\"",
+            "  else",
+            "    echo \"ok $r\"",
+            "  fi",
+            "done",
+            "");
+
+    // a bfv_calc build without worker mode: one operation per process, operands on stdin
+    private static final String ONE_SHOT_STUB = String.join("\n",
+            "#!/bin/sh",
+            "[ \"$1\" = \"serve\" ] && exit 1",
+            "echo $$ >> \"$(dirname \"$0\")/spawns\"",
+            "sum=0",
+            "while read -r v; do sum=$((sum + v)); done",
+            "echo \"$sum\"",
+            "");
+
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("bfv-stub");
+    }
+
+    private BfvWorkerPool pool(String stub, int workers, Duration callDeadline) throws IOException {
+        return pool(stub, workers, callDeadline, Long.MAX_VALUE);
+    }
+
+    private BfvWorkerPool pool(String stub, int workers, Duration callDeadline, long mappedThreshold) throws IOException {
+        var binary = dir.resolve("bfv_calc");
+        Files.writeString(binary, stub);
+        Assertions.assertTrue(binary.toFile().setExecutable(true));
+        return new BfvWorkerPool(binary.toString(), workers, callDeadline, Duration.ofSeconds(10), Duration.ofSeconds(30), mappedThreshold);
+    }
+
+    private BfvCliClient client(String stub, int workers) throws IOException {
+        return new BfvCliClient(pool(stub, workers, Duration.ofSeconds(2)));
+    }
+
+    private int mappedCalls() throws IOException {
+        var mapped = dir.resolve("mapped");
+        return Files.exists(mapped) ? Files.readAllLines(mapped).size() : 0;
+    }
+
+    private int spawns() throws IOException {
+        var spawns = dir.resolve("spawns");
+        return Files.exists(spawns) ? Files.readAllLines(spawns).size() : 0;
+    }
+
+    @Test
+    public void testWorkerIsReused() throws IOException {
+        var cli = client(WORKER_STUB, 2);
+
+        for (int i = 0; i < 20; i++) {
+            Assertions.assertEquals(String.valueOf(2 * i + 3), cli.addMany(List.of(String.valueOf(i), String.valueOf(i + 1), "2")));
+            Assertions.assertEquals(String.valueOf(6 * i), cli.multiply(String.valueOf(i), "6"));
+            Assertions.assertEquals(String.valueOf(i - 4), cli.subtractScalar(String.valueOf(i), 4));
+            Assertions.assertEquals(String.valueOf(5 * i), cli.multiplyScalar(String.valueOf(i), 5));
+        }
+
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testMomentsAnswerHasFiveParts() throws Exception {
+        var cli = client(WORKER_STUB, 1);
+
+        // the stub answers with the sum and the count of the operands, the first and the last one
+        Assertions.assertEquals(List.of("10", "4", "1", "4", "0"), cli.regressionMomentsAsync(List.of("1", "2"), List.of("3", "4")).get());
+    }
+
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        var cli = client(WORKER_STUB, 2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            var results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 80; i++) {
+                var value = String.valueOf(i);
+                results.add(executor.submit(() -> cli.addMany(List.of(value, "1"))));
+            }
+            for (int i = 0; i < results.size(); i++)
+                Assertions.assertEquals(String.valueOf(i + 1), results.get(i).get());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assertions.assertTrue(spawns() <= 2, "spawned " + spawns());
+    }
+
+    @Test
+    public void testCrashedWorkerIsRestarted() throws IOException {
+        var cli = client(WORKER_STUB, 1);
+        Assertions.assertEquals("3", cli.addMany(List.of("1", "2")));
+
+        Files.createFile(dir.resolve("crash"));
+
+        Assertions.assertEquals("7", cli.addMany(List.of("3", "4")));
+        Assertions.assertEquals(2, spawns());
+    }
+
+    @Test
+    public void testHungWorkerIsKilled() throws IOException {
+        var pool = pool(WORKER_STUB, 1, Duration.ofMillis(500));
+
+        // killed at the deadline, the retry on a new worker hangs as well
+        Assertions.assertThrows(IOException.class, () -> pool.call("hang", List.of()));
+        Assertions.assertEquals("5", pool.call("addMany", List.of("2", "3")));
+        Assertions.assertEquals(3, spawns());
+    }
+
+    @Test
+    public void testErrorKeepsWorker() throws IOException {
+        var pool = pool(WORKER_STUB, 1, Duration.ofSeconds(2));
+
+        var e = Assertions.assertThrows(IOException.class, () -> pool.call("bogus", List.of("1")));
+        Assertions.assertTrue(e.getMessage().contains("unknown command"));
+        Assertions.assertEquals("5", pool.call("addMany", List.of("2", "3")));
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testMappedTransport() throws Exception {
+        var cli = new BfvCliClient(pool(WORKER_STUB, 1, Duration.ofSeconds(2), 0));
+
+        Assertions.assertEquals("60", cli.addMany(List.of("10", "20", "30")));
+        Assertions.assertEquals("42", cli.multiply("6", "7"));
+        Assertions.assertEquals("5", cli.subtractScalar("9", 4));
+        // a result longer than the operands
+        Assertions.assertEquals(List.of("10", "4", "1", "4", "0"), cli.regressionMomentsAsync(List.of("1", "2"), List.of("3", "4")).get());
+
+        Assertions.assertEquals(4, mappedCalls());
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testSmallCallsStayOnThePipe() throws IOException {
+        var cli = new BfvCliClient(pool(WORKER_STUB, 1, Duration.ofSeconds(2), 4));
+
+        Assertions.assertEquals("3", cli.addMany(List.of("1", "2")));
+        Assertions.assertEquals("300", cli.addMany(List.of("100", "200")));
+
+        Assertions.assertEquals(1, mappedCalls());
+    }
+
+    @Test
+    public void testWorkerWithoutMappedTransport() throws IOException {
+        Files.createFile(dir.resolve("nomap"));
+        var cli = new BfvCliClient(pool(WORKER_STUB, 1, Duration.ofSeconds(2), 0));
+
+        Assertions.assertEquals("60", cli.addMany(List.of("10", "20", "30")));
+        Assertions.assertEquals("42", cli.multiply("6", "7"));
+
+        Assertions.assertEquals(0, mappedCalls());
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testFallbackWithoutWorkerMode() throws IOException {
+        var cli = client(ONE_SHOT_STUB, 2);
+
+        Assertions.assertEquals("6", cli.addMany(List.of("1", "2", "3")));
+        Assertions.assertEquals("10", cli.addMany(List.of("4", "6")));
+        // one process per operation
+        Assertions.assertEquals(2, spawns());
+    }
+
+    @Test
+    public void testSumSlotsCheck() throws Exception {
+        var cli = client(WORKER_STUB, 1);
+
+        Assertions.assertTrue(cli.hasSumSlotsAsync().get());
+        Assertions.assertEquals("6", cli.sumSlots("6"));
+        // asked once
+        Assertions.assertSame(cli.hasSumSlotsAsync(), cli.hasSumSlotsAsync());
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testSumSlotsCheckWithoutTheCommand() throws Exception {
+        Files.createFile(dir.resolve("nosumslots"));
+        var cli = client(WORKER_STUB, 1);
+
+        Assertions.assertFalse(cli.hasSumSlotsAsync().get());
+        // the worker is kept for the other commands
+        Assertions.assertEquals("3", cli.addMany(List.of("1", "2")));
+        Assertions.assertEquals(1, spawns());
+    }
+
+    @Test
+    public void testSumSlotsCheckWithoutWorkerMode() throws Exception {
+        var cli = client(ONE_SHOT_STUB, 1);
+
+        Assertions.assertFalse(cli.hasSumSlotsAsync().get());
+    }
+}
@@ -32,12 +32,16 @@ public class AverageQueryTest {
     }
 
     private double executeAverage(List<DeviceDataAsset> assets, String targetField) {
+        return executeAverage(assets, targetField, new TestEncryptionService());
+    }
+
+    private double executeAverage(List<DeviceDataAsset> assets, String targetField, TestEncryptionService enc) {
         AverageQuery averageQuery = new AverageQuery(testConfig);
         // inject test encryption service via reflection
         try {
             var encryptionServiceField = averageQuery.getClass().getSuperclass().getDeclaredField("encryptionService");
             encryptionServiceField.setAccessible(true);
-            encryptionServiceField.set(averageQuery, new TestEncryptionService());
+            encryptionServiceField.set(averageQuery, enc);
         } catch (Exception e) {
             throw new RuntimeException("Failed to inject test encryption service", e);
         }
@@ -611,4 +615,21 @@ public class AverageQueryTest {
         Assertions.assertEquals(0.0, result, 
                 "Should return 0 when all values are null");
     }
+
+    @Test
+    public void testPackedCiphertexts() {
+        var enc = new PackingTestEncryptionService(Set.of("bfv-default"), "bfv-default");
+
+        Map<String, Map<Object, Integer>> spec = new HashMap<>();
+        Map<Object, Integer> usageHours = new HashMap<>();
+        usageHours.put(4, 1);
+        usageHours.put(PackingTestEncryptionService.encryptPacked("bfv-default", 1, 2, 3), 2);
+        usageHours.put(PackingTestEncryptionService.encryptPacked("bfv-default", 10, 20), 1);
+        spec.put("usage_hours", usageHours);
+
+        List<DeviceDataAsset> assets = generator.generateAssetsWithCounts(spec, 4);
+
+        // every packed value counts, not the assets: 46 over 1 + 2×3 + 2 values
+        Assertions.assertEquals(46.0 / 9, executeAverage(assets, "usage_hours", enc), 0.0001);
+    }
 }
@@ -0,0 +1,138 @@
+package nl.medtechchain.chaincode.service.query;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+// Tests for BatchDecryption - per key version micro-batches of single value decryptions
+// (test "ciphertexts" are just the plaintext values)
+public class BatchDecryptionTest {
+
+    // records the size of every batch handed to the encryption service
+    private static class CountingEncryptionService extends TestEncryptionService {
+        final List<Integer> batches = new ArrayList<>();
+
+        @Override
+        public List<Long> decryptLongBatch(List<String> ciphertexts, String version) {
+            batches.add(ciphertexts.size());
+            return super.decryptLongBatch(ciphertexts, version);
+        }
+
+        @Override
+        public List<String> decryptStringBatch(List<String> ciphertexts, String version) {
+            batches.add(ciphertexts.size());
+            return super.decryptStringBatch(ciphertexts, version);
+        }
+    }
+
+    @Test
+    public void testValuesAreDecryptedInBatches() {
+        var encryptionService = new CountingEncryptionService();
+        var decryption = new BatchDecryption(encryptionService);
+        List<Long> values = new ArrayList<>();
+
+        int total = BatchDecryption.BATCH_SIZE * 2 + 10;
+        for (long i = 0; i < total; i++)
+            decryption.decryptLong(String.valueOf(i), "test-v1", values::add);
+
+        Assertions.assertEquals(List.of(BatchDecryption.BATCH_SIZE, BatchDecryption.BATCH_SIZE), encryptionService.batches);
+        Assertions.assertEquals(BatchDecryption.BATCH_SIZE * 2, values.size());
+
+        decryption.flush();
+
+        Assertions.assertEquals(List.of(BatchDecryption.BATCH_SIZE, BatchDecryption.BATCH_SIZE, 10), encryptionService.batches);
+        Assertions.assertEquals(total, values.size());
+        for (int i = 0; i < total; i++)
+            Assertions.assertEquals(i, values.get(i));
+    }
+
+    // hands out futures the test completes itself, like a TTP that hasn't answered yet
+    private static class DeferredEncryptionService extends TestEncryptionService {
+        final List<CompletableFuture<List<Long>>> sent = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<List<Long>> decryptLongBatchAsync(List<String> ciphertexts, String version) {
+            var future = new CompletableFuture<List<Long>>();
+            sent.add(future);
+            return future;
+        }
+    }
+
+    @Test
+    public void testBatchesArePipelined() {
+        var encryptionService = new DeferredEncryptionService();
+        var decryption = new BatchDecryption(encryptionService);
+        List<Long> values = new ArrayList<>();
+
+        for (int i = 0; i < BatchDecryption.BATCH_SIZE * BatchDecryption.MAX_IN_FLIGHT; i++)
+            decryption.decryptLong(String.valueOf(i), "test-v1", values::add);
+
+        // every batch is sent, none has been answered
+        Assertions.assertEquals(BatchDecryption.MAX_IN_FLIGHT, encryptionService.sent.size());
+        Assertions.assertTrue(values.isEmpty());
+
+        encryptionService.sent.get(0).complete(Collections.nCopies(BatchDecryption.BATCH_SIZE, 1L));
+        for (int i = 0; i < BatchDecryption.BATCH_SIZE; i++)
+            decryption.decryptLong(String.valueOf(i), "test-v1", values::add);
+
+        // the answered batch is handed out as soon as the next one goes out
+        Assertions.assertEquals(BatchDecryption.MAX_IN_FLIGHT + 1, encryptionService.sent.size());
+        Assertions.assertEquals(BatchDecryption.BATCH_SIZE, values.size());
+
+        for (var future : encryptionService.sent)
+            future.complete(Collections.nCopies(BatchDecryption.BATCH_SIZE, 2L));
+        decryption.flush();
+
+        Assertions.assertEquals(BatchDecryption.BATCH_SIZE * (BatchDecryption.MAX_IN_FLIGHT + 1), values.size());
+    }
+
+    @Test
+    public void testFailedBatchIsRethrown() {
+        var decryption = new BatchDecryption(new TestEncryptionService() {
+            @Override
+            public CompletableFuture<List<Long>> decryptLongBatchAsync(List<String> ciphertexts, String version) {
+                return CompletableFuture.failedFuture(new IllegalStateException("TTP batch decryption failed"));
+            }
+        });
+
+        decryption.decryptLong("1", "test-v1", value -> { });
+        Assertions.assertThrows(IllegalStateException.class, decryption::flush);
+    }
+
+    @Test
+    public void testVersionsAreBatchedSeparately() {
+        var encryptionService = new CountingEncryptionService();
+        var decryption = new BatchDecryption(encryptionService);
+        Set<String> values = new HashSet<>();
+
+        decryption.decryptString("a", "v1", values::add);
+        decryption.decryptString("b", "v2", values::add);
+        decryption.decryptString("c", "v1", values::add);
+        decryption.flush();
+
+        Assertions.assertEquals(Set.of("a", "b", "c"), values);
+        Assertions.assertEquals(2, encryptionService.batches.size());
+        Assertions.assertTrue(encryptionService.batches.containsAll(List.of(1, 2)));
+    }
+
+    @Test
+    public void testEmptyFlushDecryptsNothing() {
+        var encryptionService = new CountingEncryptionService();
+        new BatchDecryption(encryptionService).flush();
+
+        Assertions.assertTrue(encryptionService.batches.isEmpty());
+    }
+
+    @Test
+    public void testMissingEncryptionService() {
+        var decryption = new BatchDecryption(null);
+
+        Assertions.assertThrows(IllegalStateException.class, () -> decryption.decryptLong("1", "test-v1", value -> { }));
+    }
+}
@@ -0,0 +1,125 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.ByteString;
+import nl.medtechchain.chaincode.service.encryption.CiphertextHandle;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+// Tests for the off-heap ciphertext buffers of a query run
+public class CiphertextArenaTest {
+
+    private static String ciphertext(int i, int length) {
+        var builder = new StringBuilder(length);
+        while (builder.length() < length)
+            builder.append(i).append('/');
+        return builder.substring(0, length);
+    }
+
+    private static List<String> strings(List<CiphertextHandle> handles) {
+        return handles.stream().map(CiphertextHandle::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    public void testBytesAndStringsReadBack() {
+        try (var arena = new CiphertextArena()) {
+            var list = arena.newList();
+            list.add(ByteString.copyFromUtf8("123456789"));
+            list.add("b64:AAEC");
+            list.add(ByteString.copyFromUtf8(""));
+
+            Assertions.assertEquals(List.of("123456789", "b64:AAEC", ""), strings(list));
+            Assertions.assertThrows(IndexOutOfBoundsException.class, () -> list.get(3));
+        }
+    }
+
+    @Test
+    public void testCiphertextsSpanSlabs() {
+        try (var arena = new CiphertextArena()) {
+            var list = arena.newList();
+            var expected = new ArrayList<String>();
+            // 300 KB ciphertexts, a few per slab, and one larger than a slab
+            for (int i = 0; i < 40; i++) {
+                var ciphertext = ciphertext(i, i == 20 ? CiphertextArena.SLAB_SIZE + 1 : 300_000);
+                list.add(ByteString.copyFromUtf8(ciphertext));
+                expected.add(ciphertext);
+            }
+
+            Assertions.assertEquals(expected, strings(list));
+        }
+    }
+
+    @Test
+    public void testHandlesCopyWithoutDecoding() {
+        try (var arena = new CiphertextArena()) {
+            var list = arena.newList();
+            list.add(ByteString.copyFromUtf8("123"));
+            list.add("b64:AAEC");
+
+            var target = ByteBuffer.allocateDirect(32);
+            target.put((byte) '[');
+            for (CiphertextHandle handle : list)
+                handle.copyTo(target);
+            target.flip();
+            var bytes = new byte[target.remaining()];
+            target.get(bytes);
+
+            Assertions.assertEquals("[123b64:AAEC", new String(bytes, StandardCharsets.UTF_8));
+            Assertions.assertEquals(8, list.get(1).length());
+            Assertions.assertEquals('A', list.get(1).charAt(4));
+            // copying leaves the entry readable
+            Assertions.assertEquals("123", list.get(0).toString());
+        }
+    }
+
+    @Test
+    public void testSlabsGoBackToThePool() {
+        var arena = new CiphertextArena();
+        var list = arena.newList();
+        for (int i = 0; i < 30; i++)
+            list.add(ciphertext(i, 300_000));
+        int before = CiphertextArena.pooledSlabs();
+
+        list.clear();
+        int afterClear = CiphertextArena.pooledSlabs();
+        Assertions.assertTrue(afterClear > before, before + " -> " + afterClear);
+        Assertions.assertTrue(list.isEmpty());
+
+        // reused, not allocated again
+        list.add(ciphertext(1, 300_000));
+        Assertions.assertEquals(afterClear - 1, CiphertextArena.pooledSlabs());
+
+        arena.close();
+        Assertions.assertEquals(afterClear, CiphertextArena.pooledSlabs());
+        Assertions.assertThrows(IllegalStateException.class, () -> list.add("1"));
+        Assertions.assertThrows(IllegalStateException.class, arena::newList);
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (var arena = new CiphertextArena()) {
+            var list = arena.newList();
+            for (int i = 0; i < 200; i++)
+                list.add(ByteString.copyFromUtf8(ciphertext(i, 50_000)));
+
+            var reads = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 200; i++) {
+                int index = i;
+                reads.add(executor.submit(() -> list.get(index).toString().equals(ciphertext(index, 50_000))));
+            }
+            for (Future<Boolean> read : reads)
+                Assertions.assertTrue(read.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
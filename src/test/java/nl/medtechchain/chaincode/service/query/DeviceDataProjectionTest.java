@@ -0,0 +1,85 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.chaincode.util.Base64EncodingOps;
+import nl.medtechchain.chaincode.util.StateEncodingOps;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+import nl.medtechchain.proto.query.Query;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Tests for decoding only the parts of an asset a query needs
+public class DeviceDataProjectionTest {
+
+    private DeviceDataAsset asset;
+
+    @BeforeEach
+    public void setUp() {
+        asset = new TestDataGenerator(42).generateAsset(new HashMap<>(), "paillier-v1");
+    }
+
+    private Query query(long start, long end) {
+        return Query.newBuilder()
+                .setQueryType(Query.QueryType.SUM)
+                .setTargetField("usage_hours")
+                .setStartTime(Timestamp.newBuilder().setSeconds(start).build())
+                .setEndTime(Timestamp.newBuilder().setSeconds(end).build())
+                .addFilters(Filter.newBuilder()
+                        .setField("hospital")
+                        .setStringFilter(Filter.StringFilter.newBuilder().setValue("HealPoint").setOperator(Filter.StringFilter.StringOperator.EQUALS).build())
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void testOnlyProjectedFieldsAreDecoded() throws InvalidProtocolBufferException {
+        long seconds = asset.getTimestamp().getSeconds();
+        var decoded = new DeviceDataProjection(query(seconds, seconds)).decode(StateEncodingOps.encodeState(asset));
+
+        Assertions.assertNotNull(decoded);
+        Assertions.assertEquals(asset.getTimestamp(), decoded.getTimestamp());
+        Assertions.assertEquals("paillier-v1", decoded.getKeyVersion());
+        Assertions.assertEquals(asset.getDeviceData().getUsageHours(), decoded.getDeviceData().getUsageHours());
+        Assertions.assertEquals(asset.getDeviceData().getHospital(), decoded.getDeviceData().getHospital());
+
+        Assertions.assertFalse(decoded.getDeviceData().hasBatteryLevel());
+        Assertions.assertFalse(decoded.getDeviceData().hasManufacturer());
+        Assertions.assertTrue(decoded.getConfigId().isEmpty());
+    }
+
+    @Test
+    public void testOutOfRangeIsRejected() throws InvalidProtocolBufferException {
+        long seconds = asset.getTimestamp().getSeconds();
+        var value = StateEncodingOps.encodeState(asset);
+
+        Assertions.assertNull(new DeviceDataProjection(query(seconds + 1, seconds + 100)).decode(value));
+        Assertions.assertNull(new DeviceDataProjection(query(0, seconds - 1)).decode(value));
+    }
+
+    @Test
+    public void testBase64StillReadable() throws InvalidProtocolBufferException {
+        long seconds = asset.getTimestamp().getSeconds();
+        var value = Base64EncodingOps.encode64(asset).getBytes(StandardCharsets.UTF_8);
+
+        var decoded = new DeviceDataProjection(query(seconds, seconds)).decode(value);
+
+        Assertions.assertEquals(asset.getDeviceData().getUsageHours(), decoded.getDeviceData().getUsageHours());
+    }
+
+    @Test
+    public void testTruncatedAssetIsRejected() {
+        long seconds = asset.getTimestamp().getSeconds();
+        var value = StateEncodingOps.encodeState(asset);
+        var truncated = Arrays.copyOf(value, value.length - 5);
+
+        Assertions.assertThrows(InvalidProtocolBufferException.class, () -> new DeviceDataProjection(query(seconds, seconds)).decode(truncated));
+    }
+}
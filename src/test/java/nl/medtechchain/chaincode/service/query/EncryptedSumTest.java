@@ -0,0 +1,89 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tests for EncryptedSum - folding of buffered ciphertexts into partial sums
+// (test "ciphertexts" are just the plaintext values)
+public class EncryptedSumTest {
+
+    // counts homomorphicAdd calls and the biggest batch it was handed
+    private static class CountingEncryptionService extends TestEncryptionService {
+        final AtomicInteger adds = new AtomicInteger();
+        int largestBatch = 0;
+
+        CountingEncryptionService() {
+            super(true, false, Set.of("test-v1"), "test-v1");
+        }
+
+        @Override
+        public String homomorphicAdd(List<String> ciphertexts, String version) {
+            adds.incrementAndGet();
+            largestBatch = Math.max(largestBatch, ciphertexts.size());
+            return super.homomorphicAdd(ciphertexts, version);
+        }
+    }
+
+    @Test
+    public void testEmptySum() {
+        var sum = new EncryptedSum(new TestEncryptionService(), "test-v1");
+
+        Assertions.assertTrue(sum.isEmpty());
+        Assertions.assertNull(sum.ciphertext());
+        Assertions.assertEquals(0L, sum.decrypt());
+    }
+
+    @Test
+    public void testSingleValueIsNotAdded() {
+        var service = new CountingEncryptionService();
+        var sum = new EncryptedSum(service, "test-v1");
+        sum.add("7");
+
+        Assertions.assertEquals(7L, sum.decrypt());
+        Assertions.assertEquals(1L, sum.count());
+        Assertions.assertEquals(0, service.adds.get());
+    }
+
+    @Test
+    public void testLargeSumIsFoldedInBoundedBatches() {
+        var service = new CountingEncryptionService();
+        var sum = new EncryptedSum(service, "test-v1");
+
+        long expected = 0;
+        for (int i = 1; i <= 5000; i++) {
+            sum.add(String.valueOf(i));
+            expected += i;
+        }
+
+        Assertions.assertEquals(expected, sum.decrypt());
+        Assertions.assertEquals(5000L, sum.count());
+        Assertions.assertTrue(service.largestBatch <= 1000);
+        Assertions.assertTrue(service.adds.get() > 1);
+    }
+
+    @Test
+    public void testArenaBackedSum() {
+        var service = new CountingEncryptionService();
+        try (var arena = new CiphertextArena()) {
+            var sum = new EncryptedSum(service, "test-v1", arena);
+
+            long expected = 0;
+            for (int i = 1; i <= 2500; i++) {
+                if (i % 2 == 0)
+                    sum.add(ByteString.copyFromUtf8(String.valueOf(i)));
+                else
+                    sum.add(String.valueOf(i));
+                expected += i;
+            }
+
+            Assertions.assertEquals(expected, sum.decrypt());
+            Assertions.assertEquals(2500L, sum.count());
+            Assertions.assertTrue(service.largestBatch <= 1000);
+        }
+    }
+}
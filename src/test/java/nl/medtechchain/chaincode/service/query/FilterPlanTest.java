@@ -0,0 +1,129 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Filter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Tests for evaluating plaintext filters before decrypting anything
+public class FilterPlanTest {
+
+    // counts the decryptions the filters ask for and the batches they come in
+    private static class CountingEncryptionService extends TestEncryptionService {
+        int decryptions = 0;
+        int batches = 0;
+
+        @Override
+        public long decryptLong(String ciphertext, String version) {
+            decryptions++;
+            return super.decryptLong(ciphertext, version);
+        }
+
+        @Override
+        public List<Long> decryptLongBatch(List<String> ciphertexts, String version) {
+            batches++;
+            return super.decryptLongBatch(ciphertexts, version);
+        }
+    }
+
+    private TestDataGenerator generator;
+
+    @BeforeEach
+    public void setUp() {
+        generator = new TestDataGenerator(42);
+    }
+
+    private DeviceDataAsset asset(String hospital, long usageHours) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("hospital", hospital);
+        values.put("usage_hours", TestEncryptionService.encryptLong(usageHours));
+        return generator.generateAsset(values);
+    }
+
+    private Filter usageHoursEquals(long value) {
+        return Filter.newBuilder()
+                .setField("usage_hours")
+                .setIntegerFilter(Filter.IntegerFilter.newBuilder().setOperator(Filter.IntegerFilter.IntOperator.EQUALS).setValue(value).build())
+                .build();
+    }
+
+    private Filter hospital(Filter.StringFilter.StringOperator operator, String value) {
+        return Filter.newBuilder()
+                .setField("hospital")
+                .setStringFilter(Filter.StringFilter.newBuilder().setOperator(operator).setValue(value).build())
+                .build();
+    }
+
+    @Test
+    public void testEncryptedFilterOnlyDecryptsPlaintextSurvivors() {
+        var encryptionService = new CountingEncryptionService();
+        // encrypted filter first in request order
+        var predicate = new FilterService(encryptionService).compile(List.of(
+                usageHoursEquals(5),
+                hospital(Filter.StringFilter.StringOperator.EQUALS, "HealPoint")));
+
+        int matches = 0;
+        for (int i = 0; i < 100; i++)
+            if (predicate.test(asset(i % 4 == 0 ? "HealPoint" : "CareHub", i % 2 == 0 ? 5 : 6)))
+                matches++;
+
+        Assertions.assertEquals(25, matches);
+        Assertions.assertEquals(25, encryptionService.decryptions);
+    }
+
+    @Test
+    public void testWindowDecryptsInOneBatch() {
+        var encryptionService = new CountingEncryptionService();
+        var plan = new FilterService(encryptionService).compile(List.of(
+                usageHoursEquals(5),
+                hospital(Filter.StringFilter.StringOperator.EQUALS, "HealPoint")));
+
+        var window = new ArrayList<DeviceDataAsset>();
+        for (int i = 0; i < 100; i++)
+            window.add(asset(i % 4 == 0 ? "HealPoint" : "CareHub", i % 2 == 0 ? 5 : 6));
+
+        var matching = plan.filter(window);
+
+        Assertions.assertEquals(25, matching.size());
+        Assertions.assertEquals(25, encryptionService.decryptions);
+        Assertions.assertEquals(1, encryptionService.batches);
+        for (DeviceDataAsset asset : matching)
+            Assertions.assertEquals("HealPoint", asset.getDeviceData().getHospital().getPlain());
+    }
+
+    @Test
+    public void testCheapFiltersGoFirst() {
+        var contains = hospital(Filter.StringFilter.StringOperator.CONTAINS, "Heal");
+        var equals = Filter.newBuilder()
+                .setField("active_status")
+                .setBoolFilter(Filter.BoolFilter.newBuilder().setOperator(Filter.BoolFilter.BoolOperator.EQUALS).setValue(true).build())
+                .build();
+
+        var plan = (FilterPlan) new FilterService().compile(List.of(contains, equals));
+
+        Assertions.assertEquals(List.of(equals, contains), plan.order());
+    }
+
+    @Test
+    public void testSelectiveFilterMovesUp() {
+        // never rejects
+        var startsWith = hospital(Filter.StringFilter.StringOperator.STARTS_WITH, "");
+        // always rejects
+        var contains = hospital(Filter.StringFilter.StringOperator.CONTAINS, "nowhere");
+
+        var plan = (FilterPlan) new FilterService().compile(List.of(startsWith, contains));
+        Assertions.assertEquals(List.of(startsWith, contains), plan.order());
+
+        for (int i = 0; i < FilterPlan.REPLAN_INTERVAL * 2; i++)
+            Assertions.assertFalse(plan.test(asset("HealPoint", 1)));
+
+        Assertions.assertEquals(List.of(contains, startsWith), plan.order());
+    }
+}
@@ -1,6 +1,7 @@
 package nl.medtechchain.chaincode.service.query;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -251,4 +252,32 @@ class FilterServiceTest {
         assertTrue(service.checkFilter(assetV1, filter), "Should match asset with paillier-v1");
         assertFalse(service.checkFilter(assetV2, filter), "Should not match asset with paillier-v2");
     }
-}
\ No newline at end of file
+
+    // ================ Compiled Filter Tests ================
+
+    @Test
+    void testCompiledChain() {
+        DeviceDataAsset asset = createPlainAsset(42);
+        FilterService service = new FilterService();
+
+        var match = service.compile(List.of(
+                buildUsageHoursFilter(buildIntFilter(Filter.IntegerFilter.IntOperator.EQUALS, 42)),
+                buildUsageHoursFilter(buildIntFilter(Filter.IntegerFilter.IntOperator.LESS_THAN_OR_EQUAL, 42))));
+        var noMatch = service.compile(List.of(
+                buildUsageHoursFilter(buildIntFilter(Filter.IntegerFilter.IntOperator.EQUALS, 42)),
+                buildUsageHoursFilter(buildIntFilter(Filter.IntegerFilter.IntOperator.LESS_THAN, 10))));
+
+        assertTrue(match.test(asset));
+        assertFalse(noMatch.test(asset));
+        assertTrue(service.compile(List.of()).test(asset));
+    }
+
+    @Test
+    void testCompiledInvalidFiltersNeverMatch() {
+        DeviceDataAsset asset = createPlainAsset(42);
+        FilterService service = new FilterService();
+
+        assertFalse(service.compile(buildSpecialityFilter(buildEnumFilter("NOT_A_SPECIALITY"))).test(asset));
+        assertFalse(service.compile(Filter.newBuilder().setField("no_such_field").build()).test(asset));
+    }
+}
@@ -0,0 +1,153 @@
+package nl.medtechchain.chaincode.service.query;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import nl.medtechchain.chaincode.service.query.average.AverageQuery;
+import nl.medtechchain.chaincode.service.query.count.CountQuery;
+import nl.medtechchain.chaincode.service.query.linearregression.LinearRegressionQuery;
+import nl.medtechchain.chaincode.service.query.standarddeviation.STDQuery;
+import nl.medtechchain.chaincode.service.query.sum.SumQuery;
+import nl.medtechchain.proto.config.PlatformConfig;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+import nl.medtechchain.proto.query.Query;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Answers from rollups have to match the answers of a scan over the same assets
+public class MomentRollupTest {
+
+    private static final List<Map.Entry<String, String>> PAIRS = List.of(Map.entry("production_date", "usage_hours"));
+
+    private TestDataGenerator generator;
+    private PlatformConfig testConfig;
+    private List<DeviceDataAsset> assets;
+    private MomentRollup rollup;
+
+    @BeforeEach
+    public void setUp() {
+        generator = new TestDataGenerator(42);
+        testConfig = PlatformConfig.newBuilder().build();
+
+        assets = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            assets.add(generator.generateAsset(new HashMap<>()));
+
+        rollup = new MomentRollup();
+        for (DeviceDataAsset asset : assets)
+            rollup.add(asset, PAIRS);
+    }
+
+    private Query query(Query.QueryType type, String targetField) {
+        return Query.newBuilder().setQueryType(type).setTargetField(targetField).build();
+    }
+
+    @Test
+    public void testCountSumAverageMatchScan() {
+        var count = query(Query.QueryType.COUNT, "udi");
+        Assertions.assertEquals(new CountQuery(testConfig).process(count, assets), new CountQuery(testConfig).fromRollup(count, rollup).orElseThrow());
+
+        var sum = query(Query.QueryType.SUM, "usage_hours");
+        Assertions.assertEquals(new SumQuery(testConfig).process(sum, assets), new SumQuery(testConfig).fromRollup(sum, rollup).orElseThrow());
+
+        var average = query(Query.QueryType.AVERAGE, "battery_level");
+        Assertions.assertEquals(
+                new AverageQuery(testConfig).process(average, assets).getAverageResult(),
+                new AverageQuery(testConfig).fromRollup(average, rollup).orElseThrow().getAverageResult(), 1e-9);
+    }
+
+    @Test
+    public void testStdMatchesScan() {
+        for (String field : List.of("usage_hours", "last_sync_time")) {
+            var std = query(Query.QueryType.STD, field);
+            var scanned = new STDQuery(testConfig).process(std, assets).getMeanStd();
+            var rolled = new STDQuery(testConfig).fromRollup(std, rollup).orElseThrow().getMeanStd();
+
+            Assertions.assertEquals(scanned.getMean(), rolled.getMean(), Math.abs(scanned.getMean()) * 1e-12);
+            Assertions.assertEquals(scanned.getStd(), rolled.getStd(), Math.max(scanned.getStd() * 1e-6, 1e-6));
+        }
+    }
+
+    @Test
+    public void testLinearRegressionMatchesScan() {
+        var regression = Query.newBuilder()
+                .setQueryType(Query.QueryType.LINEAR_REGRESSION)
+                .setXTargetField("production_date")
+                .setYTargetField("usage_hours")
+                .build();
+
+        var scanned = new LinearRegressionQuery(testConfig).process(regression, assets).getLinearRegressionResult();
+        var rolled = new LinearRegressionQuery(testConfig).fromRollup(regression, rollup).orElseThrow().getLinearRegressionResult();
+
+        Assertions.assertEquals(scanned.getSlope(), rolled.getSlope(), Math.abs(scanned.getSlope()) * 1e-6 + 1e-9);
+        Assertions.assertEquals(scanned.getIntercept(), rolled.getIntercept(), Math.abs(scanned.getIntercept()) * 1e-6 + 1e-9);
+        Assertions.assertEquals(scanned.getRmse(), rolled.getRmse(), scanned.getRmse() * 1e-6 + 1e-9);
+    }
+
+    @Test
+    public void testUnconfiguredPairCantAnswer() {
+        var regression = Query.newBuilder()
+                .setQueryType(Query.QueryType.LINEAR_REGRESSION)
+                .setXTargetField("last_sync_time")
+                .setYTargetField("battery_level")
+                .build();
+
+        Assertions.assertTrue(new LinearRegressionQuery(testConfig).fromRollup(regression, rollup).isEmpty());
+    }
+
+    @Test
+    public void testEncryptedValuesCantAnswer() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("usage_hours", new TestDataGenerator.Ciphertext("12", "paillier-v1"));
+        rollup.add(generator.generateAsset(values, "paillier-v1"), PAIRS);
+
+        Assertions.assertFalse(rollup.plainField("usage_hours").isPresent());
+        Assertions.assertTrue(rollup.plainField("battery_level").isPresent());
+        Assertions.assertTrue(new SumQuery(testConfig).fromRollup(query(Query.QueryType.SUM, "usage_hours"), rollup).isEmpty());
+        Assertions.assertEquals(51, new CountQuery(testConfig).fromRollup(query(Query.QueryType.COUNT, "udi"), rollup).orElseThrow().getCountResult());
+    }
+
+    @Test
+    public void testRemoveUndoesAdd() {
+        var before = rollup.encode();
+        var extra = generator.generateAsset(new HashMap<>());
+
+        rollup.add(extra, PAIRS);
+        rollup.remove(extra, PAIRS);
+
+        long usageHours = assets.stream().mapToLong(a -> a.getDeviceData().getUsageHours().getPlain()).sum();
+        Assertions.assertEquals(50, rollup.assetCount());
+        Assertions.assertEquals(usageHours, rollup.plainField("usage_hours").orElseThrow().getSum().longValue());
+        Assertions.assertArrayEquals(before, rollup.encode());
+    }
+
+    @Test
+    public void testEncodeRoundTrip() throws InvalidProtocolBufferException {
+        var decoded = MomentRollup.decode(rollup.encode());
+
+        Assertions.assertArrayEquals(rollup.encode(), decoded.encode());
+        Assertions.assertEquals(rollup.assetCount(), decoded.assetCount());
+    }
+
+    @Test
+    public void testMergeOfSplitsEqualsWhole() {
+        var first = new MomentRollup();
+        var second = new MomentRollup();
+        for (int i = 0; i < assets.size(); i++)
+            (i % 2 == 0 ? first : second).add(assets.get(i), PAIRS);
+
+        first.merge(second);
+
+        Assertions.assertArrayEquals(rollup.encode(), first.encode());
+    }
+
+    @Test
+    public void testGarbageIsRejected() {
+        Assertions.assertThrows(InvalidProtocolBufferException.class, () -> MomentRollup.decode(new byte[]{7, 1, 2}));
+    }
+}
@@ -0,0 +1,51 @@
+package nl.medtechchain.chaincode.service.query;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Tests for PackedSum - slotwise sums of packed ciphertexts, slots summed once per decryption
+public class PackedSumTest {
+
+    private static class CountingPackingService extends PackingTestEncryptionService {
+        final AtomicInteger slotSums = new AtomicInteger();
+
+        CountingPackingService() {
+            super(Set.of("bfv-default"), "bfv-default");
+        }
+
+        @Override
+        public String homomorphicSumSlots(String ciphertext, String version) {
+            slotSums.incrementAndGet();
+            return super.homomorphicSumSlots(ciphertext, version);
+        }
+    }
+
+    @Test
+    public void testEmptySum() {
+        var service = new CountingPackingService();
+        var sum = new PackedSum(service, "bfv-default");
+
+        Assertions.assertTrue(sum.isEmpty());
+        Assertions.assertEquals(0L, sum.decrypt());
+        Assertions.assertEquals(0, service.slotSums.get());
+    }
+
+    @Test
+    public void testSlotsAreSummedOnce() {
+        var service = new CountingPackingService();
+        var sum = new PackedSum(service, "bfv-default");
+
+        long expected = 0;
+        for (int i = 0; i < 2500; i++) {
+            sum.add(PackingTestEncryptionService.encryptPacked("bfv-default", i, 1, 2).getCiphertext());
+            expected += i + 3;
+        }
+
+        Assertions.assertEquals(expected, sum.decrypt());
+        Assertions.assertEquals(7500L, sum.count());
+        Assertions.assertEquals(1, service.slotSums.get());
+    }
+}
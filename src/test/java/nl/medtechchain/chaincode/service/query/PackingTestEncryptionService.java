@@ -0,0 +1,83 @@
+package nl.medtechchain.chaincode.service.query;
+
+import nl.medtechchain.chaincode.service.encryption.BfvPackedCiphertext;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Test encryption service with packed ciphertexts - a "ciphertext" with slots is its SLOTS values joined by '|',
+// unpacked ones stay plain numbers like in TestEncryptionService
+public class PackingTestEncryptionService extends TestEncryptionService {
+
+    private static final int SLOTS = 8;
+
+    public PackingTestEncryptionService(Set<String> availableVersions, String currentVersion) {
+        super(true, true, availableVersions, currentVersion);
+    }
+
+    @Override
+    public boolean supportsPacking() {
+        return true;
+    }
+
+    @Override
+    public String homomorphicSumSlots(String ciphertext, String version) {
+        long sum = Arrays.stream(slots(ciphertext)).sum();
+        long[] result = new long[SLOTS];
+        Arrays.fill(result, sum);
+        return join(result);
+    }
+
+    @Override
+    public long decryptLong(String ciphertext, String version) {
+        if (BfvPackedCiphertext.isPacked(ciphertext))
+            throw new IllegalArgumentException("Packed ciphertext decrypted as one value");
+        // the TTP reads the first slot
+        return ciphertext.contains("|") ? slots(ciphertext)[0] : super.decryptLong(ciphertext, version);
+    }
+
+    @Override
+    public String homomorphicAdd(List<String> ciphertexts, String version) {
+        if (!ciphertexts.get(0).contains("|"))
+            return super.homomorphicAdd(ciphertexts, version);
+        long[] sum = new long[SLOTS];
+        for (String ciphertext : ciphertexts) {
+            long[] slots = slots(ciphertext);
+            for (int i = 0; i < SLOTS; i++)
+                sum[i] += slots[i];
+        }
+        return join(sum);
+    }
+
+    @Override
+    public String homomorphicMultiply(String ciphertext1, String ciphertext2, String version) {
+        if (!ciphertext1.contains("|"))
+            return super.homomorphicMultiply(ciphertext1, ciphertext2, version);
+        long[] a = slots(ciphertext1);
+        long[] b = slots(ciphertext2);
+        long[] product = new long[SLOTS];
+        for (int i = 0; i < SLOTS; i++)
+            product[i] = a[i] * b[i];
+        return join(product);
+    }
+
+    // values in the first slots, zeros in the rest
+    public static TestDataGenerator.Ciphertext encryptPacked(String version, long... values) {
+        if (values.length > SLOTS)
+            throw new IllegalArgumentException("More values than slots");
+        return new TestDataGenerator.Ciphertext(BfvPackedCiphertext.encode(values.length, join(Arrays.copyOf(values, SLOTS))), version);
+    }
+
+    private static long[] slots(String ciphertext) {
+        long[] slots = Arrays.stream(ciphertext.split("\\|")).mapToLong(Long::parseLong).toArray();
+        if (slots.length != SLOTS)
+            throw new IllegalArgumentException("Not a slot vector: " + ciphertext);
+        return slots;
+    }
+
+    private static String join(long[] slots) {
+        return Arrays.stream(slots).mapToObj(String::valueOf).collect(Collectors.joining("|"));
+    }
+}
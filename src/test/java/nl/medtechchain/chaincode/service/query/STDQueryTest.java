@@ -72,6 +72,40 @@ public class STDQueryTest {
 
 
     
+    @Test
+    public void testPackedCiphertexts() {
+        STDQuery stdQuery = new STDQuery(testConfig);
+        var enc = new PackingTestEncryptionService(Set.of("bfv-default"), "bfv-default");
+
+        try {
+            var encryptionServiceField = stdQuery.getClass().getSuperclass().getDeclaredField("encryptionService");
+            encryptionServiceField.setAccessible(true);
+            encryptionServiceField.set(stdQuery, enc);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to inject test encryption service", e);
+        }
+
+        Map<String, Map<Object, Integer>> spec = new HashMap<>();
+        Map<Object, Integer> usageHours = new HashMap<>();
+        usageHours.put(4, 1);
+        usageHours.put(TestEncryptionService.encryptLong(6, "bfv-default"), 1);
+        usageHours.put(PackingTestEncryptionService.encryptPacked("bfv-default", 1, 2, 3), 1);
+        usageHours.put(PackingTestEncryptionService.encryptPacked("bfv-default", 10, 20), 1);
+        spec.put("usage_hours", usageHours);
+
+        List<DeviceDataAsset> assets = generator.generateAssetsWithCounts(spec, 4);
+        QueryResult result = stdQuery.process(buildSTDQuery("usage_hours"), assets);
+
+        // 7 values in 4 assets
+        long[] values = {4, 6, 1, 2, 3, 10, 20};
+        double mean = 46.0 / 7;
+        double squares = 0;
+        for (long value : values)
+            squares += (value - mean) * (value - mean);
+        Assertions.assertEquals(mean, result.getMeanStd().getMean(), 0.0001);
+        Assertions.assertEquals(Math.sqrt(squares / 7), result.getMeanStd().getStd(), 0.0001);
+    }
+
     @Test
     public void testPaillierEncryptedHomomorphic() {
         STDQuery stdQuery = new STDQuery(testConfig);
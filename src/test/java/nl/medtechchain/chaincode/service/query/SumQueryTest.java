@@ -408,6 +408,35 @@ public class SumQueryTest {
         Assertions.assertEquals(400, result);
     }
     
+    @Test
+    public void testPackedCiphertexts() {
+        var enc = new PackingTestEncryptionService(Set.of("bfv-default"), "bfv-default");
+
+        Map<String, Map<Object, Integer>> spec = new HashMap<>();
+        Map<Object, Integer> usage = new HashMap<>();
+        usage.put(100, 2);                                                          // 200
+        usage.put(TestEncryptionService.encryptLong(50, "bfv-default"), 1);         // 50
+        usage.put(PackingTestEncryptionService.encryptPacked("bfv-default", 1, 2, 3), 2); // 2×6 = 12
+        usage.put(PackingTestEncryptionService.encryptPacked("bfv-default", 10, 20), 1);  // 30
+        spec.put("usage_hours", usage);
+
+        List<DeviceDataAsset> assets = generator.generateAssetsWithCounts(spec, 6);
+
+        Assertions.assertEquals(292, executeSum(assets, "usage_hours", enc));
+    }
+
+    @Test
+    public void testPackedCiphertextsNeedPackingSupport() {
+        Map<String, Map<Object, Integer>> spec = new HashMap<>();
+        Map<Object, Integer> usage = new HashMap<>();
+        usage.put(PackingTestEncryptionService.encryptPacked("test-v1", 1, 2, 3), 1);
+        spec.put("usage_hours", usage);
+
+        List<DeviceDataAsset> assets = generator.generateAssetsWithCounts(spec, 1);
+
+        Assertions.assertThrows(IllegalStateException.class, () -> executeSum(assets, "usage_hours", new TestEncryptionService()));
+    }
+
     // ================ Stress Tests ================
     
     @Test
@@ -0,0 +1,149 @@
+package nl.medtechchain.chaincode.service.solver;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+// Tests for decoding category counts from a homomorphic sum
+public class CategoryCountSolverTest {
+
+    private static final CategoryCountSolver.Fallback NO_FALLBACK = (names, numbers, sum, count) -> {
+        throw new AssertionError("Fallback should not be needed");
+    };
+
+    private static CategoryCountSolver solver() {
+        return new CategoryCountSolver(16, 1 << 22, NO_FALLBACK);
+    }
+
+    private static List<String> names(List<Integer> numbers) {
+        return numbers.stream().map(n -> "V" + n).collect(Collectors.toList());
+    }
+
+    // the counts have to satisfy both equations of the system
+    private static void assertSolves(List<Integer> numbers, long sum, long count, Optional<Map<String, Long>> solution) {
+        Assertions.assertTrue(solution.isPresent());
+        var names = names(numbers);
+        long total = 0, weighted = 0;
+        for (int i = 0; i < names.size(); i++) {
+            long x = solution.get().get(names.get(i));
+            Assertions.assertTrue(x >= 0);
+            total += x;
+            weighted += x * numbers.get(i);
+        }
+        Assertions.assertEquals(count, total);
+        Assertions.assertEquals(sum, weighted);
+    }
+
+    @Test
+    public void testBool() {
+        var solution = solver().solve(List.of("false", "true"), List.of(0, 1), 7, 10);
+
+        Assertions.assertEquals(Map.of("false", 3L, "true", 7L), solution.orElseThrow());
+    }
+
+    @Test
+    public void testTwoValues() {
+        var numbers = List.of(1, 2);
+        var solver = solver();
+
+        Assertions.assertEquals(Map.of("V1", 1_000_000L, "V2", 500_000L), solver.solve(names(numbers), numbers, 2_000_000, 1_500_000).orElseThrow());
+        Assertions.assertEquals(Map.of("V1", 0L, "V2", 4L), solver.solve(names(numbers), numbers, 8, 4).orElseThrow());
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 9, 4).isEmpty());
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 3, 4).isEmpty());
+    }
+
+    @Test
+    public void testUnevenTwoValues() {
+        var numbers = List.of(3, 7);
+        var solver = solver();
+
+        assertSolves(numbers, 3 * 5 + 7 * 2, 7, solver.solve(names(numbers), numbers, 3 * 5 + 7 * 2, 7));
+        // between the bounds but not a multiple of 7 - 3 away from 3 * count
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 23, 7).isEmpty());
+    }
+
+    @Test
+    public void testConsecutiveRange() {
+        // like the medical specialities
+        var numbers = IntStream.rangeClosed(1, 55).boxed().collect(Collectors.toList());
+        var solver = solver();
+
+        for (long sum = 2_000_000; sum <= 2_000_060; sum++)
+            assertSolves(numbers, sum, 100_000, solver.solve(names(numbers), numbers, sum, 100_000));
+        assertSolves(numbers, 100_000, 100_000, solver.solve(names(numbers), numbers, 100_000, 100_000));
+        assertSolves(numbers, 5_500_000, 100_000, solver.solve(names(numbers), numbers, 5_500_000, 100_000));
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 5_500_001, 100_000).isEmpty());
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 99_999, 100_000).isEmpty());
+    }
+
+    @Test
+    public void testGappedDomain() {
+        var numbers = List.of(0, 5, 7);
+        var solver = solver();
+
+        // low enough that the count never limits which sums are reachable
+        for (long sum = 0; sum <= 60; sum++) {
+            var solution = solver.solve(names(numbers), numbers, sum, 20);
+            // 1, 2, 3, 4, 6, 8, 9, 11, 13, 16, 18 and 23 are not sums of 5s and 7s
+            if (List.of(1L, 2L, 3L, 4L, 6L, 8L, 9L, 11L, 13L, 16L, 18L, 23L).contains(sum))
+                Assertions.assertTrue(solution.isEmpty(), "sum " + sum);
+            else
+                assertSolves(numbers, sum, 20, solution);
+        }
+    }
+
+    @Test
+    public void testNoValues() {
+        var numbers = List.of(0, 5, 7);
+        var solver = solver();
+
+        Assertions.assertEquals(Map.of("V0", 0L, "V5", 0L, "V7", 0L), solver.solve(names(numbers), numbers, 0, 0).orElseThrow());
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 5, 0).isEmpty());
+        // reachable without the count, 19 * 7 + 6 needs 21 values
+        Assertions.assertTrue(solver.solve(names(numbers), numbers, 139, 20).isEmpty());
+        Assertions.assertTrue(solver.solve(List.of(), List.of(), 0, 0).isEmpty());
+    }
+
+    @Test
+    public void testSolutionsAreCached() {
+        var numbers = IntStream.rangeClosed(1, 55).boxed().collect(Collectors.toList());
+        var solver = solver();
+
+        var first = solver.solve(names(numbers), numbers, 1234, 100);
+        var second = solver.solve(new ArrayList<>(names(numbers)), new ArrayList<>(numbers), 1234, 100);
+
+        Assertions.assertSame(first.orElseThrow(), second.orElseThrow());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> first.get().put("V1", 0L));
+        Assertions.assertNotSame(first.get(), solver.solve(names(numbers), numbers, 1235, 100).orElseThrow());
+    }
+
+    @Test
+    public void testLargeGappedDomainUsesFallback() {
+        var numbers = List.of(0, 5, 7);
+        var calls = new AtomicInteger();
+        var solver = new CategoryCountSolver(16, 10_000, (names, n, sum, count) -> {
+            calls.incrementAndGet();
+            return Optional.of(Map.of("V0", count - 1, "V5", 0L, "V7", 1L));
+        });
+
+        // 21 * (20 * 7 + 2) / 2 DP states are fine, 1001 * (1000 * 7 + 2) / 2 are not
+        assertSolves(numbers, 12, 20, solver.solve(names(numbers), numbers, 12, 20));
+        Assertions.assertEquals(0, calls.get());
+
+        assertSolves(numbers, 7, 1000, solver.solve(names(numbers), numbers, 7, 1000));
+        solver.solve(names(numbers), numbers, 7, 1000);
+        Assertions.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testMismatchedDomain() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> solver().solve(List.of("a", "b"), List.of(1), 1, 1));
+    }
+}
@@ -0,0 +1,68 @@
+package nl.medtechchain.chaincode.util;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.proto.common.ChaincodeResponse;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import static nl.medtechchain.chaincode.util.ChaincodeResponseUtil.invalidTransaction;
+import static nl.medtechchain.chaincode.util.ChaincodeResponseUtil.successResponse;
+
+// Tests for the StoreDeviceDataBatch wire format
+public class DeviceDataBatchOpsTest {
+
+    private DeviceDataAsset asset(long seconds, String hospital) {
+        return DeviceDataAsset.newBuilder()
+                .setTimestamp(Timestamp.newBuilder().setSeconds(seconds).build())
+                .setDeviceData(DeviceDataAsset.DeviceData.newBuilder()
+                        .setHospital(DeviceDataAsset.StringField.newBuilder().setPlain(hospital).build())
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws InvalidProtocolBufferException {
+        var first = asset(100, "HealPoint");
+        var second = asset(200, "CareHub");
+
+        var encoded = DeviceDataBatchOps.encodeBatch(List.of(Map.entry("a", first), Map.entry("b", second)));
+        var items = DeviceDataBatchOps.decodeBatch(encoded);
+
+        Assertions.assertEquals(2, items.size());
+        Assertions.assertEquals("a", items.get(0).getKey());
+        Assertions.assertEquals(first, DeviceDataAsset.parseFrom(items.get(0).getValue()));
+        Assertions.assertEquals("b", items.get(1).getKey());
+        Assertions.assertEquals(second, DeviceDataAsset.parseFrom(items.get(1).getValue()));
+    }
+
+    @Test
+    public void testEmptyBatch() throws InvalidProtocolBufferException {
+        Assertions.assertTrue(DeviceDataBatchOps.decodeBatch(DeviceDataBatchOps.encodeBatch(List.of())).isEmpty());
+    }
+
+    @Test
+    public void testTruncatedBatch() {
+        var encoded = DeviceDataBatchOps.encodeBatch(List.of(Map.entry("a", asset(100, "HealPoint"))));
+        var bytes = Base64.getDecoder().decode(encoded);
+        var truncated = Base64.getEncoder().encodeToString(Arrays.copyOf(bytes, bytes.length - 3));
+
+        Assertions.assertThrows(InvalidProtocolBufferException.class, () -> DeviceDataBatchOps.decodeBatch(truncated));
+    }
+
+    @Test
+    public void testStatusesRoundTrip() throws InvalidProtocolBufferException {
+        List<ChaincodeResponse> statuses = List.of(successResponse("a"), invalidTransaction("Failed to parse DeviceDataAsset b", "bad"));
+
+        var decoded = DeviceDataBatchOps.decodeStatuses(DeviceDataBatchOps.encodeStatuses(statuses));
+
+        Assertions.assertEquals(statuses, decoded);
+    }
+}
@@ -0,0 +1,43 @@
+package nl.medtechchain.chaincode.util;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+import nl.medtechchain.proto.devicedata.DeviceDataAsset;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+// Tests for reading ledger values in both the raw protobuf and the old base64 format
+public class StateEncodingOpsTest {
+
+    private final DeviceDataAsset asset = DeviceDataAsset.newBuilder()
+            .setTimestamp(Timestamp.newBuilder().setSeconds(1700000000).build())
+            .setKeyVersion("paillier-v1")
+            .build();
+
+    @Test
+    public void testRawRoundTrip() throws InvalidProtocolBufferException {
+        var value = StateEncodingOps.encodeState(asset);
+
+        Assertions.assertTrue(StateEncodingOps.isRawFormat(value));
+        Assertions.assertEquals(asset.getSerializedSize() + 1, value.length);
+        Assertions.assertEquals(asset, StateEncodingOps.decodeState(value, DeviceDataAsset.parser()));
+    }
+
+    @Test
+    public void testBase64StillReadable() throws InvalidProtocolBufferException {
+        var value = Base64EncodingOps.encode64(asset).getBytes(StandardCharsets.UTF_8);
+
+        Assertions.assertFalse(StateEncodingOps.isRawFormat(value));
+        Assertions.assertEquals(asset, StateEncodingOps.decodeState(value, DeviceDataAsset.parser()));
+    }
+
+    @Test
+    public void testGarbageIsRejected() {
+        var value = "not base64 at all!".getBytes(StandardCharsets.UTF_8);
+
+        Assertions.assertThrows(InvalidProtocolBufferException.class, () -> StateEncodingOps.decodeState(value, DeviceDataAsset.parser()));
+    }
+}